@@ -44,6 +44,7 @@ import org.bouncycastle.crypto.digests.MD5Digest;
 import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
 import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
 import org.bouncycastle.util.encoders.Hex;
 import org.freenetproject.freemail.utils.EmailAddress;
 import org.freenetproject.freemail.utils.Logger;
@@ -60,17 +61,22 @@ public class AccountManager {
 	private static final BigInteger ASYM_KEY_EXPONENT = new BigInteger("17", 10);
 	private static final int ASYM_KEY_CERTAINTY = 80;
 
+	/* The CRT parameters of the private key, see PKCS #1 */
+	private static final String ASYM_KEY_P = "asymkey.p";
+	private static final String ASYM_KEY_Q = "asymkey.q";
+	private static final String ASYM_KEY_DP = "asymkey.dp";
+	private static final String ASYM_KEY_DQ = "asymkey.dq";
+	private static final String ASYM_KEY_QINV = "asymkey.qinv";
+
 	public static final String MAILSITE_SUFFIX = "mailsite";
 	public static final String MAILSITE_VERSION = "-1";
 
 	// We keep FreemailAccount objects for all the accounts in this instance of Freemail - they need to be in memory
-	// anyway since there's SingleAccountWatcher thread running for each of them anyway - and we return the same object
+	// anyway since there's SingleAccountWatcher task running for each of them anyway - and we return the same object
 	// each time a request is made for a given account.
 	private Map<String, FreemailAccount> accounts = new HashMap<String, FreemailAccount>();
 
-	//singleAccountWatcherList locks both these lists
 	private final ArrayList<SingleAccountWatcher> singleAccountWatcherList = new ArrayList<SingleAccountWatcher>();
-	private final ArrayList<Thread> singleAccountWatcherThreadList = new ArrayList<Thread>();
 
 	private final File datadir;
 	private final Freemail freemail;
@@ -110,19 +116,21 @@ public class AccountManager {
 				account.startTasks();
 
 				//Now start a SingleAccountWatcher for this account
-				SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail);
-				Thread t = new Thread(saw, "Freemail Account Watcher for "+account.getIdentity());
-				t.setDaemon(true);
-				t.start();
-
-				synchronized(singleAccountWatcherList) {
-					singleAccountWatcherList.add(saw);
-					singleAccountWatcherThreadList.add(t);
-				}
+				startWatcher(account);
 			}
 		}
 	}
 
+	private void startWatcher(FreemailAccount account) {
+		SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail,
+				freemail.getExecutor(Freemail.TaskType.ACCOUNT));
+
+		synchronized(singleAccountWatcherList) {
+			saw.start(singleAccountWatcherList.size());
+			singleAccountWatcherList.add(saw);
+		}
+	}
+
 	public FreemailAccount getAccount(String username) {
 		synchronized(accounts) {
 			return accounts.get(username);
@@ -162,16 +170,126 @@ public class AccountManager {
 		return accfile;
 	}
 
+	/**
+	 * Reads the private key of an account. If the account file only has the private exponent
+	 * (i.e. the account was created by an older version) the CRT parameters are derived from it
+	 * and added to the account file, since private key operations are several times faster with
+	 * them. Use {@link FreemailAccount#getPrivateKey()} instead of calling this every time.
+	 */
 	public static RSAKeyParameters getPrivateKey(PropsFile props) {
-		String mod_str = props.get("asymkey.modulus");
-		String privexp_str = props.get("asymkey.privexponent");
+		String mod_str;
+		String pubexp_str;
+		String privexp_str;
+		String p_str;
+		String q_str;
+		String dp_str;
+		String dq_str;
+		String qinv_str;
+		synchronized(props) {
+			mod_str = props.get("asymkey.modulus");
+			pubexp_str = props.get("asymkey.pubexponent");
+			privexp_str = props.get("asymkey.privexponent");
+			p_str = props.get(ASYM_KEY_P);
+			q_str = props.get(ASYM_KEY_Q);
+			dp_str = props.get(ASYM_KEY_DP);
+			dq_str = props.get(ASYM_KEY_DQ);
+			qinv_str = props.get(ASYM_KEY_QINV);
+		}
 
 		if(mod_str == null || privexp_str == null) {
 			Logger.error(AccountManager.class, "Couldn't get private key - account file corrupt?");
 			return null;
 		}
 
-		return new RSAKeyParameters(true, new BigInteger(mod_str, 32), new BigInteger(privexp_str, 32));
+		BigInteger modulus = new BigInteger(mod_str, 32);
+		BigInteger privExponent = new BigInteger(privexp_str, 32);
+		if(pubexp_str == null) {
+			return new RSAKeyParameters(true, modulus, privExponent);
+		}
+		BigInteger pubExponent = new BigInteger(pubexp_str, 32);
+
+		if(p_str != null && q_str != null && dp_str != null && dq_str != null && qinv_str != null) {
+			return new RSAPrivateCrtKeyParameters(modulus, pubExponent, privExponent,
+					new BigInteger(p_str, 32), new BigInteger(q_str, 32), new BigInteger(dp_str, 32),
+					new BigInteger(dq_str, 32), new BigInteger(qinv_str, 32));
+		}
+
+		RSAPrivateCrtKeyParameters crtKey = deriveCrtKey(modulus, pubExponent, privExponent);
+		if(crtKey == null) {
+			Logger.error(AccountManager.class, "Couldn't derive CRT parameters of private key");
+			return new RSAKeyParameters(true, modulus, privExponent);
+		}
+
+		Logger.normal(AccountManager.class, "Adding CRT parameters of private key to account file");
+		synchronized(props) {
+			putCrtParameters(props, crtKey);
+		}
+		return crtKey;
+	}
+
+	private static void putCrtParameters(PropsFile props, RSAPrivateCrtKeyParameters key) {
+		props.put(ASYM_KEY_P, key.getP().toString(32));
+		props.put(ASYM_KEY_Q, key.getQ().toString(32));
+		props.put(ASYM_KEY_DP, key.getDP().toString(32));
+		props.put(ASYM_KEY_DQ, key.getDQ().toString(32));
+		props.put(ASYM_KEY_QINV, key.getQInv().toString(32));
+	}
+
+	/**
+	 * Recovers the prime factors of the modulus from the public and private exponent, and from
+	 * those the CRT parameters, using the method in section 8.2.2 of the Handbook of Applied
+	 * Cryptography. Returns {@code null} if the factors couldn't be found, which only happens if
+	 * the key is invalid.
+	 */
+	static RSAPrivateCrtKeyParameters deriveCrtKey(BigInteger modulus, BigInteger pubExponent, BigInteger privExponent) {
+		BigInteger two = BigInteger.valueOf(2);
+		BigInteger minusOne = modulus.subtract(BigInteger.ONE);
+
+		//d*e - 1 is a multiple of lambda(n), write it as 2^s * t with t odd
+		BigInteger k = privExponent.multiply(pubExponent).subtract(BigInteger.ONE);
+		if(k.signum() <= 0 || k.testBit(0)) {
+			return null;
+		}
+		BigInteger t = k.shiftRight(k.getLowestSetBit());
+
+		//For a random g, g^(2^i * t) is a non-trivial square root of 1 for some i with
+		//probability at least 1/2, which gives a factor. Small values of g work just as well
+		BigInteger p = null;
+		for(BigInteger g = two; p == null && g.intValue() < 200; g = g.add(BigInteger.ONE)) {
+			BigInteger x = g.modPow(t, modulus);
+			if(x.equals(BigInteger.ONE) || x.equals(minusOne)) {
+				continue;
+			}
+
+			for(int i = 0; i < k.getLowestSetBit(); i++) {
+				BigInteger y = x.modPow(two, modulus);
+				if(y.equals(BigInteger.ONE)) {
+					p = x.subtract(BigInteger.ONE).gcd(modulus);
+					break;
+				}
+				if(y.equals(minusOne)) {
+					break;
+				}
+				x = y;
+			}
+		}
+		if(p == null || p.equals(BigInteger.ONE) || p.equals(modulus)) {
+			return null;
+		}
+
+		BigInteger q = modulus.divide(p);
+		if(!p.multiply(q).equals(modulus)) {
+			return null;
+		}
+		if(p.compareTo(q) < 0) {
+			BigInteger tmp = p;
+			p = q;
+			q = tmp;
+		}
+
+		return new RSAPrivateCrtKeyParameters(modulus, pubExponent, privExponent, p, q,
+				privExponent.mod(p.subtract(BigInteger.ONE)), privExponent.mod(q.subtract(BigInteger.ONE)),
+				q.modInverse(p));
 	}
 
 	private static boolean initAccFile(PropsFile accfile, OwnIdentity oid) {
@@ -205,6 +323,9 @@ public class AccountManager {
 		accfile.put("asymkey.modulus", pub.getModulus().toString(32));
 		accfile.put("asymkey.pubexponent", pub.getExponent().toString(32));
 		accfile.put("asymkey.privexponent", priv.getExponent().toString(32));
+		if(priv instanceof RSAPrivateCrtKeyParameters) {
+			putCrtParameters(accfile, (RSAPrivateCrtKeyParameters) priv);
+		}
 
 		String privateKey = oid.getInsertURI();
 		privateKey = privateKey.substring(0, privateKey.indexOf("/"));
@@ -334,39 +455,17 @@ public class AccountManager {
 		accounts.put(account.getIdentity(), account);
 
 		//Now start a SingleAccountWatcher for this account
-		SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail);
-		Thread t = new Thread(saw, "Freemail Account Watcher for "+account.getIdentity());
-		t.setDaemon(true);
-		t.start();
-
-		synchronized(singleAccountWatcherList) {
-			singleAccountWatcherList.add(saw);
-			singleAccountWatcherThreadList.add(t);
-		}
+		startWatcher(account);
 	}
 
 	void terminate() {
 		synchronized(singleAccountWatcherList) {
+			//The watchers run on a Freemail executor, which is waited for by Freemail.terminate()
 			Iterator<SingleAccountWatcher> sawIt = singleAccountWatcherList.iterator();
 			while(sawIt.hasNext()) {
 				sawIt.next().kill();
 				sawIt.remove();
 			}
-
-			Iterator<Thread> threadIt = singleAccountWatcherThreadList.iterator();
-			while(threadIt.hasNext()) {
-				threadIt.next().interrupt();
-			}
-
-			threadIt = singleAccountWatcherThreadList.iterator();
-			while(threadIt.hasNext()) {
-				try {
-					threadIt.next().join();
-				} catch (InterruptedException e) {
-					Logger.error(this, "Got InterruptedException while joining SingleAccountWatcher thread");
-				}
-				threadIt.remove();
-			}
 		}
 	}
 }
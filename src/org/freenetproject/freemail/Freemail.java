@@ -37,6 +37,8 @@ import org.freenetproject.freemail.fcp.FCPConnection;
 import org.freenetproject.freemail.fcp.FCPContext;
 import org.freenetproject.freemail.imap.IMAPListener;
 import org.freenetproject.freemail.smtp.SMTPListener;
+import org.freenetproject.freemail.transport.KeyPairPool;
+import org.freenetproject.freemail.transport.TransportScheduler;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.Timer;
 import org.freenetproject.freemail.wot.WoTConnection;
@@ -45,15 +47,33 @@ import org.freenetproject.freemail.wot.WoTConnection;
 public abstract class Freemail implements ConfigClient {
 	private static final ScheduledThreadPoolExecutor defaultExecutor =
 			new ScheduledThreadPoolExecutor(10, new FreemailThreadFactory("Freemail executor thread"));
-	private static final ScheduledThreadPoolExecutor senderExecutor =
-			new ScheduledThreadPoolExecutor(10, new FreemailThreadFactory("Freemail sender thread"));
 
 	private static final String BASEDIR = "freemail-wot";
 	private static final String TEMPDIRNAME = BASEDIR + "/temp";
 	protected static final String DEFAULT_DATADIR = BASEDIR + "/data";
 	protected static final String CFGFILE = BASEDIR + "/globalconfig";
+	private static final String MAILSITE_CACHE_DIR = "mailsites";
+	private static final String KEY_PAIR_POOL_DIR = "keypool";
 	private static final long LATEST_FILE_FORMAT = 1;
 
+	/* Default bounds for the channel poll interval, in seconds */
+	private static final long DEFAULT_CHANNEL_POLL_MIN_INTERVAL = 5 * 60; //5 minutes
+	private static final long DEFAULT_CHANNEL_POLL_MAX_INTERVAL = 2 * 60 * 60; //2 hours
+
+	/* Limits on the number of concurrent transport jobs (fetches, inserts etc.) */
+	private static final int TRANSPORT_MAX_IN_FLIGHT = 20;
+	private static final int TRANSPORT_MAX_IN_FLIGHT_PER_NODE = 10;
+
+	/* Number of threads that store fetched messages for all the channels */
+	private static final int DELIVERY_THREADS = 2;
+
+	/* Number of threads that decrypt, verify and act on received RTS messages for all the accounts */
+	private static final int RTS_THREADS = 4;
+
+	/* Number of accounts that can run a step of their periodic work at the same time. The steps
+	 * don't wait for the node, the fetches and inserts are limited by the transport scheduler */
+	private static final int ACCOUNT_THREADS = 4;
+
 	private File datadir;
 	private static File tempdir;
 	protected static FCPConnection fcpconn = null;
@@ -63,6 +83,12 @@ public abstract class Freemail implements ConfigClient {
 	private Thread imapThread;
 
 	private final AccountManager accountManager;
+	private final TransportScheduler transportScheduler;
+	private final ScheduledThreadPoolExecutor deliveryExecutor;
+	private final ScheduledThreadPoolExecutor rtsExecutor;
+	private final ScheduledThreadPoolExecutor accountExecutor;
+	private final MailsiteCache mailsiteCache;
+	private final KeyPairPool keyPairPool;
 	private final SMTPListener smtpl;
 	private final IMAPListener imapl;
 
@@ -70,6 +96,10 @@ public abstract class Freemail implements ConfigClient {
 
 	private static SecureRandom srng;
 
+	/* Bounds for the channel poll interval, in milliseconds */
+	private volatile long channelPollMinInterval = DEFAULT_CHANNEL_POLL_MIN_INTERVAL * 1000;
+	private volatile long channelPollMaxInterval = DEFAULT_CHANNEL_POLL_MAX_INTERVAL * 1000;
+
 	protected Freemail(String cfgfile) throws IOException {
 		configurator = new Configurator(new File(cfgfile));
 
@@ -87,6 +117,11 @@ public abstract class Freemail implements ConfigClient {
 			throw new IOException("Couldn't create data dir");
 		}
 
+		configurator.register(Configurator.CHANNEL_POLL_MIN_INTERVAL, this,
+				Long.toString(DEFAULT_CHANNEL_POLL_MIN_INTERVAL));
+		configurator.register(Configurator.CHANNEL_POLL_MAX_INTERVAL, this,
+				Long.toString(DEFAULT_CHANNEL_POLL_MAX_INTERVAL));
+
 		/*
 		 * We want the executor to vary the pool size even if the queue isn't
 		 * full since the queue is unbounded. We do this by setting
@@ -96,16 +131,33 @@ public abstract class Freemail implements ConfigClient {
 		 *
 		 * Note: if there are queued tasks at least 1 thread will be alive, but
 		 * unfortunately the timeout still applies to this thread so every time
-		 * the timeout expires the executor creates a new thread. Because of
-		 * this the timeout for the sender executor should be large to avoid
-		 * creating a large amount of threads, and for the default it should be
-		 * > Channel.TASK_RETRY_DELAY (since that makes the thread that runs
-		 * the Fetcher never time out).
+		 * the timeout expires the executor creates a new thread.
 		 */
 		defaultExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
 		defaultExecutor.allowCoreThreadTimeOut(true);
-		senderExecutor.setKeepAliveTime(1, TimeUnit.HOURS);
-		senderExecutor.allowCoreThreadTimeOut(true);
+
+		//All the channel work for every account goes through the same scheduler so that the
+		//total load on the node is bounded
+		transportScheduler = new TransportScheduler(TRANSPORT_MAX_IN_FLIGHT, TRANSPORT_MAX_IN_FLIGHT_PER_NODE,
+				new FreemailThreadFactory("Freemail transport thread"));
+
+		//Fetched messages are stored by a separate small pool so that slow disks don't hold up
+		//the fetchers, and so that lots of incoming mail doesn't hog the disk
+		deliveryExecutor = new ScheduledThreadPoolExecutor(DELIVERY_THREADS, new FreemailThreadFactory("Freemail delivery thread"));
+		deliveryExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
+		deliveryExecutor.allowCoreThreadTimeOut(true);
+
+		//Received RTS messages are handled separately from polling so that a burst of them (which
+		//each need an RSA decryption and a mailsite fetch) doesn't hold up RTS polling
+		rtsExecutor = new ScheduledThreadPoolExecutor(RTS_THREADS, new FreemailThreadFactory("Freemail RTS thread"));
+		rtsExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
+		rtsExecutor.allowCoreThreadTimeOut(true);
+
+		//The periodic work of all the accounts is shared by a few threads instead of each account
+		//having a thread that is mostly sleeping
+		accountExecutor = new ScheduledThreadPoolExecutor(ACCOUNT_THREADS, new FreemailThreadFactory("Freemail account thread"));
+		accountExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
+		accountExecutor.allowCoreThreadTimeOut(true);
 
 		FCPContext fcpctx = new FCPContext();
 		configurator.register(Configurator.FCP_HOST, fcpctx, "localhost");
@@ -113,6 +165,9 @@ public abstract class Freemail implements ConfigClient {
 
 		Freemail.fcpconn = new FCPConnection(fcpctx);
 
+		mailsiteCache = new MailsiteCache(new File(datadir, MAILSITE_CACHE_DIR));
+		keyPairPool = new KeyPairPool(new File(datadir, KEY_PAIR_POOL_DIR), defaultExecutor);
+
 		accountManager = new AccountManager(datadir, this);
 
 		imapl = new IMAPListener(accountManager, configurator);
@@ -135,13 +190,70 @@ public abstract class Freemail implements ConfigClient {
 		return accountManager;
 	}
 
+	/**
+	 * Returns the cache of other identities' mailsites that is shared by all the accounts.
+	 */
+	public MailsiteCache getMailsiteCache() {
+		return mailsiteCache;
+	}
+
+	/**
+	 * Returns the pool of pre-generated key pairs that new channels take their keys from.
+	 */
+	public KeyPairPool getKeyPairPool() {
+		return keyPairPool;
+	}
+
+	/**
+	 * Returns the shortest time a channel will wait between polls, used right after there has
+	 * been activity on the channel.
+	 * @return the minimum channel poll interval in milliseconds
+	 */
+	public long getChannelPollMinInterval() {
+		return channelPollMinInterval;
+	}
+
+	/**
+	 * Returns the longest time an idle channel will wait between polls. This is never less than
+	 * the value returned by {@link #getChannelPollMinInterval()}.
+	 * @return the maximum channel poll interval in milliseconds
+	 */
+	public long getChannelPollMaxInterval() {
+		return Math.max(channelPollMinInterval, channelPollMaxInterval);
+	}
+
 	@Override
 	public void setConfigProp(String key, String val) {
 		if(key.equalsIgnoreCase(Configurator.DATA_DIR)) {
 			datadir = new File(val);
 		} else if(key.equalsIgnoreCase(Configurator.TEMP_DIR)) {
 			tempdir = new File(val);
+		} else if(key.equalsIgnoreCase(Configurator.CHANNEL_POLL_MIN_INTERVAL)) {
+			channelPollMinInterval = parseInterval(key, val, DEFAULT_CHANNEL_POLL_MIN_INTERVAL);
+		} else if(key.equalsIgnoreCase(Configurator.CHANNEL_POLL_MAX_INTERVAL)) {
+			channelPollMaxInterval = parseInterval(key, val, DEFAULT_CHANNEL_POLL_MAX_INTERVAL);
+		}
+	}
+
+	/**
+	 * Parses an interval given in seconds, returning the value in milliseconds or the default if
+	 * the value is invalid.
+	 */
+	private long parseInterval(String key, String val, long defaultSeconds) {
+		long seconds;
+		try {
+			seconds = Long.parseLong(val.trim());
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Invalid value for " + key + ", using default: " + val);
+			seconds = defaultSeconds;
+		}
+
+		if(seconds <= 0) {
+			Logger.error(this, "Value for " + key + " must be positive, using default: " + val);
+			seconds = defaultSeconds;
 		}
+
+		return TimeUnit.SECONDS.toMillis(seconds);
 	}
 
 	protected void startFcp() {
@@ -178,6 +290,13 @@ public abstract class Freemail implements ConfigClient {
 	protected void startWorkers() {
 		//Start account watchers, channel tasks etc.
 		accountManager.startTasks();
+
+		//Generate keys for new channels before they are needed
+		keyPairPool.start();
+
+		//Clean up expired channels and leaked files in the background
+		defaultExecutor.scheduleWithFixedDelay(new Sweeper(this), Sweeper.INITIAL_DELAY, Sweeper.INTERVAL,
+				TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -203,7 +322,10 @@ public abstract class Freemail implements ConfigClient {
 		Timer terminateTimer = Timer.start();
 
 		defaultExecutor.shutdownNow();
-		senderExecutor.shutdownNow();
+		transportScheduler.shutdownNow();
+		deliveryExecutor.shutdownNow();
+		rtsExecutor.shutdownNow();
+		accountExecutor.shutdownNow();
 
 		Timer accountManagerTermination = terminateTimer.startSubTimer();
 		accountManager.terminate();
@@ -247,7 +369,10 @@ public abstract class Freemail implements ConfigClient {
 		Timer executorTermination = terminateTimer.startSubTimer();
 		try {
 			defaultExecutor.awaitTermination(1, TimeUnit.HOURS);
-			senderExecutor.awaitTermination(1, TimeUnit.HOURS);
+			transportScheduler.awaitTermination(1, TimeUnit.HOURS);
+			deliveryExecutor.awaitTermination(1, TimeUnit.HOURS);
+			rtsExecutor.awaitTermination(1, TimeUnit.HOURS);
+			accountExecutor.awaitTermination(1, TimeUnit.HOURS);
 		} catch(InterruptedException e) {
 			Logger.minor(this, "Thread was interrupted while waiting for excutors to terminate.");
 		}
@@ -260,13 +385,25 @@ public abstract class Freemail implements ConfigClient {
 		switch (type) {
 		case UNSPECIFIED:
 			return defaultExecutor;
-		case SENDER:
-			return senderExecutor;
+		case DELIVERY:
+			return deliveryExecutor;
+		case RTS:
+			return rtsExecutor;
+		case ACCOUNT:
+			return accountExecutor;
 		default:
 			throw new AssertionError("Missing case " + type);
 		}
 	}
 
+	/**
+	 * Returns the scheduler that runs the channel work (fetching, inserting etc.) of all the
+	 * accounts.
+	 */
+	public TransportScheduler getTransportScheduler() {
+		return transportScheduler;
+	}
+
 	private static class FreemailThreadFactory implements ThreadFactory {
 		private final String prefix;
 		AtomicInteger threadCount = new AtomicInteger();
@@ -285,7 +422,12 @@ public abstract class Freemail implements ConfigClient {
 
 	public static enum TaskType {
 		UNSPECIFIED,
-		SENDER
+		/** Storing of fetched messages */
+		DELIVERY,
+		/** Handling of received RTS messages */
+		RTS,
+		/** Mailsite inserts, RTS polling and other periodic work of the accounts */
+		ACCOUNT
 	}
 }
 
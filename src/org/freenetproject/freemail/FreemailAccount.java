@@ -23,6 +23,7 @@ import java.io.File;
 import java.util.Locale;
 
 import org.archive.util.Base32;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
 import org.freenetproject.freemail.fcp.HighLevelFCPClientFactory;
 import org.freenetproject.freemail.transport.MessageHandler;
 import org.freenetproject.freemail.utils.PropsFile;
@@ -38,6 +39,9 @@ public class FreemailAccount {
 	private final MessageBank mb;
 	private final MessageHandler messageHandler;
 
+	/* Parsed on first use, guarded by this */
+	private RSAKeyParameters privateKey = null;
+
 	FreemailAccount(String identity, File _accdir, PropsFile _accprops, Freemail freemail) {
 		if(!FreenetURI.checkSSKHash(identity)) {
 			throw new IllegalArgumentException("Expected valid identity string, but got " + identity);
@@ -83,6 +87,17 @@ public class FreemailAccount {
 		return accprops;
 	}
 
+	/**
+	 * Returns the private key of this account, or {@code null} if the account file doesn't contain
+	 * one. The key is only read from the account file once.
+	 */
+	public synchronized RSAKeyParameters getPrivateKey() {
+		if(privateKey == null) {
+			privateKey = AccountManager.getPrivateKey(accprops);
+		}
+		return privateKey;
+	}
+
 	public MessageBank getMessageBank() {
 		return mb;
 	}
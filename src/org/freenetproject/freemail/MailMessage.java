@@ -22,6 +22,7 @@
 package org.freenetproject.freemail;
 
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.FileOutputStream;
@@ -53,10 +54,14 @@ import java.util.Vector;
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
 import org.freenetproject.freemail.imap.IMAPMessageFlags;
+import org.freenetproject.freemail.support.io.LineReadingInputStream;
 import org.freenetproject.freemail.utils.Logger;
 
 
 public class MailMessage {
+	/** Longest header line accepted by {@link #readHeaders(InputStream)}, in bytes */
+	private static final int MAX_HEADER_LINE_LENGTH = 64 * 1024;
+
 	private static final Set<String> dateFormats;
 	static {
 		Set<String> backing = new HashSet<String>();
@@ -249,26 +254,30 @@ public class MailMessage {
 
 		String line;
 		String[] parts = null;
-		while((line = bufrdr.readLine()) != null) {
-			if(line.length() == 0) {
-				if(parts != null)
-					this.addHeader(parts[0], parts[1]);
-				parts = null;
-				break;
-			} else if(line.startsWith(" ") || line.startsWith("\t")) {
-				// continuation of previous line
-				if(parts == null || parts[1] == null)
-					continue;
-				parts[1] += " "+line.trim();
-			} else {
-				if(parts != null)
-					this.addHeader(parts[0], parts[1]);
-				parts = null;
-				parts = line.split(": ", 2);
+		while((line = bufrdr.readLine()) != null && line.length() != 0) {
+			parts = this.parseHeaderLine(line, parts);
+		}
 
-				if(parts.length < 2)
-					parts = null;
-			}
+		if(parts != null) {
+			this.addHeader(parts[0], parts[1]);
+		}
+	}
+
+	/**
+	 * Reads the headers from {@code is}, leaving the stream at the first byte of the body. The
+	 * stream is read one byte at a time, so it should be buffered.
+	 */
+	public void readHeaders(InputStream is) throws IOException {
+		if(this.headers.size() > 0) return;
+
+		//lis isn't closed since that would close is
+		@SuppressWarnings("resource")
+		LineReadingInputStream lis = new LineReadingInputStream(is);
+
+		String line;
+		String[] parts = null;
+		while((line = lis.readLine(MAX_HEADER_LINE_LENGTH, MAX_HEADER_LINE_LENGTH, true)) != null && line.length() != 0) {
+			parts = this.parseHeaderLine(line, parts);
 		}
 
 		if(parts != null) {
@@ -276,6 +285,28 @@ public class MailMessage {
 		}
 	}
 
+	/**
+	 * Handles one line of the header block, given the name and value of the header that is
+	 * currently being read (or {@code null}). Returns the header that is being read after this
+	 * line, adding the previous one if this line starts a new header.
+	 */
+	private String[] parseHeaderLine(String line, String[] parts) {
+		if(line.startsWith(" ") || line.startsWith("\t")) {
+			// continuation of previous line
+			if(parts != null && parts[1] != null)
+				parts[1] += " "+line.trim();
+			return parts;
+		}
+
+		if(parts != null)
+			this.addHeader(parts[0], parts[1]);
+
+		parts = line.split(": ", 2);
+		if(parts.length < 2)
+			return null;
+		return parts;
+	}
+
 	public int getUID() {
 		String[] parts = this.file.getName().split(",");
 
@@ -22,9 +22,15 @@
 package org.freenetproject.freemail;
 
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Executor;
 
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.util.encoders.Hex;
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient.RequestCallback;
+import org.freenetproject.freemail.fcp.NoNodeConnectionException;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
@@ -33,6 +39,19 @@ public class MailSite {
 	private final PropsFile accprops;
 	public static final String MAILPAGE = "mailpage";
 
+	/**
+	 * How often the mailsite is inserted again even if it hasn't changed, so that it doesn't drop
+	 * out of the network.
+	 */
+	static final long KEEPALIVE_INTERVAL = 7 * 24 * 60 * 60 * 1000; //1 week
+
+	/* Hash of the last inserted mailpage and key, and when it was inserted */
+	private static final String INSERTED_HASH = "mailsite.hash";
+	private static final String INSERTED_TIME = "mailsite.inserted";
+
+	/* An inserted edition that hasn't been stored in WoT yet */
+	private static final String WOT_EDITION_PENDING = "mailsite.wotpending";
+
 	MailSite(PropsFile a) {
 		this.accprops = a;
 	}
@@ -64,35 +83,151 @@ public class MailSite {
 		return buf.toString();
 	}
 
-	public int publish(int minslot) throws InterruptedException {
-		byte[] mailpage;
+	/**
+	 * Returns the hash of the mailpage together with the key it is inserted under, or
+	 * {@code null} if the mailsite can't be inserted.
+	 */
+	private String getHash(byte[] mailpage, String key) {
+		byte[] keyBytes;
+		try {
+			keyBytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException use) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		}
+
+		SHA256Digest sha256 = new SHA256Digest();
+		sha256.update(mailpage, 0, mailpage.length);
+		sha256.update((byte)'\n');
+		sha256.update(keyBytes, 0, keyBytes.length);
+
+		byte[] hash = new byte[sha256.getDigestSize()];
+		sha256.doFinal(hash, 0);
+		try {
+			return new String(Hex.encode(hash), "US-ASCII");
+		} catch (UnsupportedEncodingException use) {
+			//JVMs are required to support US-ASCII, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support US-ASCII charset");
+		}
+	}
+
+	byte[] getMailPageBytes() {
 		String mailsite_s = this.getMailPage();
 		if(mailsite_s == null) {
-			return -1;
+			return null;
 		}
 		try {
-			mailpage = mailsite_s.getBytes("UTF-8");
+			return mailsite_s.getBytes("UTF-8");
 		} catch (UnsupportedEncodingException use) {
 			//JVMs are required to support UTF-8, so we can assume it is always available
 			throw new AssertionError("JVM doesn't support UTF-8 charset");
 		}
+	}
 
+	/**
+	 * Returns true if the mailsite should be inserted, i.e. if it has never been inserted, if the
+	 * mailpage or the key it is inserted under has changed since the last insert, or if the last
+	 * insert is older than {@link #KEEPALIVE_INTERVAL}.
+	 */
+	public boolean isPublishDue(long now) {
+		byte[] mailpage = getMailPageBytes();
 		String key = this.accprops.get("mailsite.privkey");
-		if(key == null) return -1;
+		if(mailpage == null || key == null) {
+			//Publishing would fail anyway
+			return false;
+		}
 
-		HighLevelFCPClient cli = new HighLevelFCPClient();
+		if(this.accprops.get("mailsite.slot") == null) return true;
+		if(!getHash(mailpage, key).equals(this.accprops.get(INSERTED_HASH))) return true;
 
-		int actualslot = -1;
+		long inserted;
+		try {
+			inserted = Long.parseLong(this.accprops.get(INSERTED_TIME));
+		} catch (NumberFormatException e) {
+			return true;
+		}
+		return now - inserted >= KEEPALIVE_INTERVAL || inserted > now;
+	}
+
+	/**
+	 * Starts inserting the mailsite at edition {@code minslot} or the first free edition after
+	 * it. The edition it was inserted at is passed to {@code callback}, or -1 if the insert
+	 * failed. No thread waits for the insert while it runs.
+	 * @param executor runs {@code callback}
+	 */
+	public void publish(int minslot, final PublishCallback callback, Executor executor) {
+		final byte[] mailpage = getMailPageBytes();
+		final String key = this.accprops.get("mailsite.privkey");
+		if(mailpage == null || key == null) {
+			callback.published(-1);
+			return;
+		}
+
+		HighLevelFCPClient cli = new HighLevelFCPClient();
 		try {
-			actualslot = cli.slotInsert(mailpage, key, minslot, "/"+MAILPAGE);
+			cli.slotInsertAsync(mailpage, key, minslot, "/"+MAILPAGE, new RequestCallback<Integer>() {
+				@Override
+				public void requestSucceeded(Integer slot) {
+					setPublished(mailpage, key, slot.intValue(), System.currentTimeMillis());
+					callback.published(slot.intValue());
+				}
+
+				@Override
+				public void requestFailed(FCPException e) {
+					// try again later
+					Logger.error(MailSite.this, "Mailsite insert failed: " + e.getMessage());
+					callback.published(-1);
+				}
+			}, executor);
+		} catch (NoNodeConnectionException e) {
+			Logger.minor(this, "No connection to node, can't insert mailsite");
+			callback.published(-1);
 		} catch (ConnectionTerminatedException cte) {
-			return -1;
+			callback.published(-1);
 		}
+	}
+
+	/**
+	 * Receives the result of {@link MailSite#publish(int, PublishCallback, Executor)}.
+	 */
+	public interface PublishCallback {
+		/**
+		 * @param edition the edition the mailsite was inserted at, or -1 if the insert failed
+		 */
+		void published(int edition);
+	}
+
+	/**
+	 * Records that {@code mailpage} has been inserted under {@code key}.
+	 */
+	void setPublished(byte[] mailpage, String key, int slot, long time) {
+		this.accprops.put("mailsite.slot", new Integer(slot).toString());
+		this.accprops.put(INSERTED_HASH, getHash(mailpage, key));
+		this.accprops.put(INSERTED_TIME, time);
+	}
 
-		if(actualslot < 0) return -1;
+	/**
+	 * Records that {@code edition} must be stored in the WoT mailsite edition property. This is
+	 * kept in the account props so that it is retried until it succeeds, even across restarts.
+	 */
+	void setWoTEditionPending(int edition) {
+		this.accprops.put(WOT_EDITION_PENDING, new Integer(edition).toString());
+	}
 
-		this.accprops.put("mailsite.slot", new Integer(actualslot).toString());
+	/**
+	 * Returns the edition that must be stored in WoT, or {@code null} if WoT is up to date.
+	 */
+	String getWoTEditionPending() {
+		return this.accprops.get(WOT_EDITION_PENDING);
+	}
 
-		return actualslot;
+	/**
+	 * Records that {@code edition} has been stored in WoT. Nothing is changed if a newer edition
+	 * has been inserted in the meantime.
+	 */
+	void clearWoTEditionPending(String edition) {
+		if(edition.equals(this.accprops.get(WOT_EDITION_PENDING))) {
+			this.accprops.remove(WOT_EDITION_PENDING);
+		}
 	}
 }
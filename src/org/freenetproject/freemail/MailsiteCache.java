@@ -0,0 +1,234 @@
+/*
+ * MailsiteCache.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+/**
+ * Keeps the parts of other identities' mailsites that are needed to exchange RTS messages, so
+ * that the mailsite doesn't have to be fetched from Freenet every time. There is one file per
+ * identity, named after the routing key of the mailsite (which is the same as the WoT identity
+ * id). An entry is used until WoT reports a newer mailsite edition or the entry is older than
+ * {@link #MAX_AGE}.
+ */
+public class MailsiteCache {
+	/** Entries older than this are fetched again even if the edition hasn't changed */
+	static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000; //1 week
+
+	private static final Pattern ROUTING_KEY = Pattern.compile("^(?:freenet:)?[SU]SK@([0-9a-zA-Z~-]+),");
+	private static final Pattern EDITION = Pattern.compile("/mailsite/-?([0-9]+)(?:/|$)");
+
+	private static final String RTS_KSK = "rtsksk";
+	private static final String MODULUS = "asymkey.modulus";
+	private static final String EXPONENT = "asymkey.pubexponent";
+	private static final String EDITION_KEY = "edition";
+	private static final String FETCHED = "fetched";
+
+	private final File dir;
+
+	public MailsiteCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Returns the cached mailsite of the given identity, or {@code null} if there is no entry,
+	 * the entry is stale, or it is for an edition older than {@code edition}.
+	 * @param identityId the routing key of the identity, as returned by {@link #getIdentityId(String)}
+	 * @param edition the latest known mailsite edition, or -1 if it isn't known
+	 */
+	public synchronized Entry get(String identityId, long edition) {
+		File f = getFile(identityId);
+		if(f == null || !f.exists()) {
+			return null;
+		}
+
+		PropsFile props = PropsFile.createPropsFile(f);
+		Entry entry;
+		try {
+			entry = new Entry(props.get(RTS_KSK), props.get(MODULUS), props.get(EXPONENT),
+					Long.parseLong(props.get(EDITION_KEY)), Long.parseLong(props.get(FETCHED)));
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Mailsite cache entry " + f + " is corrupt, ignoring it");
+			return null;
+		}
+		if(entry.getRtsKsk() == null || entry.getModulus() == null || entry.getExponent() == null) {
+			Logger.error(this, "Mailsite cache entry " + f + " is incomplete, ignoring it");
+			return null;
+		}
+
+		if(entry.getEdition() < edition) {
+			Logger.debug(this, "Cached mailsite of " + identityId + " is edition " + entry.getEdition()
+					+ ", but edition " + edition + " is available");
+			return null;
+		}
+		long age = System.currentTimeMillis() - entry.getFetched();
+		if(age > MAX_AGE || age < 0) {
+			Logger.debug(this, "Cached mailsite of " + identityId + " is stale");
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Reads a mailsite that has been fetched from Freenet and stores the relevant parts in the
+	 * cache. The fetched file isn't deleted.
+	 * @param identityId the routing key of the identity, as returned by {@link #getIdentityId(String)}
+	 * @param edition the edition that was fetched, or -1 if it isn't known
+	 * @param mailsite the fetched mailsite
+	 * @return the new entry, or {@code null} if the mailsite is missing some of the fields
+	 */
+	public synchronized Entry store(String identityId, long edition, File mailsite) {
+		PropsFile mailsiteProps = PropsFile.createPropsFile(mailsite, false);
+		Entry entry = new Entry(mailsiteProps.get(RTS_KSK), mailsiteProps.get(MODULUS), mailsiteProps.get(EXPONENT),
+				Math.max(edition, 0), System.currentTimeMillis());
+		PropsFile.evict(mailsite);
+
+		if(entry.getRtsKsk() == null) {
+			Logger.error(this, "Mailsite of " + identityId + " is missing RTS KSK");
+			return null;
+		}
+		if(entry.getModulus() == null) {
+			Logger.error(this, "Mailsite of " + identityId + " is missing public key modulus");
+			return null;
+		}
+		if(entry.getExponent() == null) {
+			Logger.error(this, "Mailsite of " + identityId + " is missing public key exponent");
+			return null;
+		}
+
+		File f = getFile(identityId);
+		if(f == null) {
+			//Still usable, just not cached
+			return entry;
+		}
+		if(!dir.exists() && !dir.mkdirs()) {
+			Logger.error(this, "Couldn't create mailsite cache directory " + dir);
+			return entry;
+		}
+
+		PropsFile props = PropsFile.createPropsFile(f);
+		props.put(RTS_KSK, entry.getRtsKsk());
+		props.put(MODULUS, entry.getModulus());
+		props.put(EXPONENT, entry.getExponent());
+		props.put(EDITION_KEY, entry.getEdition());
+		props.put(FETCHED, entry.getFetched());
+
+		return entry;
+	}
+
+	/**
+	 * Removes the entry of the given identity, e.g. because it turned out to be out of date.
+	 */
+	public synchronized void invalidate(String identityId) {
+		File f = getFile(identityId);
+		if(f == null) {
+			return;
+		}
+
+		PropsFile.evict(f);
+		if(!f.delete() && f.exists()) {
+			Logger.error(this, "Couldn't delete mailsite cache entry " + f);
+		}
+	}
+
+	private File getFile(String identityId) {
+		if(identityId == null || !identityId.matches("[0-9a-zA-Z~-]+")) {
+			return null;
+		}
+		return new File(dir, identityId);
+	}
+
+	/**
+	 * Returns the routing key of an SSK or USK, which for the keys of WoT identities is the same
+	 * as the identity id, or {@code null} if the key is malformed.
+	 */
+	public static String getIdentityId(String key) {
+		if(key == null) {
+			return null;
+		}
+		Matcher m = ROUTING_KEY.matcher(key);
+		return m.find() ? m.group(1) : null;
+	}
+
+	/**
+	 * Returns the edition of a mailsite key such as {@code USK@.../mailsite/-5/mailpage}, or -1 if
+	 * the key doesn't include one.
+	 */
+	public static long getEdition(String mailsiteKey) {
+		if(mailsiteKey == null) {
+			return -1;
+		}
+		Matcher m = EDITION.matcher(mailsiteKey);
+		if(!m.find()) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(m.group(1));
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The parts of a mailsite that are needed to send an RTS to, or check the signature of an RTS
+	 * from, an identity.
+	 */
+	public static class Entry {
+		private final String rtsKsk;
+		private final String modulus;
+		private final String exponent;
+		private final long edition;
+		private final long fetched;
+
+		Entry(String rtsKsk, String modulus, String exponent, long edition, long fetched) {
+			this.rtsKsk = rtsKsk;
+			this.modulus = modulus;
+			this.exponent = exponent;
+			this.edition = edition;
+			this.fetched = fetched;
+		}
+
+		public String getRtsKsk() {
+			return rtsKsk;
+		}
+
+		public String getModulus() {
+			return modulus;
+		}
+
+		public String getExponent() {
+			return exponent;
+		}
+
+		public long getEdition() {
+			return edition;
+		}
+
+		public long getFetched() {
+			return fetched;
+		}
+	}
+}
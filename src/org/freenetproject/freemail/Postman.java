@@ -27,8 +27,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 import java.io.File;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.IOException;
@@ -44,12 +46,27 @@ import freenet.support.Logger;
 public abstract class Postman {
 	private static final int BOUNDARY_LENGTH = 32;
 
-	protected void storeMessage(BufferedReader brdr, MessageBank mb) throws IOException {
-		MailMessage newmsg = mb.createMessage();
+	/** Size of the buffer used when copying message bodies, in bytes */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
+	/**
+	 * Stores the message read from {@code message} in {@code mb}, closing the stream when done.
+	 * Only the headers are parsed, the body is copied byte for byte so it is stored exactly as it
+	 * was received.
+	 */
+	protected void storeMessage(InputStream message, MessageBank mb) throws IOException {
+		InputStream is = new BufferedInputStream(message, COPY_BUFFER_SIZE);
+		try {
+			storeMessage(is, mb.createMessage());
+		} finally {
+			is.close();
+		}
+	}
+
+	private void storeMessage(InputStream is, MailMessage newmsg) throws IOException {
 		SimpleDateFormat sdf = new SimpleDateFormat("dd MMM yyyy HH:mm:ss Z", Locale.ROOT);
 
-		newmsg.readHeaders(brdr);
+		newmsg.readHeaders(is);
 
 		// add our own headers
 		// received and date
@@ -87,13 +104,25 @@ public abstract class Postman {
 
 		PrintStream ps = newmsg.writeHeadersAndGetStream();
 
-		String line;
-		while((line = brdr.readLine()) != null) {
-			ps.println(line);
+		try {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				ps.write(buffer, 0, read);
+			}
+		} catch(IOException e) {
+			//Don't leave half a message in the inbox
+			newmsg.cancel();
+			throw e;
+		}
+
+		//PrintStream doesn't throw, so check for write errors here
+		if(ps.checkError()) {
+			newmsg.cancel();
+			throw new IOException("Couldn't write message to inbox");
 		}
 
 		newmsg.commit();
-		brdr.close();
 	}
 
 	public static boolean bounceMessage(File origmsg, MessageBank mb, String errmsg) {
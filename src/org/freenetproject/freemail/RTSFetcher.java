@@ -28,7 +28,13 @@ import java.io.FileOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.Calendar;
 import java.util.TimeZone;
 import java.math.BigInteger;
@@ -49,8 +55,13 @@ import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient.RequestCallback;
+import org.freenetproject.freemail.fcp.NoNodeConnectionException;
 import org.freenetproject.freemail.support.io.LineReadingInputStream;
 import org.freenetproject.freemail.support.io.TooLongException;
+import org.freenetproject.freemail.transport.TransportScheduler;
+import org.freenetproject.freemail.transport.TransportScheduler.Completion;
+import org.freenetproject.freemail.transport.TransportScheduler.Job;
 import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
@@ -61,76 +72,269 @@ public class RTSFetcher implements SlotSaveCallback {
 	private File contact_dir;
 	private static final int POLL_AHEAD = 3;
 	private static final int PASSES_PER_DAY = 3;
-	private static final int MAX_DAYS_BACK = 30;
+	/**
+	 * Minimum time between two passes over the slots of a day that has passed. The time doubles
+	 * for every pass, so a day where nothing has turned up is polled less and less often.
+	 */
+	private static final long PASS_INTERVAL = 60 * 60 * 1000; //1 hour
+	private static final int MAX_DAYS_BACK = RTSLog.DAYS;
 	public static final String LOGFILE = "rtslog";
+	private static final String REPLAY_FILTER_FILE = "rtsseen";
 	private static final int RTS_MAX_SIZE = 2 * 1024 * 1024;
 	private static final String RTS_UNPROC_PREFIX = "unprocessed_rts";
 	private static final int RTS_MAX_ATTEMPTS = 15;
 	private FreemailAccount account;
+	private final MailsiteCache mailsiteCache;
+	private final Executor executor;
+	private final TransportScheduler scheduler;
+	private final HighLevelFCPClient fcpcli;
+	private final RTSReplayFilter replayFilter;
+
+	/*
+	 * The unprocessed RTS files (without the attempt count) that have been handed to the executor.
+	 * This is shared by all the accounts so that the sweeper can leave these files alone.
+	 */
+	private static final Set<File> inProgress = new HashSet<File>();
 
-	RTSFetcher(String key, File ctdir, FreemailAccount acc) {
+	RTSFetcher(String key, File ctdir, FreemailAccount acc, MailsiteCache mailsiteCache, Executor executor,
+	           TransportScheduler scheduler) {
 		this.rtskey = key;
 		this.contact_dir = ctdir;
 		this.account = acc;
+		this.mailsiteCache = mailsiteCache;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.fcpcli = new HighLevelFCPClient();
+		this.replayFilter = new RTSReplayFilter(new File(ctdir, REPLAY_FILTER_FILE));
 	}
 
-	public void poll() throws ConnectionTerminatedException, InterruptedException {
-		this.fetch();
-		this.handle_unprocessed();
+	/**
+	 * Starts polling the RTS slots, and hands the RTS messages that have been fetched to the
+	 * executor once the poll has finished. This returns straight away, and {@code done} is run
+	 * by the thread that finishes the poll.
+	 */
+	public void poll(Runnable done) {
+		new PollRound(done).start();
 	}
 
-	private void handle_unprocessed() throws ConnectionTerminatedException, NumberFormatException,
-	                                         InterruptedException {
+	/**
+	 * Hands the unprocessed RTS files to the executor, skipping those that are already being
+	 * handled. This doesn't wait for them to be handled, so polling continues while the RTS
+	 * messages are decrypted and verified.
+	 */
+	private void handle_unprocessed() {
 		File[] files = this.contact_dir.listFiles();
+		if(files == null) {
+			return;
+		}
 
-		int i;
-		for(i = 0; i < files.length; i++) {
-			if(!files[i].getName().startsWith(RTS_UNPROC_PREFIX))
+		for(File f : files) {
+			if(!f.getName().startsWith(RTS_UNPROC_PREFIX))
 				continue;
-			if(this.handle_rts(files[i])) {
-				files[i].delete();
-			} else {
-				String[] parts = files[i].getName().split(",", 2);
+
+			File name = new File(contact_dir, f.getName().split(",", 2)[0]);
+			synchronized(inProgress) {
+				if(!inProgress.add(name)) {
+					continue;
+				}
+			}
+
+			try {
+				executor.execute(new RTSHandler(f, name));
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while scheduling RTS handling");
+				synchronized(inProgress) {
+					inProgress.remove(name);
+				}
+				return;
+			}
+		}
+	}
+
+	private class RTSHandler implements Runnable {
+		private final File file;
+		private final File name;
+
+		RTSHandler(File file, File name) {
+			this.file = file;
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(handle_rts(file)) {
+					file.delete();
+					return;
+				}
+
+				String[] parts = file.getName().split(",", 2);
 
 				int tries;
-				if(parts.length < 2) {
-					tries = 0;
-				} else {
-					tries = Integer.parseInt(parts[1]);
+				try {
+					tries = (parts.length < 2) ? 0 : Integer.parseInt(parts[1]);
+				} catch(NumberFormatException e) {
+					tries = RTS_MAX_ATTEMPTS;
 				}
 				tries++;
 				if(tries > RTS_MAX_ATTEMPTS) {
 					Logger.normal(this, "Maximum attempts at handling RTS reached - deleting RTS");
-					files[i].delete();
+					file.delete();
 				} else {
-					File newname = new File(this.contact_dir, parts[0] + "," + tries);
-					files[i].renameTo(newname);
+					File newname = new File(contact_dir, parts[0] + "," + tries);
+					file.renameTo(newname);
+				}
+			} catch(ConnectionTerminatedException e) {
+				Logger.debug(this, "FCP connection has been terminated, RTS will be handled later");
+			} catch(InterruptedException e) {
+				Logger.debug(this, "RTS handling interrupted, RTS will be handled later");
+			} finally {
+				synchronized(inProgress) {
+					inProgress.remove(name);
 				}
 			}
 		}
 	}
 
-	private void fetch() throws ConnectionTerminatedException, InterruptedException {
-		int i;
-		RTSLog log = new RTSLog(new File(this.contact_dir, LOGFILE));
-		for(i = 1 - MAX_DAYS_BACK; i <= 0; i++) {
-			String datestr = DateStringFactory.getOffsetKeyString(i);
-			if(log.getPasses(datestr) < PASSES_PER_DAY) {
-				boolean successfulPoll = this.fetch_day(log, datestr);
+	/**
+	 * Deletes unprocessed RTS files in {@code rtsDir} that have been tried too many times or whose
+	 * attempt count can't be parsed. Files that still have attempts left are kept however old
+	 * they are, and files that are being handled are left alone.
+	 */
+	static void sweepUnprocessed(File rtsDir, SweepReport report) {
+		File[] files = rtsDir.listFiles();
+		if(files == null) {
+			return;
+		}
+
+		for(File f : files) {
+			if(!f.getName().startsWith(RTS_UNPROC_PREFIX)) {
+				continue;
+			}
+
+			int tries;
+			String[] parts = f.getName().split(",", 2);
+			try {
+				tries = (parts.length < 2) ? 0 : Integer.parseInt(parts[1]);
+			} catch(NumberFormatException e) {
+				tries = Integer.MAX_VALUE;
+			}
+
+			if(tries <= RTS_MAX_ATTEMPTS) {
+				continue;
+			}
+
+			synchronized(inProgress) {
+				if(inProgress.contains(new File(rtsDir, parts[0]))) {
+					continue;
+				}
+			}
+
+			long size = f.length();
+			if(f.delete()) {
+				Logger.debug(RTSFetcher.class, "Deleted stale RTS file " + f);
+				report.rtsFileDeleted(size);
+			} else {
+				Logger.error(RTSFetcher.class, "Couldn't delete stale RTS file " + f);
+			}
+		}
+	}
+
+	/**
+	 * A poll of the RTS slots of today and of the past days that are due for another pass. The
+	 * days are polled concurrently as jobs on the transport scheduler, which limits how many
+	 * fetches run at once across all the accounts. No thread waits for the days, instead the last
+	 * day to finish records the results.
+	 */
+	private class PollRound {
+		private final RTSLog log = new RTSLog(new File(contact_dir, LOGFILE));
+		private final long now = System.currentTimeMillis();
+		private final Runnable done;
+		private final List<DayPoll> polls = new ArrayList<DayPoll>();
+
+		/* Guarded by this. Includes start() itself, so the round can't finish while days are
+		 * still being started */
+		private int remaining = 1;
+
+		PollRound(Runnable done) {
+			this.done = done;
+		}
+
+		void start() {
+			for(int i = 1 - MAX_DAYS_BACK; i <= 0; i++) {
+				String datestr = DateStringFactory.getOffsetKeyString(i);
+				// today is always polled since that is where new
+				// messages will turn up
+				if(i < 0 && !isPassDue(log, datestr, now)) {
+					continue;
+				}
+
+				DayPoll poll = new DayPoll(this, datestr, i == 0);
+				synchronized(this) {
+					polls.add(poll);
+					remaining++;
+				}
+				try {
+					scheduler.execute(Freemail.getFCPConnection(), poll);
+				} catch(RejectedExecutionException e) {
+					Logger.debug(RTSFetcher.this, "Caugth RejectedExecutionException while scheduling RTS poll");
+					synchronized(this) {
+						polls.remove(poll);
+						remaining--;
+					}
+					break;
+				}
+			}
+
+			dayFinished();
+		}
+
+		void dayFinished() {
+			synchronized(this) {
+				remaining--;
+				if(remaining > 0) {
+					return;
+				}
+			}
+
+			for(DayPoll poll : polls) {
+				if(!poll.success) {
+					continue;
+				}
+
+				log.setLastPass(poll.date, now);
 				// don't count passes for today since more
-				// mail may arrive
-				if(i < 0 && successfulPoll) {
-					log.incPasses(datestr);
+				// mail may arrive, or for days where something
+				// just turned up since more might follow
+				if(!poll.today && !poll.found) {
+					log.incPasses(poll.date);
 				}
 			}
+
+			TimeZone gmt = TimeZone.getTimeZone("GMT");
+			Calendar cal = Calendar.getInstance(gmt);
+			cal.setTime(new Date());
+
+			cal.add(Calendar.DAY_OF_MONTH, 0 - MAX_DAYS_BACK);
+			log.pruneBefore(cal.getTime());
+
+			handle_unprocessed();
+			done.run();
 		}
+	}
 
-		TimeZone gmt = TimeZone.getTimeZone("GMT");
-		Calendar cal = Calendar.getInstance(gmt);
-		cal.setTime(new Date());
+	/**
+	 * Returns true if a day that has passed should be polled again. Each day gets
+	 * {@link #PASSES_PER_DAY} passes, spaced {@link #PASS_INTERVAL} times 2^passes apart.
+	 */
+	private static boolean isPassDue(RTSLog log, String date, long now) {
+		int passes = log.getPasses(date);
+		if(passes >= PASSES_PER_DAY) {
+			return false;
+		}
 
-		cal.add(Calendar.DAY_OF_MONTH, 0 - MAX_DAYS_BACK);
-		log.pruneBefore(cal.getTime());
+		long lastPass = log.getLastPass(date);
+		return now - lastPass >= (PASS_INTERVAL << passes) || lastPass > now;
 	}
 
 	private static class MySlotSaveData {
@@ -139,69 +343,123 @@ public class RTSFetcher implements SlotSaveCallback {
 	}
 
 	/**
-	 * @return true if the day was sucessfully polled, false if there were network-type errors and the polling shouldn't count
-	 *              as a valid check of that day's slots.
+	 * Polls the slots of a single day, starting each fetch from the callback of the previous one.
+	 * The day only counts as polled if there were no network-type errors.
 	 */
-	private boolean fetch_day(RTSLog log, String date) throws ConnectionTerminatedException,
-	                                                          InterruptedException {
-		HighLevelFCPClient fcpcli;
-		fcpcli = new HighLevelFCPClient();
+	private class DayPoll implements Job, RequestCallback<File> {
+		private final PollRound round;
+		private final String date;
+		private final boolean today;
+		private final String keybase;
+		private NaturalSlotManager sm;
+		private Completion completion;
+		private int slot;
+
+		/* Results, read by the round once all the days have finished */
+		private volatile boolean success = false;
+		private volatile boolean found = false;
+
+		DayPoll(PollRound round, String date, boolean today) {
+			this.round = round;
+			this.date = date;
+			this.today = today;
+			this.keybase = rtskey + date + "-";
+		}
 
-		String keybase;
-		keybase = this.rtskey + date + "-";
+		@Override
+		public void start(Completion c) {
+			completion = c;
 
-		MySlotSaveData cbdata = new MySlotSaveData();
-		cbdata.log = log;
-		cbdata.date = date;
+			MySlotSaveData cbdata = new MySlotSaveData();
+			cbdata.log = round.log;
+			cbdata.date = date;
 
-		NaturalSlotManager sm = new NaturalSlotManager(this, cbdata, log.getSlots(date));
+			sm = new NaturalSlotManager(RTSFetcher.this, cbdata, round.log.getSlots(date));
+			sm.setPollAhead(POLL_AHEAD);
 
-		sm.setPollAhead(POLL_AHEAD);
+			success = true;
+			fetchNext();
+		}
 
-		int slot;
-		boolean success = true;
-		while((slot = sm.getNextSlotNat()) > 0) {
-			Logger.minor(this, "trying to fetch "+keybase+slot);
+		private void fetchNext() {
+			slot = sm.getNextSlotNat();
+			if(slot <= 0) {
+				finish();
+				return;
+			}
 
+			Logger.minor(this, "trying to fetch "+keybase+slot);
 			try {
-				File result = fcpcli.fetch(keybase+slot);
+				fcpcli.fetchAsync(keybase+slot, -1, this, completion);
+			} catch (NoNodeConnectionException e) {
+				Logger.minor(this, "No connection to node, poll of " + date + " doesn't count");
+				success = false;
+				finish();
+			} catch (ConnectionTerminatedException e) {
+				Logger.debug(this, "FCP connection has been terminated");
+				success = false;
+				finish();
+			}
+		}
 
-				Logger.normal(this, keybase+slot+": got RTS!");
+		private void finish() {
+			completion.done();
+			round.dayFinished();
+		}
 
-				File rts_dest = new File(this.contact_dir, RTS_UNPROC_PREFIX + "-" + log.getAndIncUnprocNextId()+",0");
+		@Override
+		public void requestSucceeded(File result) {
+			Logger.normal(this, keybase+slot+": got RTS!");
 
-				// stick this message in the RTS 'inbox'
-				if(result.renameTo(rts_dest)) {
-					// provided that worked, we can move on to the next RTS message
-					sm.slotUsed();
-				}
-			} catch (FCPFetchException fe) {
-				if(fe.isFatal()) {
-					Logger.error(this, keybase+slot+": fatal fetch error - marking slot as used.");
-					sm.slotUsed();
-				} else if(fe.getCode() == FCPFetchException.ALL_DATA_NOT_FOUND) {
-					// This could be the node not managing to find the CHK containing the actual data (since RTS messages are
-					// over 1KB, the node will opaquely insert them as a KSK redirect to a CHK, since a KSK/SSK can only hold
-					// 1KB of data). It could also be someone inserting dummy redirects to our RTS queue. We'll have to keep
-					// checking it, but we have to check slots until we find some that are really empty, we'd never manage
-					// to fetch anything if they are dead keys.
-					Logger.error(this, keybase+slot+": All Data not found - leaving slot in queue and will poll an extra key");
-					sm.incPollAhead();
-				} else if(fe.getCode() == FCPFetchException.DATA_NOT_FOUND || fe.getCode() == FCPFetchException.RECENTLY_FAILED) {
-					Logger.minor(this, keybase+slot+": no RTS.");
-				} else if(fe.isNetworkError()) {
-					// Freenet is having special moment. This doesn't count as a valid poll.
-					success = false;
-				} else {
-					// We've covered most things above, so I think this should a fairly exceptional case. Let's log it at error.
-					Logger.error(this, keybase+slot+": other non-fatal fetch error:"+fe.getMessage());
-				}
-			} catch (FCPException e) {
+			File rts_dest = new File(contact_dir, RTS_UNPROC_PREFIX + "-" + round.log.getAndIncUnprocNextId()+",0");
+
+			// stick this message in the RTS 'inbox'
+			if(result.renameTo(rts_dest)) {
+				// provided that worked, we can move on to the next RTS message
+				sm.slotUsed();
+				found = true;
+			}
+			fetchNext();
+		}
+
+		@Override
+		public void requestFailed(FCPException e) {
+			if(!(e instanceof FCPFetchException)) {
+				// Most likely the connection to the node was lost, so stop here
 				Logger.error(this, "Unknown error while checking RTS: " + e.getMessage());
 				success = false;
+				finish();
+				return;
+			}
+
+			FCPFetchException fe = (FCPFetchException)e;
+			if(fe.isFatal()) {
+				Logger.error(this, keybase+slot+": fatal fetch error - marking slot as used.");
+				sm.slotUsed();
+			} else if(fe.getCode() == FCPFetchException.ALL_DATA_NOT_FOUND) {
+				// This could be the node not managing to find the CHK containing the actual data (since RTS messages are
+				// over 1KB, the node will opaquely insert them as a KSK redirect to a CHK, since a KSK/SSK can only hold
+				// 1KB of data). It could also be someone inserting dummy redirects to our RTS queue. We'll have to keep
+				// checking it, but we have to check slots until we find some that are really empty, we'd never manage
+				// to fetch anything if they are dead keys.
+				Logger.error(this, keybase+slot+": All Data not found - leaving slot in queue and will poll an extra key");
+				sm.incPollAhead();
+			} else if(fe.getCode() == FCPFetchException.DATA_NOT_FOUND || fe.getCode() == FCPFetchException.RECENTLY_FAILED) {
+				Logger.minor(this, keybase+slot+": no RTS.");
+			} else if(fe.isNetworkError()) {
+				// Freenet is having special moment. This doesn't count as a valid poll.
+				success = false;
+			} else {
+				// We've covered most things above, so I think this should a fairly exceptional case. Let's log it at error.
+				Logger.error(this, keybase+slot+": other non-fatal fetch error:"+fe.getMessage());
 			}
+			fetchNext();
+		}
+
+		@Override
+		public String toString() {
+			return "RTS poll of " + date + " [" + contact_dir + "]";
 		}
-		return success;
 	}
 
 	@Override
@@ -220,6 +478,28 @@ public class RTSFetcher implements SlotSaveCallback {
 			return true;
 		}
 
+		// throw away copies of messages we have already dealt
+		// with before spending any time on them
+		String messageHash;
+		try {
+			messageHash = RTSReplayFilter.hashFile(rtsmessage);
+		} catch (IOException ioe) {
+			Logger.normal(this, "Error reading RTS message!");
+			return false;
+		}
+		if(replayFilter.contains(messageHash)) {
+			Logger.normal(this, "RTS message has already been handled - discarding");
+			return true;
+		}
+
+		boolean handled = this.process_rts(rtsmessage);
+		if(handled) {
+			replayFilter.add(messageHash);
+		}
+		return handled;
+	}
+
+	private boolean process_rts(File rtsmessage) throws ConnectionTerminatedException, InterruptedException {
 		// decrypt
 		byte[] plaintext;
 		try {
@@ -311,6 +591,15 @@ public class RTSFetcher implements SlotSaveCallback {
 			return true;
 		}
 
+		// a resent RTS for a channel we already have won't
+		// change anything, so don't bother checking it
+		String channelHash = RTSReplayFilter.hashChannel(rtsprops.get("channel"));
+		if(replayFilter.contains(channelHash)) {
+			Logger.normal(this, "RTS message is for a channel that has already been set up - discarding");
+			rtsfile.delete();
+			return true;
+		}
+
 		// verify the signature
 		String their_mailsite = rtsprops.get("mailsite");
 
@@ -319,72 +608,60 @@ public class RTSFetcher implements SlotSaveCallback {
 		byte[] our_hash = new byte[sha256.getDigestSize()];
 		sha256.doFinal(our_hash, 0);
 
-		HighLevelFCPClient fcpcli = new HighLevelFCPClient();
-
-		Logger.normal(this, "Trying to fetch sender's mailsite: "+their_mailsite);
-		File msfile;
-		try {
-			msfile = fcpcli.fetch(their_mailsite);
-		} catch (FCPFetchException fe) {
-			// oh well, try again in a bit
-			rtsfile.delete();
-			return false;
-		} catch (FCPException e) {
-			Logger.error(this, "Unknown error while checking sender's mailsite: " + e.getMessage());
-
-			//Try again later
-			rtsfile.delete();
-			return false;
-		}
+		String their_id = MailsiteCache.getIdentityId(their_mailsite);
+		MailsiteCache.Entry mailsite = mailsiteCache.get(their_id, MailsiteCache.getEdition(their_mailsite));
+		boolean cached = (mailsite != null);
+		if(mailsite == null) {
+			Logger.normal(this, "Trying to fetch sender's mailsite: "+their_mailsite);
+			File msfile;
+			try {
+				msfile = fcpcli.fetch(their_mailsite);
+			} catch (FCPFetchException fe) {
+				// oh well, try again in a bit
+				rtsfile.delete();
+				return false;
+			} catch (FCPException e) {
+				Logger.error(this, "Unknown error while checking sender's mailsite: " + e.getMessage());
 
-		PropsFile mailsite = PropsFile.createPropsFile(msfile);
-		String their_exponent = mailsite.get("asymkey.pubexponent");
-		String their_modulus = mailsite.get("asymkey.modulus");
+				//Try again later
+				rtsfile.delete();
+				return false;
+			}
 
-		if(their_exponent == null || their_modulus == null) {
-			Logger.normal(this, "Mailsite fetched successfully but missing vital information! Discarding this RTS.");
-			msfile.delete();
-			rtsfile.delete();
-			return true;
+			mailsite = mailsiteCache.store(their_id, MailsiteCache.getEdition(their_mailsite), msfile);
+			if(!msfile.delete()) {
+				Logger.error(this, "Couldn't delete fetched mailsite: " + msfile);
+			}
+			if(mailsite == null) {
+				Logger.normal(this, "Mailsite fetched successfully but missing vital information! Discarding this RTS.");
+				rtsfile.delete();
+				return true;
+			}
+		} else {
+			Logger.debug(this, "Using cached mailsite of " + their_id);
 		}
 
-		RSAKeyParameters their_pubkey = new RSAKeyParameters(false, new BigInteger(their_modulus, 32), new BigInteger(their_exponent, 32));
+		RSAKeyParameters their_pubkey = new RSAKeyParameters(false, new BigInteger(mailsite.getModulus(), 32), new BigInteger(mailsite.getExponent(), 32));
 		AsymmetricBlockCipher deccipher = new RSAEngine();
 		deccipher.init(false, their_pubkey);
 
-		byte[] their_hash;
-		try {
-			their_hash = deccipher.processBlock(their_encrypted_sig, 0, deccipher.getInputBlockSize());
-		} catch (InvalidCipherTextException icte) {
-			Logger.normal(this, "It was not possible to decrypt the signature of this RTS message. Discarding the RTS message.");
-			msfile.delete();
+		if(!signatureMatches(deccipher, their_encrypted_sig, our_hash)) {
 			rtsfile.delete();
+			if(cached) {
+				//The sender might have a new key that we haven't seen yet, so fetch the mailsite
+				//again before giving up on the RTS
+				Logger.normal(this, "The signature of the RTS message doesn't match the cached mailsite, will check the current mailsite");
+				mailsiteCache.invalidate(their_id);
+				return false;
+			}
 			return true;
 		}
 
-		// finally we can now check that our hash and their hash
-		// match!
-		if(their_hash.length < our_hash.length) {
-			Logger.normal(this, "The signature of the RTS message is not valid (our hash: "+our_hash.length+"bytes, their hash: "+their_hash.length+"bytes. Discarding the RTS message.");
-			msfile.delete();
-			rtsfile.delete();
-			return true;
-		}
-		int i;
-		for(i = 0; i < our_hash.length; i++) {
-			if(their_hash[i] != our_hash[i]) {
-				Logger.normal(this, "The signature of the RTS message is not valid. Discarding the RTS message.");
-				msfile.delete();
-				rtsfile.delete();
-				return true;
-			}
-		}
 		Logger.normal(this, "Signature valid :)");
 		// the signature is valid! Hooray!
 		// Now verify the message is for us
 		if(!account.getIdentity().equals(rtsprops.get("to"))) {
 			Logger.normal(this, "Recieved an RTS message that was not intended for the recipient. Discarding.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -392,21 +669,47 @@ public class RTSFetcher implements SlotSaveCallback {
 		Logger.normal(this, "Original message intended for us :)");
 
 		//Clean up temp files
-		if(!msfile.delete()) {
-			Logger.error(this, "Couldn't delete fetched mailsite: " + msfile);
-		}
 		if(!rtsfile.delete()) {
 			Logger.error(this, "Couldn't delete rts file: " + rtsfile);
 		}
 
-		account.getMessageHandler().createChannelFromRTS(rtsprops);
+		if(!account.getMessageHandler().createChannelFromRTS(rtsprops)) {
+			//Leave the channel out of the replay filter so the RTS is handled again
+			return false;
+		}
+		replayFilter.add(channelHash);
+
+		return true;
+	}
+
+	private boolean signatureMatches(AsymmetricBlockCipher deccipher, byte[] their_encrypted_sig, byte[] our_hash) {
+		byte[] their_hash;
+		try {
+			their_hash = deccipher.processBlock(their_encrypted_sig, 0, deccipher.getInputBlockSize());
+		} catch (InvalidCipherTextException icte) {
+			Logger.normal(this, "It was not possible to decrypt the signature of this RTS message. Discarding the RTS message.");
+			return false;
+		}
 
+		// finally we can now check that our hash and their hash
+		// match!
+		if(their_hash.length < our_hash.length) {
+			Logger.normal(this, "The signature of the RTS message is not valid (our hash: "+our_hash.length+"bytes, their hash: "+their_hash.length+"bytes. Discarding the RTS message.");
+			return false;
+		}
+		int i;
+		for(i = 0; i < our_hash.length; i++) {
+			if(their_hash[i] != our_hash[i]) {
+				Logger.normal(this, "The signature of the RTS message is not valid. Discarding the RTS message.");
+				return false;
+			}
+		}
 		return true;
 	}
 
 	private byte[] decrypt_rts(File rtsmessage) throws IOException, InvalidCipherTextException {
 		// initialise our ciphers
-		RSAKeyParameters ourprivkey = AccountManager.getPrivateKey(account.getProps());
+		RSAKeyParameters ourprivkey = account.getPrivateKey();
 		AsymmetricBlockCipher deccipher = new RSAEngine();
 		deccipher.init(false, ourprivkey);
 
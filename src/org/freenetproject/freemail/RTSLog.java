@@ -21,130 +21,410 @@
 
 package org.freenetproject.freemail;
 
-import java.util.Date;
-import java.util.Set;
-import java.util.Iterator;
-import java.util.Vector;
-import java.util.Enumeration;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Date;
 
 import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
-
+/**
+ * Keeps track of the RTS slots and polling passes of the last {@link #DAYS} days. The log is a
+ * small binary file with a header followed by a fixed number of day records, used as a ring
+ * indexed by the day number, so every update rewrites only the few bytes that changed. Records
+ * for days that have dropped out of the ring are simply overwritten when the slot is reused.
+ *
+ * Older versions stored the log as a PropsFile with one key per day, which is converted the
+ * first time it is opened.
+ */
 public class RTSLog {
-	PropsFile logfile;
-	private static String SLOTS = "slots-";
-	private static String PASSES = "passes-";
-	private static String UNPROC_NEXTID = "unproc-nextid";
+	/** The number of days the log keeps records for */
+	public static final int DAYS = 30;
+
+	private static final int MAGIC = 0x52545331; //"RTS1"
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+	/* Header: magic, birth day, next id for unprocessed messages */
+	private static final int HEADER_SIZE = 16;
+	private static final int BIRTH_OFFSET = 4;
+	private static final int UNPROC_NEXTID_OFFSET = 8;
+
+	/* Record: day, passes, last pass, slot list length, slot list */
+	private static final int RECORD_SIZE = 2048;
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 2;
+	static final int MAX_SLOTS_LENGTH = RECORD_SIZE - RECORD_HEADER_SIZE;
+
+	/* Keys used by the old PropsFile format */
+	private static final String LEGACY_SLOTS = "slots-";
+	private static final String LEGACY_PASSES = "passes-";
+	private static final String LEGACY_LAST_PASS = "lastpass-";
+	private static final String LEGACY_UNPROC_NEXTID = "unproc-nextid";
+	private static final String LEGACY_BIRTH = "birth";
+
+	private final File file;
+
+	/* In memory copy of the file, guarded by this */
+	private int birth;
+	private int unprocNextId;
+	private final DayRecord[] records = new DayRecord[DAYS];
 
 	public RTSLog(File f) {
-		this.logfile = PropsFile.createPropsFile(f);
-		if(!this.logfile.exists()) {
-			String birth = DateStringFactory.getOffsetKeyString(0);
-			this.logfile.put("birth", birth);
+		this.file = f;
+		for(int i = 0; i < DAYS; i++) {
+			records[i] = new DayRecord();
+		}
+
+		if(!load()) {
+			//Either a new log or one in the old format
+			birth = today();
+			unprocNextId = 1;
+			if(f.exists()) {
+				importLegacy();
+			}
+			writeAll();
 		}
 	}
 
-	public int getPasses(String day) {
+	public synchronized int getPasses(String day) {
 		if(this.isBeforeBirth(day)) return Integer.MAX_VALUE;
 
-		String val = this.logfile.get(PASSES+day);
-
-		if(val == null)
-			return 0;
-		else
-			return Integer.parseInt(val);
+		DayRecord record = getRecord(day);
+		return record == null ? 0 : record.passes;
 	}
 
 	private boolean isBeforeBirth(String daystr) {
-		Date day = DateStringFactory.dateFromKeyString(daystr);
-		String birth_s = this.logfile.get("birth");
-		Date birth;
-		if(birth_s == null) {
-			birth = new Date();
-			birth_s = DateStringFactory.getOffsetKeyString(0);
-			this.logfile.put("birth", birth_s);
-		} else {
-			birth = DateStringFactory.dateFromKeyString(birth_s);
-			if(birth.after(new Date())) {
-				Logger.error(this, "RTS log was created in the future! Resetting to now");
-				birth = new Date();
-				birth_s = DateStringFactory.getOffsetKeyString(0);
-				this.logfile.put("birth", birth_s);
+		int today = today();
+		if(birth > today) {
+			Logger.error(this, "RTS log was created in the future! Resetting to now");
+			birth = today;
+			writeHeader();
+		}
+
+		int day = dayNumber(daystr);
+		return day >= 0 && day < birth;
+	}
+
+	public synchronized void incPasses(String day) {
+		DayRecord record = getOrCreateRecord(day);
+		if(record == null) return;
+
+		record.passes++;
+		writeRecord(day);
+	}
+
+	/**
+	 * Returns the time the slots of the given day were last polled successfully, or 0 if they
+	 * haven't been.
+	 */
+	public synchronized long getLastPass(String day) {
+		DayRecord record = getRecord(day);
+		return record == null ? 0 : record.lastPass;
+	}
+
+	public synchronized void setLastPass(String day, long time) {
+		DayRecord record = getOrCreateRecord(day);
+		if(record == null) return;
+
+		record.lastPass = time;
+		writeRecord(day);
+	}
+
+	/**
+	 * Clears the records of days before {@code keepafter}. Records are reused once they drop out
+	 * of the ring, so this only matters for days that haven't been polled since.
+	 */
+	public synchronized void pruneBefore(Date keepafter) {
+		int first = (int)(keepafter.getTime() / MILLIS_PER_DAY);
+		for(int i = 0; i < DAYS; i++) {
+			DayRecord record = records[i];
+			if(record.day != 0 && record.day < first) {
+				record.clear(0);
+				writeRecord(i);
 			}
 		}
+	}
 
-		if(day.before(birth)) return true;
-		return false;
+	public synchronized String getSlots(String day) {
+		DayRecord record = getRecord(day);
+		if(record == null || record.slots == null) {
+			return "1";
+		} else {
+			return record.slots;
+		}
 	}
 
-	public void incPasses(String day) {
-		int passes = this.getPasses(day);
-		passes++;
+	public synchronized void putSlots(String day, String slots) {
+		DayRecord record = getOrCreateRecord(day);
+		if(record == null) return;
 
-		this.logfile.put(PASSES+day, Integer.toString(passes));
+		record.slots = trimSlots(slots);
+		writeRecord(day);
 	}
 
-	public void pruneBefore(Date keepafter) {
-		Set<String> props = this.logfile.listProps();
-		Vector<String> hitlist = new Vector<String>();
+	public synchronized int getAndIncUnprocNextId() {
+		int retval = unprocNextId;
+		unprocNextId++;
+		writeHeader();
 
-		Iterator<String> i = props.iterator();
-		while(i.hasNext()) {
-			String cur = i.next();
+		return retval;
+	}
 
-			String datestr;
-			if(cur.startsWith(PASSES)) {
-				datestr = cur.substring(PASSES.length());
-			} else if(cur.startsWith(SLOTS)) {
-				datestr = cur.substring(SLOTS.length());
-			} else {
-				continue;
+	/**
+	 * Drops slots from the start of the list until it fits in a record. These are the oldest
+	 * slots that are still being polled because a later slot was used, so losing them is the
+	 * least harmful option. The last slot, which is the next free one, is always kept.
+	 */
+	static String trimSlots(String slots) {
+		String trimmed = slots;
+		while(trimmed.length() > MAX_SLOTS_LENGTH) {
+			int comma = trimmed.indexOf(',');
+			if(comma < 0) {
+				//A single slot should never be this long
+				return "1";
 			}
+			trimmed = trimmed.substring(comma + 1);
+		}
+
+		if(trimmed.length() < slots.length()) {
+			Logger.error(RTSLog.class, "RTS slot list is too long, dropped "
+					+ (slots.length() - trimmed.length()) + " characters");
+		}
+		return trimmed;
+	}
+
+	private DayRecord getRecord(String day) {
+		int dayNum = dayNumber(day);
+		if(dayNum < 0) return null;
+
+		DayRecord record = records[dayNum % DAYS];
+		return record.day == dayNum ? record : null;
+	}
 
-			Date logdate = DateStringFactory.dateFromKeyString(datestr);
-			if(logdate == null) {
-				// couldn't parse the date... hmm
-				hitlist.add(cur);
-			} else if(logdate.before(keepafter)) {
-				hitlist.add(cur);
+	private DayRecord getOrCreateRecord(String day) {
+		int dayNum = dayNumber(day);
+		if(dayNum < 0) {
+			Logger.error(this, "Invalid RTS log day: " + day);
+			return null;
+		}
+
+		DayRecord record = records[dayNum % DAYS];
+		if(record.day != dayNum) {
+			record.clear(dayNum);
+		}
+		return record;
+	}
+
+	private static int dayNumber(String day) {
+		Date date = DateStringFactory.dateFromKeyString(day);
+		if(date == null) return -1;
+		return (int)(date.getTime() / MILLIS_PER_DAY);
+	}
+
+	private static int today() {
+		return (int)(System.currentTimeMillis() / MILLIS_PER_DAY);
+	}
+
+	/**
+	 * Reads the log into memory. Returns false if the file doesn't exist or isn't in the current
+	 * format.
+	 */
+	private boolean load() {
+		if(!file.exists()) return false;
+
+		DataInputStream in = null;
+		boolean headerRead = false;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			if(in.readInt() != MAGIC) return false;
+			birth = in.readInt();
+			unprocNextId = in.readInt();
+			in.readInt();
+			headerRead = true;
+
+			byte[] buf = new byte[RECORD_SIZE];
+			for(int i = 0; i < DAYS; i++) {
+				in.readFully(buf);
+				records[i].read(ByteBuffer.wrap(buf));
+			}
+			return true;
+		} catch(EOFException e) {
+			if(!headerRead) return false;
+			//Truncated log, probably after a crash. The remaining records are just empty
+			Logger.error(this, "RTS log " + file + " is truncated");
+			return true;
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while reading " + file + ": " + e.getMessage());
+			return false;
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while closing " + file, e);
+				}
 			}
 		}
+	}
 
-		Enumeration<String> e = hitlist.elements();
-		while(e.hasMoreElements()) {
-			String victim = e.nextElement();
+	private void importLegacy() {
+		PropsFile props = PropsFile.createPropsFile(file);
+		int oldest = today() - DAYS + 1;
 
-			this.logfile.remove(victim);
+		for(String key : props.listProps()) {
+			String val = props.get(key);
+			try {
+				if(key.equals(LEGACY_BIRTH)) {
+					int day = dayNumber(val);
+					if(day >= 0) birth = day;
+				} else if(key.equals(LEGACY_UNPROC_NEXTID)) {
+					unprocNextId = Integer.parseInt(val);
+				} else if(key.startsWith(LEGACY_SLOTS)) {
+					DayRecord record = legacyRecord(key.substring(LEGACY_SLOTS.length()), oldest);
+					if(record != null) record.slots = trimSlots(val);
+				} else if(key.startsWith(LEGACY_PASSES)) {
+					DayRecord record = legacyRecord(key.substring(LEGACY_PASSES.length()), oldest);
+					if(record != null) record.passes = Integer.parseInt(val);
+				} else if(key.startsWith(LEGACY_LAST_PASS)) {
+					DayRecord record = legacyRecord(key.substring(LEGACY_LAST_PASS.length()), oldest);
+					if(record != null) record.lastPass = Long.parseLong(val);
+				}
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Ignoring invalid value for " + key + " in old RTS log");
+			}
 		}
+		PropsFile.evict(file);
 	}
 
-	public String getSlots(String day) {
-		String slots = this.logfile.get(SLOTS+day);
-		if(slots == null) {
-			return "1";
-		} else {
-			return slots;
+	private DayRecord legacyRecord(String day, int oldest) {
+		int dayNum = dayNumber(day);
+		if(dayNum < oldest) return null;
+		return getOrCreateRecord(day);
+	}
+
+	private void writeAll() {
+		//Write to a temporary file so a crash can't leave a half converted log behind
+		File tmp = new File(file.getPath() + ".tmp");
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + DAYS * RECORD_SIZE);
+		buf.putInt(MAGIC);
+		buf.putInt(birth);
+		buf.putInt(unprocNextId);
+		buf.putInt(0);
+		for(int i = 0; i < DAYS; i++) {
+			buf.position(HEADER_SIZE + i * RECORD_SIZE);
+			records[i].write(buf);
+		}
+
+		if(!write(tmp, 0, buf.array())) {
+			tmp.delete();
+			return;
+		}
+
+		//Renaming over an existing file fails on some platforms
+		if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			Logger.error(this, "Couldn't move " + tmp + " to " + file);
 		}
 	}
 
-	public void putSlots(String day, String slots) {
-		this.logfile.put(SLOTS+day, slots);
+	private void writeHeader() {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE - BIRTH_OFFSET);
+		buf.putInt(birth);
+		buf.putInt(unprocNextId);
+		write(file, BIRTH_OFFSET, buf.array());
 	}
 
-	public int getAndIncUnprocNextId() {
-		String nid = this.logfile.get(UNPROC_NEXTID);
-		int retval;
-		if(nid == null) {
-			retval = 1;
-		} else {
-			retval = Integer.parseInt(nid);
+	private void writeRecord(String day) {
+		writeRecord(dayNumber(day) % DAYS);
+	}
+
+	private void writeRecord(int index) {
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + MAX_SLOTS_LENGTH);
+		int length = records[index].write(buf);
+		byte[] data = new byte[length];
+		System.arraycopy(buf.array(), 0, data, 0, length);
+		write(file, HEADER_SIZE + (long)index * RECORD_SIZE, data);
+	}
+
+	private boolean write(File f, long offset, byte[] data) {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "rw");
+			raf.seek(offset);
+			raf.write(data);
+			return true;
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while writing " + f + ": " + e.getMessage());
+			return false;
+		} finally {
+			if(raf != null) {
+				try {
+					raf.close();
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while closing " + f, e);
+				}
+			}
 		}
+	}
 
-		this.logfile.put(UNPROC_NEXTID, Integer.toString(retval + 1));
+	private static class DayRecord {
+		/* Days since the epoch, or 0 if the record is unused */
+		int day;
+		int passes;
+		long lastPass;
+		String slots;
 
-		return retval;
+		void clear(int newDay) {
+			day = newDay;
+			passes = 0;
+			lastPass = 0;
+			slots = null;
+		}
+
+		void read(ByteBuffer buf) {
+			day = buf.getInt();
+			passes = buf.getInt();
+			lastPass = buf.getLong();
+			int length = buf.getShort() & 0xffff;
+			if(length == 0 || length > MAX_SLOTS_LENGTH) {
+				slots = null;
+				return;
+			}
+
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			try {
+				slots = new String(bytes, "US-ASCII");
+			} catch(UnsupportedEncodingException e) {
+				//JVMs are required to support US-ASCII, so we can assume it is always available
+				throw new AssertionError("JVM doesn't support US-ASCII charset");
+			}
+		}
+
+		/**
+		 * Writes the record to {@code buf} and returns the number of bytes written. The unused
+		 * part of the slot list isn't written.
+		 */
+		int write(ByteBuffer buf) {
+			byte[] bytes;
+			try {
+				bytes = slots == null ? new byte[0] : slots.getBytes("US-ASCII");
+			} catch(UnsupportedEncodingException e) {
+				//JVMs are required to support US-ASCII, so we can assume it is always available
+				throw new AssertionError("JVM doesn't support US-ASCII charset");
+			}
+
+			buf.putInt(day);
+			buf.putInt(passes);
+			buf.putLong(lastPass);
+			buf.putShort((short)bytes.length);
+			buf.put(bytes);
+			return RECORD_HEADER_SIZE + bytes.length;
+		}
 	}
 }
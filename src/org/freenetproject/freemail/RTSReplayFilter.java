@@ -0,0 +1,248 @@
+/*
+ * RTSReplayFilter.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.util.encoders.Hex;
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Remembers which RTS messages have already been handled, so that duplicates (e.g. the same RTS
+ * fetched from another slot, or resent with the same channel) can be discarded without doing any
+ * of the expensive work again. Messages are identified by a hash of the encrypted message, and by
+ * a hash of the channel key once the message has been decrypted. Only hashes are stored, never
+ * the channel keys themselves.
+ *
+ * The hashes are kept in memory and appended to a file, one per line together with the time they
+ * were added. Entries older than {@link #MAX_AGE} are dropped since such old RTS messages aren't
+ * fetched any more, and the file is rewritten when it contains many dropped entries.
+ */
+class RTSReplayFilter {
+	/** Entries are kept for a bit longer than RTS messages are fetched */
+	static final long MAX_AGE = 31L * 24 * 60 * 60 * 1000; //31 days
+
+	/* Only the first part of the hash is kept, which is more than enough to avoid collisions */
+	private static final int HASH_BYTES = 16;
+
+	private final File file;
+
+	/* Guarded by this, loaded on first use */
+	private Map<String, Long> entries = null;
+	private int linesInFile = 0;
+
+	RTSReplayFilter(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns {@code true} if {@code hash} has been added and hasn't expired yet.
+	 */
+	synchronized boolean contains(String hash) {
+		load();
+		Long added = entries.get(hash);
+		return added != null && System.currentTimeMillis() - added.longValue() < MAX_AGE;
+	}
+
+	/**
+	 * Adds {@code hash} to the filter.
+	 */
+	synchronized void add(String hash) {
+		load();
+		long now = System.currentTimeMillis();
+		entries.put(hash, Long.valueOf(now));
+
+		//Rewrite the file if most of it is stale, otherwise just append the new entry
+		if(linesInFile > 2 * entries.size() + 100) {
+			prune(now);
+			write();
+			return;
+		}
+
+		PrintStream ps = null;
+		try {
+			ps = new PrintStream(new FileOutputStream(file, true), false, "UTF-8");
+			ps.println(hash + " " + now);
+			linesInFile++;
+		} catch(FileNotFoundException e) {
+			Logger.error(this, "Couldn't write to " + file + ": " + e.getMessage());
+		} catch(UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		} finally {
+			if(ps != null) {
+				ps.close();
+			}
+		}
+	}
+
+	private void load() {
+		if(entries != null) {
+			return;
+		}
+
+		entries = new HashMap<String, Long>();
+		linesInFile = 0;
+		if(!file.exists()) {
+			return;
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null) {
+				linesInFile++;
+				String[] parts = line.split(" ");
+				if(parts.length != 2) {
+					continue;
+				}
+				try {
+					entries.put(parts[0], Long.valueOf(parts[1]));
+				} catch(NumberFormatException e) {
+					continue;
+				}
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while reading " + file + ": " + e.getMessage());
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while closing " + file, e);
+				}
+			}
+		}
+
+		int loaded = entries.size();
+		prune(System.currentTimeMillis());
+		if(entries.size() < loaded || linesInFile > loaded) {
+			write();
+		}
+	}
+
+	private void prune(long now) {
+		Iterator<Long> it = entries.values().iterator();
+		while(it.hasNext()) {
+			if(now - it.next().longValue() >= MAX_AGE) {
+				it.remove();
+			}
+		}
+	}
+
+	private void write() {
+		File tmp = new File(file.getPath() + ".tmp");
+		PrintStream ps = null;
+		try {
+			ps = new PrintStream(new FileOutputStream(tmp), false, "UTF-8");
+			for(Map.Entry<String, Long> entry : entries.entrySet()) {
+				ps.println(entry.getKey() + " " + entry.getValue());
+			}
+		} catch(FileNotFoundException e) {
+			Logger.error(this, "Couldn't write to " + tmp + ": " + e.getMessage());
+			return;
+		} catch(UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		} finally {
+			if(ps != null) {
+				ps.close();
+			}
+		}
+
+		if(ps.checkError()) {
+			Logger.error(this, "Couldn't write to " + tmp);
+			tmp.delete();
+			return;
+		}
+
+		//Renaming over an existing file fails on some platforms
+		if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			Logger.error(this, "Couldn't move " + tmp + " to " + file);
+			return;
+		}
+		linesInFile = entries.size();
+	}
+
+	/**
+	 * Returns the hash of the contents of {@code f}.
+	 */
+	static String hashFile(File f) throws IOException {
+		SHA256Digest sha256 = new SHA256Digest();
+		InputStream is = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[4096];
+			int read;
+			while((read = is.read(buf)) != -1) {
+				sha256.update(buf, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+
+		return finish(sha256);
+	}
+
+	/**
+	 * Returns the hash of a channel key. The hash is prefixed so it never matches the hash of a
+	 * message.
+	 */
+	static String hashChannel(String channelKey) {
+		SHA256Digest sha256 = new SHA256Digest();
+		byte[] bytes;
+		try {
+			bytes = ("channel:" + channelKey).getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			//JVMs are required to support UTF-8, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support UTF-8 charset");
+		}
+		sha256.update(bytes, 0, bytes.length);
+
+		return "c" + finish(sha256);
+	}
+
+	private static String finish(SHA256Digest sha256) {
+		byte[] hash = new byte[sha256.getDigestSize()];
+		sha256.doFinal(hash, 0);
+
+		byte[] truncated = new byte[HASH_BYTES];
+		System.arraycopy(hash, 0, truncated, 0, HASH_BYTES);
+		try {
+			return new String(Hex.encode(truncated), "US-ASCII");
+		} catch(UnsupportedEncodingException e) {
+			//JVMs are required to support US-ASCII, so we can assume it is always available
+			throw new AssertionError("JVM doesn't support US-ASCII charset");
+		}
+	}
+}
@@ -22,10 +22,11 @@
 package org.freenetproject.freemail;
 
 import java.io.File;
-import java.lang.InterruptedException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
-import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.Timer;
 import org.freenetproject.freemail.wot.WoTConnection;
@@ -33,26 +34,54 @@ import org.freenetproject.freemail.wot.WoTProperties;
 
 import freenet.pluginmanager.PluginNotFoundException;
 
+/**
+ * Does the periodic work of a single account: inserting the mailsite, setting the WoT context
+ * and polling for RTS messages. Rather than having a thread of its own the watcher is a task on
+ * an executor shared by all the accounts, which limits how many accounts do work at the same
+ * time. Each run does one step of the cycle and then schedules the next one, so the accounts
+ * take turns on the executor instead of one account holding a thread for the whole cycle. The
+ * mailsite insert and the RTS poll don't wait for the node either, they schedule the next step
+ * from the callback that tells them they are done.
+ */
 public class SingleAccountWatcher implements Runnable {
 	/**
-	 * Whether the thread this service runs in should stop.
+	 * Whether this service should stop.
 	 */
 	protected volatile boolean stopping = false;
 
 	public static final String RTS_DIR = "rts";
 	private static final int MIN_POLL_DURATION = 5 * 60 * 1000; // in milliseconds
-	private static final int MAILSITE_UPLOAD_INTERVAL = 60 * 60 * 1000;
+
+	/** The delay between the first cycles of two accounts that are started together */
+	private static final long START_STAGGER = 10 * 1000; // in milliseconds
+
 	private final RTSFetcher rtsf;
-	private long mailsite_last_upload;
+	private final MailSite mailsite;
 	private final FreemailAccount account;
 	private final Freemail freemail;
+	private final ScheduledExecutorService executor;
 	private final File rtsdir;
 	private boolean hasSetWoTContext;
 
-	SingleAccountWatcher(FreemailAccount acc, Freemail freemail) {
+	/* Only accessed by the current step, so accesses never overlap, but the steps may run on
+	 * different threads */
+	private volatile State state = State.MAILSITE;
+	private volatile long cycleStart;
+
+	/* Guarded by this */
+	private ScheduledFuture<?> next = null;
+
+	private enum State {
+		MAILSITE,
+		WOT_CONTEXT,
+		RTS_POLL
+	}
+
+	SingleAccountWatcher(FreemailAccount acc, Freemail freemail, ScheduledExecutorService executor) {
 		this.account = acc;
 		this.freemail = freemail;
-		this.mailsite_last_upload = 0;
+		this.executor = executor;
+		this.mailsite = new MailSite(account.getProps());
 
 		rtsdir = new File(account.getAccountDir(), RTS_DIR);
 
@@ -62,7 +91,8 @@ public class SingleAccountWatcher implements Runnable {
 			Logger.error(this, "Your accprops file is missing the rtskey entry. This means it is broken, you will not be able to receive new contact requests.");
 		}
 
-		this.rtsf = new RTSFetcher("KSK@"+rtskey+"-", rtsdir, account);
+		this.rtsf = new RTSFetcher("KSK@"+rtskey+"-", rtsdir, account, freemail.getMailsiteCache(),
+				freemail.getExecutor(Freemail.TaskType.RTS), freemail.getTransportScheduler());
 
 		//this.mf = new MailFetcher(this.mb, inbound_dir, Freemail.getFCPConnection());
 
@@ -75,44 +105,76 @@ public class SingleAccountWatcher implements Runnable {
 		}
 	}
 
+	/**
+	 * Starts the watcher. The first cycle is delayed depending on {@code index} so that the
+	 * accounts that are started together don't all poll at the same time.
+	 * @param index the number of accounts that were started before this one
+	 */
+	public void start(int index) {
+		schedule((index * START_STAGGER) % MIN_POLL_DURATION);
+	}
+
 	@Override
 	public void run() {
-		while(!stopping) {
-			try {
-				long start = System.currentTimeMillis();
-				WoTConnection wotConnection = freemail.getWotConnection();
-
-				insertMailsite(wotConnection);
-				setWoTContext(wotConnection);
+		if(stopping) {
+			return;
+		}
 
-				if(stopping) {
-					break;
-				}
-				Logger.debug(this, "polling rts");
-				this.rtsf.poll();
-				if(stopping) {
-					break;
+		switch(state) {
+		case MAILSITE:
+			cycleStart = System.currentTimeMillis();
+			if(insertMailsite(freemail.getWotConnection())) {
+				//The next step is scheduled when the insert has finished
+				return;
+			}
+			state = State.WOT_CONTEXT;
+			schedule(0);
+			break;
+		case WOT_CONTEXT:
+			setWoTEdition(freemail.getWotConnection());
+			setWoTContext(freemail.getWotConnection());
+			state = State.RTS_POLL;
+			schedule(0);
+			break;
+		case RTS_POLL:
+			//Start over next time even if the poll fails
+			state = State.MAILSITE;
+			Logger.debug(this, "polling rts");
+			this.rtsf.poll(new Runnable() {
+				@Override
+				public void run() {
+					schedule(Math.max(0, cycleStart + MIN_POLL_DURATION - System.currentTimeMillis()));
 				}
+			});
+			break;
+		default:
+			throw new AssertionError("Missing case " + state);
+		}
+	}
 
-				long runtime = System.currentTimeMillis() - start;
-
-				if(MIN_POLL_DURATION - runtime > 0) {
-					Thread.sleep(MIN_POLL_DURATION - runtime);
-				}
-			} catch (ConnectionTerminatedException cte) {
+	private synchronized void schedule(long delay) {
+		if(stopping) {
+			return;
+		}
 
-			} catch (InterruptedException ie) {
-				Logger.debug(this, "SingleAccountWatcher interrupted, stopping");
-				kill();
-				break;
-			}
+		try {
+			next = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while scheduling account watcher, stopping");
+			stopping = true;
 		}
 	}
 
-	private void insertMailsite(WoTConnection wotConnection) throws InterruptedException {
-		// is it time we inserted the mailsite?
-		if(System.currentTimeMillis() > this.mailsite_last_upload + MAILSITE_UPLOAD_INTERVAL) {
+	/**
+	 * Starts inserting the mailsite if it is due, returning {@code true} if the insert was
+	 * started. The insert schedules the next step when it has finished.
+	 */
+	private boolean insertMailsite(WoTConnection wotConnection) {
+		// is it time we inserted the mailsite? This is only the case
+		// if it has changed or hasn't been refreshed for a long time
+		if(mailsite.isPublishDue(System.currentTimeMillis())) {
 			int editionHint = 1;
+			int wotEdition = -1;
 
 			//Try to get the edition from WoT
 			if(wotConnection != null) {
@@ -120,7 +182,8 @@ public class SingleAccountWatcher implements Runnable {
 				try {
 					String hint = wotConnection.getProperty(
 							account.getIdentity(), WoTProperties.MAILSITE_EDITION);
-					editionHint = Integer.parseInt(hint);
+					wotEdition = Integer.parseInt(hint);
+					editionHint = wotEdition;
 				} catch (PluginNotFoundException e) {
 					//Only means that we can't get the hint from WoT so ignore it
 				} catch (NumberFormatException e) {
@@ -139,25 +202,46 @@ public class SingleAccountWatcher implements Runnable {
 				//Same as for the WoT approach
 			}
 
-			MailSite ms = new MailSite(account.getProps());
-			Timer mailsiteInsert = Timer.start();
-			int edition = ms.publish(editionHint);
-			mailsiteInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting mailsite");
-			if(edition >= 0) {
-				this.mailsite_last_upload = System.currentTimeMillis();
-				if(wotConnection != null) {
-					Timer propertyUpdate = Timer.start();
-					try {
-						wotConnection.setProperty(account.getIdentity(), WoTProperties.MAILSITE_EDITION, "" + edition);
-					} catch(PluginNotFoundException e) {
-						//In most cases this doesn't matter since the edition doesn't
-						//change very often anyway
-						Logger.normal(this, "WoT plugin not loaded, can't save mailsite edition");
+			final Timer mailsiteInsert = Timer.start();
+			final int knownEdition = wotEdition;
+			mailsite.publish(editionHint, new MailSite.PublishCallback() {
+				@Override
+				public void published(int edition) {
+					mailsiteInsert.log(SingleAccountWatcher.this, 1, TimeUnit.HOURS, "Time spent inserting mailsite");
+					if(edition >= 0 && edition != knownEdition) {
+						//Stored in WoT by the next step, and retried every cycle until it succeeds
+						mailsite.setWoTEditionPending(edition);
 					}
-					propertyUpdate.log(this, 1, TimeUnit.HOURS, "Time spent setting mailsite property");
+
+					state = State.WOT_CONTEXT;
+					schedule(0);
 				}
+			}, executor);
+			return true;
+		}
+		return false;
+	}
+
+	private void setWoTEdition(WoTConnection wotConnection) {
+		String edition = mailsite.getWoTEditionPending();
+		if(edition == null) {
+			return;
+		}
+		if(wotConnection == null) {
+			return;
+		}
+
+		Timer propertyUpdate = Timer.start();
+		try {
+			if(wotConnection.setProperty(account.getIdentity(), WoTProperties.MAILSITE_EDITION, edition)) {
+				mailsite.clearWoTEditionPending(edition);
+			} else {
+				Logger.error(this, "Setting mailsite edition in WoT failed, will try again next cycle");
 			}
+		} catch(PluginNotFoundException e) {
+			Logger.normal(this, "WoT plugin not loaded, can't save mailsite edition");
 		}
+		propertyUpdate.log(this, 1, TimeUnit.HOURS, "Time spent setting mailsite property");
 	}
 
 	private void setWoTContext(WoTConnection wotConnection) {
@@ -182,9 +266,15 @@ public class SingleAccountWatcher implements Runnable {
 	}
 
 	/**
-	 * Terminate the run method
+	 * Stops the watcher. A step that is running finishes, but doesn't schedule the next one.
 	 */
 	public void kill() {
 		stopping = true;
+		synchronized(this) {
+			if(next != null) {
+				next.cancel(true);
+				next = null;
+			}
+		}
 	}
 }
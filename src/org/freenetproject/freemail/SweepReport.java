@@ -0,0 +1,99 @@
+/*
+ * SweepReport.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+
+/**
+ * Collects what was cleaned up during one run of the {@link Sweeper}.
+ */
+public class SweepReport {
+	private int channels = 0;
+	private int indexEntries = 0;
+	private int rtsFiles = 0;
+	private int tempFiles = 0;
+	private long bytes = 0;
+
+	public void channelDeleted(long size) {
+		channels++;
+		bytes += size;
+	}
+
+	public void indexEntriesRemoved(int count) {
+		indexEntries += count;
+	}
+
+	public void rtsFileDeleted(long size) {
+		rtsFiles++;
+		bytes += size;
+	}
+
+	public void tempFileDeleted(long size) {
+		tempFiles++;
+		bytes += size;
+	}
+
+	public int getDeletedChannels() {
+		return channels;
+	}
+
+	public int getRemovedIndexEntries() {
+		return indexEntries;
+	}
+
+	public int getDeletedRtsFiles() {
+		return rtsFiles;
+	}
+
+	public int getDeletedTempFiles() {
+		return tempFiles;
+	}
+
+	public long getReclaimedBytes() {
+		return bytes;
+	}
+
+	public boolean isEmpty() {
+		return channels == 0 && indexEntries == 0 && rtsFiles == 0 && tempFiles == 0;
+	}
+
+	/**
+	 * Returns the total size of {@code file}, including everything below it if it is a
+	 * directory.
+	 */
+	public static long sizeOf(File file) {
+		File[] children = file.listFiles();
+		if(children == null) {
+			return file.length();
+		}
+
+		long size = 0;
+		for(File child : children) {
+			size += sizeOf(child);
+		}
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "Deleted " + channels + " expired channels, " + indexEntries + " orphaned outbox index entries, "
+				+ rtsFiles + " stale RTS files and " + tempFiles + " temporary files (" + bytes + " bytes)";
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Sweeper.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.Timer;
+
+/**
+ * Periodically deletes data that is no longer needed: expired channels, outbox index entries for
+ * messages that are gone, RTS messages that couldn't be processed and temporary files left
+ * behind by the FCP code.
+ */
+class Sweeper implements Runnable {
+	static final long INITIAL_DELAY = 10 * 60 * 1000; //10 minutes
+	static final long INTERVAL = 6 * 60 * 60 * 1000; //6 hours
+
+	/** Temporary files older than this are assumed to have been abandoned */
+	private static final long TEMP_FILE_MAX_AGE = 24 * 60 * 60 * 1000; //24 hours
+	private static final String FCP_TEMP_FILE_PREFIX = "freemail-fcp";
+
+	private final Freemail freemail;
+
+	Sweeper(Freemail freemail) {
+		this.freemail = freemail;
+	}
+
+	@Override
+	public void run() {
+		//Don't let exceptions escape since that would stop further runs
+		try {
+			sweep();
+		} catch(RuntimeException e) {
+			Logger.error(this, "Caugth RuntimeException while sweeping", e);
+		}
+	}
+
+	SweepReport sweep() {
+		Timer sweepTimer = Timer.start();
+		SweepReport report = new SweepReport();
+
+		for(FreemailAccount account : freemail.getAccountManager().getAllAccounts()) {
+			account.getMessageHandler().sweep(report);
+			RTSFetcher.sweepUnprocessed(new File(account.getAccountDir(), SingleAccountWatcher.RTS_DIR), report);
+		}
+
+		sweepTempDir(Freemail.getTempDir(), report);
+
+		if(report.isEmpty()) {
+			Logger.minor(this, "Sweeper didn't find anything to delete");
+		} else {
+			Logger.normal(this, report.toString());
+		}
+		sweepTimer.log(this, 1, TimeUnit.MINUTES, "Time spent sweeping");
+
+		return report;
+	}
+
+	static void sweepTempDir(File tempDir, SweepReport report) {
+		File[] files = tempDir.listFiles();
+		if(files == null) {
+			return;
+		}
+
+		long cutoff = System.currentTimeMillis() - TEMP_FILE_MAX_AGE;
+		for(File f : files) {
+			if(!f.isFile() || !f.getName().startsWith(FCP_TEMP_FILE_PREFIX)) {
+				continue;
+			}
+			if(f.lastModified() >= cutoff) {
+				continue;
+			}
+
+			long size = f.length();
+			if(f.delete()) {
+				Logger.debug(Sweeper.class, "Deleted abandoned temporary file " + f);
+				report.tempFileDeleted(size);
+			} else {
+				Logger.error(Sweeper.class, "Couldn't delete abandoned temporary file " + f);
+			}
+		}
+	}
+}
@@ -33,6 +33,8 @@ import org.freenetproject.freemail.utils.PropsFile;
  */
 
 public class Configurator {
+	public static final String CHANNEL_POLL_MAX_INTERVAL = "channel_poll_max_interval";
+	public static final String CHANNEL_POLL_MIN_INTERVAL = "channel_poll_min_interval";
 	public static final String DATA_DIR = "datadir";
 	public static final String FCP_HOST = "fcp_host";
 	public static final String FCP_PORT = "fcp_port";
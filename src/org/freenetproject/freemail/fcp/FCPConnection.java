@@ -25,10 +25,11 @@ import java.io.OutputStream;
 import java.io.InputStream;
 import java.net.Socket;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.RetryPolicy;
 
 
 public class FCPConnection implements Runnable {
@@ -37,16 +38,28 @@ public class FCPConnection implements Runnable {
 	 */
 	protected volatile boolean stopping = false;
 
+	private static final long RECONNECT_INITIAL_DELAY = 10 * 1000; //10 seconds
+	private static final long RECONNECT_MAX_DELAY = 5 * 60 * 1000; //5 minutes
+
 	private final FCPContext fcpctx;
 	private OutputStream os;
 	private InputStream is;
 	private Socket conn;
 	private int nextMsgId;
-	private final HashMap<String, FCPClient> clients;
+
+	/**
+	 * The client of each request that is waiting for a reply. This isn't guarded by the lock on
+	 * the connection, which is held while a request is written to the node, so the reader thread
+	 * can dispatch replies while a large insert is being sent.
+	 */
+	private final ConcurrentHashMap<String, FCPClient> clients;
+
+	/** Delay between attempts to reconnect to the node, reset once the node has said hello */
+	private final RetryPolicy reconnectRetry = new RetryPolicy(RECONNECT_INITIAL_DELAY, RECONNECT_MAX_DELAY);
 
 	public FCPConnection(FCPContext ctx) {
 		this.fcpctx = ctx;
-		this.clients = new HashMap<String, FCPClient>();
+		this.clients = new ConcurrentHashMap<String, FCPClient>();
 
 		this.tryConnect();
 	}
@@ -71,6 +84,8 @@ public class FCPConnection implements Runnable {
 			}
 			if(!reply.getType().equals("NodeHello")) {
 				Logger.error(this, "Warning - got '"+reply.getType()+"' from node, expecting 'NodeHello'");
+			} else {
+				reconnectRetry.reset();
 			}
 		} catch (IOException ioe) {
 			this.conn = null;
@@ -99,16 +114,17 @@ public class FCPConnection implements Runnable {
 				this.os = null;
 				this.is = null;
 				// tell all our clients it's all over
-				Iterator<FCPClient> i = this.clients.values().iterator();
-				while(i.hasNext()) {
-					FCPClient cli = i.next();
-					cli.requestFinished(new FCPMessage(1, "ConnectionClosed"));
+				for(Map.Entry<String, FCPClient> entry : this.clients.entrySet()) {
+					if(this.clients.remove(entry.getKey(), entry.getValue())) {
+						entry.getValue().requestFinished(new FCPMessage(entry.getKey(), "ConnectionClosed"));
+					}
 				}
-				this.clients.clear();
 				// wait a bit
 				if(!stopping) {
 					try {
-						Thread.sleep(10000);
+						long delay = reconnectRetry.nextDelay();
+						Logger.minor(this, "Reconnecting to node in " + delay + "ms");
+						Thread.sleep(delay);
 					} catch (InterruptedException ie) {
 						Logger.debug(this, "FCPConnection interrupted, stopping");
 						kill();
@@ -156,6 +172,28 @@ public class FCPConnection implements Runnable {
 			msg.writeto(this.os);
 		} catch (IOException ioe) {
 			throw new NoNodeConnectionException(ioe.getMessage());
+		} catch (FCPBadFileException bfe) {
+			//The request wasn't sent in full, so there won't be a reply
+			this.clients.remove(msg.getId());
+			if(msg.isTruncated()) {
+				//The node is still waiting for the rest of the data and would insert whatever we
+				//send next, so drop the connection. The reader reconnects as usual
+				Logger.error(this, "Data of request " + msg.getId() + " ended early, closing connection");
+				closeConnection();
+			}
+			throw bfe;
+		}
+	}
+
+	/* Must be called with the lock on this held */
+	private void closeConnection() {
+		this.os = null;
+		try {
+			if(conn != null) {
+				conn.close();
+			}
+		} catch (IOException ioe) {
+			// ignore
 		}
 	}
 
@@ -166,12 +204,21 @@ public class FCPConnection implements Runnable {
 	 * request/client map entry. We need this for requests that never
 	 * complete, so we don't leak memory.
 	 */
-	public synchronized void cancelRequest(FCPMessage msg) {
+	public void cancelRequest(FCPMessage msg) {
 		this.clients.remove(msg.getId());
 	}
 
+	/**
+	 * Passes a message from the node to the client of the request it belongs to. Completion
+	 * messages complete the request directly from this thread, so clients must not block.
+	 */
 	private void dispatch(FCPMessage msg) {
-		FCPClient cli = this.clients.get(msg.getId());
+		FCPClient cli;
+		if(msg.isCompletionMessage()) {
+			cli = this.clients.remove(msg.getId());
+		} else {
+			cli = this.clients.get(msg.getId());
+		}
 		if(cli == null) {
 			// normally we'd leave it up to the client
 			// to delete any data, but it looks like
@@ -180,7 +227,6 @@ public class FCPConnection implements Runnable {
 			return;
 		}
 		if(msg.isCompletionMessage()) {
-			this.clients.remove(msg.getId());
 			cli.requestFinished(msg);
 		} else {
 			cli.requestStatus(msg);
@@ -193,6 +239,14 @@ public class FCPConnection implements Runnable {
 		return m;
 	}
 
+	/**
+	 * Returns a new message with the given identifier instead of one from the connection wide
+	 * sequence. Used for persistent requests, which keep their identifier across reconnects.
+	 */
+	public FCPMessage getMessage(String type, String identifier) {
+		return new FCPMessage(identifier, type);
+	}
+
 	private FCPMessage getMessage() throws IOException {
 		return new FCPMessage(this.is);
 	}
@@ -42,10 +42,20 @@ public class FCPMessage {
 	public final HashMap<String, String> headers;
 	private File data;
 	private InputStream outData;
+	private long outDataLength = -1;
+	private boolean truncated = false;
 
 
 	public FCPMessage(int id, String type) {
-		this.identifier = Integer.toString(id);
+		this(Integer.toString(id), type);
+	}
+
+	/**
+	 * Creates a message with an identifier chosen by the caller. Persistent requests need an
+	 * identifier that stays the same across connections so they can be found again later.
+	 */
+	public FCPMessage(String identifier, String type) {
+		this.identifier = identifier;
 		this.headers = new HashMap<String, String>();
 		this.messagetype = type;
 		this.data = null;
@@ -107,6 +117,19 @@ public class FCPMessage {
 
 	public void setData(InputStream d) {
 		this.outData = d;
+		this.outDataLength = -1;
+	}
+
+	/**
+	 * Sets the data of this message to the first {@code length} bytes of {@code d}. The data is
+	 * copied straight from the stream to the node when the message is written, so it never has
+	 * to be held in memory.
+	 */
+	public void setData(InputStream d, long length) {
+		if(length < 0) throw new IllegalArgumentException("Negative data length " + length);
+
+		this.outData = d;
+		this.outDataLength = length;
 	}
 
 	private void readData(InputStream is, int len) {
@@ -150,6 +173,8 @@ public class FCPMessage {
 			return true;
 		if(this.messagetype.equalsIgnoreCase("IdentifierCollision"))
 			return true;
+		if(this.messagetype.equalsIgnoreCase("PersistentRequestRemoved"))
+			return true;
 		return false;
 	}
 
@@ -159,6 +184,12 @@ public class FCPMessage {
 		}
 	}
 
+	/**
+	 * Writes the message to {@code os}. Data of a given length is streamed to the node after the
+	 * header, so if the stream ends early the node has been sent part of the data when this throws
+	 * {@link FCPBadFileException}. {@link #isTruncated()} then returns {@code true}, and the
+	 * connection must be closed since the node would insert whatever is sent next.
+	 */
 	public void writeto(OutputStream os) throws IOException, FCPBadFileException {
 		StringBuffer buf = new StringBuffer();
 
@@ -181,10 +212,14 @@ public class FCPMessage {
 
 		if(this.outData != null) {
 			buf.append("UploadFrom=direct\r\n");
-			try {
-				buf.append("DataLength="+this.outData.available()+"\r\n");
-			} catch (IOException ioe) {
-				throw new FCPBadFileException();
+			if(this.outDataLength >= 0) {
+				buf.append("DataLength="+this.outDataLength+"\r\n");
+			} else {
+				try {
+					buf.append("DataLength="+this.outData.available()+"\r\n");
+				} catch (IOException ioe) {
+					throw new FCPBadFileException();
+				}
 			}
 			buf.append("Data\r\n");
 		} else {
@@ -194,7 +229,9 @@ public class FCPMessage {
 			//Logger.normal(this,buf.toString());
 			os.write(buf.toString().getBytes("UTF-8"));
 		}
-		if(this.outData != null) {
+		if(this.outData != null && this.outDataLength >= 0) {
+			writeData(os);
+		} else if(this.outData != null) {
 			byte[] bytebuf = new byte[1024];
 
 			int read;
@@ -204,4 +241,34 @@ public class FCPMessage {
 			this.outData.close();
 		}
 	}
+
+	/**
+	 * Returns {@code true} if the data of the message ended before the length it was given, after
+	 * part of it was written by {@link #writeto(OutputStream)}.
+	 */
+	public boolean isTruncated() {
+		return this.truncated;
+	}
+
+	private void writeData(OutputStream os) throws IOException, FCPBadFileException {
+		byte[] bytebuf = new byte[32 * 1024];
+		long remaining = this.outDataLength;
+		try {
+			while(remaining > 0) {
+				int read = this.outData.read(bytebuf, 0, (int)Math.min(bytebuf.length, remaining));
+				if(read < 0) {
+					break;
+				}
+				os.write(bytebuf, 0, read);
+				remaining -= read;
+			}
+		} finally {
+			this.outData.close();
+		}
+
+		if(remaining > 0) {
+			this.truncated = true;
+			throw new FCPBadFileException();
+		}
+	}
 }
@@ -0,0 +1,158 @@
+/*
+ * FCPRequest.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * A single request that has been sent to the node. The request is registered with the
+ * {@link FCPConnection} as the client for its identifier, so the connection completes it
+ * directly when the reply arrives, waking only the threads that wait for this request. The
+ * result is the completion message sent by the node, e.g. {@code AllData} or {@code GetFailed},
+ * or a {@code ConnectionClosed} message if the connection to the node was lost.
+ */
+public class FCPRequest implements FCPClient, Future<FCPMessage> {
+	/**
+	 * Called when a request completes. This is called from the thread that reads from the node,
+	 * so it must not block.
+	 */
+	public interface Callback {
+		public void requestFinished(FCPRequest request, FCPMessage reply);
+	}
+
+	private final FCPConnection conn;
+	private final FCPMessage msg;
+	private final FCPClient statusClient;
+	private final Callback callback;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/* Guarded by this */
+	private FCPMessage reply = null;
+	private boolean cancelled = false;
+
+	/**
+	 * @param statusClient receives the status messages of the request, may be {@code null}
+	 * @param callback called when the request completes, may be {@code null}
+	 */
+	FCPRequest(FCPConnection conn, FCPMessage msg, FCPClient statusClient, Callback callback) {
+		this.conn = conn;
+		this.msg = msg;
+		this.statusClient = statusClient;
+		this.callback = callback;
+	}
+
+	/**
+	 * Returns the identifier of the request.
+	 */
+	public String getId() {
+		return msg.getId();
+	}
+
+	@Override
+	public void requestFinished(FCPMessage finished) {
+		synchronized(this) {
+			if(reply != null || cancelled) {
+				//Nobody will look at this, so delete any data now
+				finished.release();
+				return;
+			}
+			reply = finished;
+		}
+		done.countDown();
+
+		if(callback != null) {
+			try {
+				callback.requestFinished(this, finished);
+			} catch(RuntimeException e) {
+				Logger.error(this, "Caugth RuntimeException from callback of request " + getId(), e);
+			}
+		}
+	}
+
+	@Override
+	public void requestStatus(FCPMessage status) {
+		if(statusClient != null) {
+			statusClient.requestStatus(status);
+		}
+	}
+
+	/**
+	 * Gives up on the request. The node isn't told about this, but the reply is discarded if it
+	 * arrives later. The callback isn't called for a cancelled request.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized(this) {
+			if(reply != null || cancelled) {
+				return false;
+			}
+			cancelled = true;
+		}
+		conn.cancelRequest(msg);
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the request to complete and returns the completion message.
+	 * @throws CancellationException if the request was cancelled
+	 */
+	@Override
+	public FCPMessage get() throws InterruptedException {
+		done.await();
+		return getResult();
+	}
+
+	/**
+	 * Waits at most the given time for the request to complete and returns the completion
+	 * message.
+	 * @throws CancellationException if the request was cancelled
+	 */
+	@Override
+	public FCPMessage get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if(!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private synchronized FCPMessage getResult() {
+		if(cancelled) {
+			throw new CancellationException();
+		}
+		return reply;
+	}
+}
@@ -26,21 +26,55 @@ import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.RetryPolicy;
 
 
 public class HighLevelFCPClient implements FCPClient {
 	private static final int FCP_TOO_MANY_PATH_COMPONENTS = 11;
 	private static final int FCP_PERMANANT_REDIRECT = 27;
 
+	private static final long NO_CONNECTION_INITIAL_DELAY = 5 * 1000; //5 seconds
+	private static final long NO_CONNECTION_MAX_DELAY = 2 * 60 * 1000; //2 minutes
+
 	private FCPConnection conn;
 
-	private final List<FCPMessage> doneMsgs = new LinkedList<FCPMessage>();
+	/**
+	 * Listeners for the progress of persistent inserts, indexed by request identifier. Guarded by
+	 * persistentRequests.
+	 */
+	private final Map<String, InsertProgressListener> progressListeners = new HashMap<String, InsertProgressListener>();
+
+	/** The persistent requests that are waiting for a reply, indexed by request identifier */
+	private final Map<String, FCPRequest> persistentRequests = new HashMap<String, FCPRequest>();
+
+	/**
+	 * Receives the result of a request started by one of the asynchronous methods. The methods
+	 * are called on the executor that was given when the request was started, never on the
+	 * thread that reads from the node, so they may block. If the executor rejects the task the
+	 * result is dropped.
+	 */
+	public interface RequestCallback<T> {
+		public void requestSucceeded(T result);
+
+		/**
+		 * Called when the request failed, e.g. with an {@link FCPFetchException} or an
+		 * {@link FCPPutFailedException}. A plain {@link FCPException} is passed if the connection
+		 * to the node was lost before the request completed.
+		 */
+		public void requestFailed(FCPException e);
+	}
+
+	/* Handles the reply to an asynchronous request, called on the executor of the request */
+	private interface ReplyHandler {
+		public void handleReply(FCPMessage reply);
+	}
 
 	public HighLevelFCPClient() {
 		this.conn = Freemail.getFCPConnection();
@@ -50,32 +84,25 @@ public class HighLevelFCPClient implements FCPClient {
 	// done with it
 	public File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
 	                                     InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientGet");
-		msg.headers.put("URI", key);
-		msg.headers.put("ReturnType", "direct");
-		msg.headers.put("Persistence", "connection");
-
-		while(true) {
-			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(10000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since this is a get,
-				// but keep the compiler happy
-			}
-		}
+		return fetch(key, -1);
+	}
 
-		FCPMessage reply;
+	/**
+	 * Like {@link #fetch(String)}, but the node gives up on the fetch if the data is larger than
+	 * {@code maxSize} bytes, in which case this throws an {@link FCPFetchException} with code
+	 * {@link FCPFetchException#TOO_BIG}.
+	 * @param maxSize the maximum size of the data in bytes, or -1 for no limit
+	 */
+	public File fetch(String key, long maxSize) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	                                                   InterruptedException {
+		FCPRequest request;
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+			request = submitWhenConnected(newFetchMessage(key, maxSize));
+		} catch (FCPBadFileException bfe) {
+			//Won't be thrown since this is a get
+			throw new AssertionError();
 		}
+		FCPMessage reply = waitFor(request, "fetch");
 
 		if(reply.getType().equalsIgnoreCase("AllData")) {
 			return reply.getData();
@@ -86,7 +113,7 @@ public class HighLevelFCPClient implements FCPClient {
 			if(code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
 				String newuri = reply.headers.get("RedirectURI");
 				if(newuri == null) return null;
-				return this.fetch(newuri);
+				return this.fetch(newuri, maxSize);
 			}
 			throw new FCPFetchException(reply);
 		} else {
@@ -94,46 +121,162 @@ public class HighLevelFCPClient implements FCPClient {
 		}
 	}
 
-	private FCPMessage getReply(String identifier) throws InterruptedException {
-		synchronized (doneMsgs) {
-			while(true) {
-				Iterator<FCPMessage> it = doneMsgs.iterator();
-				while(it.hasNext()) {
-					FCPMessage msg = it.next();
-					if(identifier.equals(msg.getId())) {
-						it.remove();
-						return msg;
-					}
+	/**
+	 * Like {@link #fetch(String, long)}, but returns once the request has been sent to the node.
+	 * The file that is passed to {@code callback} must be deleted by the caller once it is done
+	 * with it.
+	 * @param maxSize the maximum size of the data in bytes, or -1 for no limit
+	 * @param executor runs {@code callback}
+	 * @throws NoNodeConnectionException if there is no connection to the node at the moment
+	 */
+	public void fetchAsync(final String key, final long maxSize, final RequestCallback<File> callback,
+	                       final Executor executor) throws NoNodeConnectionException, ConnectionTerminatedException {
+		ReplyHandler handler = new ReplyHandler() {
+			@Override
+			public void handleReply(FCPMessage reply) {
+				if(reply.getType().equalsIgnoreCase("AllData")) {
+					callback.requestSucceeded(reply.getData());
+					return;
+				}
+
+				String newuri = getRedirectURI(reply);
+				if(newuri == null) {
+					callback.requestFailed(FCPException.create(reply));
+					return;
 				}
 
-				doneMsgs.wait();
+				try {
+					fetchAsync(newuri, maxSize, callback, executor);
+				} catch(NoNodeConnectionException e) {
+					callback.requestFailed(connectionLost(reply));
+				} catch(ConnectionTerminatedException e) {
+					callback.requestFailed(connectionLost(reply));
+				}
 			}
+		};
+
+		try {
+			submit(newFetchMessage(key, maxSize), newAsyncCallback(handler, executor));
+		} catch (FCPBadFileException bfe) {
+			//Won't be thrown since this is a get
+			throw new AssertionError();
 		}
 	}
 
-	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("GenerateSSK");
+	/**
+	 * Returns the URI a fetch that failed with {@code reply} should be redirected to, or
+	 * {@code null} if it shouldn't be redirected.
+	 */
+	private static String getRedirectURI(FCPMessage reply) {
+		if(!reply.getType().equalsIgnoreCase("GetFailed")) {
+			return null;
+		}
+
+		int code;
+		try {
+			code = Integer.parseInt(reply.headers.get("Code"));
+		} catch(NumberFormatException e) {
+			return null;
+		}
+		if(code != FCP_PERMANANT_REDIRECT && code != FCP_TOO_MANY_PATH_COMPONENTS) {
+			return null;
+		}
+		return reply.headers.get("RedirectURI");
+	}
+
+	/**
+	 * Returns the exception that is passed to callbacks when a follow up request can't be sent
+	 * because the connection to the node was lost.
+	 */
+	private static FCPException connectionLost(FCPMessage reply) {
+		return FCPException.create(new FCPMessage(reply.getId(), "ConnectionClosed"));
+	}
+
+	/**
+	 * Returns a request callback that passes the reply to {@code handler} on {@code executor}, so
+	 * that the thread that reads from the node never runs the handler.
+	 */
+	private FCPRequest.Callback newAsyncCallback(final ReplyHandler handler, final Executor executor) {
+		return new FCPRequest.Callback() {
+			@Override
+			public void requestFinished(FCPRequest request, final FCPMessage reply) {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							handler.handleReply(reply);
+						}
+					});
+				} catch(RejectedExecutionException e) {
+					Logger.debug(HighLevelFCPClient.this, "Caugth RejectedExecutionException while handling reply to " + request.getId());
+					reply.release();
+				}
+			}
+		};
+	}
+
+	private FCPMessage newFetchMessage(String key, long maxSize) {
+		FCPMessage msg = this.conn.getMessage("ClientGet");
+		msg.headers.put("URI", key);
+		msg.headers.put("ReturnType", "direct");
+		msg.headers.put("Persistence", "connection");
+		if(maxSize >= 0) {
+			msg.headers.put("MaxSize", Long.toString(maxSize));
+		}
+		return msg;
+	}
+
+	private static RetryPolicy newNoConnectionRetry() {
+		return new RetryPolicy(NO_CONNECTION_INITIAL_DELAY, NO_CONNECTION_MAX_DELAY);
+	}
+
+	/**
+	 * Sends {@code msg} to the node, returning the request that is completed by the connection
+	 * when the node replies.
+	 */
+	private FCPRequest submit(FCPMessage msg, FCPRequest.Callback callback) throws NoNodeConnectionException,
+	                                                                              ConnectionTerminatedException,
+	                                                                              FCPBadFileException {
+		FCPRequest request = new FCPRequest(this.conn, msg, this, callback);
+		this.conn.doRequest(request, msg);
+		return request;
+	}
 
+	/**
+	 * Like {@link #submit}, but waits for the connection to the node to come back if it is down.
+	 */
+	private FCPRequest submitWhenConnected(FCPMessage msg) throws ConnectionTerminatedException, FCPBadFileException,
+	                                                              InterruptedException {
+		RetryPolicy retry = newNoConnectionRetry();
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
-				break;
+				return submit(msg, null);
 			} catch (NoNodeConnectionException nnce) {
 				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since no data
+				Thread.sleep(retry.nextDelay());
 			}
 		}
+	}
 
-		FCPMessage reply;
+	private FCPMessage waitFor(FCPRequest request, String operation) throws InterruptedException {
 		try {
-			reply = getReply(msg.getId());
+			return request.get();
 		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in makeSSK, stopping");
-			conn.cancelRequest(msg);
+			Logger.debug(this, "HighLevelFCPClient interrupted in " + operation + ", stopping");
+			request.cancel(false);
 			throw e;
 		}
+	}
+
+	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
+		FCPRequest request;
+		try {
+			request = submitWhenConnected(this.conn.getMessage("GenerateSSK"));
+		} catch (FCPBadFileException bfe) {
+			//Won't be thrown since there is no data
+			throw new AssertionError();
+		}
+		FCPMessage reply = waitFor(request, "makeSSK");
 
 		if(reply.getType().equalsIgnoreCase("SSKKeypair")) {
 			SSKKeyPair retval = new SSKKeyPair();
@@ -149,51 +292,301 @@ public class HighLevelFCPClient implements FCPClient {
 	public FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
 	                                                                      ConnectionTerminatedException,
 	                                                                      FCPException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientPut");
-		msg.headers.put("URI", key);
-		msg.headers.put("Persistence", "connection");
-		msg.setData(data);
+		return put(data, -1, key);
+	}
+
+	/**
+	 * Inserts {@code length} bytes read from {@code data} to {@code key}. The data is streamed to
+	 * the node, so unlike {@link #put(InputStream, String)} the stream doesn't have to know how
+	 * much data is available.
+	 * @param length the number of bytes to insert, or -1 to use {@code data.available()}
+	 */
+	public FCPPutFailedException put(InputStream data, long length, String key) throws FCPBadFileException,
+	                                                                                   ConnectionTerminatedException,
+	                                                                                   FCPException, InterruptedException {
+		FCPMessage reply = doPut(data, length, key);
+		if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
+			return null;
+		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
+			return new FCPPutFailedException(reply);
+		} else {
+			throw FCPException.create(reply);
+		}
+	}
+
+	/**
+	 * Inserts {@code length} bytes read from {@code data} as a CHK using a request that the node
+	 * keeps across restarts, returning the URI of the inserted data. If the node already has a
+	 * request with the given identifier this waits for that request instead. The request is left
+	 * on the node when this returns, and should be removed using
+	 * {@link #removePersistentRequest(String)} once the result has been stored.
+	 * @param listener receives the progress of the insert, may be {@code null}
+	 * @throws FCPPutFailedException if the insert failed
+	 */
+	public String insertPersistentCHK(String identifier, InputStream data, long length, InsertProgressListener listener)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		FCPMessage reply = doPersistentRequest(newPersistentPutMessage(identifier, data, length), listener);
+		if(reply.getType().equalsIgnoreCase("IdentifierCollision")) {
+			Logger.minor(this, "Persistent insert " + identifier + " already exists, waiting for it instead");
+			return resumePersistentCHK(identifier, listener);
+		}
+		return getInsertedURI(reply);
+	}
+
+	/**
+	 * Like {@link #insertPersistentCHK}, but returns once the data has been sent to the node. If
+	 * the insert is removed using {@link #removePersistentRequest(String)} before it finishes,
+	 * {@code callback} is told that it failed.
+	 * @param listener receives the progress of the insert, may be {@code null}
+	 * @param executor runs {@code callback}
+	 * @throws NoNodeConnectionException if there is no connection to the node at the moment
+	 */
+	public void insertPersistentCHKAsync(final String identifier, InputStream data, long length,
+	                                     final InsertProgressListener listener, final RequestCallback<String> callback,
+	                                     final Executor executor) throws NoNodeConnectionException,
+	                                                                     ConnectionTerminatedException,
+	                                                                     FCPBadFileException {
+		ReplyHandler handler = new ReplyHandler() {
+			@Override
+			public void handleReply(FCPMessage reply) {
+				if(!reply.getType().equalsIgnoreCase("IdentifierCollision")) {
+					completeInsert(reply, callback);
+					return;
+				}
+
+				Logger.minor(HighLevelFCPClient.this, "Persistent insert " + identifier + " already exists, waiting for it instead");
+				try {
+					resumePersistentCHKAsync(identifier, listener, callback, executor);
+				} catch(NoNodeConnectionException e) {
+					callback.requestFailed(connectionLost(reply));
+				} catch(ConnectionTerminatedException e) {
+					callback.requestFailed(connectionLost(reply));
+				}
+			}
+		};
+		submitPersistent(newPersistentPutMessage(identifier, data, length), listener, newAsyncCallback(handler, executor));
+	}
+
+	private FCPMessage newPersistentPutMessage(String identifier, InputStream data, long length) {
+		FCPMessage msg = this.conn.getMessage("ClientPut", identifier);
+		msg.headers.put("URI", "CHK@");
+		msg.headers.put("Persistence", "forever");
+		msg.headers.put("Global", "false");
+		msg.headers.put("Verbosity", "1"); //Send SimpleProgress messages
+		msg.setData(data, length);
+		return msg;
+	}
+
+	/**
+	 * Waits for an insert started by {@link #insertPersistentCHK} to finish, returning the URI of
+	 * the inserted data. This works even if Freemail or the node has been restarted since the
+	 * insert was started.
+	 * @param listener receives the progress of the insert, may be {@code null}
+	 * @throws FCPPutFailedException if the insert failed
+	 * @throws FCPProtocolException if the node doesn't know about the insert
+	 */
+	public String resumePersistentCHK(String identifier, InsertProgressListener listener)
+			throws ConnectionTerminatedException, FCPException, InterruptedException {
+		FCPMessage reply;
+		try {
+			reply = doPersistentRequest(newRequestStatusMessage(identifier), listener);
+		} catch(FCPBadFileException e) {
+			//Won't be thrown since there is no data
+			throw new AssertionError();
+		}
+		return getInsertedURI(reply);
+	}
+
+	/**
+	 * Like {@link #resumePersistentCHK}, but returns once the request has been sent to the node.
+	 * {@code callback} is passed an {@link FCPProtocolException} if the node doesn't know about
+	 * the insert.
+	 * @param listener receives the progress of the insert, may be {@code null}
+	 * @param executor runs {@code callback}
+	 * @throws NoNodeConnectionException if there is no connection to the node at the moment
+	 */
+	public void resumePersistentCHKAsync(String identifier, InsertProgressListener listener,
+	                                     final RequestCallback<String> callback, Executor executor)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		ReplyHandler handler = new ReplyHandler() {
+			@Override
+			public void handleReply(FCPMessage reply) {
+				completeInsert(reply, callback);
+			}
+		};
 
+		try {
+			submitPersistent(newRequestStatusMessage(identifier), listener, newAsyncCallback(handler, executor));
+		} catch(FCPBadFileException e) {
+			//Won't be thrown since there is no data
+			throw new AssertionError();
+		}
+	}
+
+	private FCPMessage newRequestStatusMessage(String identifier) {
+		FCPMessage msg = this.conn.getMessage("GetRequestStatus", identifier);
+		msg.headers.put("Global", "false");
+		return msg;
+	}
+
+	/**
+	 * Removes a persistent request from the node. Nothing happens if the node doesn't know about
+	 * the request. If something is still waiting for the request to finish, it is told that the
+	 * request failed.
+	 */
+	public void removePersistentRequest(String identifier) throws ConnectionTerminatedException, InterruptedException {
+		FCPMessage msg = this.conn.getMessage("RemoveRequest", identifier);
+		msg.headers.put("Global", "false");
+
+		FCPMessage reply;
+		try {
+			//The connection passes the reply to this request instead of the one that is waiting,
+			//since they share the identifier
+			reply = waitFor(submitWhenConnected(msg), "removing persistent request");
+		} catch(FCPBadFileException e) {
+			//Won't be thrown since there is no data
+			throw new AssertionError();
+		}
+		if(!reply.getType().equalsIgnoreCase("PersistentRequestRemoved")) {
+			Logger.debug(this, "Got " + reply.getType() + " when removing persistent request " + identifier);
+		}
+
+		FCPRequest waiting;
+		synchronized(persistentRequests) {
+			waiting = persistentRequests.remove(identifier);
+			progressListeners.remove(identifier);
+		}
+		if(waiting != null) {
+			waiting.requestFinished(reply);
+		}
+	}
+
+	private FCPMessage doPersistentRequest(FCPMessage msg, InsertProgressListener listener) throws FCPBadFileException,
+	                                                                                        ConnectionTerminatedException,
+	                                                                                        InterruptedException {
+		RetryPolicy retry = newNoConnectionRetry();
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
-				break;
+				return waitFor(submitPersistent(msg, listener, null), "persistent request");
 			} catch (NoNodeConnectionException nnce) {
 				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
+				Thread.sleep(retry.nextDelay());
 			}
 		}
+	}
 
-		FCPMessage reply;
+	/**
+	 * Sends a persistent request to the node. The request and {@code listener} are registered
+	 * under the identifier of the request until it completes, so that the progress messages
+	 * reach the listener and {@link #removePersistentRequest(String)} can complete the request.
+	 */
+	private FCPRequest submitPersistent(final FCPMessage msg, InsertProgressListener listener,
+	                                    final FCPRequest.Callback callback) throws NoNodeConnectionException,
+	                                                                               ConnectionTerminatedException,
+	                                                                               FCPBadFileException {
+		final FCPRequest request = new FCPRequest(this.conn, msg, this, new FCPRequest.Callback() {
+			@Override
+			public void requestFinished(FCPRequest finished, FCPMessage reply) {
+				unregisterPersistent(finished);
+				if(callback != null) {
+					callback.requestFinished(finished, reply);
+				}
+			}
+		});
+
+		synchronized(persistentRequests) {
+			persistentRequests.put(msg.getId(), request);
+			if(listener != null) {
+				progressListeners.put(msg.getId(), listener);
+			}
+		}
+
+		boolean sent = false;
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in put, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+			this.conn.doRequest(request, msg);
+			sent = true;
+		} finally {
+			if(!sent) {
+				unregisterPersistent(request);
+			}
+		}
+		return request;
+	}
+
+	private void unregisterPersistent(FCPRequest request) {
+		synchronized(persistentRequests) {
+			if(persistentRequests.get(request.getId()) == request) {
+				persistentRequests.remove(request.getId());
+				progressListeners.remove(request.getId());
+			}
 		}
+	}
 
+	private static void completeInsert(FCPMessage reply, RequestCallback<String> callback) {
+		String uri;
+		try {
+			uri = getInsertedURI(reply);
+		} catch(FCPException e) {
+			callback.requestFailed(e);
+			return;
+		}
+		callback.requestSucceeded(uri);
+	}
+
+	private static String getInsertedURI(FCPMessage reply) throws FCPException {
 		if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
-			return null;
+			return reply.headers.get("URI");
 		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
-			return new FCPPutFailedException(reply);
+			throw new FCPPutFailedException(reply);
 		} else {
 			throw FCPException.create(reply);
 		}
 	}
 
+	private FCPMessage doPut(InputStream data, long length, String key) throws FCPBadFileException,
+	                                                                          ConnectionTerminatedException,
+	                                                                          InterruptedException {
+		return waitFor(submitWhenConnected(newPutMessage(data, length, key)), "put");
+	}
+
+	/**
+	 * Like {@link #put(InputStream, long, String)}, but returns once the data has been sent to
+	 * the node. {@code callback} is passed the URI of the inserted data, or an
+	 * {@link FCPPutFailedException} if the insert failed.
+	 * @param length the number of bytes to insert, or -1 to use {@code data.available()}
+	 * @param executor runs {@code callback}
+	 * @throws NoNodeConnectionException if there is no connection to the node at the moment
+	 */
+	public void putAsync(InputStream data, long length, String key, final RequestCallback<String> callback,
+	                     Executor executor) throws NoNodeConnectionException, ConnectionTerminatedException,
+	                                               FCPBadFileException {
+		ReplyHandler handler = new ReplyHandler() {
+			@Override
+			public void handleReply(FCPMessage reply) {
+				completeInsert(reply, callback);
+			}
+		};
+		submit(newPutMessage(data, length, key), newAsyncCallback(handler, executor));
+	}
+
+	private FCPMessage newPutMessage(InputStream data, long length, String key) {
+		FCPMessage msg = this.conn.getMessage("ClientPut");
+		msg.headers.put("URI", key);
+		msg.headers.put("Persistence", "connection");
+		if(length < 0) {
+			msg.setData(data);
+		} else {
+			msg.setData(data, length);
+		}
+		return msg;
+	}
+
 	public int SlotInsert(File data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
 	                                                                                    InterruptedException {
 		int slot = minslot;
 		boolean carryon = true;
 		FileInputStream fis;
-		if(basekey.startsWith("USK@")) {
-			basekey = basekey.replace("USK@", "SSK@");
-
-			if(basekey.charAt(basekey.length() - 1) == '/') {
-				basekey = basekey.substring(0, basekey.length() - 1);
-			}
-		}
+		basekey = toSlotBaseKey(basekey);
 		while(carryon) {
 			Logger.debug(this, "trying slotinsert to "+basekey+"-"+slot+suffix);
 
@@ -232,13 +625,7 @@ public class HighLevelFCPClient implements FCPClient {
 		int slot = minslot;
 		boolean carryon = true;
 		ByteArrayInputStream bis;
-		if(basekey.startsWith("USK@")) {
-			basekey = basekey.replace("USK@", "SSK@");
-
-			if(basekey.charAt(basekey.length() - 1) == '/') {
-				basekey = basekey.substring(0, basekey.length() - 1);
-			}
-		}
+		basekey = toSlotBaseKey(basekey);
 		while(carryon) {
 			Logger.debug(this, "trying slotinsert to "+basekey+"-"+slot+suffix);
 
@@ -268,16 +655,101 @@ public class HighLevelFCPClient implements FCPClient {
 		return -1;
 	}
 
+	/**
+	 * Like {@link #slotInsert(byte[], String, int, String)}, but returns once the first insert
+	 * has been sent to the node. Taken slots are skipped from the callback of the insert that
+	 * found them taken, so no thread waits for the inserts. {@code callback} is passed the slot
+	 * the data was inserted at, or the exception that made the insert fail.
+	 * @param executor runs {@code callback}
+	 * @throws NoNodeConnectionException if there is no connection to the node at the moment
+	 */
+	public void slotInsertAsync(final byte[] data, String basekey, final int minslot, final String suffix,
+	                            final RequestCallback<Integer> callback, final Executor executor)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		final String key = toSlotBaseKey(basekey);
+		Logger.debug(this, "trying slotinsert to "+key+"-"+minslot+suffix);
+
+		ReplyHandler handler = new ReplyHandler() {
+			@Override
+			public void handleReply(FCPMessage reply) {
+				try {
+					getInsertedURI(reply);
+				} catch(FCPPutFailedException e) {
+					if(e.errorcode != FCPPutFailedException.COLLISION) {
+						callback.requestFailed(e);
+						return;
+					}
+
+					Logger.debug(HighLevelFCPClient.this, "collision");
+					try {
+						slotInsertAsync(data, key, minslot + 1, suffix, callback, executor);
+					} catch(NoNodeConnectionException e1) {
+						callback.requestFailed(connectionLost(reply));
+					} catch(ConnectionTerminatedException e1) {
+						callback.requestFailed(connectionLost(reply));
+					}
+					return;
+				} catch(FCPException e) {
+					callback.requestFailed(e);
+					return;
+				}
+
+				Logger.debug(HighLevelFCPClient.this, "insert of "+key+"-"+minslot+suffix+" successful");
+				callback.requestSucceeded(Integer.valueOf(minslot));
+			}
+		};
+
+		try {
+			submit(newPutMessage(new ByteArrayInputStream(data), data.length, key + "-" + minslot + suffix),
+					newAsyncCallback(handler, executor));
+		} catch(FCPBadFileException e) {
+			//Won't be thrown since the data is in memory
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Returns the SSK that the slots of {@code basekey} are appended to, converting a USK.
+	 */
+	private static String toSlotBaseKey(String basekey) {
+		if(basekey.startsWith("USK@")) {
+			basekey = basekey.replace("USK@", "SSK@");
+
+			if(basekey.charAt(basekey.length() - 1) == '/') {
+				basekey = basekey.substring(0, basekey.length() - 1);
+			}
+		}
+		return basekey;
+	}
+
 	@Override
 	public void requestStatus(FCPMessage msg) {
+		if(!msg.getType().equalsIgnoreCase("SimpleProgress")) {
+			return;
+		}
 
+		InsertProgressListener listener;
+		synchronized(persistentRequests) {
+			listener = progressListeners.get(msg.getId());
+		}
+		if(listener == null) {
+			return;
+		}
+
+		try {
+			int succeeded = Integer.parseInt(msg.headers.get("Succeeded"));
+			int total = Integer.parseInt(msg.headers.get("Total"));
+			boolean finalized = Boolean.parseBoolean(msg.headers.get("FinalizedTotal"));
+			listener.onProgress(succeeded, total, finalized);
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Got SimpleProgress with invalid block counts for " + msg.getId());
+		}
 	}
 
 	@Override
 	public void requestFinished(FCPMessage msg) {
-		synchronized(doneMsgs) {
-			doneMsgs.add(msg);
-			doneMsgs.notifyAll();
-		}
+		//Requests are completed through their FCPRequest, so the connection never calls this
+		Logger.error(this, "Got unexpected " + msg.getType() + " for " + msg.getId());
+		msg.release();
 	}
 }
@@ -0,0 +1,33 @@
+/*
+ * InsertProgressListener.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+/**
+ * Receives the progress updates the node sends for a persistent insert.
+ */
+public interface InsertProgressListener {
+	/**
+	 * Called each time the node reports progress.
+	 * @param succeeded the number of blocks that have been inserted
+	 * @param total the number of blocks that have to be inserted
+	 * @param finalized {@code true} if {@code total} won't change anymore
+	 */
+	public void onProgress(int succeeded, int total, boolean finalized);
+}
@@ -0,0 +1,116 @@
+/*
+ * AckRanges.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+
+/**
+ * Encodes and decodes the id list of an ack message. The list is comma separated, and each entry
+ * is either a single id or an inclusive range of ids such as {@code 1-180}. Versions that don't
+ * advertise {@link Channel#FEATURE_ACK_RANGES} only understand single ids.
+ */
+class AckRanges {
+	private AckRanges() {
+	}
+
+	/**
+	 * Returns the id list for the given ids, collapsing runs of consecutive ids into ranges if
+	 * {@code useRanges} is {@code true}.
+	 */
+	static String format(SortedSet<Long> ids, boolean useRanges) {
+		StringBuilder result = new StringBuilder();
+		long first = 0;
+		long last = 0;
+		boolean haveRange = false;
+		for(Long boxedId : ids) {
+			long id = boxedId.longValue();
+			if(haveRange && useRanges && id == last + 1) {
+				last = id;
+				continue;
+			}
+
+			if(haveRange) {
+				append(result, first, last);
+			}
+			first = id;
+			last = id;
+			haveRange = true;
+		}
+		if(haveRange) {
+			append(result, first, last);
+		}
+
+		return result.toString();
+	}
+
+	private static void append(StringBuilder result, long first, long last) {
+		if(result.length() > 0) {
+			result.append(",");
+		}
+		result.append(first);
+		if(last != first) {
+			result.append("-").append(last);
+		}
+	}
+
+	/**
+	 * Parses an id list, returning the ranges it contains as {@code {first, last}} pairs. Single
+	 * ids are returned as ranges where the first and last id are equal. Malformed entries are
+	 * skipped.
+	 */
+	static List<long[]> parse(String idList) {
+		if(idList == null) {
+			return Collections.emptyList();
+		}
+
+		List<long[]> ranges = new ArrayList<long[]>();
+		for(String entry : idList.split(",")) {
+			entry = entry.trim();
+			if(entry.length() == 0) {
+				continue;
+			}
+
+			int separator = entry.indexOf('-', 1);
+			try {
+				long first;
+				long last;
+				if(separator == -1) {
+					first = Long.parseLong(entry);
+					last = first;
+				} else {
+					first = Long.parseLong(entry.substring(0, separator));
+					last = Long.parseLong(entry.substring(separator + 1));
+				}
+
+				if(first > last) {
+					continue;
+				}
+				ranges.add(new long[] {first, last});
+			} catch(NumberFormatException e) {
+				continue;
+			}
+		}
+
+		return ranges;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * AdaptivePollInterval.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+/**
+ * Keeps track of how long a channel should wait between polls. The interval is reset to the
+ * minimum when there is activity on the channel (something was fetched, or we sent something and
+ * expect a reply), and is doubled every time a poll finds nothing, up to the maximum.
+ */
+class AdaptivePollInterval {
+	private final long min;
+	private final long max;
+	private long current;
+
+	/**
+	 * Creates a new interval that starts at {@code min}.
+	 * @param min the minimum interval in milliseconds
+	 * @param max the maximum interval in milliseconds
+	 * @throws IllegalArgumentException if {@code min} isn't positive or {@code max < min}
+	 */
+	AdaptivePollInterval(long min, long max) {
+		this(min, max, min);
+	}
+
+	/**
+	 * Creates a new interval that starts at {@code initial}, clamped to {@code [min, max]}.
+	 * @param min the minimum interval in milliseconds
+	 * @param max the maximum interval in milliseconds
+	 * @param initial the initial interval in milliseconds
+	 * @throws IllegalArgumentException if {@code min} isn't positive or {@code max < min}
+	 */
+	AdaptivePollInterval(long min, long max, long initial) {
+		if(min <= 0) throw new IllegalArgumentException("Minimum interval must be positive: " + min);
+		if(max < min) throw new IllegalArgumentException("Maximum interval (" + max + ") is less than minimum (" + min + ")");
+
+		this.min = min;
+		this.max = max;
+		this.current = clamp(initial);
+	}
+
+	/**
+	 * Called after a poll that found something. Resets the interval to the minimum.
+	 * @return the new interval in milliseconds
+	 */
+	synchronized long onActivity() {
+		current = min;
+		return current;
+	}
+
+	/**
+	 * Called after a poll that didn't find anything. Doubles the interval, up to the maximum.
+	 * @return the new interval in milliseconds
+	 */
+	synchronized long onIdle() {
+		//Compare before doubling to avoid overflow with very large maximums
+		current = (current > max / 2) ? max : current * 2;
+		return current;
+	}
+
+	synchronized long get() {
+		return current;
+	}
+
+	long getMin() {
+		return min;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	private long clamp(long value) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "AdaptivePollInterval [min=" + min + ", max=" + max + ", current=" + current + "]";
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * BodyInsert.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import freenet.support.Base64;
+import freenet.support.IllegalBase64Exception;
+
+/**
+ * A message body that is being inserted using a persistent request. This holds everything that is
+ * needed to find the request again after a restart and to create the {@link BodyPointer} once the
+ * insert has finished, so it is stored before the insert is started.
+ */
+class BodyInsert {
+	private final String identifier;
+	private final byte[] key;
+	private final String compression;
+
+	/**
+	 * @param identifier the identifier of the persistent request
+	 * @param key the AES key and IV the body is encrypted with
+	 * @param compression the compression that is applied before encryption, or {@code null}
+	 */
+	BodyInsert(String identifier, byte[] key, String compression) {
+		if(identifier == null) throw new NullPointerException();
+		if(key.length != BodyPointer.KEY_LENGTH) throw new IllegalArgumentException("Key has wrong length " + key.length);
+		if(identifier.indexOf(' ') != -1) throw new IllegalArgumentException("Identifier contains space");
+
+		this.identifier = identifier;
+		this.key = key.clone();
+		this.compression = compression;
+	}
+
+	String getIdentifier() {
+		return identifier;
+	}
+
+	byte[] getKey() {
+		return key.clone();
+	}
+
+	String getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Returns the pointer to the body once it has been inserted to {@code uri}.
+	 */
+	BodyPointer toPointer(String uri) {
+		return new BodyPointer(uri, key, compression);
+	}
+
+	/**
+	 * Returns a string from which the insert can be recreated using {@link #parse(String)}.
+	 */
+	String serialize() {
+		return identifier + " " + Base64.encode(key) + (compression != null ? " " + compression : "");
+	}
+
+	/**
+	 * Recreates an insert from a string returned by {@link #serialize()}, returning {@code null}
+	 * if the string is malformed.
+	 */
+	static BodyInsert parse(String serialized) {
+		if(serialized == null) {
+			return null;
+		}
+
+		String[] parts = serialized.split(" ");
+		if(parts.length < 2 || parts.length > 3) {
+			return null;
+		}
+
+		byte[] key;
+		try {
+			key = Base64.decode(parts[1]);
+		} catch(IllegalBase64Exception e) {
+			return null;
+		}
+		if(key.length != BodyPointer.KEY_LENGTH) {
+			return null;
+		}
+
+		return new BodyInsert(parts[0], key, parts.length == 3 ? parts[2] : null);
+	}
+
+	@Override
+	public String toString() {
+		//Don't include the key since this ends up in the logs
+		return "BodyInsert [" + identifier + "]";
+	}
+}
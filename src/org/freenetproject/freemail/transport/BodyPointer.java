@@ -0,0 +1,119 @@
+/*
+ * BodyPointer.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import freenet.support.Base64;
+import freenet.support.IllegalBase64Exception;
+
+/**
+ * Points to a message body that has been inserted on its own as a CHK. The body is encrypted
+ * with a key that is only sent over the channel, so the CHK is useless to anyone else.
+ */
+class BodyPointer {
+	/** Length of the AES key followed by the IV */
+	static final int KEY_LENGTH = 32 + 16;
+
+	private final String uri;
+	private final byte[] key;
+	private final String compression;
+
+	/**
+	 * @param uri the CHK the encrypted body was inserted to
+	 * @param key the AES key and IV the body was encrypted with
+	 * @param compression the compression that was applied before encryption, or {@code null}
+	 */
+	BodyPointer(String uri, byte[] key, String compression) {
+		if(uri == null) throw new NullPointerException();
+		if(key.length != KEY_LENGTH) throw new IllegalArgumentException("Key has wrong length " + key.length);
+		if(uri.indexOf(' ') != -1) throw new IllegalArgumentException("URI contains space");
+
+		this.uri = uri;
+		this.key = key.clone();
+		this.compression = compression;
+	}
+
+	String getURI() {
+		return uri;
+	}
+
+	byte[] getKey() {
+		return key.clone();
+	}
+
+	String getEncodedKey() {
+		return Base64.encode(key);
+	}
+
+	String getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Returns a string from which the pointer can be recreated using {@link #parse(String)}.
+	 */
+	String serialize() {
+		return uri + " " + Base64.encode(key) + (compression != null ? " " + compression : "");
+	}
+
+	/**
+	 * Recreates a pointer from a string returned by {@link #serialize()}, returning {@code null}
+	 * if the string is malformed.
+	 */
+	static BodyPointer parse(String serialized) {
+		if(serialized == null) {
+			return null;
+		}
+
+		String[] parts = serialized.split(" ");
+		if(parts.length < 2 || parts.length > 3) {
+			return null;
+		}
+
+		return create(parts[0], parts[1], parts.length == 3 ? parts[2] : null);
+	}
+
+	/**
+	 * Creates a pointer from the fields of a received pointer message, returning {@code null} if
+	 * any of them are malformed.
+	 */
+	static BodyPointer create(String uri, String encodedKey, String compression) {
+		if(uri == null || encodedKey == null) {
+			return null;
+		}
+
+		byte[] key;
+		try {
+			key = Base64.decode(encodedKey);
+		} catch(IllegalBase64Exception e) {
+			return null;
+		}
+		if(key.length != KEY_LENGTH || uri.indexOf(' ') != -1) {
+			return null;
+		}
+
+		return new BodyPointer(uri, key, compression);
+	}
+
+	@Override
+	public String toString() {
+		//Don't include the key since this ends up in the logs
+		return "BodyPointer [" + uri + "]";
+	}
+}
@@ -22,22 +22,48 @@
 
 package org.freenetproject.freemail.transport;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import org.archive.util.Base32;
 import org.bouncycastle.crypto.AsymmetricBlockCipher;
@@ -45,29 +71,39 @@ import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.engines.RSAEngine;
+import org.bouncycastle.crypto.io.CipherInputStream;
+import org.bouncycastle.crypto.io.CipherOutputStream;
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.paddings.PKCS7Padding;
 import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
-import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.Freemail.TaskType;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.FreenetURI;
+import org.freenetproject.freemail.MailsiteCache;
 import org.freenetproject.freemail.SlotManager;
 import org.freenetproject.freemail.SlotSaveCallback;
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPBadFileException;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPProtocolException;
 import org.freenetproject.freemail.fcp.FCPPutFailedException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient.RequestCallback;
+import org.freenetproject.freemail.fcp.InsertProgressListener;
+import org.freenetproject.freemail.fcp.NoNodeConnectionException;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
+import org.freenetproject.freemail.transport.TransportScheduler.Completion;
+import org.freenetproject.freemail.transport.TransportScheduler.Job;
 import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
+import org.freenetproject.freemail.utils.RetryPolicy;
 import org.freenetproject.freemail.utils.Timer;
 import org.freenetproject.freemail.wot.Identity;
 import org.freenetproject.freemail.wot.WoTConnection;
@@ -79,6 +115,7 @@ import freenet.support.api.Bucket;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
 
 //FIXME: The message id gives away how many messages has been sent over the channel.
 //       Could it be replaced by a different solution that gives away less information?
@@ -96,8 +133,50 @@ class Channel {
 	 */
 	private static final long CHANNEL_TIMEOUT = 7 * 24 * 60 * 60 * 1000; //1 week
 
-	/** The amount of time to wait before retrying after a transient failure. */
+	/**
+	 * The amount of time to wait before retrying after a transient failure. The delay is doubled
+	 * for every consecutive failure, up to {@link #TASK_RETRY_MAX_DELAY}.
+	 */
 	private static final long TASK_RETRY_DELAY = 5 * 60 * 1000; //5 minutes
+	private static final long TASK_RETRY_MAX_DELAY = 2 * 60 * 60 * 1000; //2 hours
+
+	/**
+	 * Fetched messages wait in this directory until they have been delivered, see
+	 * {@link InboundQueue}.
+	 */
+	private static final String INBOUND_DIR = "inbound";
+	private static final int MAX_DELIVERY_ATTEMPTS = 15;
+
+	/** Feature flag for channels that can receive bundles of several messages in one insert */
+	static final String FEATURE_BUNDLE = "bundle";
+
+	/** Feature flag for channels that understand ranges of ids in acks */
+	static final String FEATURE_ACK_RANGES = "ackranges";
+
+	/** Feature flag for channels that can receive deflate compressed messages */
+	static final String FEATURE_DEFLATE = "deflate";
+
+	/** Feature flag for channels that can fetch message bodies inserted as separate CHKs */
+	static final String FEATURE_POINTER = "pointer";
+
+	/** The features we support, sent to the other side in the RTS and CTS */
+	private static final String LOCAL_FEATURES = FEATURE_BUNDLE + "," + FEATURE_ACK_RANGES + "," + FEATURE_DEFLATE
+			+ "," + FEATURE_POINTER;
+
+	/** The value of the compression header for messages compressed with deflate */
+	private static final String COMPRESSION_DEFLATE = "deflate";
+
+	/** The maximum size of the messages that are packed into a single bundle, in bytes */
+	static final long MAX_BUNDLE_SIZE = 64 * 1024;
+
+	/** The maximum number of messages that are packed into a single bundle */
+	static final int MAX_BUNDLE_MESSAGES = 32;
+
+	/**
+	 * The largest message body we accept, in bytes. Bodies that are inserted on their own are
+	 * fetched with this as the limit, and pointers to larger bodies are discarded.
+	 */
+	static final long MAX_BODY_SIZE = 64 * 1024 * 1024;
 
 	//The keys used in the props file
 	private static class PropsKeys {
@@ -112,6 +191,9 @@ class Channel {
 		private static final String FETCH_CODE = "fetchCode";
 		private static final String REMOTE_ID = "remoteID";
 		private static final String TIMEOUT = "timeout";
+		private static final String FETCH_INTERVAL = "fetchInterval";
+		private static final String REMOTE_FEATURES = "remoteFeatures";
+		private static final String NEXT_INBOUND_NUMBER = "nextInboundNumber";
 		private static final String MSG_SLOT = ".slot";
 	}
 
@@ -122,22 +204,56 @@ class Channel {
 		private static final String INITIATOR_SLOT = "initiatorSlot";
 		private static final String RESPONDER_SLOT = "responderSlot";
 		private static final String TIMEOUT = "timeout";
+		private static final String FEATURES = "features";
+	}
+
+	private static class MessageKeys {
+		private static final String COMPRESSION = "compression";
+	}
+
+	private static class PointerKeys {
+		private static final String URI = "uri";
+		private static final String KEY = "key";
+	}
+
+	private static class BundleKeys {
+		private static final String IDS = "ids";
+		private static final String LENGTHS = "lengths";
 	}
 
 	private final File channelDir;
 	private final PropsFile channelProps;
-	private final ScheduledExecutorService executor;
+	private final TransportScheduler scheduler;
+	private final Object node;
 	private final HighLevelFCPClient fcpClient;
 	private final Freemail freemail;
 	private final FreemailAccount account;
 	private final Fetcher fetcher = new Fetcher();
 	private final RTSSender rtsSender = new RTSSender();
+	private final CTSInserter ctsInserter = new CTSInserter();
+	private final AckInserter ackInserter = new AckInserter();
+	private final Deliverer deliverer = new Deliverer();
+	private final BodyFetcher bodyFetcher = new BodyFetcher();
 	private final AtomicReference<ChannelEventCallback> channelEventCallback = new AtomicReference<ChannelEventCallback>();
 	private final MessageLog ackLog;
+	private final InboundQueue inbound;
+	private final AdaptivePollInterval pollInterval;
+
+	/* Set on creation and never changed, so this can be read without locking */
+	private final String remoteId;
+
+	/* Set when the channel is hibernated or about to be deleted, after which no tasks will run */
+	private final Object stopLock = new Object();
+	private boolean stopped = false; //Guarded by stopLock
+	private int activeSends = 0; //Guarded by stopLock
 
-	Channel(File channelDir, ScheduledExecutorService executor, HighLevelFCPClient fcpClient, Freemail freemail, FreemailAccount account, String remoteId) throws ChannelTimedOutException {
-		if(executor == null) throw new NullPointerException();
-		this.executor = executor;
+	Channel(File channelDir, TransportScheduler scheduler, HighLevelFCPClient fcpClient, Freemail freemail, FreemailAccount account, String remoteId) throws ChannelTimedOutException {
+		if(scheduler == null) throw new NullPointerException();
+		this.scheduler = scheduler;
+
+		//All our FCP requests go through the same connection, so they all count against the same
+		//node in the scheduler
+		this.node = Freemail.getFCPConnection();
 
 		this.fcpClient = fcpClient;
 		this.account = account;
@@ -149,6 +265,7 @@ class Channel {
 		this.channelDir = channelDir;
 
 		ackLog = new MessageLog(new File(channelDir, ACK_LOG));
+		inbound = new InboundQueue(new File(channelDir, INBOUND_DIR), MAX_DELIVERY_ATTEMPTS);
 
 		File channelPropsFile = new File(channelDir, CHANNEL_PROPS_NAME);
 		if(!channelPropsFile.exists()) {
@@ -199,6 +316,7 @@ class Channel {
 
 				channelProps.put(PropsKeys.REMOTE_ID, remoteId);
 			}
+			this.remoteId = remoteId;
 		} else {
 			//If not, make sure it is in the config file
 			synchronized (channelProps) {
@@ -208,13 +326,31 @@ class Channel {
 							+ channelDir + ")");
 					throw new IllegalStateException("Remote id missing");
 				}
+				this.remoteId = prev;
+			}
+		}
+
+		//Continue with the poll interval we had last time so that restarting doesn't make all
+		//idle channels poll at the minimum interval
+		long initialInterval = freemail.getChannelPollMinInterval();
+		synchronized(channelProps) {
+			String rawInterval = channelProps.get(PropsKeys.FETCH_INTERVAL);
+			if(rawInterval != null) {
+				try {
+					initialInterval = Long.parseLong(rawInterval);
+				} catch(NumberFormatException e) {
+					Logger.error(this, "Illegal value in " + PropsKeys.FETCH_INTERVAL + " field, using minimum: " + rawInterval);
+				}
 			}
 		}
+		pollInterval = new AdaptivePollInterval(freemail.getChannelPollMinInterval(),
+				freemail.getChannelPollMaxInterval(), initialInterval);
 	}
 
 	void processRTS(PropsFile rtsProps) {
 		Logger.debug(this, "Processing RTS");
 
+		String channelPrivateKey;
 		synchronized(channelProps) {
 			//Because of the way InsertableClientSSK works we need to add a document name (the part
 			//after the final /) to the key before it is passed to FreenetURI. This must be removed
@@ -259,14 +395,14 @@ class Channel {
 
 			channelProps.put(PropsKeys.TIMEOUT, rtsProps.get(RTSKeys.TIMEOUT));
 			channelProps.put(PropsKeys.RECIPIENT_STATE, "rts-received");
+			storeRemoteFeatures(rtsProps.get(RTSKeys.FEATURES));
+
+			channelPrivateKey = channelProps.get(PropsKeys.PRIVATE_KEY);
 		}
+		onPrivateKeyAssigned(channelPrivateKey);
 
 		//Queue the CTS insert
-		try {
-			executor.execute(new CTSInserter());
-		} catch(RejectedExecutionException e) {
-			Logger.debug(this, "Caugth RejectedExecutionException while scheduling CTSInserter");
-		}
+		ctsInserter.execute();
 		startFetcher();
 	}
 
@@ -279,52 +415,307 @@ class Channel {
 		}
 	}
 
-	public static boolean deleteChannel(File channelDir) {
+	/**
+	 * Reads the dormant record of the channel stored in {@code channelDir} straight from its
+	 * files, without loading the channel. This makes the same checks as {@link #canHibernate()},
+	 * so a channel that only has to poll until it times out doesn't have to be loaded at startup.
+	 * @return the dormant record, or {@code null} if the channel can't hibernate, is broken or has
+	 *             timed out, in which case it should be loaded normally
+	 */
+	static DormantChannel loadDormant(File channelDir) {
 		File channelPropsFile = new File(channelDir, CHANNEL_PROPS_NAME);
-		channelPropsFile.delete();
+		if(!channelPropsFile.exists()) {
+			return null;
+		}
+
+		String remoteId;
+		String privateKey;
+		long timeout;
+		PropsFile props = PropsFile.createPropsFile(channelPropsFile);
+		try {
+			synchronized(props) {
+				if("rts-received".equals(props.get(PropsKeys.RECIPIENT_STATE))) {
+					return null;
+				}
+
+				remoteId = props.get(PropsKeys.REMOTE_ID);
+				privateKey = props.get(PropsKeys.PRIVATE_KEY);
+				try {
+					timeout = Long.parseLong(props.get(PropsKeys.TIMEOUT));
+				} catch(NumberFormatException e) {
+					//Includes channels that haven't sent the RTS yet
+					return null;
+				}
+			}
+		} finally {
+			PropsFile.evict(channelPropsFile);
+		}
+
+		long now = System.currentTimeMillis();
+		if(remoteId == null || timeout >= now || timeout + CHANNEL_TIMEOUT < now) {
+			return null;
+		}
+
+		try {
+			if(new MessageLog(new File(channelDir, ACK_LOG)).iterator().hasNext()) {
+				return null;
+			}
+		} catch(IOException e) {
+			Logger.error(Channel.class, "Caugth IOException while checking acklog: " + e.getMessage(), e);
+			return null;
+		}
+
+		if(!new InboundQueue(new File(channelDir, INBOUND_DIR), MAX_DELIVERY_ATTEMPTS).isEmpty()) {
+			return null;
+		}
+
+		return new DormantChannel(channelDir, remoteId, privateKey, timeout + CHANNEL_TIMEOUT);
+	}
+
+	/**
+	 * Deletes the channel directory and everything in it. The channel must have been stopped
+	 * first if it has been loaded.
+	 * @return {@code true} if the directory was deleted
+	 */
+	public static boolean deleteChannel(File channelDir) {
+		PropsFile.evict(new File(channelDir, CHANNEL_PROPS_NAME));
+		return deleteRecursive(channelDir);
+	}
+
+	private static boolean deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				deleteRecursive(child);
+			}
+		}
+
+		if(!file.delete() && file.exists()) {
+			Logger.error(Channel.class, "Couldn't delete " + file);
+			return false;
+		}
+		return true;
+	}
+
+	private static RetryPolicy newTaskRetry() {
+		return new RetryPolicy(TASK_RETRY_DELAY, TASK_RETRY_MAX_DELAY);
+	}
+
+	/**
+	 * Receives the result of sending a message. It is called as part of the job that started the
+	 * send, and may be called before the method that started the send has returned.
+	 */
+	interface SendCallback {
+		void sendFinished(boolean sent);
+	}
+
+	/**
+	 * Receives the result of inserting a message body. It may be called before the method that
+	 * started the insert has returned.
+	 */
+	interface BodyCallback {
+		/**
+		 * @param uri the URI of the inserted body, or {@code null} if the insert failed or the
+		 *            node connection was lost while waiting for it
+		 */
+		void bodyInserted(String uri);
+	}
+
+	/**
+	 * A task of the channel that runs as a job on the transport scheduler. A run may wait for the
+	 * node without holding a thread, and a run that becomes due while the previous one is still
+	 * waiting is started again once that one has finished, so the runs never overlap. There is at
+	 * most one pending run at any time.
+	 */
+	private abstract class ChannelTask implements Job {
+		/* The next scheduled run and when it will happen, if any */
+		private final Object scheduleLock = new Object();
+		private Future<?> nextRun = null;
+		private long nextRunAt = 0;
+
+		/* Guarded by scheduleLock */
+		private boolean running = false;
+		private boolean rerun = false;
+
+		@Override
+		public void start(Completion completion) {
+			boolean busy;
+			synchronized(scheduleLock) {
+				//Any new requests to run should result in a new run after this one
+				nextRun = null;
+				busy = running;
+				if(busy) {
+					rerun = true;
+				} else {
+					running = true;
+				}
+			}
+			if(busy) {
+				Logger.debug(this, "Previous run hasn't finished, will run again when it has");
+				completion.done();
+				return;
+			}
+
+			RunCompletion runCompletion = new RunCompletion(completion);
+			try {
+				run(runCompletion);
+			} catch(RuntimeException e) {
+				runCompletion.done();
+				throw e;
+			} catch(Error e) {
+				runCompletion.done();
+				throw e;
+			}
+		}
+
+		/**
+		 * Does the work of the task. The run ends when {@link Completion#done()} is called, either
+		 * before this returns or from a later step, e.g. an FCP callback that was given
+		 * {@code completion} as its executor.
+		 */
+		protected abstract void run(Completion completion);
+
+		void execute() {
+			schedule(0, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Schedules the task to run after the given delay. If a run has already been scheduled
+		 * the earliest of the two is kept.
+		 */
+		void schedule(long delay, TimeUnit unit) {
+			long runAt = System.currentTimeMillis() + unit.toMillis(delay);
+			synchronized(scheduleLock) {
+				if(nextRun != null && !nextRun.isDone()) {
+					if(nextRunAt <= runAt) {
+						Logger.debug(this, "Already scheduled " + (runAt - nextRunAt) + "ms earlier than requested");
+						return;
+					}
+					nextRun.cancel(false);
+				}
+
+				Logger.debug(this, "Scheduling " + this + " for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
+				try {
+					nextRun = scheduler.schedule(node, this, delay, unit);
+					nextRunAt = runAt;
+				} catch(RejectedExecutionException e) {
+					Logger.debug(this, "Caugth RejectedExecutionException while scheduling " + this);
+				}
+			}
+		}
+
+		void cancel() {
+			synchronized(scheduleLock) {
+				if(nextRun != null) {
+					nextRun.cancel(false);
+					nextRun = null;
+				}
+			}
+		}
 
-		File ackLog = new File(channelDir, ACK_LOG);
-		ackLog.delete();
+		/**
+		 * Ends the run when it is completed or when one of its steps throws, and starts the next
+		 * run if one became due in the meantime.
+		 */
+		private class RunCompletion implements Completion {
+			private final Completion completion;
+			private final AtomicBoolean finished = new AtomicBoolean();
+
+			private RunCompletion(Completion completion) {
+				this.completion = completion;
+			}
+
+			@Override
+			public void done() {
+				if(!finished.compareAndSet(false, true)) {
+					return;
+				}
+
+				boolean again;
+				synchronized(scheduleLock) {
+					running = false;
+					again = rerun;
+					rerun = false;
+				}
+				completion.done();
+
+				if(again) {
+					ChannelTask.this.execute();
+				}
+			}
 
-		return channelDir.delete();
+			@Override
+			public void execute(final Runnable step) {
+				completion.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							step.run();
+						} catch(RuntimeException e) {
+							done();
+							throw e;
+						} catch(Error e) {
+							done();
+							throw e;
+						}
+					}
+				});
+			}
+		}
 	}
 
-	private class CTSInserter implements Runnable {
+	private class CTSInserter extends ChannelTask {
+		private final RetryPolicy retry = newTaskRetry();
+
 		@Override
-		public void run() {
+		protected void run(final Completion completion) {
 			Logger.debug(this, "CTSInserter running (" + this + ")");
+			if(isStopped()) {
+				Logger.debug(this, "Channel has been stopped, quitting");
+				completion.done();
+				return;
+			}
 
 			//Build the header of the inserted message
 			Bucket bucket;
 			try {
-				bucket = new ArrayBucket("messagetype=cts\r\n\r\n".getBytes("UTF-8"));
+				String header =
+					"messagetype=cts\r\n"
+					+ RTSKeys.FEATURES + "=" + LOCAL_FEATURES + "\r\n"
+					+ "\r\n";
+				bucket = new ArrayBucket(header.getBytes("UTF-8"));
 			} catch (UnsupportedEncodingException e) {
 				//JVMs are required to support UTF-8, so we can assume it is always available
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
 			}
 
-			boolean inserted;
 			try {
-				inserted = insertMessage(bucket, "cts");
+				insertMessage(bucket, "cts", completion, new SendCallback() {
+					@Override
+					public void sendFinished(boolean inserted) {
+						if(inserted) {
+							retry.reset();
+							synchronized(channelProps) {
+								channelProps.put(PropsKeys.RECIPIENT_STATE, "cts-sent");
+							}
+
+							//The other side will start sending messages once it sees the CTS
+							onActivity();
+						} else {
+							schedule(retry.nextDelay(), TimeUnit.MILLISECONDS);
+						}
+						completion.done();
+					}
+				});
 			} catch(IOException e) {
 				//The getInputStream() method of ArrayBucket doesn't throw
 				throw new AssertionError();
-			} catch (InterruptedException e) {
-				Logger.debug(this, "CTSInserter interrupted, quitting");
-				return;
 			}
+		}
 
-			if(inserted) {
-				synchronized(channelProps) {
-					channelProps.put(PropsKeys.RECIPIENT_STATE, "cts-sent");
-				}
-			} else {
-				try {
-					executor.schedule(this, TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				} catch(RejectedExecutionException e) {
-					Logger.debug(this, "Caugth RejectedExecutionException while scheduling CTSInserter");
-				}
-			}
+		@Override
+		public String toString() {
+			return "CTSInserter [" + channelDir + "]";
 		}
 	}
 
@@ -333,48 +724,28 @@ class Channel {
 		startRTSSender();
 
 		//Start insert of acks that were written to disk but not inserted
-		try {
-			synchronized(ackLog) {
-				Iterator<Entry<Long, String>> it = ackLog.iterator();
-				while(it.hasNext()) {
-					Entry<Long, String> entry = it.next();
-					long insertAfter = 0;
-					if(entry.getValue() != null) {
-						try {
-							insertAfter = Long.parseLong(entry.getValue());
-						} catch(NumberFormatException e) {
-							//Assume no delay
-							insertAfter = 0;
-						}
-					}
+		ackInserter.execute();
 
-					ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-					senderExecutor.execute(new AckInserter(entry.getKey(), insertAfter));
-				}
-			}
-		} catch(IOException e) {
-			Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
-		} catch(RejectedExecutionException e) {
-			// Catch it here instead of inside the loop since there is no point
-			// in trying to schedule the rest
-			Logger.debug(this, "Caugth RejectedExecutionException while scheduling AckInserter");
-		}
+		//Deliver messages that were fetched but not delivered
+		deliverer.schedule(0);
 
 		//Start the CTS sender if needed
 		synchronized(channelProps) {
 			String recipientState = channelProps.get(PropsKeys.RECIPIENT_STATE);
 			if("rts-received".equals(recipientState)) {
-				try {
-					executor.execute(new CTSInserter());
-				} catch(RejectedExecutionException e) {
-					Logger.debug(this, "Caugth RejectedExecutionException while scheduling CTSInserter");
-				}
+				ctsInserter.execute();
 			}
 		}
 	}
 
 	private void startFetcher() {
 		//Start fetcher if possible
+		if(canFetch()) {
+			fetcher.execute();
+		}
+	}
+
+	private boolean canFetch() {
 		String fetchSlot;
 		String fetchCode;
 		String publicKey;
@@ -384,9 +755,7 @@ class Channel {
 			publicKey = channelProps.get(PropsKeys.PUBLIC_KEY);
 		}
 
-		if((fetchSlot != null) && (fetchCode != null) && (publicKey != null)) {
-			fetcher.execute();
-		}
+		return (fetchSlot != null) && (fetchCode != null) && (publicKey != null);
 	}
 
 	private void startRTSSender() {
@@ -403,20 +772,134 @@ class Channel {
 	}
 
 	/**
-	 * Sends the message that is read from {@code message}, returning {@code true} if the message
-	 * was inserted. The caller is responsible for freeing {@code message}.
-	 * @param message the data to be sent
-	 * @param messageId the message id that has been assigned to this message
-	 * @return {@code true} if the message was sent, {@code false} otherwise
+	 * Makes sure the channel isn't stopped while we are using it for sending. Must be followed by
+	 * a call to {@link #finishSend()}.
+	 */
+	private void startSend() throws ChannelTimedOutException {
+		synchronized(stopLock) {
+			if(stopped) {
+				//Only channels that can't be used for sending are stopped
+				throw new ChannelTimedOutException();
+			}
+			activeSends++;
+		}
+	}
+
+	private void finishSend() {
+		synchronized(stopLock) {
+			activeSends--;
+		}
+	}
+
+	/**
+	 * Wraps {@code callback} so that the send is finished, and the fetcher sped up if the message
+	 * was sent, before {@code callback} is called.
+	 */
+	private SendCallback finishSendWith(final SendCallback callback) {
+		return new SendCallback() {
+			@Override
+			public void sendFinished(boolean sent) {
+				finishSend();
+				if(sent) {
+					//We expect an ack for this message, so check the channel more often for a while
+					onActivity();
+				}
+				callback.sendFinished(sent);
+			}
+		};
+	}
+
+	/**
+	 * Starts sending one or more messages in a single insert. Several messages are packed into a
+	 * bundle that the other side unpacks and acks message by message, so this can only be used
+	 * with more than one message if {@link #canSendBundles()} returns {@code true}. The total size
+	 * of the messages should be kept below {@link #MAX_BUNDLE_SIZE}.
+	 *
+	 * The data has been handed to the node when this returns, so the caller can free the buckets
+	 * right away. {@code callback} is called once the node has replied, on one of the threads of
+	 * the job that {@code completion} belongs to, unless this throws.
+	 * @param messages the messages that should be sent, keyed by message id
+	 * @param completion the job the send is part of
+	 * @param callback told whether the messages were sent
 	 * @throws ChannelTimedOutException if the channel has timed out and can't be used for sending
 	 *             messages
-	 * @throws IOException if any operations on {@code message} throws IOException
-	 * @throws InterruptedException if the current thread was interrupted while sending the message
-	 * @throws NullPointerException if {@code message} is {@code null}
+	 * @throws IOException if any operations on the messages throws IOException
+	 * @throws IllegalArgumentException if {@code messages} is empty
 	 */
-	boolean sendMessage(Bucket message, long messageId) throws ChannelTimedOutException, IOException, InterruptedException {
-		if(message == null) throw new NullPointerException("Parameter message was null");
+	void sendMessages(SortedMap<Long, Bucket> messages, Completion completion, SendCallback callback)
+			throws ChannelTimedOutException, IOException {
+		if(messages.isEmpty()) throw new IllegalArgumentException("No messages to send");
+
+		startSend();
+		boolean started = false;
+		try {
+			checkSendTimeout();
+
+			SendCallback sendCallback = finishSendWith(callback);
+			if(messages.size() == 1) {
+				Long messageId = messages.firstKey();
+				sendMessage(messages.get(messageId), messageId.longValue(), completion, sendCallback);
+			} else {
+				sendBundle(messages, completion, sendCallback);
+			}
+			started = true;
+		} finally {
+			if(!started) {
+				finishSend();
+			}
+		}
+	}
+
+	private void sendBundle(final SortedMap<Long, Bucket> messages, Completion completion, final SendCallback callback)
+			throws IOException {
+		//Build the header with the id and length of each message
+		StringBuilder ids = new StringBuilder();
+		StringBuilder lengths = new StringBuilder();
+		for(Entry<Long, Bucket> entry : messages.entrySet()) {
+			if(ids.length() > 0) {
+				ids.append(",");
+				lengths.append(",");
+			}
+			ids.append(entry.getKey());
+			lengths.append(entry.getValue().size());
+		}
+		boolean compress = hasRemoteFeature(FEATURE_DEFLATE);
+		String header =
+			"messagetype=bundle\r\n"
+			+ BundleKeys.IDS + "=" + ids + "\r\n"
+			+ BundleKeys.LENGTHS + "=" + lengths + "\r\n"
+			+ (compress ? MessageKeys.COMPRESSION + "=" + COMPRESSION_DEFLATE + "\r\n" : "")
+			+ "\r\n";
+
+		//The lengths in the header are those of the uncompressed messages
+		List<Bucket> body = new ArrayList<Bucket>(messages.values());
+		File compressed = null;
+		try {
+			if(compress) {
+				compressed = compressToTempFile(body);
+				body = Collections.<Bucket>singletonList(new FileBucket(compressed, true, false, false, false, false));
+			}
+
+			//Use the slot of the first message so a retry reuses it even if the bundle changes
+			insertMessage(header.getBytes("UTF-8"), body, "msg" + messages.firstKey(), completion, new SendCallback() {
+				@Override
+				public void sendFinished(boolean inserted) {
+					if(inserted) {
+						Logger.minor(this, "Inserted bundle of " + messages.size() + " messages");
+
+						//The other messages may have been given slots by earlier inserts
+						inserted = removeSlots(messages.keySet());
+					}
+					callback.sendFinished(inserted);
+				}
+			});
+		} finally {
+			//The data has been sent to the node, so the file isn't needed any more
+			deleteTempFile(compressed);
+		}
+	}
 
+	private void checkSendTimeout() throws ChannelTimedOutException {
 		synchronized(channelProps) {
 			String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
 			if(rawTimeout != null) {
@@ -432,136 +915,541 @@ class Channel {
 				}
 			}
 		}
+	}
 
+	private void sendMessage(Bucket message, long messageId, Completion completion, SendCallback callback)
+			throws IOException {
 		//Build the header of the inserted message
+		boolean compress = hasRemoteFeature(FEATURE_DEFLATE);
 		String header =
 			"messagetype=message\r\n"
 			+ "id=" + messageId + "\r\n"
+			+ (compress ? MessageKeys.COMPRESSION + "=" + COMPRESSION_DEFLATE + "\r\n" : "")
 			+ "\r\n";
-		Bucket messageHeader = new ArrayBucket(header.getBytes("UTF-8"));
 
-		//Now combine them in a single bucket
-		ArrayBucket fullMessage = new ArrayBucket();
-		OutputStream messageOutputStream = null;
+		//The header and the message are streamed to the node, so the message is never held in
+		//memory. A compressed message is written to a temporary file first since the length of
+		//the data must be known before the insert starts
+		Bucket body = message;
+		File compressed = null;
 		try {
-			messageOutputStream = fullMessage.getOutputStream();
-			BucketTools.copyTo(messageHeader, messageOutputStream, -1);
-			BucketTools.copyTo(message, messageOutputStream, -1);
+			if(compress) {
+				compressed = compressToTempFile(Collections.singletonList(message));
+				body = new FileBucket(compressed, true, false, false, false, false);
+			}
+
+			insertMessage(header.getBytes("UTF-8"), Collections.singletonList(body), "msg" + messageId, completion, callback);
 		} finally {
-			Closer.close(messageOutputStream);
+			deleteTempFile(compressed);
 		}
-
-		return insertMessage(fullMessage, "msg" + messageId);
 	}
 
 	/**
-	 * Inserts the given message to the next available slot, returning {@code true} if the message
-	 * was inserted, {@code false} otherwise.
-	 * @param message the message that should be inserted
-	 * @return {@code true} if the message was inserted, {@code false} otherwise
-	 * @throws IOException if the getInputStream() method of message throws IOException
-	 * @throws InterruptedException if the current thread was interrupted while inserting the message
+	 * Returns a new body insert that can be passed to
+	 * {@link #insertBody(Bucket, BodyInsert, boolean, InsertProgressListener, Executor, BodyCallback)}. The body will be
+	 * compressed if the other side supports it.
 	 */
-	private boolean insertMessage(Bucket message, String prefix) throws IOException, InterruptedException {
-		String privateKey;
-		String sendCode;
-		synchronized (channelProps) {
-			privateKey = channelProps.get(PropsKeys.PRIVATE_KEY);
-			sendCode = channelProps.get(PropsKeys.SEND_CODE);
+	BodyInsert createBodyInsert() {
+		byte[] key = new byte[BodyPointer.KEY_LENGTH];
+		Freemail.getRNG().nextBytes(key);
 
-			if(privateKey == null) {
-				/* Most likely because we tried sending the message before sending the RTS */
-				Logger.minor(this, "Can't insert, missing private key");
-				return false;
-			}
-			if(sendCode == null) {
-				/* If we have the private key, but not the send code something
-				 * is wrong since sending/receiving an RTS stores these atomically */
-				/* FIXME: Perhaps set the timeout to 0 so the channel will be deleted? */
-				Logger.error(this, "Can't insert, missing send code but have private key");
-				return false;
-			}
+		String compression = hasRemoteFeature(FEATURE_DEFLATE) ? COMPRESSION_DEFLATE : null;
+		return new BodyInsert("Freemail-body-" + UUID.randomUUID(), key, compression);
+	}
+
+	/**
+	 * Encrypts {@code message} and starts inserting it as a CHK, passing the URI of the inserted
+	 * body to {@code callback} once the insert has finished. The resulting pointer can be sent
+	 * using {@link #sendPointer(long, BodyPointer, Completion, SendCallback)}, and stays valid if
+	 * the channel is replaced, so the body only has to be inserted once per message.
+	 *
+	 * The insert is a persistent request, so the node keeps working on it if Freemail or the node
+	 * is restarted, and no thread waits for it while it runs. If {@code resume} is {@code true}
+	 * the insert has been started before and this picks up that insert, only starting it again
+	 * if the node no longer has it. The request is removed from the node once it has finished, so
+	 * a failed insert starts from scratch on the next try.
+	 * @param listener receives the progress of the insert, may be {@code null}
+	 * @param executor runs {@code callback}, and the encryption if the insert has to be started
+	 *             again
+	 */
+	void insertBody(final Bucket message, final BodyInsert insert, boolean resume,
+			final InsertProgressListener listener, final Executor executor, final BodyCallback callback) {
+		final Timer bodyInsert = Timer.start();
+		if(!resume) {
+			startBodyInsert(message, insert, listener, executor, bodyInsert, callback);
+			return;
 		}
 
-		while(true) {
-			/* First we get the slot for this message if one has been assigned */
-			String sendSlot;
-			synchronized(channelProps) {
-				/* If a slot has been assigned, use it */
-				sendSlot = channelProps.get(prefix + PropsKeys.MSG_SLOT);
-				if(sendSlot == null) {
-					/* If not, assign the next free slot */
-					sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
-					String nextSlot = calculateNextSlot(sendSlot);
-					channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
-					channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+		try {
+			fcpClient.resumePersistentCHKAsync(insert.getIdentifier(), listener, new RequestCallback<String>() {
+				@Override
+				public void requestSucceeded(String uri) {
+					bodyInsertSucceeded(insert, uri, bodyInsert, callback);
+				}
 
-					Logger.debug(this, "Assigned slot " + sendSlot + " to message " + prefix);
+				@Override
+				public void requestFailed(FCPException e) {
+					if(e instanceof FCPProtocolException) {
+						//Most likely we were stopped before the node got all the data
+						Logger.minor(Channel.this, "Node doesn't know about " + insert + ", inserting again");
+						startBodyInsert(message, insert, listener, executor, bodyInsert, callback);
+						return;
+					}
+					bodyInsertFailed(insert, e, callback);
 				}
-			}
+			}, executor);
+		} catch(NoNodeConnectionException e) {
+			Logger.minor(this, "No connection to node, can't resume " + insert);
+			callback.bodyInserted(null);
+		} catch(ConnectionTerminatedException e) {
+			/* Expected if Freemail is shutting down */
+			Logger.debug(this, "Caugth " + e);
+			callback.bodyInserted(null);
+		}
+	}
 
-			String insertKey = privateKey + sendCode + "-" + sendSlot;
+	private void startBodyInsert(Bucket message, final BodyInsert insert, InsertProgressListener listener,
+			Executor executor, final Timer bodyInsert, final BodyCallback callback) {
+		File encrypted = null;
+		InputStream is = null;
+		try {
+			encrypted = encryptBody(message, insert);
+			is = new FileInputStream(encrypted);
+
+			//The data has been sent to the node when this returns, so the file can be deleted
+			fcpClient.insertPersistentCHKAsync(insert.getIdentifier(), is, encrypted.length(), listener,
+					new RequestCallback<String>() {
+				@Override
+				public void requestSucceeded(String uri) {
+					bodyInsertSucceeded(insert, uri, bodyInsert, callback);
+				}
 
-			InputStream messageStream = null;
-			try {
-				messageStream = message.getInputStream();
-				Logger.minor(this, "Inserting data");
-				Logger.debug(this, "Insert key is " + insertKey);
-				FCPPutFailedException fcpMessage;
-				try {
-					Timer messageInsert = Timer.start();
-					fcpMessage = fcpClient.put(messageStream, insertKey);
-					messageInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message");
-				} catch(FCPBadFileException e) {
-					Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
-					return false;
-				} catch(ConnectionTerminatedException e) {
-					/* Expected if Freemail is shutting down */
-					Logger.debug(this, "Caugth " + e);
-					return false;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while inserting data: " + e.getMessage());
-					return false;
+				@Override
+				public void requestFailed(FCPException e) {
+					bodyInsertFailed(insert, e, callback);
 				}
+			}, executor);
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while inserting message body: " + e.getMessage(), e);
+			callback.bodyInserted(null);
+		} catch(FCPBadFileException e) {
+			Logger.error(this, "Caugth FCPBadFileException while inserting message body", e);
+			callback.bodyInserted(null);
+		} catch(NoNodeConnectionException e) {
+			Logger.minor(this, "No connection to node, can't insert " + insert);
+			callback.bodyInserted(null);
+		} catch(ConnectionTerminatedException e) {
+			/* Expected if Freemail is shutting down */
+			Logger.debug(this, "Caugth " + e);
+			callback.bodyInserted(null);
+		} finally {
+			Closer.close(is);
+			deleteTempFile(encrypted);
+		}
+	}
 
-				if(fcpMessage == null) {
-					Logger.minor(this, "Insert successful");
+	private void bodyInsertSucceeded(BodyInsert insert, String uri, Timer bodyInsert, BodyCallback callback) {
+		bodyInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message body");
+		Logger.minor(this, "Inserted message body for " + insert + " to " + uri);
 
-					synchronized (channelProps) {
-						if(!channelProps.remove(prefix + PropsKeys.MSG_SLOT)) {
-							Logger.error(this, "Couldn't remove slot, will try again later");
+		//The result has been collected, so the node doesn't have to keep it
+		removeBodyInsert(fcpClient, insert.getIdentifier());
+		callback.bodyInserted(uri);
+	}
 
-							/*
-							 * The insert succeeded, but we can't leave the slot in the props file
-							 * since that would break the forward secrecy of the slot system. By
-							 * returning false we will try again later (using the same slot) and
-							 * hopefully we can delete it then.
-							 */
-							return false;
-						}
-					}
+	private void bodyInsertFailed(BodyInsert insert, FCPException e, BodyCallback callback) {
+		if(e instanceof FCPPutFailedException) {
+			Logger.minor(this, "Insert of message body failed: " + e);
+			removeBodyInsert(fcpClient, insert.getIdentifier());
+		} else {
+			//Most likely the connection to the node was lost. The node still has the request, so
+			//it is resumed on the next try
+			Logger.minor(this, "Lost track of " + insert + ": " + e);
+		}
+		callback.bodyInserted(null);
+	}
+
+	/**
+	 * Removes the persistent request used to insert a message body from the node. If the insert
+	 * is still running it is stopped, and whoever waits for it is told that it failed.
+	 */
+	static void removeBodyInsert(HighLevelFCPClient fcpClient, String identifier) {
+		try {
+			fcpClient.removePersistentRequest(identifier);
+		} catch(ConnectionTerminatedException e) {
+			Logger.debug(Channel.class, "Caugth " + e);
+		} catch(InterruptedException e) {
+			Logger.debug(Channel.class, "Interrupted while removing " + identifier);
+			Thread.currentThread().interrupt();
+		}
+	}
 
-					return true;
+	/**
+	 * Compresses (if requested by {@code insert}) and encrypts {@code message} to a new temporary
+	 * file. The caller is responsible for deleting the file.
+	 */
+	private static File encryptBody(Bucket message, BodyInsert insert) throws IOException {
+		boolean compress = COMPRESSION_DEFLATE.equals(insert.getCompression());
+		File encrypted = File.createTempFile("freemail-fcp", ".body", Freemail.getTempDir());
+		boolean success = false;
+		try {
+			Deflater deflater = compress ? new Deflater(Deflater.BEST_COMPRESSION) : null;
+			OutputStream os = null;
+			try {
+				os = new BufferedOutputStream(new FileOutputStream(encrypted));
+				os = new CipherOutputStream(os, createBodyCipher(true, insert.getKey()));
+				if(compress) {
+					os = new DeflaterOutputStream(os, deflater);
 				}
+				BucketTools.copyTo(message, os, -1);
+			} finally {
+				//Closing the outermost stream finishes the compression and encryption
+				Closer.close(os);
+				if(deflater != null) {
+					deflater.end();
+				}
+			}
+			success = true;
+			return encrypted;
+		} finally {
+			if(!success) {
+				deleteTempFile(encrypted);
+			}
+		}
+	}
 
-				if(fcpMessage.errorcode == FCPPutFailedException.COLLISION) {
-					synchronized(channelProps) {
-						sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
-						String nextSlot = calculateNextSlot(sendSlot);
-						channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
-						channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
-					}
+	/**
+	 * Starts sending a message whose body has been inserted using
+	 * {@link #insertBody(Bucket, BodyInsert, boolean, InsertProgressListener, Executor, BodyCallback)}. This can
+	 * only be used if {@link #canSendPointers()} returns {@code true}. {@code callback} is called
+	 * like for {@link #sendMessages(SortedMap, Completion, SendCallback)}.
+	 * @throws ChannelTimedOutException if the channel has timed out and can't be used for sending
+	 *             messages
+	 */
+	void sendPointer(long messageId, BodyPointer pointer, Completion completion, SendCallback callback)
+			throws ChannelTimedOutException {
+		startSend();
+		boolean started = false;
+		try {
+			checkSendTimeout();
+
+			String header =
+				"messagetype=pointer\r\n"
+				+ "id=" + messageId + "\r\n"
+				+ PointerKeys.URI + "=" + pointer.getURI() + "\r\n"
+				+ PointerKeys.KEY + "=" + pointer.getEncodedKey() + "\r\n"
+				+ (pointer.getCompression() != null ? MessageKeys.COMPRESSION + "=" + pointer.getCompression() + "\r\n" : "")
+				+ "\r\n";
+
+			try {
+				insertMessage(header.getBytes("UTF-8"), Collections.<Bucket>emptyList(), "msg" + messageId, completion,
+						finishSendWith(callback));
+			} catch(IOException e) {
+				//There are no buckets to read from
+				throw new AssertionError("Header only insert threw IOException");
+			}
+			started = true;
+		} finally {
+			if(!started) {
+				finishSend();
+			}
+		}
+	}
+
+	private static PaddedBufferedBlockCipher createBodyCipher(boolean forEncryption, byte[] key) {
+		PaddedBufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+		KeyParameter keyParameter = new KeyParameter(key, 0, 32);
+		cipher.init(forEncryption, new ParametersWithIV(keyParameter, key, 32, 16));
+		return cipher;
+	}
+
+	/**
+	 * Writes the deflate compressed contents of {@code messages}, one after the other, to a new
+	 * temporary file. The caller is responsible for deleting the file. The file name uses the
+	 * same prefix as the other FCP data files so it is cleaned up by the sweeper if it is left
+	 * behind.
+	 */
+	static File compressToTempFile(List<Bucket> messages) throws IOException {
+		File compressed = File.createTempFile("freemail-fcp", ".deflate", Freemail.getTempDir());
+		boolean success = false;
+		OutputStream os = null;
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(compressed));
+			DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(os, deflater);
+			for(Bucket message : messages) {
+				BucketTools.copyTo(message, deflaterOutputStream, message.size());
+			}
+			deflaterOutputStream.finish();
+			success = true;
+		} finally {
+			Closer.close(os);
+			deflater.end();
+			if(!success) {
+				deleteTempFile(compressed);
+			}
+		}
+		return compressed;
+	}
+
+	static void deleteTempFile(File f) {
+		if(f != null && !f.delete()) {
+			Logger.error(Channel.class, "Couldn't delete temporary file " + f);
+		}
+	}
+
+	/**
+	 * Resets the poll interval of this channel to the minimum and makes sure the fetcher runs
+	 * within that time. Should be called when we expect to receive something soon, e.g. after
+	 * sending a message.
+	 */
+	private void onActivity() {
+		long interval = pollInterval.onActivity();
+		storePollInterval(interval);
+
+		if(canFetch()) {
+			fetcher.schedule(interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the other side has told us that it can unpack bundles, i.e. if
+	 * {@link #sendMessages(SortedMap, Completion, SendCallback)} can be used with more than one message.
+	 */
+	boolean canSendBundles() {
+		return hasRemoteFeature(FEATURE_BUNDLE);
+	}
+
+	/**
+	 * Returns {@code true} if the other side can fetch message bodies that were inserted using
+	 * {@link #insertBody(Bucket, BodyInsert, boolean, InsertProgressListener, Executor, BodyCallback)}.
+	 */
+	boolean canSendPointers() {
+		return hasRemoteFeature(FEATURE_POINTER);
+	}
+
+	/**
+	 * Returns {@code true} if the other side included {@code feature} in the feature list of its
+	 * RTS or CTS.
+	 */
+	private boolean hasRemoteFeature(String feature) {
+		String features;
+		synchronized(channelProps) {
+			features = channelProps.get(PropsKeys.REMOTE_FEATURES);
+		}
+		if(features == null) {
+			return false;
+		}
+
+		for(String remoteFeature : features.split(",")) {
+			if(remoteFeature.trim().equals(feature)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Must be called with the lock on channelProps held */
+	private void storeRemoteFeatures(String features) {
+		//Older versions don't send the list, so keep what we have
+		if(features == null) {
+			return;
+		}
+		if(!features.equals(channelProps.get(PropsKeys.REMOTE_FEATURES))) {
+			channelProps.put(PropsKeys.REMOTE_FEATURES, features);
+		}
+	}
+
+	private void storePollInterval(long interval) {
+		String value = Long.toString(interval);
+		synchronized(channelProps) {
+			if(!value.equals(channelProps.get(PropsKeys.FETCH_INTERVAL))) {
+				channelProps.put(PropsKeys.FETCH_INTERVAL, value);
+			}
+		}
+	}
+
+	/**
+	 * Starts inserting the given message to the next available slot.
+	 * @param message the message that should be inserted
+	 * @throws IOException if the getInputStream() method of message throws IOException
+	 * @see #insertMessage(byte[], List, String, Completion, SendCallback)
+	 */
+	private void insertMessage(Bucket message, String prefix, Completion completion, SendCallback callback)
+			throws IOException {
+		insertMessage(new byte[0], Collections.singletonList(message), prefix, completion, callback);
+	}
+
+	/**
+	 * Starts inserting {@code header} followed by the contents of the buckets in {@code body} to
+	 * the next available slot. The data is streamed from the buckets to the node before this
+	 * returns, so the message is never copied into memory and the buckets can be freed as soon as
+	 * this returns. {@code callback} is told whether the message was inserted once the node has
+	 * replied, or right away if the insert couldn't be started. It is not called if this throws.
+	 * @param header the header of the message
+	 * @param body the buckets that make up the rest of the message, in order
+	 * @param completion the job the insert is part of, {@code callback} runs as a step of it
+	 * @throws IOException if the getInputStream() method of one of the buckets throws IOException
+	 */
+	private void insertMessage(byte[] header, List<Bucket> body, final String prefix, Completion completion,
+			final SendCallback callback) throws IOException {
+		long length = header.length;
+		for(Bucket b : body) {
+			length += b.size();
+		}
+
+		String privateKey;
+		String sendCode;
+		synchronized (channelProps) {
+			privateKey = channelProps.get(PropsKeys.PRIVATE_KEY);
+			sendCode = channelProps.get(PropsKeys.SEND_CODE);
+
+			if(privateKey == null) {
+				/* Most likely because we tried sending the message before sending the RTS */
+				Logger.minor(this, "Can't insert, missing private key");
+				callback.sendFinished(false);
+				return;
+			}
+			if(sendCode == null) {
+				/* If we have the private key, but not the send code something
+				 * is wrong since sending/receiving an RTS stores these atomically */
+				/* FIXME: Perhaps set the timeout to 0 so the channel will be deleted? */
+				Logger.error(this, "Can't insert, missing send code but have private key");
+				callback.sendFinished(false);
+				return;
+			}
+		}
+
+		/* First we get the slot for this message if one has been assigned */
+		String sendSlot;
+		synchronized(channelProps) {
+			/* If a slot has been assigned, use it */
+			sendSlot = channelProps.get(prefix + PropsKeys.MSG_SLOT);
+			if(sendSlot == null) {
+				/* If not, assign the next free slot */
+				sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
+				String nextSlot = calculateNextSlot(sendSlot);
+				channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
+				channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+
+				Logger.debug(this, "Assigned slot " + sendSlot + " to message " + prefix);
+			}
+		}
+
+		String insertKey = privateKey + sendCode + "-" + sendSlot;
+
+		InputStream messageStream = openMessage(header, body);
+		try {
+			Logger.minor(this, "Inserting " + length + " bytes of data");
+			Logger.debug(this, "Insert key is " + insertKey);
+			final Timer messageInsert = Timer.start();
+			fcpClient.putAsync(messageStream, length, insertKey, new RequestCallback<String>() {
+				@Override
+				public void requestSucceeded(String uri) {
+					messageInsert.log(Channel.this, 1, TimeUnit.HOURS, "Time spent inserting message");
+					callback.sendFinished(onInsertSucceeded(prefix));
+				}
 
-					Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
+				@Override
+				public void requestFailed(FCPException e) {
+					messageInsert.log(Channel.this, 1, TimeUnit.HOURS, "Time spent inserting message");
+					onInsertFailed(prefix, e);
+					callback.sendFinished(false);
 				}
+			}, completion);
+		} catch(FCPBadFileException e) {
+			Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
+			callback.sendFinished(false);
+		} catch(NoNodeConnectionException e) {
+			Logger.minor(this, "No connection to node, can't insert message");
+			callback.sendFinished(false);
+		} catch(ConnectionTerminatedException e) {
+			/* Expected if Freemail is shutting down */
+			Logger.debug(this, "Caugth " + e);
+			callback.sendFinished(false);
+		} finally {
+			Closer.close(messageStream);
+		}
+	}
 
-				/* TODO: Log at a higher level for more serious errors */
-				Logger.minor(this, "Insert failed, error code " + fcpMessage.errorcode);
+	/**
+	 * Removes the slot of a message that has been inserted, returning {@code true} if the message
+	 * is done.
+	 */
+	private boolean onInsertSucceeded(String prefix) {
+		Logger.minor(this, "Insert successful");
+
+		synchronized (channelProps) {
+			if(!channelProps.remove(prefix + PropsKeys.MSG_SLOT)) {
+				Logger.error(this, "Couldn't remove slot, will try again later");
+
+				/*
+				 * The insert succeeded, but we can't leave the slot in the props file
+				 * since that would break the forward secrecy of the slot system. By
+				 * returning false we will try again later (using the same slot) and
+				 * hopefully we can delete it then.
+				 */
 				return false;
-			} finally {
-				Closer.close(messageStream);
 			}
 		}
+
+		return true;
+	}
+
+	/**
+	 * Removes the slots of the given messages after they have been inserted in a bundle, returning
+	 * {@code true} if they were all removed.
+	 */
+	private boolean removeSlots(Collection<Long> messageIds) {
+		synchronized(channelProps) {
+			for(Long messageId : messageIds) {
+				if(!channelProps.remove("msg" + messageId + PropsKeys.MSG_SLOT)) {
+					//Same as in onInsertSucceeded(), the slot must not be left behind
+					Logger.error(this, "Couldn't remove slot, will try again later");
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void onInsertFailed(String prefix, FCPException e) {
+		if(!(e instanceof FCPPutFailedException)) {
+			//The connection to the node was lost before the insert finished
+			Logger.minor(this, "Lost track of insert: " + e.getMessage());
+			return;
+		}
+
+		if(e.errorcode == FCPPutFailedException.COLLISION) {
+			String sendSlot;
+			synchronized(channelProps) {
+				sendSlot = channelProps.get(PropsKeys.SEND_SLOT);
+				String nextSlot = calculateNextSlot(sendSlot);
+				channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
+				channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+			}
+
+			Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
+		}
+
+		/* TODO: Log at a higher level for more serious errors */
+		Logger.minor(this, "Insert failed, error code " + e.errorcode);
+	}
+
+	private static InputStream openMessage(byte[] header, List<Bucket> body) throws IOException {
+		Vector<InputStream> streams = new Vector<InputStream>();
+		streams.add(new ByteArrayInputStream(header));
+		try {
+			for(Bucket b : body) {
+				streams.add(b.getInputStream());
+			}
+		} catch(IOException e) {
+			for(InputStream is : streams) {
+				Closer.close(is);
+			}
+			throw e;
+		}
+		return new SequenceInputStream(streams.elements());
 	}
 
 	@Override
@@ -570,9 +1458,7 @@ class Channel {
 	}
 
 	String getRemoteIdentity() {
-		synchronized(channelProps) {
-			return channelProps.get(PropsKeys.REMOTE_ID);
-		}
+		return remoteId;
 	}
 
 	String getPrivateKey() {
@@ -601,6 +1487,127 @@ class Channel {
 		}
 	}
 
+	/**
+	 * Returns {@code true} if the only thing left for this channel to do is to poll for messages
+	 * until it times out, i.e. it can't be used for sending, there are no acks waiting to be
+	 * inserted and the CTS has been sent.
+	 */
+	boolean canHibernate() {
+		if(canSendMessages()) {
+			return false;
+		}
+
+		synchronized(channelProps) {
+			if("rts-received".equals(channelProps.get(PropsKeys.RECIPIENT_STATE))) {
+				return false;
+			}
+		}
+
+		synchronized(ackLog) {
+			try {
+				if(ackLog.iterator().hasNext()) {
+					return false;
+				}
+			} catch(IOException e) {
+				Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
+				return false;
+			}
+		}
+
+		if(!inbound.isEmpty()) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops all the tasks of this channel and releases the cached props file, returning
+	 * {@code true} if the channel was hibernated. After this method returns {@code true} the
+	 * channel must not be used again, instead a new instance should be created when it needs to
+	 * run.
+	 */
+	boolean hibernate() {
+		return stop(true);
+	}
+
+	/**
+	 * Stops all the tasks of this channel so that it can be deleted, returning {@code true} if
+	 * the channel was stopped. Unlike {@link #hibernate()} this doesn't wait for acks that haven't
+	 * been inserted, but it will fail if a message is being sent.
+	 */
+	boolean stopForDeletion() {
+		return stop(false);
+	}
+
+	private boolean stop(boolean onlyIfIdle) {
+		synchronized(stopLock) {
+			if(stopped) {
+				return true;
+			}
+			if(activeSends > 0 || (onlyIfIdle && !canHibernate())) {
+				return false;
+			}
+			stopped = true;
+		}
+
+		fetcher.cancel();
+		bodyFetcher.cancel();
+		rtsSender.cancel();
+		ctsInserter.cancel();
+		ackInserter.cancel();
+		deliverer.cancel();
+		PropsFile.evict(new File(channelDir, CHANNEL_PROPS_NAME));
+
+		Logger.debug(this, "Channel stopped");
+		return true;
+	}
+
+	boolean isStopped() {
+		synchronized(stopLock) {
+			return stopped;
+		}
+	}
+
+	/**
+	 * Returns the time when the channel stops fetching and can be deleted, or
+	 * {@code Long.MAX_VALUE} if the RTS hasn't been sent or received yet.
+	 */
+	long getExpiryTime() {
+		String rawTimeout;
+		synchronized(channelProps) {
+			rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
+		}
+		if(rawTimeout == null) {
+			return Long.MAX_VALUE;
+		}
+
+		try {
+			return Long.parseLong(rawTimeout) + CHANNEL_TIMEOUT;
+		} catch(NumberFormatException e) {
+			//Same as in the constructor, assume timed out
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the current poll interval of the channel in milliseconds.
+	 */
+	long getPollInterval() {
+		return pollInterval.get();
+	}
+
+	File getChannelDir() {
+		return channelDir;
+	}
+
+	private void onPrivateKeyAssigned(String privateKey) {
+		ChannelEventCallback callback = channelEventCallback.get();
+		if(callback != null) {
+			callback.onPrivateKeyAssigned(this, privateKey);
+		}
+	}
+
 	private String calculateNextSlot(String slot) {
 		byte[] buf = Base32.decode(slot);
 		SHA256Digest sha256 = new SHA256Digest();
@@ -617,11 +1624,11 @@ class Channel {
 		return Base32.encode(buf);
 	}
 
-	private class Fetcher implements Runnable {
+	private class Fetcher extends ChannelTask {
 		private final AtomicLong lastRun = new AtomicLong();
 
 		@Override
-		public synchronized void run() {
+		protected void run(Completion completion) {
 			long curTime = System.currentTimeMillis();
 			long last = lastRun.getAndSet(curTime);
 			if(last != 0) {
@@ -630,23 +1637,26 @@ class Channel {
 				Logger.debug(this, "Fetcher running (" + this + ")");
 			}
 
-			try {
-				realRun();
-			} catch(RuntimeException e) {
-				Logger.error(this, "Caugth RuntimeException while running fetcher", e);
-				throw e;
-			} catch(Error e) {
-				Logger.error(this, "Caugth Error while running fetcher", e);
-				throw e;
-			} catch (InterruptedException e) {
-				Logger.debug(this, "Fetcher interrupted, quitting");
+			SlotFetch slotFetch = startRun(completion);
+			if(slotFetch == null) {
+				completion.done();
 				return;
 			}
+			slotFetch.fetchNext();
 		}
 
-		private void realRun() throws InterruptedException {
-			synchronized(channelProps) {
-				String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
+		/**
+		 * Returns the fetch of the slots for this run, or {@code null} if nothing should be
+		 * fetched.
+		 */
+		private SlotFetch startRun(Completion completion) {
+			if(isStopped()) {
+				Logger.debug(this, "Channel has been stopped, won't fetch");
+				return null;
+			}
+
+			synchronized(channelProps) {
+				String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
 				long timeout;
 				try {
 					timeout = Long.parseLong(rawTimeout);
@@ -659,7 +1669,7 @@ class Channel {
 				//later than we stop sending. See JavaDoc for CHANNEL_TIMEOUT for details
 				if(timeout < (System.currentTimeMillis() - CHANNEL_TIMEOUT)) {
 					Logger.debug(this, "Channel has timed out, won't fetch");
-					return;
+					return null;
 				}
 			}
 
@@ -670,7 +1680,7 @@ class Channel {
 			if(slots == null) {
 				Logger.error(this, "Channel " + channelDir.getName() + " is corrupt - account file has no '" + PropsKeys.FETCH_SLOT + "' entry!");
 				//TODO: Either delete the channel or resend the RTS
-				return;
+				return null;
 			}
 
 			HashSlotManager slotManager = new HashSlotManager(new ChannelSlotSaveImpl(channelProps, PropsKeys.FETCH_SLOT), null, slots);
@@ -683,7 +1693,7 @@ class Channel {
 			if(basekey == null) {
 				Logger.error(this, "Channel " + channelDir.getName() + " is corrupt - account file has no '" + PropsKeys.PUBLIC_KEY + "' entry!");
 				//TODO: Either delete the channel or resend the RTS
-				return;
+				return null;
 			}
 
 			String fetchCode;
@@ -694,137 +1704,217 @@ class Channel {
 			if(fetchCode == null) {
 				Logger.error(this, "Channel " + channelDir.getName() + " is corrupt - account file has no '" + PropsKeys.FETCH_CODE + "' entry!");
 				//TODO: Either delete the channel or resend the RTS
-				return;
+				return null;
 			}
 			basekey += fetchCode + "-";
 
-			String slot;
-			while((slot = slotManager.getNextSlot()) != null) {
-				String key = basekey + slot;
-
-				Logger.debug(this, "Attempting to fetch mail on key " + key);
-				File result;
-				try {
-					result = fcpClient.fetch(key);
-				} catch(ConnectionTerminatedException e) {
-					Logger.debug(this, "Connection terminated");
-					return;
-				} catch(FCPFetchException e) {
-					if(e.getCode() == FCPFetchException.INVALID_URI) {
-						//Could be a local bug or we could have gotten a bad key in the RTS
-						//TODO: This won't fix itself, so make sure the user notices
-						Logger.error(this, "Fetch failed because the URI was invalid");
-						return;
-					}
-
-					if(e.isFatal()) {
-						Logger.normal(this, "Fatal fetch failure, marking slot as used");
-						slotManager.slotUsed();
-					}
-
-					Logger.minor(this, "No mail in slot (fetch returned " + e.getMessage() + ")");
-					continue;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
-					return;
-				}
-				Logger.debug(this, "Fetch successful");
+			return new SlotFetch(slotManager, basekey, completion);
+		}
 
-				PropsFile messageProps = PropsFile.createPropsFile(result, true);
-				String messageType = messageProps.get("messagetype");
+		/**
+		 * Handles the data fetched from a slot, marking the slot as used if it has been dealt
+		 * with.
+		 */
+		private void handleFetched(File result, HashSlotManager slotManager) {
+			PropsFile messageProps = PropsFile.createPropsFile(result, true);
+			String messageType = messageProps.get("messagetype");
+
+			if(messageType == null) {
+				Logger.error(this, "Got message without messagetype, discarding");
+				slotManager.slotUsed();
+				result.delete();
+				return;
+			}
 
-				if(messageType == null) {
-					Logger.error(this, "Got message without messagetype, discarding");
+			if(messageType.equals("message") || messageType.equals("bundle") || messageType.equals("pointer")) {
+				//Storing the message can take a while, so leave that to the deliverer and
+				//move on to the next slot
+				messageProps.closeReader();
+				PropsFile.evict(result);
+				if(queueDelivery(result)) {
 					slotManager.slotUsed();
-					result.delete();
-					continue;
 				}
+				return;
+			} else if(messageType.equals("cts")) {
+				Logger.minor(this, "Successfully received CTS");
 
-				if(messageType.equals("message")) {
-					if(handleMessage(result)) {
-						slotManager.slotUsed();
-					}
-				} else if(messageType.equals("cts")) {
-					Logger.minor(this, "Successfully received CTS");
-
-					boolean success;
-					synchronized(channelProps) {
-						success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
-					}
+				boolean success;
+				synchronized(channelProps) {
+					success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
+					storeRemoteFeatures(messageProps.get(RTSKeys.FEATURES));
+				}
 
-					if(success) {
-						slotManager.slotUsed();
-					}
-				} else if(messageType.equals("ack")) {
-					if(handleAck(result)) {
-						slotManager.slotUsed();
-					}
-				} else {
-					Logger.error(this, "Got message of unknown type: " + messageType);
+				if(success) {
 					slotManager.slotUsed();
 				}
-
-				if(!result.delete()) {
-					Logger.error(this, "Deletion of " + result + " failed");
+			} else if(messageType.equals("ack")) {
+				if(handleAck(result)) {
+					slotManager.slotUsed();
 				}
+			} else {
+				Logger.error(this, "Got message of unknown type: " + messageType);
+				slotManager.slotUsed();
 			}
 
-			//Reschedule
-			schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-		}
-
-		public void execute() {
-			Logger.debug(this, "Scheduling Fetcher for execution");
-			try {
-				executor.execute(fetcher);
-			} catch(RejectedExecutionException e) {
-				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
+			if(!result.delete()) {
+				Logger.error(this, "Deletion of " + result + " failed");
 			}
 		}
 
-		public void schedule(long delay, TimeUnit unit) {
-			Logger.debug(this, "Scheduling Fetcher for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
-			try {
-				executor.schedule(fetcher, delay, unit);
-			} catch(RejectedExecutionException e) {
-				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
+		private void finishRun(boolean fetchedSomething, Completion completion) {
+			//Reschedule, polling more often if the contact is active
+			long interval = fetchedSomething ? pollInterval.onActivity() : pollInterval.onIdle();
+			storePollInterval(interval);
+
+			//If we are only waiting for the channel to time out there is no need to keep it
+			//in memory until the next poll
+			if(!fetchedSomething && canHibernate()) {
+				ChannelEventCallback callback = channelEventCallback.get();
+				if(callback != null && callback.onIdle(Channel.this, interval)) {
+					completion.done();
+					return;
+				}
 			}
+
+			schedule(interval, TimeUnit.MILLISECONDS);
+			completion.done();
 		}
 
 		@Override
 		public String toString() {
 			return "Fetcher [" + channelDir + "]";
 		}
+
+		/**
+		 * Fetches the slots of a single run, one after the other. Each fetch is started from the
+		 * callback of the previous one, so the run doesn't hold a thread while the node works.
+		 */
+		private class SlotFetch implements RequestCallback<File> {
+			private final HashSlotManager slotManager;
+			private final String basekey;
+			private final Completion completion;
+			private boolean fetchedSomething = false;
+
+			private SlotFetch(HashSlotManager slotManager, String basekey, Completion completion) {
+				this.slotManager = slotManager;
+				this.basekey = basekey;
+				this.completion = completion;
+			}
+
+			private void fetchNext() {
+				if(isStopped()) {
+					Logger.debug(this, "Channel has been stopped, won't fetch");
+					completion.done();
+					return;
+				}
+
+				String slot = slotManager.getNextSlot();
+				if(slot == null) {
+					finishRun(fetchedSomething, completion);
+					return;
+				}
+
+				String key = basekey + slot;
+				Logger.debug(this, "Attempting to fetch mail on key " + key);
+				try {
+					fcpClient.fetchAsync(key, -1, this, completion);
+				} catch(NoNodeConnectionException e) {
+					Logger.minor(this, "No connection to node, will fetch again later");
+					schedule(pollInterval.get(), TimeUnit.MILLISECONDS);
+					completion.done();
+				} catch(ConnectionTerminatedException e) {
+					Logger.debug(this, "Connection terminated");
+					completion.done();
+				}
+			}
+
+			@Override
+			public void requestSucceeded(File result) {
+				Logger.debug(this, "Fetch successful");
+				fetchedSomething = true;
+
+				handleFetched(result, slotManager);
+				fetchNext();
+			}
+
+			@Override
+			public void requestFailed(FCPException e) {
+				if(!(e instanceof FCPFetchException)) {
+					Logger.minor(this, "Lost connection to node while fetching, will fetch again later: " + e.getMessage());
+					schedule(pollInterval.get(), TimeUnit.MILLISECONDS);
+					completion.done();
+					return;
+				}
+
+				FCPFetchException fe = (FCPFetchException)e;
+				if(fe.getCode() == FCPFetchException.INVALID_URI) {
+					//Could be a local bug or we could have gotten a bad key in the RTS
+					//TODO: This won't fix itself, so make sure the user notices
+					Logger.error(this, "Fetch failed because the URI was invalid");
+					completion.done();
+					return;
+				}
+
+				if(fe.isFatal()) {
+					Logger.normal(this, "Fatal fetch failure, marking slot as used");
+					slotManager.slotUsed();
+				}
+
+				Logger.minor(this, "No mail in slot (fetch returned " + fe.getMessage() + ")");
+				fetchNext();
+			}
+
+			@Override
+			public String toString() {
+				return Fetcher.this.toString();
+			}
+		}
 	}
 
-	private class RTSSender implements Runnable {
+	private class RTSSender extends ChannelTask {
+		private final RetryPolicy retry = newTaskRetry();
+
 		@Override
-		public synchronized void run() {
+		protected void run(Completion completion) {
 			Logger.debug(this, "RTSSender running (" + this + ")");
+			sendRTS(completion, null);
+		}
 
+		/**
+		 * Runs the sender until it has to wait for the node. {@code fetchedMailsite} is the
+		 * mailsite of the recipient if an earlier step of this run fetched it.
+		 */
+		private void sendRTS(Completion completion, MailsiteCache.Entry fetchedMailsite) {
+			boolean waiting = false;
 			try {
-				realRun();
-			} catch(RuntimeException e) {
-				Logger.error(this, "Caugth RuntimeException while running RTSSender", e);
-				throw e;
-			} catch(Error e) {
-				Logger.error(this, "Caugth Error while running RTSSender", e);
-				throw e;
+				waiting = realRun(completion, fetchedMailsite);
 			} catch (InterruptedException e) {
 				Logger.debug(this, "RTSSender interrupted, quitting");
+			} finally {
+				if(!waiting) {
+					completion.done();
+				}
 			}
 		}
 
-		private void realRun() throws InterruptedException {
+		/**
+		 * Returns {@code true} if the run continues in a later step that will complete it.
+		 */
+		private boolean realRun(Completion completion, MailsiteCache.Entry fetchedMailsite) throws InterruptedException {
+			if(isStopped()) {
+				Logger.debug(this, "Channel has been stopped, won't send RTS");
+				return false;
+			}
+
 			//Check when the RTS should be sent
 			long sendRtsIn = sendRTSIn();
 			if(sendRtsIn < 0) {
-				return;
+				return false;
 			}
 			if(sendRtsIn > 0) {
 				Logger.debug(this, "Rescheduling RTSSender in " + sendRtsIn + " ms when the RTS is due to be inserted");
 				schedule(sendRtsIn, TimeUnit.MILLISECONDS);
-				return;
+				return false;
 			}
 
 			//Get or generate RTS values
@@ -840,13 +1930,12 @@ class Channel {
 				responderSlot = channelProps.get(PropsKeys.FETCH_SLOT);
 
 				if((privateKey == null) || (publicKey == null)) {
-					SSKKeyPair keyPair;
-					try {
-						Logger.debug(this, "Making new key pair");
-						keyPair = fcpClient.makeSSK();
-					} catch(ConnectionTerminatedException e) {
-						Logger.debug(this, "FCP connection has been terminated");
-						return;
+					//Key pairs are generated by the pool, so we never wait for the node here.
+					//Taking from an empty pool starts refilling it
+					SSKKeyPair keyPair = freemail.getKeyPairPool().take();
+					if(keyPair == null) {
+						retryLater("Key pair pool is empty");
+						return false;
 					}
 					privateKey = keyPair.privkey;
 					publicKey = keyPair.pubkey;
@@ -876,21 +1965,21 @@ class Channel {
 				channelProps.put(PropsKeys.FETCH_CODE, "r");
 				channelProps.put(PropsKeys.TIMEOUT, "" + timeout);
 			}
+			onPrivateKeyAssigned(privateKey);
 
 			//Check the timeout. If the channel is already in
 			//read-only mode there is no need to resend the RTS
 			if(timeout < System.currentTimeMillis()) {
 				Logger.debug(this, "Channel in read-only mode, won't resend RTS");
-				return;
+				return false;
 			}
 
 			//Get mailsite key from WoT
 			WoTConnection wotConnection = freemail.getWotConnection();
 			if(wotConnection == null) {
 				//WoT isn't loaded, so try again later
-				Logger.debug(this, "WoT not loaded, trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
+				retryLater("WoT not loaded");
+				return false;
 			}
 
 			String remoteId;
@@ -900,7 +1989,7 @@ class Channel {
 			if(remoteId == null) {
 				/* FIXME: Make sure the channel is deleted, e.g. by setting TIMEOUT to 0 */
 				Logger.error(this, "Missing remote identity");
-				return;
+				return false;
 			}
 
 			String senderId = account.getIdentity();
@@ -913,9 +2002,8 @@ class Channel {
 				recipient = null;
 			}
 			if(recipient == null) {
-				Logger.debug(this, "Didn't get identity from WoT, trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
+				retryLater("Didn't get identity from WoT");
+				return false;
 			}
 
 			//Get the mailsite edition
@@ -941,31 +2029,21 @@ class Channel {
 			mailsiteKey = mailsiteKey.substring(0, mailsiteKey.indexOf("/"));
 			mailsiteKey = mailsiteKey + "/mailsite/-" + mailisteEdition + "/mailpage";
 
-			//Fetch the mailsite
-			File mailsite;
-			try {
-				Logger.debug(this, "Fetching mailsite from " + mailsiteKey);
-				mailsite = fcpClient.fetch(mailsiteKey);
-			} catch(ConnectionTerminatedException e) {
-				Logger.debug(this, "FCP connection has been terminated");
-				return;
-			} catch(FCPFetchException e) {
-				Logger.debug(this, "Mailsite fetch failed (" + e + "), trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
-			} catch (FCPException e) {
-				Logger.error(this, "Unexpected error while fetching mailsite: " + e.getMessage());
-				return;
+			//Use the cached mailsite unless WoT knows about a newer edition
+			MailsiteCache mailsiteCache = freemail.getMailsiteCache();
+			String recipientId = MailsiteCache.getIdentityId(mailsiteKey);
+			MailsiteCache.Entry mailsite = mailsiteCache.get(recipientId, mailisteEdition);
+			if(mailsite == null) {
+				mailsite = fetchedMailsite;
 			}
-
-			//Get RTS KSK
-			PropsFile mailsiteProps = PropsFile.createPropsFile(mailsite, false);
-			String rtsKey = mailsiteProps.get("rtsksk");
-			if(rtsKey == null) {
-				Logger.error(this, "Mailsite is missing RTS KSK");
-				schedule(1, TimeUnit.HOURS);
-				return;
+			if(mailsite == null) {
+				//Continue once the mailsite has been fetched
+				fetchMailsite(mailsiteKey, recipientId, mailisteEdition, completion);
+				return true;
+			} else {
+				Logger.debug(this, "Using cached mailsite of " + recipientId);
 			}
+			String rtsKey = mailsite.getRtsKsk();
 
 			//Get the senders mailsite key
 			Logger.debug(this, "Getting sender identity from WoT");
@@ -977,9 +2055,8 @@ class Channel {
 				senderIdentity = null;
 			}
 			if(senderIdentity == null) {
-				Logger.debug(this, "Didn't get identity from WoT, trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
+				retryLater("Didn't get identity from WoT");
+				return false;
 			}
 
 			int senderMailsiteEdition;
@@ -1006,52 +2083,101 @@ class Channel {
 			//Now build the RTS
 			byte[] rtsMessageBytes = buildRTSMessage(senderMailsiteKey, recipient.getIdentityID(), privateKey, initiatorSlot, responderSlot, timeout);
 			if(rtsMessageBytes == null) {
-				return;
+				return false;
 			}
 
 			//Sign the message
 			byte[] signedMessage = signRtsMessage(rtsMessageBytes);
 			if(signedMessage == null) {
-				return;
+				return false;
 			}
 
 			//Encrypt the message using the recipients public key
-			String keyModulus = mailsiteProps.get("asymkey.modulus");
-			if(keyModulus == null) {
-				Logger.error(this, "Mailsite is missing public key modulus");
-				schedule(1, TimeUnit.HOURS);
-				return;
+			byte[] rtsMessage = encryptMessage(signedMessage, mailsite.getModulus(), mailsite.getExponent());
+			if(rtsMessage == null) {
+				return false;
 			}
 
-			String keyExponent = mailsiteProps.get("asymkey.pubexponent");
-			if(keyExponent == null) {
-				Logger.error(this, "Mailsite is missing public key exponent");
-				schedule(1, TimeUnit.HOURS);
-				return;
-			}
+			//Insert
+			String key = "KSK@" + rtsKey + "-" + DateStringFactory.getKeyString();
+			insertRTS(rtsMessage, key, 1, completion);
+			return true;
+		}
 
-			byte[] rtsMessage = encryptMessage(signedMessage, keyModulus, keyExponent);
+		private void fetchMailsite(String mailsiteKey, final String recipientId, final int edition,
+				final Completion completion) {
+			Logger.debug(this, "Fetching mailsite from " + mailsiteKey);
+			try {
+				fcpClient.fetchAsync(mailsiteKey, -1, new RequestCallback<File>() {
+					@Override
+					public void requestSucceeded(File mailsiteFile) {
+						MailsiteCache.Entry mailsite = freemail.getMailsiteCache().store(recipientId, edition, mailsiteFile);
+						if(!mailsiteFile.delete()) {
+							Logger.error(this, "Couldn't delete " + mailsiteFile);
+						}
+						if(mailsite == null) {
+							schedule(1, TimeUnit.HOURS);
+							completion.done();
+							return;
+						}
+						sendRTS(completion, mailsite);
+					}
 
-			//Clean up the fetched mailsite
-			mailsiteProps = null;
-			if(!mailsite.delete()) {
-				Logger.error(this, "Couldn't delete " + mailsite);
+					@Override
+					public void requestFailed(FCPException e) {
+						retryLater("Mailsite fetch failed (" + e + ")");
+						completion.done();
+					}
+				}, completion);
+			} catch(NoNodeConnectionException e) {
+				retryLater("No connection to node");
+				completion.done();
+			} catch(ConnectionTerminatedException e) {
+				Logger.debug(this, "FCP connection has been terminated");
+				completion.done();
 			}
+		}
 
-			//Insert
-			int slot;
+		/**
+		 * Inserts the RTS to the first free slot from {@code slot} and up, moving on to the next
+		 * slot when the insert collides.
+		 */
+		private void insertRTS(final byte[] rtsMessage, final String baseKey, final int slot, final Completion completion) {
+			String key = baseKey + "-" + slot;
+			Logger.debug(this, "Inserting RTS to " + key);
 			try {
-				String key = "KSK@" + rtsKey + "-" + DateStringFactory.getKeyString();
-				Logger.debug(this, "Inserting RTS to " + key);
-				slot = fcpClient.slotInsert(rtsMessage, key, 1, "");
+				fcpClient.putAsync(new ByteArrayInputStream(rtsMessage), rtsMessage.length, key, new RequestCallback<String>() {
+					@Override
+					public void requestSucceeded(String uri) {
+						onRTSInserted();
+						completion.done();
+					}
+
+					@Override
+					public void requestFailed(FCPException e) {
+						if(e instanceof FCPPutFailedException && e.errorcode == FCPPutFailedException.COLLISION) {
+							Logger.debug(this, "RTS insert collided, trying slot " + (slot + 1));
+							insertRTS(rtsMessage, baseKey, slot + 1, completion);
+							return;
+						}
+
+						retryLater("Slot insert failed (" + e + ")");
+						completion.done();
+					}
+				}, completion);
+			} catch(NoNodeConnectionException e) {
+				retryLater("No connection to node");
+				completion.done();
 			} catch(ConnectionTerminatedException e) {
-				return;
-			}
-			if(slot < 0) {
-				Logger.debug(this, "Slot insert failed, trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
+				completion.done();
+			} catch(FCPBadFileException e) {
+				//Reading from a byte array doesn't fail
+				throw new AssertionError("Insert from byte array threw FCPBadFileException");
 			}
+		}
+
+		private void onRTSInserted() {
+			retry.reset();
 
 			//Update channel props file
 			synchronized(channelProps) {
@@ -1067,32 +2193,22 @@ class Channel {
 				return;
 			}
 			Logger.debug(this, "Rescheduling RTSSender to run in " + delay + " ms when the reinsert is due");
-			try {
-				schedule(delay, TimeUnit.MILLISECONDS);
-			} catch(RejectedExecutionException e) {
-				Logger.debug(this, "Caugth RejectedExecutionException while scheduling RTSSender");
-			}
+			schedule(delay, TimeUnit.MILLISECONDS);
 
-			//Start the fetcher now that we have keys, slots etc.
+			//Start the fetcher now that we have keys, slots etc. Since we expect a CTS soon we
+			//start polling at the minimum interval
+			storePollInterval(pollInterval.onActivity());
 			fetcher.execute();
 		}
 
-		public void execute() {
-			Logger.debug(this, "Scheduling RTSSender for execution");
-			try {
-				executor.execute(this);
-			} catch(RejectedExecutionException e) {
-				Logger.debug(this, "Caugth RejectedExecutionException while scheduling RTSSender");
-			}
-		}
-
-		public void schedule(long delay, TimeUnit unit) {
-			Logger.debug(this, "Scheduling RTSSender for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
-			try {
-				executor.schedule(this, delay, unit);
-			} catch(RejectedExecutionException e) {
-				Logger.debug(this, "Caugth RejectedExecutionException while scheduling RTSSender");
-			}
+		/**
+		 * Schedules another attempt after a transient failure, backing off if the previous
+		 * attempts failed too.
+		 */
+		private void retryLater(String reason) {
+			long delay = retry.nextDelay();
+			Logger.debug(this, reason + ", trying again in " + delay + " ms");
+			schedule(delay, TimeUnit.MILLISECONDS);
 		}
 
 		/**
@@ -1112,164 +2228,767 @@ class Channel {
 				Logger.debug(this, "Won't send RTS, CTS has been received");
 				return -1;
 			}
-			if((recipientState != null) && (recipientState.equals("rts-received") || recipientState.equals("cts-sent"))) {
-				//We've received an RTS from the other side
-				Logger.debug(this, "Won't send RTS, RTS has been received from other side");
-				return -1;
+			if((recipientState != null) && (recipientState.equals("rts-received") || recipientState.equals("cts-sent"))) {
+				//We've received an RTS from the other side
+				Logger.debug(this, "Won't send RTS, RTS has been received from other side");
+				return -1;
+			}
+
+			//Check when the RTS should be (re)sent
+			String rtsSentAt;
+			synchronized(channelProps) {
+				rtsSentAt = channelProps.get(PropsKeys.RTS_SENT_AT);
+			}
+
+			if(rtsSentAt != null) {
+				long sendTime;
+				try {
+					sendTime = Long.parseLong(rtsSentAt);
+				} catch(NumberFormatException e) {
+					Logger.error(this, "Illegal value in " + PropsKeys.RTS_SENT_AT + " field (" + rtsSentAt + "), assuming 0");
+					sendTime = 0;
+				}
+
+				long timeToResend = (24 * 60 * 60 * 1000) - (System.currentTimeMillis() - sendTime);
+				if(timeToResend > 0) {
+					return timeToResend;
+				}
+			}
+
+			//Send the RTS immediately
+			return 0;
+		}
+
+		private byte[] buildRTSMessage(String senderMailsiteKey, String recipientIdentityID, String channelPrivateKey, String initiatorSlot, String responderSlot, long timeout) {
+			assert (FreenetURI.checkUSK(senderMailsiteKey)) : "Malformed sender mailsite: " + senderMailsiteKey;
+			assert (recipientIdentityID != null);
+			assert (channelPrivateKey.matches("^SSK@\\S{42,44},\\S{42,44},\\S{7}/$")) : "Malformed channel key: " + channelPrivateKey;
+			assert (initiatorSlot != null);
+			assert (responderSlot != null);
+
+			//Allow sending the RTS 1 day into the read-only period. This shouldn't happen, but
+			//shouldn't cause any problems either so allow plenty of time to avoid false positives
+			if(System.currentTimeMillis() > (timeout + (24 * 60 * 60 * 1000))) {
+				Logger.warning(this, "Building RTS when channel is past final timeout ("
+						+ "read only=" + timeout
+						+ ", final timeout=" + (timeout + CHANNEL_TIMEOUT)
+						+ ", current time=" + System.currentTimeMillis() + ")");
+			}
+
+			StringBuffer rtsMessage = new StringBuffer();
+			rtsMessage.append(RTSKeys.MAILSITE + "=" + senderMailsiteKey + "\r\n");
+			rtsMessage.append(RTSKeys.TO + "=" + recipientIdentityID + "\r\n");
+			rtsMessage.append(RTSKeys.CHANNEL + "=" + channelPrivateKey + "\r\n");
+			rtsMessage.append(RTSKeys.INITIATOR_SLOT + "=" + initiatorSlot + "\r\n");
+			rtsMessage.append(RTSKeys.RESPONDER_SLOT + "=" + responderSlot + "\r\n");
+			rtsMessage.append(RTSKeys.TIMEOUT + "=" + timeout + "\r\n");
+			rtsMessage.append(RTSKeys.FEATURES + "=" + LOCAL_FEATURES + "\r\n");
+			rtsMessage.append("\r\n");
+
+			byte[] rtsMessageBytes;
+			try {
+				rtsMessageBytes = rtsMessage.toString().getBytes("UTF-8");
+			} catch(UnsupportedEncodingException e) {
+				Logger.error(this, "JVM doesn't support UTF-8 charset", e);
+				return null;
+			}
+
+			return rtsMessageBytes;
+		}
+
+		private byte[] signRtsMessage(byte[] rtsMessageBytes) {
+			SHA256Digest sha256 = new SHA256Digest();
+			sha256.update(rtsMessageBytes, 0, rtsMessageBytes.length);
+			byte[] hash = new byte[sha256.getDigestSize()];
+			sha256.doFinal(hash, 0);
+
+			RSAKeyParameters ourPrivateKey = account.getPrivateKey();
+
+			AsymmetricBlockCipher signatureCipher = new RSAEngine();
+			signatureCipher.init(true, ourPrivateKey);
+			byte[] signature = null;
+			try {
+				signature = signatureCipher.processBlock(hash, 0, hash.length);
+			} catch(InvalidCipherTextException e) {
+				Logger.error(this, "Failed to RSA encrypt hash: " + e.getMessage(), e);
+				return null;
+			}
+
+			byte[] signedMessage = new byte[rtsMessageBytes.length + signature.length];
+			System.arraycopy(rtsMessageBytes, 0, signedMessage, 0, rtsMessageBytes.length);
+			System.arraycopy(signature, 0, signedMessage, rtsMessageBytes.length, signature.length);
+
+			return signedMessage;
+		}
+
+		private byte[] encryptMessage(byte[] signedMessage, String keyModulus, String keyExponent) {
+			//Make a new symmetric key for the message
+			byte[] aesKeyAndIV = new byte[32 + 16];
+			Freemail.getRNG().nextBytes(aesKeyAndIV);
+
+			//Encrypt the message with the new symmetric key
+			PaddedBufferedBlockCipher aesCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+			KeyParameter aesKeyParameters = new KeyParameter(aesKeyAndIV, 16, 32);
+			ParametersWithIV aesParameters = new ParametersWithIV(aesKeyParameters, aesKeyAndIV, 0, 16);
+			aesCipher.init(true, aesParameters);
+
+			byte[] encryptedMessage = new byte[aesCipher.getOutputSize(signedMessage.length)];
+			int offset = aesCipher.processBytes(signedMessage, 0, signedMessage.length, encryptedMessage, 0);
+
+			try {
+				aesCipher.doFinal(encryptedMessage, offset);
+			} catch(InvalidCipherTextException e) {
+				Logger.error(this, "Failed to perform symmetric encryption on RTS data: " + e.getMessage(), e);
+				return null;
+			}
+
+			RSAKeyParameters recipientPublicKey = new RSAKeyParameters(false, new BigInteger(keyModulus, 32), new BigInteger(keyExponent, 32));
+			AsymmetricBlockCipher keyCipher = new RSAEngine();
+			keyCipher.init(true, recipientPublicKey);
+			byte[] encryptedAesParameters = null;
+			try {
+				encryptedAesParameters = keyCipher.processBlock(aesKeyAndIV, 0, aesKeyAndIV.length);
+			} catch(InvalidCipherTextException e) {
+				Logger.error(this, "Failed to perform asymmetric encryption on RTS symmetric key: " + e.getMessage(), e);
+				return null;
+			}
+
+			//Assemble the final message
+			byte[] rtsMessage = new byte[encryptedAesParameters.length + encryptedMessage.length];
+			System.arraycopy(encryptedAesParameters, 0, rtsMessage, 0, encryptedAesParameters.length);
+			System.arraycopy(encryptedMessage, 0, rtsMessage, encryptedAesParameters.length, encryptedMessage.length);
+
+			return rtsMessage;
+		}
+
+		@Override
+		public String toString() {
+			return "RTSSender [" + channelDir + "]";
+		}
+	}
+
+	/**
+	 * Moves a fetched message into the inbound directory and starts the deliverer, returning
+	 * {@code true} if the slot can be marked as used. If the message can't be moved it is
+	 * delivered right away instead.
+	 */
+	private boolean queueDelivery(File result) {
+		long number;
+		synchronized(channelProps) {
+			try {
+				number = Long.parseLong(channelProps.get(PropsKeys.NEXT_INBOUND_NUMBER));
+			} catch(NumberFormatException e) {
+				number = 0;
+			}
+			if(!channelProps.put(PropsKeys.NEXT_INBOUND_NUMBER, Long.toString(number + 1))) {
+				//Fetch it again next time
+				result.delete();
+				return false;
+			}
+		}
+
+		if(!inbound.add(result, number)) {
+			Logger.error(this, "Couldn't queue " + result + ", delivering directly");
+			return deliverNow(result);
+		}
+
+		deliverer.schedule(0);
+		return true;
+	}
+
+	private boolean deliverNow(File result) {
+		try {
+			return deliver(result);
+		} finally {
+			if(!result.delete()) {
+				Logger.error(this, "Deletion of " + result + " failed");
+			}
+		}
+	}
+
+	/**
+	 * Handles a fetched message, bundle or pointer, returning {@code true} if it was delivered
+	 * or can be discarded, and {@code false} if it should be tried again later.
+	 */
+	private boolean deliver(File message) {
+		PropsFile messageProps = PropsFile.createPropsFile(message, true);
+		String messageType = messageProps.get("messagetype");
+		try {
+			if("message".equals(messageType)) {
+				return handleMessage(message);
+			} else if("bundle".equals(messageType)) {
+				return handleBundle(message);
+			} else if("pointer".equals(messageType)) {
+				return handlePointer(message);
+			}
+
+			Logger.error(this, "Got message of unknown type: " + messageType);
+			messageProps.closeReader();
+			return true;
+		} finally {
+			PropsFile.evict(message);
+		}
+	}
+
+	/**
+	 * Delivers the messages that the fetcher has put in the inbound directory, i.e. adds them to
+	 * the ack log, stores them and schedules the ack. The deliverers of all the channels share a
+	 * small pool of threads, so the fetchers never wait for the disk. Pointers are skipped until
+	 * the {@link BodyFetcher} has fetched their bodies. A message that can't be delivered is tried
+	 * again later, and discarded after {@link #MAX_DELIVERY_ATTEMPTS} tries.
+	 */
+	private class Deliverer implements Runnable {
+		/* The next scheduled run and when it will happen, if any */
+		private final Object scheduleLock = new Object();
+		private Future<?> nextRun = null;
+		private long nextRunAt = 0;
+
+		private final RetryPolicy retryPolicy = newTaskRetry();
+
+		@Override
+		public synchronized void run() {
+			synchronized(scheduleLock) {
+				nextRun = null;
+			}
+
+			Logger.debug(this, "Deliverer for " + Channel.this.toString() + " running");
+
+			boolean retry = false;
+			boolean waitingForBodies = false;
+			for(File message : inbound.list()) {
+				if(isStopped()) {
+					Logger.debug(this, "Channel has been stopped, quitting");
+					return;
+				}
+
+				if(isPointer(message) && !inbound.getBodyFile(message).exists()) {
+					//The body fetcher runs the deliverer again when it has the body
+					waitingForBodies = true;
+					continue;
+				}
+
+				if(deliver(message)) {
+					inbound.remove(message);
+					continue;
+				}
+
+				if(inbound.retry(message)) {
+					retry = true;
+				}
+			}
+
+			if(waitingForBodies) {
+				bodyFetcher.execute();
+			}
+
+			if(retry) {
+				schedule(retryPolicy.nextDelay());
+			} else {
+				retryPolicy.reset();
+			}
+		}
+
+		private void schedule(long delay) {
+			long runAt = System.currentTimeMillis() + delay;
+			synchronized(scheduleLock) {
+				if(nextRun != null && !nextRun.isDone()) {
+					if(nextRunAt <= runAt) {
+						return;
+					}
+					nextRun.cancel(false);
+				}
+
+				try {
+					ScheduledExecutorService executor = freemail.getExecutor(TaskType.DELIVERY);
+					nextRun = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+					nextRunAt = runAt;
+				} catch(RejectedExecutionException e) {
+					Logger.debug(this, "Caugth RejectedExecutionException while scheduling Deliverer");
+				}
+			}
+		}
+
+		private void cancel() {
+			synchronized(scheduleLock) {
+				if(nextRun != null) {
+					nextRun.cancel(false);
+					nextRun = null;
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Deliverer [" + channelDir + "]";
+		}
+	}
+
+	/**
+	 * Fetches the bodies of the pointers in the inbound directory and runs the deliverer once it
+	 * has them. The bodies are fetched one at a time by a job on the transport scheduler, like the
+	 * other requests of the channel, so large bodies don't hold up the deliverers. A body that
+	 * can't be fetched counts as a failed attempt at delivering the pointer.
+	 */
+	private class BodyFetcher extends ChannelTask {
+		private final RetryPolicy retryPolicy = newTaskRetry();
+
+		@Override
+		protected void run(Completion completion) {
+			Logger.debug(this, "BodyFetcher for " + Channel.this.toString() + " running");
+
+			List<File> pointers = new ArrayList<File>();
+			for(File message : inbound.list()) {
+				if(isPointer(message) && !inbound.getBodyFile(message).exists()) {
+					pointers.add(message);
+				}
+			}
+			new PointerFetch(pointers.iterator(), completion).fetchNext();
+		}
+
+		@Override
+		public String toString() {
+			return "BodyFetcher [" + channelDir + "]";
+		}
+
+		/**
+		 * Fetches the bodies of a single run, each fetch started from the callback of the
+		 * previous one.
+		 */
+		private class PointerFetch implements RequestCallback<File> {
+			private final Iterator<File> pointers;
+			private final Completion completion;
+			private File current = null;
+			private boolean retry = false;
+
+			private PointerFetch(Iterator<File> pointers, Completion completion) {
+				this.pointers = pointers;
+				this.completion = completion;
+			}
+
+			private void fetchNext() {
+				if(isStopped()) {
+					Logger.debug(this, "Channel has been stopped, quitting");
+					completion.done();
+					return;
+				}
+
+				while(pointers.hasNext()) {
+					File message = pointers.next();
+					PropsFile props = PropsFile.createPropsFile(message, true);
+					props.closeReader();
+					BodyPointer pointer = parsePointer(props);
+					PropsFile.evict(message);
+					if(pointer == null) {
+						inbound.remove(message);
+						continue;
+					}
+
+					current = message;
+					Logger.debug(this, "Fetching message body from " + pointer.getURI());
+					try {
+						fcpClient.fetchAsync(pointer.getURI(), MAX_BODY_SIZE, this, completion);
+					} catch(NoNodeConnectionException e) {
+						Logger.minor(this, "No connection to node, will fetch message bodies later");
+						finish(true);
+					} catch(ConnectionTerminatedException e) {
+						Logger.debug(this, "Connection terminated");
+						completion.done();
+					}
+					return;
+				}
+
+				finish(retry);
+			}
+
+			private void finish(boolean retryLater) {
+				if(retryLater) {
+					schedule(retryPolicy.nextDelay(), TimeUnit.MILLISECONDS);
+				} else {
+					retryPolicy.reset();
+				}
+				completion.done();
+			}
+
+			@Override
+			public void requestSucceeded(File body) {
+				try {
+					inbound.storeBody(current, body);
+					deliverer.schedule(0);
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while storing message body: " + e.getMessage(), e);
+					retry |= inbound.retry(current);
+				}
+				fetchNext();
+			}
+
+			@Override
+			public void requestFailed(FCPException e) {
+				if(!(e instanceof FCPFetchException)) {
+					Logger.minor(this, "Lost connection to node while fetching message body: " + e.getMessage());
+					finish(true);
+					return;
+				}
+
+				FCPFetchException fe = (FCPFetchException)e;
+				if(fe.getCode() == FCPFetchException.TOO_BIG) {
+					Logger.error(this, "Message body is larger than " + MAX_BODY_SIZE + " bytes. Discarding.");
+					inbound.remove(current);
+				} else if(fe.isFatal()) {
+					Logger.error(this, "Fatal failure while fetching message body (" + fe.getMessage() + "). Discarding.");
+					inbound.remove(current);
+				} else {
+					//Try again after the retry delay, until the pointer runs out of attempts
+					Logger.minor(this, "Couldn't fetch message body: " + fe.getMessage());
+					retry |= inbound.retry(current);
+				}
+				fetchNext();
+			}
+
+			@Override
+			public String toString() {
+				return BodyFetcher.this.toString();
+			}
+		}
+	}
+
+	private boolean handleMessage(File msg) {
+		// parse the Freemail header(s) out.
+		PropsFile msgprops = PropsFile.createPropsFile(msg, true);
+		String s_id = msgprops.get("id");
+		if(s_id == null) {
+			Logger.error(this, "Message is missing id. Discarding.");
+			msgprops.closeReader();
+			return true;
+		}
+
+		long id;
+		try {
+			id = Long.parseLong(s_id);
+		} catch (NumberFormatException nfe) {
+			/* FIXME: Id doesn't have to be an integer */
+			Logger.error(this, "Got a message with an invalid (non-integer) id. Discarding.");
+			msgprops.closeReader();
+			return true;
+		}
+
+		//The body is read from the file as bytes, so the reader is only used to check that the
+		//message has a body at all
+		if(msgprops.getReader() == null) {
+			return handleMessage(id, null);
+		}
+		msgprops.closeReader();
+
+		String compression = msgprops.get(MessageKeys.COMPRESSION);
+		if(compression != null && !compression.equals(COMPRESSION_DEFLATE)) {
+			Logger.error(this, "Got message with unknown compression " + compression + ". Discarding.");
+			return true;
+		}
+
+		InputStream is = null;
+		File inflated = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(msg));
+			readHeader(is);
+			if(compression == null) {
+				return handleMessage(id, is);
+			}
+
+			//Inflate to a temporary file first so that nothing is stored if the message turns
+			//out to be too large
+			inflated = inflateToTempFile(is, MAX_BODY_SIZE);
+			if(inflated == null) {
+				Logger.error(this, "Message is larger than " + MAX_BODY_SIZE + " bytes when inflated. Discarding.");
+				return true;
 			}
 
-			//Check when the RTS should be (re)sent
-			String rtsSentAt;
-			synchronized(channelProps) {
-				rtsSentAt = channelProps.get(PropsKeys.RTS_SENT_AT);
+			InputStream body = new BufferedInputStream(new FileInputStream(inflated));
+			try {
+				return handleMessage(id, body);
+			} finally {
+				Closer.close(body);
 			}
+		} catch(ZipException e) {
+			Logger.error(this, "Couldn't decompress message. Discarding.");
+			return true;
+		} catch(EOFException e) {
+			Logger.error(this, "Compressed message was truncated. Discarding.");
+			return true;
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while reading message: " + e.getMessage(), e);
+			return false;
+		} finally {
+			Closer.close(is);
+			deleteTempFile(inflated);
+		}
+	}
 
-			if(rtsSentAt != null) {
-				long sendTime;
-				try {
-					sendTime = Long.parseLong(rtsSentAt);
-				} catch(NumberFormatException e) {
-					Logger.error(this, "Illegal value in " + PropsKeys.RTS_SENT_AT + " field (" + rtsSentAt + "), assuming 0");
-					sendTime = 0;
-				}
+	/**
+	 * Inflates the deflate compressed data read from {@code is} to a new temporary file. The
+	 * caller is responsible for deleting the file.
+	 * @return the file, or {@code null} if the inflated data is longer than {@code maxLength}
+	 *             bytes
+	 * @throws ZipException if the data is corrupt
+	 */
+	static File inflateToTempFile(InputStream is, long maxLength) throws IOException {
+		return copyToTempFile(new InflaterInputStream(is), maxLength);
+	}
 
-				long timeToResend = (24 * 60 * 60 * 1000) - (System.currentTimeMillis() - sendTime);
-				if(timeToResend > 0) {
-					return timeToResend;
+	/**
+	 * Copies the data read from {@code is} to a new temporary file, stopping as soon as more
+	 * than {@code maxLength} bytes have been read. The caller is responsible for deleting the
+	 * file.
+	 * @return the file, or {@code null} if there were more than {@code maxLength} bytes
+	 */
+	private static File copyToTempFile(InputStream is, long maxLength) throws IOException {
+		File f = File.createTempFile("freemail-fcp", ".body", Freemail.getTempDir());
+		boolean success = false;
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(f));
+
+			byte[] buffer = new byte[4096];
+			long total = 0;
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				total += read;
+				if(total > maxLength) {
+					return null;
 				}
+				os.write(buffer, 0, read);
 			}
+			os.close();
+			os = null;
 
-			//Send the RTS immediately
-			return 0;
+			success = true;
+			return f;
+		} finally {
+			Closer.close(os);
+			if(!success) {
+				deleteTempFile(f);
+			}
 		}
+	}
 
-		private byte[] buildRTSMessage(String senderMailsiteKey, String recipientIdentityID, String channelPrivateKey, String initiatorSlot, String responderSlot, long timeout) {
-			assert (FreenetURI.checkUSK(senderMailsiteKey)) : "Malformed sender mailsite: " + senderMailsiteKey;
-			assert (recipientIdentityID != null);
-			assert (channelPrivateKey.matches("^SSK@\\S{42,44},\\S{42,44},\\S{7}/$")) : "Malformed channel key: " + channelPrivateKey;
-			assert (initiatorSlot != null);
-			assert (responderSlot != null);
+	/**
+	 * Reads the header of a message from {@code is}, leaving the stream at the start of the
+	 * body.
+	 */
+	private static Map<String, String> readHeader(InputStream is) throws IOException {
+		Map<String, String> header = new HashMap<String, String>();
+		String line;
+		while((line = readHeaderLine(is)) != null && line.length() != 0) {
+			String[] parts = line.split("=", 2);
+			if(parts.length == 2) {
+				header.put(parts[0], parts[1]);
+			}
+		}
+		return header;
+	}
 
-			//Allow sending the RTS 1 day into the read-only period. This shouldn't happen, but
-			//shouldn't cause any problems either so allow plenty of time to avoid false positives
-			if(System.currentTimeMillis() > (timeout + (24 * 60 * 60 * 1000))) {
-				Logger.warning(this, "Building RTS when channel is past final timeout ("
-						+ "read only=" + timeout
-						+ ", final timeout=" + (timeout + CHANNEL_TIMEOUT)
-						+ ", current time=" + System.currentTimeMillis() + ")");
+	/**
+	 * Unpacks a bundle and handles each of the messages in it as if it had been received on its
+	 * own, returning {@code true} if the slot can be marked as used. If one of the messages can't
+	 * be handled yet the whole bundle is fetched and processed again later, but the messages that
+	 * were stored are then discarded as duplicates.
+	 */
+	private boolean handleBundle(File bundle) {
+		//The fetcher opened the file to read the message type, but we need the raw bytes
+		PropsFile.createPropsFile(bundle, true).closeReader();
+
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(bundle));
+
+			Map<String, String> header = readHeader(is);
+
+			String compression = header.get(MessageKeys.COMPRESSION);
+			if(compression != null && !compression.equals(COMPRESSION_DEFLATE)) {
+				Logger.error(this, "Got bundle with unknown compression " + compression + ". Discarding.");
+				return true;
 			}
 
-			StringBuffer rtsMessage = new StringBuffer();
-			rtsMessage.append(RTSKeys.MAILSITE + "=" + senderMailsiteKey + "\r\n");
-			rtsMessage.append(RTSKeys.TO + "=" + recipientIdentityID + "\r\n");
-			rtsMessage.append(RTSKeys.CHANNEL + "=" + channelPrivateKey + "\r\n");
-			rtsMessage.append(RTSKeys.INITIATOR_SLOT + "=" + initiatorSlot + "\r\n");
-			rtsMessage.append(RTSKeys.RESPONDER_SLOT + "=" + responderSlot + "\r\n");
-			rtsMessage.append(RTSKeys.TIMEOUT + "=" + timeout + "\r\n");
-			rtsMessage.append("\r\n");
+			String[] ids = header.containsKey(BundleKeys.IDS) ? header.get(BundleKeys.IDS).split(",") : new String[0];
+			String[] lengths = header.containsKey(BundleKeys.LENGTHS) ? header.get(BundleKeys.LENGTHS).split(",") : new String[0];
+			if(ids.length == 0 || ids.length != lengths.length) {
+				Logger.error(this, "Got bundle with malformed id table. Discarding.");
+				return true;
+			}
 
-			byte[] rtsMessageBytes;
+			long[] messageIds = new long[ids.length];
+			int[] messageLengths = new int[ids.length];
+			long total = 0;
 			try {
-				rtsMessageBytes = rtsMessage.toString().getBytes("UTF-8");
-			} catch(UnsupportedEncodingException e) {
-				Logger.error(this, "JVM doesn't support UTF-8 charset", e);
-				return null;
+				for(int i = 0; i < ids.length; i++) {
+					messageIds[i] = Long.parseLong(ids[i]);
+					messageLengths[i] = Integer.parseInt(lengths[i]);
+					if(messageLengths[i] < 0) {
+						throw new NumberFormatException("Negative length " + messageLengths[i]);
+					}
+					total += messageLengths[i];
+				}
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Got bundle with invalid id table (" + e.getMessage() + "). Discarding.");
+				return true;
+			}
+			if(compression == null && total > bundle.length()) {
+				Logger.error(this, "Bundle is shorter than its id table says. Discarding.");
+				return true;
+			}
+			if(compression != null && total > MAX_BUNDLE_SIZE) {
+				//We can't check against the file size, but we don't want to allocate arbitrary
+				//amounts of memory either
+				Logger.error(this, "Compressed bundle is larger than allowed. Discarding.");
+				return true;
 			}
 
-			return rtsMessageBytes;
-		}
-
-		private byte[] signRtsMessage(byte[] rtsMessageBytes) {
-			SHA256Digest sha256 = new SHA256Digest();
-			sha256.update(rtsMessageBytes, 0, rtsMessageBytes.length);
-			byte[] hash = new byte[sha256.getDigestSize()];
-			sha256.doFinal(hash, 0);
+			Logger.minor(this, "Unpacking bundle of " + ids.length + " messages");
 
-			RSAKeyParameters ourPrivateKey = AccountManager.getPrivateKey(account.getProps());
+			boolean handledAll = true;
+			DataInputStream dis = new DataInputStream(compression != null ? new InflaterInputStream(is) : is);
+			for(int i = 0; i < ids.length; i++) {
+				byte[] message = new byte[messageLengths[i]];
+				dis.readFully(message);
 
-			AsymmetricBlockCipher signatureCipher = new RSAEngine();
-			signatureCipher.init(true, ourPrivateKey);
-			byte[] signature = null;
-			try {
-				signature = signatureCipher.processBlock(hash, 0, hash.length);
-			} catch(InvalidCipherTextException e) {
-				Logger.error(this, "Failed to RSA encrypt hash: " + e.getMessage(), e);
-				return null;
+				if(!handleMessage(messageIds[i], new ByteArrayInputStream(message))) {
+					handledAll = false;
+				}
 			}
+			return handledAll;
+		} catch(EOFException e) {
+			Logger.error(this, "Bundle was truncated. Discarding.");
+			return true;
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while reading bundle: " + e.getMessage(), e);
+			return false;
+		} finally {
+			Closer.close(is);
+		}
+	}
 
-			byte[] signedMessage = new byte[rtsMessageBytes.length + signature.length];
-			System.arraycopy(rtsMessageBytes, 0, signedMessage, 0, rtsMessageBytes.length);
-			System.arraycopy(signature, 0, signedMessage, rtsMessageBytes.length, signature.length);
+	/**
+	 * Returns {@code true} if {@code message} is a pointer to a body that is inserted on its own.
+	 */
+	private static boolean isPointer(File message) {
+		PropsFile props = PropsFile.createPropsFile(message, true);
+		try {
+			props.closeReader();
+			return "pointer".equals(props.get("messagetype"));
+		} finally {
+			PropsFile.evict(message);
+		}
+	}
 
-			return signedMessage;
+	/**
+	 * Parses the pointer in {@code props}, returning {@code null} if it is malformed or uses
+	 * an unknown compression.
+	 */
+	private BodyPointer parsePointer(PropsFile props) {
+		BodyPointer pointer = BodyPointer.create(props.get(PointerKeys.URI), props.get(PointerKeys.KEY),
+				props.get(MessageKeys.COMPRESSION));
+		if(pointer == null) {
+			Logger.error(this, "Got malformed pointer. Discarding.");
+			return null;
 		}
+		if(pointer.getCompression() != null && !pointer.getCompression().equals(COMPRESSION_DEFLATE)) {
+			Logger.error(this, "Got pointer with unknown compression " + pointer.getCompression() + ". Discarding.");
+			return null;
+		}
+		return pointer;
+	}
 
-		private byte[] encryptMessage(byte[] signedMessage, String keyModulus, String keyExponent) {
-			//Make a new symmetric key for the message
-			byte[] aesKeyAndIV = new byte[32 + 16];
-			Freemail.getRNG().nextBytes(aesKeyAndIV);
+	/**
+	 * Decrypts the body a pointer message points to, which has been fetched by the
+	 * {@link BodyFetcher}, and handles it like any other message, returning {@code true} if the
+	 * pointer is done with.
+	 */
+	private boolean handlePointer(File result) {
+		PropsFile props = PropsFile.createPropsFile(result, true);
+		props.closeReader();
 
-			//Encrypt the message with the new symmetric key
-			PaddedBufferedBlockCipher aesCipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
-			KeyParameter aesKeyParameters = new KeyParameter(aesKeyAndIV, 16, 32);
-			ParametersWithIV aesParameters = new ParametersWithIV(aesKeyParameters, aesKeyAndIV, 0, 16);
-			aesCipher.init(true, aesParameters);
+		long id;
+		try {
+			id = Long.parseLong(props.get("id"));
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Got pointer with missing or invalid id. Discarding.");
+			return true;
+		}
 
-			byte[] encryptedMessage = new byte[aesCipher.getOutputSize(signedMessage.length)];
-			int offset = aesCipher.processBytes(signedMessage, 0, signedMessage.length, encryptedMessage, 0);
+		BodyPointer pointer = parsePointer(props);
+		if(pointer == null) {
+			return true;
+		}
+
+		File body = inbound.getBodyFile(result);
+		if(body == null || !body.exists()) {
+			//Only happens if the pointer couldn't be queued, so fetch it again next time
+			return false;
+		}
 
+		//Decrypt to a temporary file first so a corrupt or oversized body is noticed before it
+		//is stored
+		File decrypted = null;
+		try {
+			InputStream is = null;
 			try {
-				aesCipher.doFinal(encryptedMessage, offset);
-			} catch(InvalidCipherTextException e) {
-				Logger.error(this, "Failed to perform symmetric encryption on RTS data: " + e.getMessage(), e);
-				return null;
+				is = new CipherInputStream(new BufferedInputStream(new FileInputStream(body)), createBodyCipher(false, pointer.getKey()));
+				if(pointer.getCompression() != null) {
+					decrypted = inflateToTempFile(is, MAX_BODY_SIZE);
+				} else {
+					decrypted = copyToTempFile(is, MAX_BODY_SIZE);
+				}
+			} finally {
+				Closer.close(is);
+			}
+			if(decrypted == null) {
+				Logger.error(this, "Message body is larger than " + MAX_BODY_SIZE + " bytes when inflated. Discarding.");
+				return true;
 			}
 
-			RSAKeyParameters recipientPublicKey = new RSAKeyParameters(false, new BigInteger(keyModulus, 32), new BigInteger(keyExponent, 32));
-			AsymmetricBlockCipher keyCipher = new RSAEngine();
-			keyCipher.init(true, recipientPublicKey);
-			byte[] encryptedAesParameters = null;
+			InputStream decryptedBody = new BufferedInputStream(new FileInputStream(decrypted));
 			try {
-				encryptedAesParameters = keyCipher.processBlock(aesKeyAndIV, 0, aesKeyAndIV.length);
-			} catch(InvalidCipherTextException e) {
-				Logger.error(this, "Failed to perform asymmetric encryption on RTS symmetric key: " + e.getMessage(), e);
-				return null;
+				return handleMessage(id, decryptedBody);
+			} finally {
+				Closer.close(decryptedBody);
 			}
-
-			//Assemble the final message
-			byte[] rtsMessage = new byte[encryptedAesParameters.length + encryptedMessage.length];
-			System.arraycopy(encryptedAesParameters, 0, rtsMessage, 0, encryptedAesParameters.length);
-			System.arraycopy(encryptedMessage, 0, rtsMessage, encryptedAesParameters.length, encryptedMessage.length);
-
-			return rtsMessage;
-		}
-
-		@Override
-		public String toString() {
-			return "RTSSender [" + channelDir + "]";
+		} catch(InvalidCipherTextIOException e) {
+			Logger.error(this, "Couldn't decrypt message body. Discarding.");
+			return true;
+		} catch(ZipException e) {
+			Logger.error(this, "Couldn't decompress message body. Discarding.");
+			return true;
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while reading message body: " + e.getMessage(), e);
+			return false;
+		} finally {
+			deleteTempFile(decrypted);
 		}
 	}
 
-	private boolean handleMessage(File msg) {
-		// parse the Freemail header(s) out.
-		PropsFile msgprops = PropsFile.createPropsFile(msg, true);
-		String s_id = msgprops.get("id");
-		if(s_id == null) {
-			Logger.error(this, "Message is missing id. Discarding.");
-			msgprops.closeReader();
-			return true;
+	/**
+	 * Reads a single line of a header, stripping the line ending. Returns {@code null} at the end
+	 * of the stream.
+	 */
+	private static String readHeaderLine(InputStream is) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = is.read()) != -1) {
+			if(b == '\n') {
+				break;
+			}
+			line.write(b);
+		}
+		if(b == -1 && line.size() == 0) {
+			return null;
 		}
 
-		long id;
-		try {
-			id = Long.parseLong(s_id);
-		} catch (NumberFormatException nfe) {
-			/* FIXME: Id doesn't have to be an integer */
-			Logger.error(this, "Got a message with an invalid (non-integer) id. Discarding.");
-			msgprops.closeReader();
-			return true;
+		String s = line.toString("UTF-8");
+		if(s.endsWith("\r")) {
+			s = s.substring(0, s.length() - 1);
 		}
+		return s;
+	}
 
+	private boolean handleMessage(long id, InputStream body) {
 		long ackDelay = (long)(System.currentTimeMillis() + (Math.random() * MAX_ACK_DELAY));
 		synchronized(ackLog) {
 			try {
@@ -1280,52 +2999,72 @@ class Channel {
 			}
 		}
 
-		BufferedReader br = msgprops.getReader();
-		if(br == null) {
+		if(body == null) {
 			Logger.error(this, "Got an invalid message. Discarding.");
-			msgprops.closeReader();
 			return true;
 		}
 
-		if(!channelEventCallback.get().handleMessage(this, br, id)) {
+		if(!channelEventCallback.get().handleMessage(this, body, id)) {
 			return false;
 		}
 
-		try {
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			senderExecutor.execute(new AckInserter(id, ackDelay));
-		} catch(RejectedExecutionException e) {
-			Logger.debug(this, "Caugth RejectedExecutionException while scheduling AckInserter");
-		}
+		ackInserter.schedule(Math.max(0, ackDelay - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
 
 		return true;
 	}
 
-	private class AckInserter implements Runnable {
-		private final long ackId;
-		private final long insertAfter;
-
-		private AckInserter(long ackId, long insertAfter) {
-			this.ackId = ackId;
-			this.insertAfter = insertAfter;
-		}
+	/**
+	 * Inserts the acks in the ack log. Each ack is given a random delay when the message is
+	 * received, and when the earliest of these has passed all the pending acks are inserted
+	 * together in a single ack message.
+	 */
+	private class AckInserter extends ChannelTask {
+		private final RetryPolicy retry = newTaskRetry();
 
 		@Override
-		public void run() {
-			Logger.debug(this, "AckInserter(" + ackId + ") for " + Channel.this.toString() + " running");
+		protected void run(final Completion completion) {
+			Logger.debug(this, "AckInserter for " + Channel.this.toString() + " running");
+			if(isStopped()) {
+				Logger.debug(this, "Channel has been stopped, quitting");
+				completion.done();
+				return;
+			}
+
+			final SortedSet<Long> acks = new TreeSet<Long>();
+			long insertAfter = Long.MAX_VALUE;
+			synchronized(ackLog) {
+				try {
+					Iterator<Entry<Long, String>> it = ackLog.iterator();
+					while(it.hasNext()) {
+						Entry<Long, String> entry = it.next();
+						acks.add(entry.getKey());
+						insertAfter = Math.min(insertAfter, parseInsertAfter(entry.getValue()));
+					}
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while reading ack log: " + e.getMessage(), e);
+					schedule(retry.nextDelay(), TimeUnit.MILLISECONDS);
+					completion.done();
+					return;
+				}
+			}
+
+			if(acks.isEmpty()) {
+				completion.done();
+				return;
+			}
 
 			if(System.currentTimeMillis() < insertAfter) {
 				long remaining = insertAfter - System.currentTimeMillis();
 				Logger.debug(this, "Rescheduling in " + remaining + "ms when inserting is allowed");
-				ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-				senderExecutor.schedule(this, remaining, TimeUnit.MILLISECONDS);
+				schedule(remaining, TimeUnit.MILLISECONDS);
+				completion.done();
 				return;
 			}
 
 			//Build the header of the inserted message
 			String header =
 				"messagetype=ack\r\n"
-				+ "id=" + ackId + "\r\n"
+				+ "id=" + AckRanges.format(acks, hasRemoteFeature(FEATURE_ACK_RANGES)) + "\r\n"
 				+ "\r\n";
 			Bucket bucket;
 			try {
@@ -1335,34 +3074,59 @@ class Channel {
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
 			}
 
-			boolean inserted;
+			//Only one ack is inserted at a time, so they can share the slot
 			try {
-				inserted = insertMessage(bucket, "ack" + ackId);
+				insertMessage(bucket, "ack", completion, new SendCallback() {
+					@Override
+					public void sendFinished(boolean inserted) {
+						if(inserted) {
+							onAcksInserted(acks);
+
+							//Acks might have been added while we were inserting
+							execute();
+						} else {
+							schedule(retry.nextDelay(), TimeUnit.MILLISECONDS);
+						}
+						completion.done();
+					}
+				});
 			} catch(IOException e) {
 				//The getInputStream() method of ArrayBucket doesn't throw
 				throw new AssertionError("getInputStream() method of ArrayBucket threw IOException");
-			} catch (InterruptedException e) {
-				Logger.debug(this, "AckInserter interrupted, quitting");
-				return;
 			}
+		}
 
-			if(inserted) {
-				synchronized(ackLog) {
-					try {
-						ackLog.remove(ackId);
-					} catch(IOException e) {
-						Logger.error(this, "Caugth IOException while writing to ack log: " + e.getMessage(), e);
-					}
-				}
-			} else {
+		private void onAcksInserted(SortedSet<Long> acks) {
+			retry.reset();
+			Logger.minor(this, "Inserted ack for " + acks.size() + " messages");
+			synchronized(ackLog) {
 				try {
-					ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-					senderExecutor.schedule(this, TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				} catch(RejectedExecutionException e) {
-					Logger.debug(this, "Caugth RejectedExecutionException while scheduling AckInserter");
+					for(Long ack : acks) {
+						ackLog.remove(ack.longValue());
+					}
+				} catch(IOException e) {
+					Logger.error(this, "Caugth IOException while writing to ack log: " + e.getMessage(), e);
 				}
 			}
 		}
+
+		private long parseInsertAfter(String value) {
+			if(value == null) {
+				return 0;
+			}
+
+			try {
+				return Long.parseLong(value);
+			} catch(NumberFormatException e) {
+				//Assume no delay
+				return 0;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "AckInserter [" + channelDir + "]";
+		}
 	}
 
 	private boolean handleAck(File result) {
@@ -1375,10 +3139,8 @@ class Channel {
 
 		Logger.debug(this, "Got ack with id " + ackString);
 
-		String[] acks = ackString.split(",");
-		for(String ack : acks) {
-			long messageId = Long.parseLong(ack);
-			channelEventCallback.get().onAckReceived(messageId);
+		for(long[] range : AckRanges.parse(ackString)) {
+			channelEventCallback.get().onAckReceived(range[0], range[1]);
 		}
 
 		return true;
@@ -1413,7 +3175,25 @@ class Channel {
 	}
 
 	public interface ChannelEventCallback {
-		public void onAckReceived(long id);
-		public boolean handleMessage(Channel channel, BufferedReader message, long id);
+		/**
+		 * Called when the other side has acked the messages with ids from {@code first} to
+		 * {@code last}, inclusive. A single ack is reported with {@code first == last}.
+		 */
+		public void onAckReceived(long first, long last);
+		public boolean handleMessage(Channel channel, InputStream message, long id);
+
+		/**
+		 * Called when the private key of the channel has been set, either because we generated
+		 * it before sending the RTS or because it was read from a received RTS.
+		 */
+		public void onPrivateKeyAssigned(Channel channel, String privateKey);
+
+		/**
+		 * Called when the channel has nothing to do except polling for messages until it times
+		 * out. The callback may hibernate the channel using {@link Channel#hibernate()} and
+		 * arrange for a new instance to poll again after {@code wakeIn} milliseconds.
+		 * @return {@code true} if the channel was hibernated
+		 */
+		public boolean onIdle(Channel channel, long wakeIn);
 	}
 }
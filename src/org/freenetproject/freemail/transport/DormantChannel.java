@@ -0,0 +1,87 @@
+/*
+ * DormantChannel.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.util.concurrent.Future;
+
+/**
+ * The little information that is kept in memory about a hibernated channel, i.e. a channel that
+ * can't be used for sending and is only polled until it times out. The full channel is loaded
+ * again when the next poll is due or when it is needed for processing an RTS.
+ */
+class DormantChannel {
+	private final File channelDir;
+	private final String remoteId;
+	private final String privateKey;
+	private final long expiryTime;
+	private volatile Future<?> wakeTask;
+
+	DormantChannel(File channelDir, String remoteId, String privateKey, long expiryTime) {
+		if(channelDir == null) throw new NullPointerException();
+		if(remoteId == null) throw new NullPointerException();
+
+		this.channelDir = channelDir;
+		this.remoteId = remoteId;
+		this.privateKey = privateKey;
+		this.expiryTime = expiryTime;
+	}
+
+	File getChannelDir() {
+		return channelDir;
+	}
+
+	String getRemoteIdentity() {
+		return remoteId;
+	}
+
+	/**
+	 * Returns the private key of the channel, or {@code null} if it didn't have one.
+	 */
+	String getPrivateKey() {
+		return privateKey;
+	}
+
+	/**
+	 * Returns the time when the channel stops fetching and can be deleted.
+	 */
+	long getExpiryTime() {
+		return expiryTime;
+	}
+
+	void setWakeTask(Future<?> wakeTask) {
+		this.wakeTask = wakeTask;
+	}
+
+	/**
+	 * Cancels the scheduled wake up, if any.
+	 */
+	void cancelWakeTask() {
+		Future<?> task = wakeTask;
+		if(task != null) {
+			task.cancel(false);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DormantChannel [" + channelDir + "]";
+	}
+}
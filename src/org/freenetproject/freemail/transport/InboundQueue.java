@@ -0,0 +1,203 @@
+/*
+ * InboundQueue.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.freenetproject.freemail.utils.Logger;
+
+import freenet.support.io.Closer;
+
+/**
+ * The messages of a channel that have been fetched but not delivered yet. Each message is a file
+ * named {@code <prefix>-<number>,<attempts>} and the messages are delivered in order of number.
+ * The body of a pointer is stored next to the pointer once it has been fetched, and is removed
+ * together with it.
+ */
+class InboundQueue {
+	private static final String PREFIX = "unprocessed_msg";
+	private static final String BODY_PREFIX = "body";
+
+	private final File dir;
+	private final int maxAttempts;
+
+	/**
+	 * @param dir the directory the messages are kept in, created when the first message is added
+	 * @param maxAttempts the number of attempts after which a message is discarded
+	 */
+	InboundQueue(File dir, int maxAttempts) {
+		this.dir = dir;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Moves {@code message} into the queue with the given number, returning {@code false} if it
+	 * couldn't be moved.
+	 */
+	boolean add(File message, long number) {
+		if(!dir.isDirectory() && !dir.mkdir()) {
+			Logger.error(this, "Couldn't create " + dir);
+			return false;
+		}
+
+		File queued = new File(dir, PREFIX + "-" + number + ",0");
+		if(!message.renameTo(queued)) {
+			//Most likely the temporary directory is on a different file system
+			Logger.error(this, "Couldn't move " + message + " to " + queued);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the messages in the queue, in the order they were fetched.
+	 */
+	List<File> list() {
+		File[] files = dir.listFiles();
+		if(files == null) {
+			return Collections.emptyList();
+		}
+
+		SortedMap<Long, File> inbound = new TreeMap<Long, File>();
+		for(File f : files) {
+			String name = f.getName();
+			if(!name.startsWith(PREFIX + "-")) {
+				continue;
+			}
+
+			try {
+				inbound.put(Long.valueOf(getNumber(f)), f);
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Found inbound message with invalid name: " + name);
+			}
+		}
+		return new ArrayList<File>(inbound.values());
+	}
+
+	boolean isEmpty() {
+		return list().isEmpty();
+	}
+
+	/**
+	 * Records a failed attempt at handling {@code message}, returning {@code true} if it should be
+	 * tried again. Once the maximum number of attempts has been reached the message is discarded
+	 * and this returns {@code false}.
+	 */
+	boolean retry(File message) {
+		String[] parts = message.getName().split(",", 2);
+		int tries;
+		try {
+			tries = Integer.parseInt(parts[1]) + 1;
+		} catch(RuntimeException e) {
+			tries = 1;
+		}
+
+		if(tries >= maxAttempts) {
+			Logger.error(this, "Maximum attempts at delivering message reached, discarding " + message);
+			remove(message);
+			return false;
+		}
+
+		if(!message.renameTo(new File(dir, parts[0] + "," + tries))) {
+			Logger.error(this, "Couldn't update attempt count of " + message);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes {@code message} and its body, if any, from the queue.
+	 */
+	void remove(File message) {
+		if(!message.delete() && message.exists()) {
+			Logger.error(this, "Deletion of " + message + " failed");
+		}
+
+		File body = getBodyFile(message);
+		if(!body.delete() && body.exists()) {
+			Logger.error(this, "Deletion of " + body + " failed");
+		}
+	}
+
+	/**
+	 * Returns the file the body of the pointer {@code message} is kept in once it has been
+	 * fetched, or {@code null} if {@code message} isn't in the queue.
+	 */
+	File getBodyFile(File message) {
+		if(!dir.equals(message.getParentFile())) {
+			return null;
+		}
+		return new File(dir, BODY_PREFIX + "-" + getNumber(message));
+	}
+
+	/**
+	 * Moves the fetched {@code body} of the pointer {@code message} into the queue. The body is
+	 * copied if it can't be moved, and {@code body} is deleted in either case. The body file only
+	 * appears once it is complete.
+	 * @throws IOException if the body couldn't be copied
+	 */
+	void storeBody(File message, File body) throws IOException {
+		File dest = getBodyFile(message);
+		if(body.renameTo(dest)) {
+			return;
+		}
+
+		File tmp = new File(dir, dest.getName() + ".tmp");
+		boolean success = false;
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = new FileInputStream(body);
+			os = new FileOutputStream(tmp);
+			byte[] buf = new byte[64 * 1024];
+			int read;
+			while((read = is.read(buf)) != -1) {
+				os.write(buf, 0, read);
+			}
+			os.close();
+			if(!tmp.renameTo(dest)) {
+				throw new IOException("Couldn't move " + tmp + " to " + dest);
+			}
+			success = true;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+			if(!success) {
+				tmp.delete();
+			}
+			if(!body.delete()) {
+				Logger.error(this, "Deletion of " + body + " failed");
+			}
+		}
+	}
+
+	private static String getNumber(File message) {
+		return message.getName().substring(PREFIX.length() + 1).split(",", 2)[0];
+	}
+}
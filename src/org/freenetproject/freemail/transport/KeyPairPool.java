@@ -0,0 +1,229 @@
+/*
+ * KeyPairPool.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.SSKKeyPair;
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+/**
+ * A small pool of SSK key pairs that have been generated in advance, so that new channels don't
+ * have to wait for the node to generate one. Each key pair is stored in its own file, and is
+ * removed from the pool before it is handed out so the same keys are never used by two channels.
+ * The pool is refilled in the background at low priority whenever a key pair is taken.
+ */
+public class KeyPairPool {
+	/** The number of key pairs the pool is refilled to */
+	static final int TARGET_SIZE = 5;
+
+	private static final String PREFIX = "keypair-";
+	/* Files that are being written or have been taken end with this and are ignored */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final String PUBLIC_KEY = "pubkey";
+	private static final String PRIVATE_KEY = "privkey";
+
+	private final File dir;
+	private final Executor executor;
+
+	/* Guarded by this */
+	private boolean started = false;
+	private boolean refilling = false;
+
+	public KeyPairPool(File dir, Executor executor) {
+		this.dir = dir;
+		this.executor = executor;
+	}
+
+	/**
+	 * Removes leftovers from a previous run and starts filling the pool. Until this is called the
+	 * pool only hands out the key pairs it already has.
+	 */
+	public void start() {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				if(f.getName().endsWith(TEMP_SUFFIX) && !f.delete()) {
+					Logger.error(this, "Couldn't delete " + f);
+				}
+			}
+		}
+
+		synchronized(this) {
+			started = true;
+		}
+		refill();
+	}
+
+	/**
+	 * Takes a key pair from the pool and starts refilling it.
+	 * @return a key pair that hasn't been used before, or {@code null} if the pool is empty
+	 */
+	public SSKKeyPair take() {
+		SSKKeyPair keyPair = null;
+		synchronized(this) {
+			for(File f : listKeyFiles()) {
+				//Move the file out of the pool before reading it so it can't be handed out twice
+				File taken = new File(dir, f.getName() + TEMP_SUFFIX);
+				if(!f.renameTo(taken)) {
+					Logger.error(this, "Couldn't move " + f + " out of the pool");
+					continue;
+				}
+
+				keyPair = read(taken);
+				if(!taken.delete()) {
+					Logger.error(this, "Couldn't delete " + taken);
+				}
+				if(keyPair != null) {
+					break;
+				}
+			}
+		}
+
+		refill();
+		return keyPair;
+	}
+
+	/**
+	 * Returns the number of key pairs in the pool.
+	 */
+	public synchronized int size() {
+		return listKeyFiles().length;
+	}
+
+	synchronized boolean add(SSKKeyPair keyPair) {
+		if(!dir.exists() && !dir.mkdirs()) {
+			Logger.error(this, "Couldn't create key pair pool directory " + dir);
+			return false;
+		}
+
+		//Write to a temporary file first so a half written key pair never ends up in the pool
+		File tmp;
+		try {
+			tmp = File.createTempFile(PREFIX, TEMP_SUFFIX, dir);
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while creating key pair file: " + e.getMessage(), e);
+			return false;
+		}
+
+		PropsFile props = PropsFile.createPropsFile(tmp);
+		boolean written = props.put(PUBLIC_KEY, keyPair.pubkey) && props.put(PRIVATE_KEY, keyPair.privkey);
+		PropsFile.evict(tmp);
+
+		String name = tmp.getName();
+		File f = new File(dir, name.substring(0, name.length() - TEMP_SUFFIX.length()));
+		if(!written || !tmp.renameTo(f)) {
+			Logger.error(this, "Couldn't store key pair in " + f);
+			tmp.delete();
+			return false;
+		}
+		return true;
+	}
+
+	private File[] listKeyFiles() {
+		File[] files = dir.listFiles();
+		if(files == null) {
+			return new File[0];
+		}
+
+		int count = 0;
+		for(File f : files) {
+			if(f.getName().startsWith(PREFIX) && !f.getName().endsWith(TEMP_SUFFIX)) {
+				files[count++] = f;
+			}
+		}
+		files = Arrays.copyOf(files, count);
+		Arrays.sort(files);
+		return files;
+	}
+
+	private SSKKeyPair read(File f) {
+		PropsFile props = PropsFile.createPropsFile(f);
+		SSKKeyPair keyPair = new SSKKeyPair();
+		keyPair.pubkey = props.get(PUBLIC_KEY);
+		keyPair.privkey = props.get(PRIVATE_KEY);
+		PropsFile.evict(f);
+
+		if(keyPair.pubkey == null || keyPair.privkey == null) {
+			Logger.error(this, "Key pair file " + f + " is incomplete, discarding it");
+			return null;
+		}
+		return keyPair;
+	}
+
+	private void refill() {
+		synchronized(this) {
+			if(!started || refilling) {
+				return;
+			}
+			refilling = true;
+		}
+
+		try {
+			executor.execute(new Refiller());
+		} catch(RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while scheduling key pair pool refill");
+			synchronized(this) {
+				refilling = false;
+			}
+		}
+	}
+
+	private class Refiller implements Runnable {
+		@Override
+		public void run() {
+			//The key pairs aren't needed right away, so don't compete with more urgent work
+			Thread current = Thread.currentThread();
+			int priority = current.getPriority();
+			current.setPriority(Thread.MIN_PRIORITY);
+			try {
+				HighLevelFCPClient fcpClient = new HighLevelFCPClient();
+				while(size() < TARGET_SIZE) {
+					Logger.debug(this, "Generating key pair for the pool");
+					SSKKeyPair keyPair = fcpClient.makeSSK();
+					if(keyPair == null) {
+						Logger.error(this, "Node didn't generate a key pair, stopping key pair pool refill");
+						break;
+					}
+					if(!add(keyPair)) {
+						break;
+					}
+				}
+			} catch(ConnectionTerminatedException e) {
+				Logger.debug(this, "FCP connection has been terminated, stopping key pair pool refill");
+			} catch(InterruptedException e) {
+				Logger.debug(this, "Key pair pool refill interrupted, stopping");
+			} finally {
+				current.setPriority(priority);
+				synchronized(KeyPairPool.this) {
+					refilling = false;
+				}
+			}
+		}
+	}
+}
@@ -29,13 +29,19 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.TimeUnit;
 
@@ -46,11 +52,16 @@ import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailHeaderFilter;
 import org.freenetproject.freemail.MailMessage;
 import org.freenetproject.freemail.Postman;
+import org.freenetproject.freemail.SweepReport;
 import org.freenetproject.freemail.fcp.HighLevelFCPClientFactory;
+import org.freenetproject.freemail.fcp.InsertProgressListener;
 import org.freenetproject.freemail.transport.Channel.ChannelEventCallback;
+import org.freenetproject.freemail.transport.TransportScheduler.Completion;
+import org.freenetproject.freemail.transport.TransportScheduler.Job;
 import org.freenetproject.freemail.utils.EmailAddress;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
+import org.freenetproject.freemail.utils.RetryPolicy;
 import org.freenetproject.freemail.utils.Timer;
 import org.freenetproject.freemail.wot.Identity;
 
@@ -70,6 +81,16 @@ import freenet.support.io.FileBucket;
 public class MessageHandler {
 	private static final String INDEX_NAME = "index";
 	private static final long RESEND_TIME = 24 * 60 * 60 * 1000;
+	private static final long SEND_RETRY_DELAY = 5 * 60 * 1000; //5 minutes
+	private static final long SEND_RETRY_MAX_DELAY = 2 * 60 * 60 * 1000; //2 hours
+	private static final int MAX_INSERTS_PER_RECIPIENT = 3;
+	private static final int MAX_BODY_INSERTS_PER_RECIPIENT = 2;
+
+	/**
+	 * Messages of at least this size are inserted once as a CHK, and only a pointer to it is sent
+	 * over the channel. Smaller messages are cheap enough to insert again when resending.
+	 */
+	private static final long MIN_POINTER_SIZE = 16 * 1024;
 	private static final String MSG_LOG_NAME = "log";
 
 	/**
@@ -87,15 +108,40 @@ public class MessageHandler {
 		private static final String LAST_SEND_TIME = ".lastSendTime";
 		/** The message number used by the Channel for this message */
 		private static final String MSG_NUM = ".msgNum";
+		/** Where the body of the message was inserted, if it was inserted on its own */
+		private static final String BODY = ".body";
+		/** The persistent insert of the body of the message, while it is running */
+		private static final String BODY_INSERT = ".bodyInsert";
 	}
 
 	private final File outbox;
-	private final List<Channel> channels = new LinkedList<Channel>();
+	private final List<Channel> channels = new CopyOnWriteArrayList<Channel>();
+
+	/** The channel used for sending to each remote identity */
+	private final ConcurrentHashMap<String, Channel> channelsByRemoteId = new ConcurrentHashMap<String, Channel>();
+
+	/** All channels that have a private key, indexed by that key */
+	private final ConcurrentHashMap<String, Channel> channelsByPrivateKey = new ConcurrentHashMap<String, Channel>();
+
+	/** Channels that are hibernated, indexed by channel directory */
+	private final ConcurrentHashMap<File, DormantChannel> dormantChannels = new ConcurrentHashMap<File, DormantChannel>();
+
+	/** Hibernated channels that have a private key, indexed by that key */
+	private final ConcurrentHashMap<String, DormantChannel> dormantByPrivateKey = new ConcurrentHashMap<String, DormantChannel>();
+
+	/**
+	 * Used to make sure only one channel is created at a time for each remote identity. Also
+	 * guards hibernation and wake up of the channels of that identity.
+	 */
+	private final ConcurrentHashMap<String, Object> channelCreationLocks = new ConcurrentHashMap<String, Object>();
 	private final Freemail freemail;
 	private final File channelDir;
 	private final FreemailAccount freemailAccount;
 	private final AtomicInteger nextChannelNum = new AtomicInteger();
-	private final ConcurrentHashMap<String, Future<?>> tasks = new ConcurrentHashMap<String, Future<?>>();
+	private final ConcurrentHashMap<File, RecipientQueue> queues = new ConcurrentHashMap<File, RecipientQueue>();
+
+	/** The progress of the running body inserts, indexed by message file */
+	private final ConcurrentHashMap<File, BlockProgress> bodyProgress = new ConcurrentHashMap<File, BlockProgress>();
 	private final HighLevelFCPClientFactory hlFcpClientFactory;
 
 	public MessageHandler(File outbox, Freemail freemail, File channelDir,
@@ -129,25 +175,48 @@ public class MessageHandler {
 				continue;
 			}
 
+			//Channels that are only waiting to time out are kept as dormant records until they
+			//need to poll again, which happens in start(). They are read straight from the
+			//channel directory, so the full channel is only built when it wakes up
+			DormantChannel dormant = Channel.loadDormant(f);
+			if(dormant != null) {
+				Logger.debug(this, "Found dormant channel in directory " + f);
+				addDormantChannel(dormant);
+				continue;
+			}
+
 			Logger.debug(this, "Initializing channel from directory " + f);
-			try {
-				Channel channel = new Channel(f, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, null);
-				channel.setCallback(new AckCallback(channel.getRemoteIdentity()));
-				channels.add(channel);
-			} catch(ChannelTimedOutException e) {
-				Logger.debug(this, "Deleting timed out channel");
-				if(!Channel.deleteChannel(f)) {
-					Logger.error(this, "Failed to delete channel because there are files left in " + f);
-				}
-			} catch(IllegalStateException e) {
-				//Channel is broken for some reason so get rid of it
-				Logger.error(this, "Deleting broken channel");
-				if(!Channel.deleteChannel(f)) {
-					Logger.error(this, "Failed to delete channel because "
-							+ "there are files left in "+ f);
-				}
+			Channel channel = loadChannel(f);
+			if(channel != null) {
+				addChannel(channel);
+			}
+		}
+	}
+
+	/**
+	 * Creates the channel stored in the given directory, deleting the directory if the channel
+	 * has timed out or is broken.
+	 * @return the channel, or {@code null} if it couldn't be loaded
+	 */
+	private Channel loadChannel(File dir) {
+		try {
+			Channel channel = new Channel(dir, freemail.getTransportScheduler(), hlFcpClientFactory.newInstance(), freemail, freemailAccount, null);
+			channel.setCallback(new AckCallback(channel.getRemoteIdentity()));
+			return channel;
+		} catch(ChannelTimedOutException e) {
+			Logger.debug(this, "Deleting timed out channel");
+			if(!Channel.deleteChannel(dir)) {
+				Logger.error(this, "Failed to delete channel because there are files left in " + dir);
+			}
+		} catch(IllegalStateException e) {
+			//Channel is broken for some reason so get rid of it
+			Logger.error(this, "Deleting broken channel");
+			if(!Channel.deleteChannel(dir)) {
+				Logger.error(this, "Failed to delete channel because "
+						+ "there are files left in "+ dir);
 			}
 		}
+		return null;
 	}
 
 	public void start() {
@@ -158,43 +227,19 @@ public class MessageHandler {
 					continue;
 				}
 
-				for(File f : rcptOutbox.listFiles()) {
-					if(!f.isFile()) {
-						Logger.error(this, "Spurious file in contact outbox: " + f);
-						continue;
-					}
-
-					String identifier = f.getName();
-
-					//Skip log and index
-					if(identifier.equals(INDEX_NAME) || identifier.equals(MSG_LOG_NAME)) {
-						continue;
-					}
-
-					String rawMsgNum;
-					PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-					synchronized (props) {
-						rawMsgNum = props.get(identifier + IndexKeys.MSG_NUM);
-					}
-
-					try {
-						long num = Long.parseLong(rawMsgNum);
-						Logger.debug(this, "Scheduling SenderTask for " + num);
-						ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-						tasks.put(Long.toString(num), senderExecutor.schedule(new SenderTask(rcptOutbox, num), 0, TimeUnit.NANOSECONDS));
-					} catch(NumberFormatException e) {
-						Logger.error(this, "Found file without valid message number: " + f);
-						continue;
-					}
-				}
+				getQueue(rcptOutbox).schedule(0);
 			}
 		}
 
 		//Start the channel tasks
-		synchronized(channels) {
-			for(Channel channel : channels) {
-				channel.startTasks();
-			}
+		for(Channel channel : channels) {
+			channel.startTasks();
+		}
+
+		//Spread the first poll of the dormant channels so they don't all run at once
+		long maxDelay = freemail.getChannelPollMaxInterval();
+		for(DormantChannel dormant : dormantChannels.values()) {
+			scheduleWakeUp(dormant, (long)(Math.random() * maxDelay));
 		}
 	}
 
@@ -256,19 +301,56 @@ public class MessageHandler {
 				props.put(identifier + IndexKeys.MSG_NUM, Long.toString(msgNum));
 			}
 
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			tasks.put(identifier, senderExecutor.submit(new SenderTask(rcptOutbox, msgNum)));
+			getQueue(rcptOutbox).messageAdded(identifier, msgNum, recipient.getIdentityID());
 		}
 
 		return true;
 	}
 
+	/**
+	 * Adds the channel to the list of channels and indexes it. The channel will be used for
+	 * sending to the remote identity unless there already is a channel that can be used.
+	 */
+	private void addChannel(Channel channel) {
+		channels.add(channel);
+
+		String privateKey = channel.getPrivateKey();
+		if(privateKey != null) {
+			channelsByPrivateKey.put(privateKey, channel);
+		}
+
+		String remoteIdentity = channel.getRemoteIdentity();
+		synchronized(getChannelCreationLock(remoteIdentity)) {
+			Channel current = channelsByRemoteId.get(remoteIdentity);
+			if(current == null || !current.canSendMessages()) {
+				channelsByRemoteId.put(remoteIdentity, channel);
+			}
+		}
+	}
+
+	private Object getChannelCreationLock(String remoteIdentity) {
+		Object lock = channelCreationLocks.get(remoteIdentity);
+		if(lock == null) {
+			Object newLock = new Object();
+			lock = channelCreationLocks.putIfAbsent(remoteIdentity, newLock);
+			if(lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+
 	private Channel getChannel(String remoteIdentity) {
-		synchronized(channels) {
-			for(Channel c : channels) {
-				if(remoteIdentity.equals(c.getRemoteIdentity()) && c.canSendMessages()) {
-					return c;
-				}
+		Channel existing = channelsByRemoteId.get(remoteIdentity);
+		if(existing != null && existing.canSendMessages()) {
+			return existing;
+		}
+
+		synchronized(getChannelCreationLock(remoteIdentity)) {
+			//Check again in case another thread created the channel while we were waiting
+			existing = channelsByRemoteId.get(remoteIdentity);
+			if(existing != null && existing.canSendMessages()) {
+				return existing;
 			}
 
 			//The channel didn't exist or it has timed out, so create a new one
@@ -280,53 +362,254 @@ public class MessageHandler {
 
 			Channel channel;
 			try {
-				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
+				channel = new Channel(newChannelDir, freemail.getTransportScheduler(), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
 				channel.setCallback(new AckCallback(remoteIdentity));
 			} catch(ChannelTimedOutException e) {
 				//Can't happen since we're creating a new channel
 				throw new AssertionError("Caugth ChannelTimedOutException when creating a new channel");
 			}
+			addChannel(channel);
 			channel.startTasks();
-			channels.add(channel);
 
 			return channel;
 		}
 	}
 
-	public void createChannelFromRTS(PropsFile rtsProps) {
-		//First try to find a channel with the same key
+	/**
+	 * Passes the RTS to the channel it belongs to, creating a new channel if there isn't one.
+	 * @return {@code true} if the RTS was processed, or {@code false} if the channel couldn't be
+	 *         created and the RTS should be handled again later
+	 */
+	public boolean createChannelFromRTS(PropsFile rtsProps) {
 		String rtsPrivateKey = rtsProps.get("channel");
-		synchronized(channels) {
-			for(Channel c : channels) {
-				if(rtsPrivateKey.equals(c.getPrivateKey())) {
-					c.processRTS(rtsProps);
-					return;
+		String remoteIdentity = rtsProps.get("mailsite");
+		remoteIdentity = remoteIdentity.substring(remoteIdentity.indexOf("@") + 1); //Strip USK@
+		remoteIdentity = remoteIdentity.substring(0, remoteIdentity.indexOf(","));
+
+		//Hold the lock while processing the RTS so the channel isn't hibernated at the same time
+		synchronized(getChannelCreationLock(remoteIdentity)) {
+			//First try to find a channel with the same key, waking it if needed
+			Channel existing = channelsByPrivateKey.get(rtsPrivateKey);
+			if(existing == null) {
+				DormantChannel dormant = dormantByPrivateKey.get(rtsPrivateKey);
+				if(dormant != null) {
+					existing = wakeChannel(dormant);
 				}
 			}
+			if(existing != null) {
+				existing.processRTS(rtsProps);
+				return true;
+			}
 
 			//Create a new channel from the RTS values
 			Logger.debug(this, "Creating new channel from RTS");
 			File newChannelDir = new File(channelDir, "" + nextChannelNum.getAndIncrement());
 			if(!newChannelDir.mkdir()) {
 				Logger.error(this, "Couldn't create the channel directory");
-				return;
+				return false;
 			}
 
-			String remoteIdentity = rtsProps.get("mailsite");
-			remoteIdentity = remoteIdentity.substring(remoteIdentity.indexOf("@") + 1); //Strip USK@
-			remoteIdentity = remoteIdentity.substring(0, remoteIdentity.indexOf(","));
-
 			Channel channel;
 			try {
-				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
+				channel = new Channel(newChannelDir, freemail.getTransportScheduler(), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
 				channel.setCallback(new AckCallback(remoteIdentity));
 			} catch(ChannelTimedOutException e) {
 				//Can't happen since we're creating a new channel
 				throw new AssertionError("Caugth ChannelTimedOutException when creating a new channel");
 			}
 			channel.processRTS(rtsProps);
+			addChannel(channel);
 			channel.startTasks();
-			channels.add(channel);
+			return true;
+		}
+	}
+
+	private void addDormantChannel(DormantChannel dormant) {
+		dormantChannels.put(dormant.getChannelDir(), dormant);
+		if(dormant.getPrivateKey() != null) {
+			dormantByPrivateKey.put(dormant.getPrivateKey(), dormant);
+		}
+	}
+
+	/**
+	 * Hibernates the channel if possible, replacing it with a dormant record that wakes up after
+	 * {@code wakeIn} milliseconds.
+	 * @return {@code true} if the channel was hibernated
+	 */
+	private boolean hibernateChannel(Channel channel, long wakeIn) {
+		String remoteIdentity = channel.getRemoteIdentity();
+		synchronized(getChannelCreationLock(remoteIdentity)) {
+			String privateKey = channel.getPrivateKey();
+			long expiryTime = channel.getExpiryTime();
+			if(!channel.hibernate()) {
+				return false;
+			}
+
+			channels.remove(channel);
+			channelsByRemoteId.remove(remoteIdentity, channel);
+			if(privateKey != null) {
+				channelsByPrivateKey.remove(privateKey, channel);
+			}
+
+			DormantChannel dormant = new DormantChannel(channel.getChannelDir(), remoteIdentity, privateKey, expiryTime);
+			addDormantChannel(dormant);
+			scheduleWakeUp(dormant, wakeIn);
+		}
+
+		Logger.debug(this, "Hibernated " + channel + ", waking up in " + wakeIn + "ms");
+		return true;
+	}
+
+	private void scheduleWakeUp(final DormantChannel dormant, long delay) {
+		try {
+			TransportScheduler scheduler = freemail.getTransportScheduler();
+			dormant.setWakeTask(scheduler.schedule(Freemail.getFCPConnection(), new Runnable() {
+				@Override
+				public void run() {
+					wakeChannel(dormant);
+				}
+
+				@Override
+				public String toString() {
+					return "Wake up of " + dormant;
+				}
+			}, delay, TimeUnit.MILLISECONDS));
+		} catch(RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while scheduling wake up of " + dormant);
+		}
+	}
+
+	/**
+	 * Loads and starts the channel that is represented by {@code dormant}.
+	 * @return the channel, or {@code null} if it had already been woken up or couldn't be loaded
+	 */
+	private Channel wakeChannel(DormantChannel dormant) {
+		synchronized(getChannelCreationLock(dormant.getRemoteIdentity())) {
+			if(!dormantChannels.remove(dormant.getChannelDir(), dormant)) {
+				return null;
+			}
+			if(dormant.getPrivateKey() != null) {
+				dormantByPrivateKey.remove(dormant.getPrivateKey(), dormant);
+			}
+			dormant.cancelWakeTask();
+
+			Logger.debug(this, "Waking up " + dormant);
+			Channel channel = loadChannel(dormant.getChannelDir());
+			if(channel == null) {
+				return null;
+			}
+
+			addChannel(channel);
+			channel.startTasks();
+			return channel;
+		}
+	}
+
+	/**
+	 * Deletes channels that have expired and outbox index entries for messages that no longer
+	 * exist, adding what was deleted to {@code report}.
+	 */
+	public void sweep(SweepReport report) {
+		long now = System.currentTimeMillis();
+
+		for(Channel channel : channels) {
+			if(channel.getExpiryTime() >= now) {
+				continue;
+			}
+
+			String remoteIdentity = channel.getRemoteIdentity();
+			synchronized(getChannelCreationLock(remoteIdentity)) {
+				String privateKey = channel.getPrivateKey();
+				if(!channel.stopForDeletion()) {
+					//In use, try again next time
+					continue;
+				}
+
+				channels.remove(channel);
+				channelsByRemoteId.remove(remoteIdentity, channel);
+				if(privateKey != null) {
+					channelsByPrivateKey.remove(privateKey, channel);
+				}
+			}
+
+			deleteExpiredChannel(channel.getChannelDir(), report);
+		}
+
+		for(DormantChannel dormant : dormantChannels.values()) {
+			if(dormant.getExpiryTime() >= now) {
+				continue;
+			}
+
+			synchronized(getChannelCreationLock(dormant.getRemoteIdentity())) {
+				if(!dormantChannels.remove(dormant.getChannelDir(), dormant)) {
+					//Woken up while we were waiting for the lock
+					continue;
+				}
+				if(dormant.getPrivateKey() != null) {
+					dormantByPrivateKey.remove(dormant.getPrivateKey(), dormant);
+				}
+				dormant.cancelWakeTask();
+			}
+
+			deleteExpiredChannel(dormant.getChannelDir(), report);
+		}
+
+		sweepOutboxIndexes(report);
+	}
+
+	private void deleteExpiredChannel(File dir, SweepReport report) {
+		long size = SweepReport.sizeOf(dir);
+		if(Channel.deleteChannel(dir)) {
+			Logger.debug(this, "Deleted expired channel " + dir);
+			report.channelDeleted(size);
+		} else {
+			Logger.error(this, "Failed to delete expired channel because there are files left in " + dir);
+		}
+	}
+
+	private void sweepOutboxIndexes(SweepReport report) {
+		File[] rcptOutboxes = outbox.listFiles();
+		if(rcptOutboxes == null) {
+			return;
+		}
+
+		String[] suffixes = {IndexKeys.RECIPIENT, IndexKeys.MSG_NUM, IndexKeys.FIRST_SEND_TIME,
+				IndexKeys.LAST_SEND_TIME, IndexKeys.BODY, IndexKeys.BODY_INSERT};
+
+		for(File rcptOutbox : rcptOutboxes) {
+			File indexFile = new File(rcptOutbox, INDEX_NAME);
+			if(!rcptOutbox.isDirectory() || !indexFile.exists()) {
+				continue;
+			}
+
+			PropsFile props = PropsFile.createPropsFile(indexFile);
+			int removed = 0;
+			synchronized(props) {
+				for(String key : new ArrayList<String>(props.listProps())) {
+					for(String suffix : suffixes) {
+						if(!key.endsWith(suffix)) {
+							continue;
+						}
+
+						//Message files are written before the index entries and deleted before
+						//they are removed, so an entry without a file is left over
+						String identifier = key.substring(0, key.length() - suffix.length());
+						if(!new File(rcptOutbox, identifier).exists()) {
+							if(suffix.equals(IndexKeys.BODY_INSERT)) {
+								removeBodyInsert(props.get(key));
+							}
+							props.remove(key);
+							removed++;
+						}
+						break;
+					}
+				}
+			}
+
+			if(removed > 0) {
+				Logger.debug(this, "Removed " + removed + " orphaned index entries from " + indexFile);
+				report.indexEntriesRemoved(removed);
+			}
 		}
 	}
 
@@ -361,7 +644,7 @@ public class MessageHandler {
 					lastSendTime = props.get(identifier + IndexKeys.LAST_SEND_TIME);
 				}
 
-				OutboxMessage msg = new OutboxMessage(recipient, firstSendTime, lastSendTime, message);
+				OutboxMessage msg = new OutboxMessage(recipient, firstSendTime, lastSendTime, message, bodyProgress.get(message));
 				messages.add(msg);
 			}
 		}
@@ -375,9 +658,12 @@ public class MessageHandler {
 
 		private final Date firstSendTime;
 		private final Date lastSendTime;
+		private final BlockProgress progress;
 
-		private OutboxMessage(String recipient, String firstSendTime, String lastSendTime, File message) throws IOException {
+		private OutboxMessage(String recipient, String firstSendTime, String lastSendTime, File message,
+		                      BlockProgress progress) throws IOException {
 			this.recipient = recipient;
+			this.progress = progress;
 
 			Date first;
 			try {
@@ -416,6 +702,32 @@ public class MessageHandler {
 			if(lastSendTime == null) return null;
 			return new Date(lastSendTime.getTime());
 		}
+
+		/**
+		 * Returns {@code true} if the body of this message is being inserted on its own, in which
+		 * case {@link #getInsertedBlocks()} and {@link #getTotalBlocks()} return its progress.
+		 */
+		public boolean isInsertingBody() {
+			return progress != null;
+		}
+
+		public int getInsertedBlocks() {
+			return (progress == null) ? 0 : progress.succeeded;
+		}
+
+		public int getTotalBlocks() {
+			return (progress == null) ? 0 : progress.total;
+		}
+	}
+
+	private static class BlockProgress {
+		private final int succeeded;
+		private final int total;
+
+		private BlockProgress(int succeeded, int total) {
+			this.succeeded = succeeded;
+			this.total = total;
+		}
 	}
 
 	private long getMessageNumber(File rcptOutbox) {
@@ -438,105 +750,505 @@ public class MessageHandler {
 		}
 	}
 
-	private class SenderTask implements Runnable {
-		private final long msgNum;
-		private final String identifier;
-		private final File rcptOutbox;
+	private RecipientQueue getQueue(File rcptOutbox) {
+		RecipientQueue queue = queues.get(rcptOutbox);
+		if(queue == null) {
+			RecipientQueue newQueue = new RecipientQueue(rcptOutbox);
+			queue = queues.putIfAbsent(rcptOutbox, newQueue);
+			if(queue == null) {
+				queue = newQueue;
+			}
+		}
+		return queue;
+	}
 
-		private SenderTask(File rcptOutbox, long msgNum) {
-			this.msgNum = msgNum;
-			this.identifier = Long.toString(msgNum);
+	/**
+	 * Sends the messages in the outbox of a single recipient. The outbox directory and its index
+	 * hold the messages, and the index is read into an {@link OutboxQueue} the first time the queue
+	 * runs. After that the in-memory queue is kept up to date as messages are added, sent and
+	 * acked, so a run only looks at the messages it starts. Due messages are started in order,
+	 * with at most {@link #MAX_INSERTS_PER_RECIPIENT} inserts in flight. If the channel can take
+	 * bundles, due messages are packed into as few inserts as the bundle limits allow. Message
+	 * bodies that are inserted on their own for pointers have a separate limit of
+	 * {@link #MAX_BODY_INSERTS_PER_RECIPIENT}, since they can run for hours. If an
+	 * insert fails the whole queue waits before trying again, since the failure is most likely
+	 * caused by the channel (e.g. the RTS hasn't been sent yet) and would affect the other messages
+	 * too. The wait starts at {@link #SEND_RETRY_DELAY} and backs off while the inserts keep
+	 * failing.
+	 */
+	private class RecipientQueue implements Runnable {
+		private final File rcptOutbox;
+		private final RetryPolicy retry = new RetryPolicy(SEND_RETRY_DELAY, SEND_RETRY_MAX_DELAY);
+
+		/* The fields below are guarded by this */
+		private final OutboxQueue queue = new OutboxQueue(RESEND_TIME, MAX_INSERTS_PER_RECIPIENT,
+				MAX_BODY_INSERTS_PER_RECIPIENT);
+		private boolean loaded = false;
+		private String recipient = null;
+		private long retryAt = 0;
+		private Future<?> nextRun = null;
+		private long nextRunAt = 0;
+
+		private RecipientQueue(File rcptOutbox) {
 			this.rcptOutbox = rcptOutbox;
 		}
 
-		@Override
-		public void run() {
-			Logger.minor(this, "SenderTask for message " + identifier + " on account " + freemailAccount.getIdentity() + " running");
+		/**
+		 * Makes sure the queue runs within {@code delay} milliseconds, keeping an earlier run if
+		 * one has already been scheduled.
+		 */
+		private synchronized void schedule(long delay) {
+			long runAt = System.currentTimeMillis() + delay;
+			if(nextRun != null && !nextRun.isDone()) {
+				if(nextRunAt <= runAt) {
+					return;
+				}
+				nextRun.cancel(false);
+			}
 
-			long retryIn;
-			long lastSendTime;
-			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 			try {
-				String time;
-				synchronized(props) {
-					time = props.get(identifier + IndexKeys.LAST_SEND_TIME);
+				TransportScheduler scheduler = freemail.getTransportScheduler();
+				nextRun = scheduler.schedule(Freemail.getFCPConnection(), this, delay, TimeUnit.MILLISECONDS);
+				nextRunAt = runAt;
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while scheduling " + this);
+			}
+		}
+
+		/**
+		 * Adds a message that has just been written to the outbox, and runs the queue.
+		 */
+		private void messageAdded(String identifier, long msgNum, String rcpt) {
+			synchronized(this) {
+				//If the queue hasn't been loaded the message is read from the index with the rest
+				if(loaded) {
+					queue.add(identifier, msgNum, 0, false);
+					if(recipient == null) {
+						recipient = rcpt;
+					}
 				}
-				lastSendTime = Long.parseLong(time);
-			} catch(NumberFormatException e) {
-				lastSendTime = 0;
 			}
+			schedule(0);
+		}
 
-			retryIn = (lastSendTime + RESEND_TIME) - System.currentTimeMillis();
-			if(retryIn <= 0) {
-				boolean inserted;
-				try {
-					Timer insertTimer = Timer.start();
-					inserted = sendMessage();
-					insertTimer.log(this, 1, TimeUnit.HOURS, "Total time spent sending message");
-				} catch (InterruptedException e) {
-					Logger.debug(this, "SenderTask interrupted, quitting");
+		private synchronized void messageRemoved(String identifier) {
+			queue.remove(identifier);
+		}
+
+		/**
+		 * Reads the messages in the outbox index into the queue.
+		 */
+		/* Must be called with the lock on this held */
+		private void load() {
+			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+			synchronized(props) {
+				for(String key : props.listProps()) {
+					if(!key.endsWith(IndexKeys.MSG_NUM)) {
+						continue;
+					}
+
+					String identifier = key.substring(0, key.length() - IndexKeys.MSG_NUM.length());
+					long msgNum;
+					try {
+						msgNum = Long.parseLong(props.get(key));
+					} catch(NumberFormatException e) {
+						Logger.error(this, "Found message without valid message number: " + identifier);
+						continue;
+					}
+
+					long lastSendTime;
+					try {
+						lastSendTime = Long.parseLong(props.get(identifier + IndexKeys.LAST_SEND_TIME));
+					} catch(NumberFormatException e) {
+						lastSendTime = 0;
+					}
+
+					boolean hasBody = props.get(identifier + IndexKeys.BODY) != null;
+					queue.add(identifier, msgNum, lastSendTime, hasBody);
+					if(recipient == null) {
+						recipient = props.get(identifier + IndexKeys.RECIPIENT);
+					}
+				}
+			}
+			loaded = true;
+		}
+
+		@Override
+		public void run() {
+			Logger.minor(this, "Outbound queue for " + rcptOutbox + " on account " + freemailAccount.getIdentity() + " running");
+
+			long now = System.currentTimeMillis();
+			String rcpt;
+			synchronized(this) {
+				nextRun = null;
+				if(now < retryAt) {
+					schedule(retryAt - now);
 					return;
 				}
-				if(!inserted) {
-					//In most cases this is because the RTS hasn't been sent yet (so keys etc.
-					//haven't been generated yet), or because the insert failed
-					retryIn = 5 * 60 * 1000; //5 minutes
+
+				if(!loaded) {
+					load();
+				}
+				rcpt = recipient;
+			}
+
+			//Bundle the messages if the other side can unpack them
+			Channel existing = (rcpt == null) ? null : channelsByRemoteId.get(rcpt);
+			boolean bundle = existing != null && existing.canSendMessages() && existing.canSendBundles();
+			boolean pointers = existing != null && existing.canSendMessages() && existing.canSendPointers();
+
+			int started = 0;
+			long nextResend;
+			synchronized(this) {
+				//Starting inserts only changes which messages are in flight, not the due messages
+				SortedMap<Long, String> batch = new TreeMap<Long, String>();
+				long batchSize = 0;
+				for(Map.Entry<Long, String> entry : queue.getDue(now).entrySet()) {
+					String identifier = entry.getValue();
+					if(queue.isInFlight(identifier)) {
+						continue;
+					}
+
+					long size = new File(rcptOutbox, identifier).length();
+					if(pointers && size >= MIN_POINTER_SIZE) {
+						if(!queue.hasBody(identifier)) {
+							//The pointer is sent by a later run once the body has been inserted,
+							//and the queue runs again when a body insert finishes
+							if(queue.canStartBodyInsert()) {
+								startBodyInsert(existing, identifier);
+							}
+							continue;
+						}
+
+						//This will be sent as a pointer, so keep it out of the bundles
+						size = Channel.MAX_BUNDLE_SIZE + 1;
+					}
+					if(!batch.isEmpty() && (!bundle
+							|| batch.size() >= Channel.MAX_BUNDLE_MESSAGES
+							|| batchSize + size > Channel.MAX_BUNDLE_SIZE)) {
+						startInsert(batch);
+						started++;
+						batch = new TreeMap<Long, String>();
+						batchSize = 0;
+					}
+
+					if(!queue.canStartInsert()) {
+						//The queue will run again when one of the inserts finishes
+						break;
+					}
+
+					batch.put(entry.getKey(), identifier);
+					batchSize += size;
+				}
+
+				if(!batch.isEmpty()) {
+					startInsert(batch);
+					started++;
+				}
+				nextResend = queue.getNextResendTime();
+			}
+
+			Logger.minor(this, "Started " + started + " inserts for " + rcptOutbox);
+			if(nextResend != Long.MAX_VALUE) {
+				schedule(nextResend - now);
+			}
+		}
+
+		/* Must be called with the lock on this held */
+		private void startInsert(final SortedMap<Long, String> batch) {
+			queue.insertStarted(batch.values());
+			try {
+				TransportScheduler scheduler = freemail.getTransportScheduler();
+				scheduler.execute(Freemail.getFCPConnection(), new Job() {
+					@Override
+					public void start(Completion completion) {
+						insert(batch, completion);
+					}
+
+					@Override
+					public String toString() {
+						return "Insert of messages " + batch.values() + " in " + rcptOutbox;
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while starting insert");
+				queue.insertFinished(batch.values());
+			}
+		}
+
+		private void insert(SortedMap<Long, String> batch, Completion completion) {
+			//Skip messages that were acked while they were waiting in the queue
+			SortedMap<Long, String> remaining = new TreeMap<Long, String>();
+			for(Map.Entry<Long, String> entry : batch.entrySet()) {
+				if(new File(rcptOutbox, entry.getValue()).exists()) {
+					remaining.put(entry.getKey(), entry.getValue());
 				} else {
-					synchronized(props) {
-						long curTime = System.currentTimeMillis();
+					Logger.debug(this, "Message " + entry.getValue() + " was removed before it was sent");
+					messageRemoved(entry.getValue());
+				}
+			}
+			if(remaining.isEmpty()) {
+				insertFinished(batch, completion);
+				return;
+			}
+
+			sendMessages(batch, remaining, completion);
+		}
+
+		/**
+		 * Ends the insert of {@code batch}, freeing its slot in the transport scheduler and
+		 * starting the next insert or scheduling the retry.
+		 */
+		private void insertFinished(SortedMap<Long, String> batch, Completion completion) {
+			synchronized(this) {
+				queue.insertFinished(batch.values());
+			}
+			completion.done();
+
+			//This is rejected if we are shutting down
+			schedule(0);
+		}
+
+		/**
+		 * Records the result of an insert. {@code inserted} holds the messages that were sent, or
+		 * is {@code null} if the insert failed.
+		 */
+		private void recordResult(SortedMap<Long, String> inserted) {
+			if(inserted != null) {
+				retry.reset();
+				long curTime = System.currentTimeMillis();
+				PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+				synchronized(props) {
+					for(String identifier : inserted.values()) {
 						String firstSentTime = props.get(identifier + IndexKeys.FIRST_SEND_TIME);
 						if(firstSentTime == null) {
 							props.put(identifier + IndexKeys.FIRST_SEND_TIME, "" + curTime);
 						}
 						props.put(identifier + IndexKeys.LAST_SEND_TIME, "" + curTime);
 					}
-
-					retryIn = RESEND_TIME;
+				}
+				synchronized(this) {
+					queue.sent(inserted.values(), curTime);
+				}
+			} else {
+				//In most cases this is because the RTS hasn't been sent yet (so keys etc.
+				//haven't been generated yet), or because the insert failed
+				synchronized(this) {
+					retryAt = System.currentTimeMillis() + retry.nextDelay();
 				}
 			}
-
-			//Schedule again when the resend is due
-			Logger.minor(this, "Rescheduling sender task in " + retryIn + "ms");
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			tasks.put(identifier, senderExecutor.schedule(this, retryIn, TimeUnit.MILLISECONDS));
 		}
 
-		private boolean sendMessage() throws InterruptedException {
+		/**
+		 * Starts sending the messages in {@code remaining}, as a bundle if there is more than one,
+		 * and ends the insert of {@code batch} once the node has replied.
+		 */
+		private void sendMessages(final SortedMap<Long, String> batch, SortedMap<Long, String> remaining,
+				final Completion completion) {
 			String recipient;
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 			synchronized(props) {
-				recipient = props.get(identifier + IndexKeys.RECIPIENT);
+				recipient = props.get(remaining.get(remaining.firstKey()) + IndexKeys.RECIPIENT);
 			}
 
-			Channel c;
-			boolean inserted;
+			final Timer insertTimer = Timer.start();
 			while(true) {
-				c = getChannel(recipient);
-				Bucket message = new FileBucket(new File(rcptOutbox, identifier), false, false, false, false, false);
+				Channel c = getChannel(recipient);
+				if(c == null) {
+					recordResult(null);
+					insertFinished(batch, completion);
+					return;
+				}
+
+				SortedMap<Long, String> toSend = remaining;
+				if(remaining.size() > 1 && !c.canSendBundles()) {
+					//We got a new channel that can't take bundles, so the rest of the messages
+					//are picked up by the next run of the queue
+					toSend = remaining.headMap(Long.valueOf(remaining.firstKey().longValue() + 1));
+				}
+
+				final SortedMap<Long, String> sending = toSend;
+				Channel.SendCallback callback = new Channel.SendCallback() {
+					@Override
+					public void sendFinished(boolean sent) {
+						insertTimer.log(RecipientQueue.this, 1, TimeUnit.HOURS, "Total time spent sending message");
+						recordResult(sent ? sending : null);
+						insertFinished(batch, completion);
+					}
+				};
+
+				SortedMap<Long, Bucket> messages = new TreeMap<Long, Bucket>();
+				for(Map.Entry<Long, String> entry : toSend.entrySet()) {
+					File message = new File(rcptOutbox, entry.getValue());
+					messages.put(entry.getKey(), new FileBucket(message, false, false, false, false, false));
+				}
+
 				try {
-					inserted = c.sendMessage(message, msgNum);
+					if(toSend.size() == 1 && c.canSendPointers()
+							&& new File(rcptOutbox, toSend.get(toSend.firstKey())).length() >= MIN_POINTER_SIZE) {
+						Long msgNum = toSend.firstKey();
+						BodyPointer pointer;
+						synchronized(props) {
+							pointer = BodyPointer.parse(props.get(toSend.get(msgNum) + IndexKeys.BODY));
+						}
+						if(pointer != null) {
+							c.sendPointer(msgNum.longValue(), pointer, completion, callback);
+							return;
+						}
+
+						//The channel started taking pointers after the queue ran, so send the
+						//whole message this time
+					}
+
+					c.sendMessages(messages, completion, callback);
+					return;
 				} catch(ChannelTimedOutException e) {
 					//Try again with a new channel
 					continue;
 				} catch(IOException e) {
 					Logger.error(this, "Caugth IOException while sending message: " + e.getMessage(), e);
-					inserted = false;
+					recordResult(null);
+					insertFinished(batch, completion);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Starts inserting the body of a message that will be sent as a pointer. Body inserts can
+		 * run for hours, so they don't take a slot in the transport scheduler, and no thread waits
+		 * for them. Instead the caller checks {@link OutboxQueue#canStartBodyInsert()}. The message stays in flight until the insert has finished, and the pointer is
+		 * sent by the next run of the queue.
+		 */
+		/* Must be called with the lock on this held */
+		private void startBodyInsert(final Channel c, final String identifier) {
+			queue.bodyInsertStarted(identifier);
+			final Executor executor = freemail.getExecutor(TaskType.UNSPECIFIED);
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						insertBody(c, identifier, executor);
+					}
+
+					@Override
+					public String toString() {
+						return "Insert of body of " + identifier + " in " + rcptOutbox;
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while starting body insert");
+				queue.bodyInsertFinished(identifier);
+			}
+		}
+
+		/**
+		 * Inserts the body of a message and stores the pointer to it in the index, so resends
+		 * only insert the pointer. The running insert is kept in the index as well, so it can be
+		 * picked up again if we are restarted before it finishes.
+		 */
+		private void insertBody(Channel c, final String identifier, Executor executor) {
+			final PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+			BodyInsert existing;
+			synchronized(props) {
+				existing = BodyInsert.parse(props.get(identifier + IndexKeys.BODY_INSERT));
+			}
+
+			boolean resume = (existing != null);
+			final BodyInsert insert = resume ? existing : c.createBodyInsert();
+			if(!resume) {
+				synchronized(props) {
+					props.put(identifier + IndexKeys.BODY_INSERT, insert.serialize());
+				}
+			}
+
+			final File messageFile = new File(rcptOutbox, identifier);
+			Bucket message = new FileBucket(messageFile, false, false, false, false, false);
+			c.insertBody(message, insert, resume, new InsertProgressListener() {
+				@Override
+				public void onProgress(int succeeded, int total, boolean finalized) {
+					bodyProgress.put(messageFile, new BlockProgress(succeeded, total));
+				}
+			}, executor, new Channel.BodyCallback() {
+				@Override
+				public void bodyInserted(String uri) {
+					bodyProgress.remove(messageFile);
+					bodyInsertFinished(identifier, insert, uri);
+				}
+			});
+		}
+
+		private void bodyInsertFinished(String identifier, BodyInsert insert, String uri) {
+			boolean removed = !new File(rcptOutbox, identifier).exists();
+			if(uri != null && !removed) {
+				BodyPointer pointer = insert.toPointer(uri);
+				PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+				synchronized(props) {
+					props.put(identifier + IndexKeys.BODY, pointer.serialize());
+					props.remove(identifier + IndexKeys.BODY_INSERT);
 				}
+			}
 
-				break;
+			synchronized(this) {
+				queue.bodyInsertFinished(identifier);
+				if(removed) {
+					queue.remove(identifier);
+				} else if(uri != null) {
+					queue.setHasBody(identifier);
+				} else {
+					retryAt = System.currentTimeMillis() + retry.nextDelay();
+				}
 			}
 
-			return inserted;
+			//Send the pointer, or schedule the retry
+			schedule(0);
+		}
+
+		@Override
+		public String toString() {
+			return "RecipientQueue [" + rcptOutbox + "]";
 		}
 	}
 
 	private void deleteIndexEntries(File rcptOutbox, String identifier) {
 		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+		String bodyInsert;
 		synchronized(props) {
 			props.remove(identifier + IndexKeys.FIRST_SEND_TIME);
 			props.remove(identifier + IndexKeys.LAST_SEND_TIME);
 			props.remove(identifier + IndexKeys.RECIPIENT);
 			props.remove(identifier + IndexKeys.MSG_NUM);
+			props.remove(identifier + IndexKeys.BODY);
+			bodyInsert = props.get(identifier + IndexKeys.BODY_INSERT);
+			props.remove(identifier + IndexKeys.BODY_INSERT);
+		}
+
+		if(bodyInsert != null) {
+			removeBodyInsert(bodyInsert);
+		}
+	}
+
+	/**
+	 * Removes the insert of a message body that is no longer needed from the node, e.g. because
+	 * the message was acked while the body was being inserted. The node would otherwise keep
+	 * inserting it, and keep the request forever.
+	 */
+	private void removeBodyInsert(String serialized) {
+		final BodyInsert insert = BodyInsert.parse(serialized);
+		if(insert == null) {
+			return;
+		}
+
+		try {
+			freemail.getExecutor(TaskType.UNSPECIFIED).execute(new Runnable() {
+				@Override
+				public void run() {
+					Logger.debug(this, "Removing body insert " + insert.getIdentifier());
+					Channel.removeBodyInsert(hlFcpClientFactory.newInstance(), insert.getIdentifier());
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while removing body insert");
 		}
 	}
 
@@ -565,9 +1277,36 @@ public class MessageHandler {
 		}
 
 		@Override
-		public void onAckReceived(long id) {
+		public void onAckReceived(long first, long last) {
 			File rcptOutbox = new File(outbox, remoteId);
+			if(first == last) {
+				ackMessage(rcptOutbox, first);
+				return;
+			}
 
+			//Look at the messages we have instead of every id since the range could be large
+			File[] files = rcptOutbox.listFiles();
+			if(files == null) {
+				Logger.minor(this, "Received ack for " + first + "-" + last + " but the outbox doesn't exist");
+				return;
+			}
+
+			for(File f : files) {
+				long id;
+				try {
+					id = Long.parseLong(f.getName());
+				} catch(NumberFormatException e) {
+					//The index file
+					continue;
+				}
+
+				if(id >= first && id <= last) {
+					ackMessage(rcptOutbox, id);
+				}
+			}
+		}
+
+		private void ackMessage(File rcptOutbox, long id) {
 			File message = new File(rcptOutbox, "" + id);
 			if(message.exists()) {
 				Logger.minor(this, "Received ack, deleting message file: " + message);
@@ -579,16 +1318,11 @@ public class MessageHandler {
 			}
 
 			deleteIndexEntries(rcptOutbox, Long.toString(id));
-
-			Future<?> task = tasks.remove(Long.toString(id));
-			if(task != null) {
-				//Stop the insert if possible, but don't interrupt since the FCP code ignores it
-				task.cancel(false);
-			}
+			getQueue(rcptOutbox).messageRemoved(Long.toString(id));
 		}
 
 		@Override
-		public boolean handleMessage(Channel channel, BufferedReader message, long id) {
+		public boolean handleMessage(Channel channel, InputStream message, long id) {
 			synchronized (msgLog) {
 				boolean isDupe;
 				try {
@@ -619,6 +1353,18 @@ public class MessageHandler {
 			return true;
 		}
 
+		@Override
+		public void onPrivateKeyAssigned(Channel channel, String privateKey) {
+			if(privateKey != null) {
+				channelsByPrivateKey.put(privateKey, channel);
+			}
+		}
+
+		@Override
+		public boolean onIdle(Channel channel, long wakeIn) {
+			return hibernateChannel(channel, wakeIn);
+		}
+
 		@Override
 		public boolean validateFrom(EmailAddress address) {
 			if(remoteId.equalsIgnoreCase(address.getSubDomain())) {
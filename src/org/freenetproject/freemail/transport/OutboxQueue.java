@@ -0,0 +1,222 @@
+/*
+ * OutboxQueue.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The messages in the outbox of a single recipient, kept in memory so the outbox index only has to
+ * be read once. Messages are due in order of message number, and wait until their resend time once
+ * they have been sent. The queue also tracks which messages are in flight and how many inserts
+ * are running, so at most {@code maxInserts} inserts and {@code maxBodyInserts} inserts of message
+ * bodies run at once.
+ *
+ * This class isn't thread safe, the caller has to synchronize access to it.
+ */
+class OutboxQueue {
+	private static final Comparator<Message> BY_RESEND_TIME = new Comparator<Message>() {
+		@Override
+		public int compare(Message m1, Message m2) {
+			if(m1.resendAt != m2.resendAt) {
+				return m1.resendAt < m2.resendAt ? -1 : 1;
+			}
+			return m1.msgNum < m2.msgNum ? -1 : (m1.msgNum == m2.msgNum ? 0 : 1);
+		}
+	};
+
+	private final long resendTime;
+	private final int maxInserts;
+	private final int maxBodyInserts;
+
+	private final Map<String, Message> messages = new HashMap<String, Message>();
+	private final SortedMap<Long, String> due = new TreeMap<Long, String>();
+	private final SortedSet<Message> waiting = new TreeSet<Message>(BY_RESEND_TIME);
+	private final Set<String> inFlight = new HashSet<String>();
+	private int inserts = 0;
+	private int bodyInserts = 0;
+
+	/**
+	 * @param resendTime how long a message waits after being sent before it is sent again
+	 * @param maxInserts the maximum number of inserts that may run at once
+	 * @param maxBodyInserts the maximum number of message body inserts that may run at once
+	 */
+	OutboxQueue(long resendTime, int maxInserts, int maxBodyInserts) {
+		this.resendTime = resendTime;
+		this.maxInserts = maxInserts;
+		this.maxBodyInserts = maxBodyInserts;
+	}
+
+	/**
+	 * Adds a message to the queue. Nothing happens if the message is already in the queue.
+	 * @param lastSendTime when the message was last sent, or 0 if it hasn't been sent yet
+	 * @param hasBody {@code true} if the body of the message has been inserted on its own
+	 */
+	void add(String identifier, long msgNum, long lastSendTime, boolean hasBody) {
+		if(messages.containsKey(identifier)) {
+			return;
+		}
+
+		Message message = new Message(identifier, msgNum, hasBody);
+		messages.put(identifier, message);
+		if(lastSendTime == 0) {
+			due.put(Long.valueOf(msgNum), identifier);
+		} else {
+			message.resendAt = lastSendTime + resendTime;
+			waiting.add(message);
+		}
+	}
+
+	/**
+	 * Removes a message from the queue, e.g. because it has been acked.
+	 */
+	void remove(String identifier) {
+		Message message = messages.remove(identifier);
+		if(message == null) {
+			return;
+		}
+
+		due.remove(Long.valueOf(message.msgNum));
+		waiting.remove(message);
+	}
+
+	boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	/**
+	 * Returns the messages that are due at {@code now}, in order of message number. Messages
+	 * that are in flight are included, see {@link #isInFlight(String)}. The returned map must not
+	 * be used after the queue has been changed.
+	 */
+	SortedMap<Long, String> getDue(long now) {
+		while(!waiting.isEmpty() && waiting.first().resendAt <= now) {
+			Message message = waiting.first();
+			waiting.remove(message);
+			due.put(Long.valueOf(message.msgNum), message.identifier);
+		}
+		return Collections.unmodifiableSortedMap(due);
+	}
+
+	/**
+	 * Returns the time when the next waiting message is due, or {@link Long#MAX_VALUE} if no
+	 * messages are waiting.
+	 */
+	long getNextResendTime() {
+		return waiting.isEmpty() ? Long.MAX_VALUE : waiting.first().resendAt;
+	}
+
+	/**
+	 * Moves the given messages to the back of the queue after they have been sent at
+	 * {@code now}.
+	 */
+	void sent(Collection<String> identifiers, long now) {
+		for(String identifier : identifiers) {
+			Message message = messages.get(identifier);
+			if(message == null) {
+				continue;
+			}
+
+			due.remove(Long.valueOf(message.msgNum));
+			waiting.remove(message);
+			message.resendAt = now + resendTime;
+			waiting.add(message);
+		}
+	}
+
+	boolean hasBody(String identifier) {
+		Message message = messages.get(identifier);
+		return message != null && message.hasBody;
+	}
+
+	void setHasBody(String identifier) {
+		Message message = messages.get(identifier);
+		if(message != null) {
+			message.hasBody = true;
+		}
+	}
+
+	boolean isInFlight(String identifier) {
+		return inFlight.contains(identifier);
+	}
+
+	/**
+	 * Returns {@code true} if another insert can be started without going over the limit.
+	 */
+	boolean canStartInsert() {
+		return inserts < maxInserts;
+	}
+
+	/**
+	 * Marks the given messages as in flight in a new insert.
+	 */
+	void insertStarted(Collection<String> identifiers) {
+		inFlight.addAll(identifiers);
+		inserts++;
+	}
+
+	void insertFinished(Collection<String> identifiers) {
+		inFlight.removeAll(identifiers);
+		inserts--;
+	}
+
+	/**
+	 * Returns {@code true} if another body insert can be started without going over the limit.
+	 * Body inserts have their own limit since they can run for hours.
+	 */
+	boolean canStartBodyInsert() {
+		return bodyInserts < maxBodyInserts;
+	}
+
+	/**
+	 * Marks a message as in flight while its body is inserted.
+	 */
+	void bodyInsertStarted(String identifier) {
+		inFlight.add(identifier);
+		bodyInserts++;
+	}
+
+	void bodyInsertFinished(String identifier) {
+		inFlight.remove(identifier);
+		bodyInserts--;
+	}
+
+	private static class Message {
+		private final String identifier;
+		private final long msgNum;
+		private boolean hasBody;
+		private long resendAt = 0;
+
+		private Message(String identifier, long msgNum, boolean hasBody) {
+			this.identifier = identifier;
+			this.msgNum = msgNum;
+			this.hasBody = hasBody;
+		}
+	}
+}
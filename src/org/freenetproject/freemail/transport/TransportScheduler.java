@@ -0,0 +1,446 @@
+/*
+ * TransportScheduler.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Runs all the transport work (fetching, inserting messages, acks, RTSs etc.) for every account.
+ * Jobs are queued when they are due, and are only started when doing so won't exceed either the
+ * global limit on the number of jobs in flight or the limit for the node the job talks to. Jobs
+ * that are waiting for their delay to expire or for a free slot don't hold a thread.
+ *
+ * A job is in flight from the time it is started until it signals completion. Jobs that are
+ * submitted as a {@link Runnable} complete when {@code run()} returns, while a {@link Job} may
+ * return from {@link Job#start(Completion)} immediately and call {@link Completion#done()} later
+ * from any thread, e.g. when the reply to an FCP request arrives, so that it doesn't occupy a
+ * thread while waiting. The completion is also an {@link Executor} that runs the next step of the
+ * job on the threads of the scheduler, so it can be passed as the executor of FCP callbacks.
+ */
+public class TransportScheduler {
+	private static final long THREAD_KEEPALIVE = 10; //Minutes
+
+	private final int maxInFlight;
+	private final int maxInFlightPerNode;
+
+	/* Only used for waiting until jobs are due, never runs the jobs themselves */
+	private final ScheduledThreadPoolExecutor timer;
+	private final ThreadPoolExecutor workers;
+
+	private final Object lock = new Object();
+
+	/* The rest of the fields are guarded by lock */
+	private final LinkedList<Task> ready = new LinkedList<Task>();
+	private final Map<Object, Integer> inFlightPerNode = new HashMap<Object, Integer>();
+	private int inFlight = 0;
+	private boolean shutdown = false;
+
+	/**
+	 * Creates a new scheduler.
+	 * @param maxInFlight the maximum number of jobs in flight at any time
+	 * @param maxInFlightPerNode the maximum number of jobs in flight per node at any time
+	 * @param threadFactory used to create the threads that run the jobs
+	 */
+	public TransportScheduler(int maxInFlight, int maxInFlightPerNode, ThreadFactory threadFactory) {
+		if(maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		if(maxInFlightPerNode < 1) throw new IllegalArgumentException("maxInFlightPerNode must be positive: " + maxInFlightPerNode);
+
+		this.maxInFlight = maxInFlight;
+		this.maxInFlightPerNode = maxInFlightPerNode;
+
+		timer = new ScheduledThreadPoolExecutor(1, threadFactory);
+		timer.setKeepAliveTime(THREAD_KEEPALIVE, TimeUnit.MINUTES);
+		timer.allowCoreThreadTimeOut(true);
+
+		//No more than maxInFlight jobs are handed to the pool at once, so the queue never grows
+		workers = new ThreadPoolExecutor(maxInFlight, maxInFlight, THREAD_KEEPALIVE, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<Runnable>(), threadFactory);
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Runs {@code runnable} as soon as there is room for it.
+	 * @throws RejectedExecutionException if the scheduler has been shut down
+	 */
+	public Future<?> execute(Object node, Runnable runnable) {
+		return schedule(node, runnable, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts {@code job} as soon as there is room for it.
+	 * @throws RejectedExecutionException if the scheduler has been shut down
+	 */
+	public Future<?> execute(Object node, Job job) {
+		return schedule(node, job, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs {@code runnable} after {@code delay} has expired and there is room for it.
+	 * @param node the node the job will talk to, used for the per node limit
+	 * @throws RejectedExecutionException if the scheduler has been shut down
+	 */
+	public Future<?> schedule(Object node, Runnable runnable, long delay, TimeUnit unit) {
+		return schedule(node, new RunnableJob(runnable), delay, unit);
+	}
+
+	/**
+	 * Starts {@code job} after {@code delay} has expired and there is room for it. The job stays
+	 * in flight until it calls {@link Completion#done()}.
+	 * @param node the node the job will talk to, used for the per node limit
+	 * @throws RejectedExecutionException if the scheduler has been shut down
+	 */
+	public Future<?> schedule(Object node, Job job, long delay, TimeUnit unit) {
+		final Task task = new Task(node, job);
+
+		synchronized(lock) {
+			if(shutdown) {
+				throw new RejectedExecutionException("Transport scheduler has been shut down");
+			}
+
+			if(delay <= 0) {
+				task.state = TaskState.READY;
+				ready.addLast(task);
+				dispatch();
+				return task;
+			}
+
+			task.timerFuture = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized(lock) {
+						if(task.state != TaskState.WAITING || shutdown) {
+							return;
+						}
+						task.state = TaskState.READY;
+						ready.addLast(task);
+						dispatch();
+					}
+				}
+			}, delay, unit);
+		}
+
+		return task;
+	}
+
+	/**
+	 * Returns the number of jobs that are due but waiting for a free slot.
+	 */
+	public int getQueuedCount() {
+		synchronized(lock) {
+			return ready.size();
+		}
+	}
+
+	/**
+	 * Returns the number of jobs that are currently in flight.
+	 */
+	public int getInFlightCount() {
+		synchronized(lock) {
+			return inFlight;
+		}
+	}
+
+	/**
+	 * Stops the scheduler. Jobs that haven't been started are cancelled and running jobs are
+	 * interrupted.
+	 */
+	public void shutdownNow() {
+		synchronized(lock) {
+			shutdown = true;
+			for(Task task : ready) {
+				task.state = TaskState.CANCELLED;
+			}
+			ready.clear();
+			lock.notifyAll();
+		}
+
+		timer.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if(!timer.awaitTermination(timeout, unit)) {
+			return false;
+		}
+		return workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/* Must be called with lock held */
+	private void dispatch() {
+		Iterator<Task> it = ready.iterator();
+		while(inFlight < maxInFlight && it.hasNext()) {
+			Task task = it.next();
+			if(getInFlight(task.node) >= maxInFlightPerNode) {
+				continue;
+			}
+
+			it.remove();
+			task.state = TaskState.RUNNING;
+			inFlight++;
+			inFlightPerNode.put(task.node, Integer.valueOf(getInFlight(task.node) + 1));
+
+			try {
+				workers.execute(task);
+			} catch(RejectedExecutionException e) {
+				//Only happens when shutting down
+				Logger.debug(this, "Caugth RejectedExecutionException while starting job");
+				release(task);
+				task.state = TaskState.CANCELLED;
+				lock.notifyAll();
+				return;
+			}
+		}
+	}
+
+	/* Must be called with lock held */
+	private int getInFlight(Object node) {
+		Integer count = inFlightPerNode.get(node);
+		return (count == null) ? 0 : count.intValue();
+	}
+
+	/* Must be called with lock held */
+	private void release(Task task) {
+		inFlight--;
+		int count = getInFlight(task.node) - 1;
+		if(count <= 0) {
+			inFlightPerNode.remove(task.node);
+		} else {
+			inFlightPerNode.put(task.node, Integer.valueOf(count));
+		}
+	}
+
+	/**
+	 * A unit of work that signals its own completion.
+	 */
+	public interface Job {
+		/**
+		 * Starts the job. Implementations must call {@link Completion#done()} exactly once when
+		 * the job has finished, either before returning or later from any thread.
+		 */
+		void start(Completion completion);
+	}
+
+	public interface Completion extends Executor {
+		/**
+		 * Signals that the job has finished, freeing its slot.
+		 */
+		void done();
+
+		/**
+		 * Runs {@code step} as part of the job on the threads of the scheduler, without taking
+		 * another slot. If {@code step} throws or can't be run because the scheduler has been
+		 * shut down, the job is completed as if {@link #done()} had been called.
+		 */
+		@Override
+		void execute(Runnable step);
+	}
+
+	private enum TaskState {
+		WAITING,
+		READY,
+		RUNNING,
+		DONE,
+		CANCELLED
+	}
+
+	private class Task implements Runnable, Future<Object>, Completion {
+		private final Object node;
+		private final Job job;
+
+		/* Guarded by lock */
+		private TaskState state = TaskState.WAITING;
+		private ScheduledFuture<?> timerFuture;
+
+		private Task(Object node, Job job) {
+			this.node = node;
+			this.job = job;
+		}
+
+		@Override
+		public void run() {
+			try {
+				job.start(this);
+			} catch(RuntimeException e) {
+				Logger.error(this, "Caugth RuntimeException while running " + job, e);
+				done();
+			} catch(Error e) {
+				Logger.error(this, "Caugth Error while running " + job, e);
+				done();
+				throw e;
+			}
+		}
+
+		@Override
+		public void execute(final Runnable step) {
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							step.run();
+						} catch(RuntimeException e) {
+							Logger.error(this, "Caugth RuntimeException while running " + job, e);
+							done();
+						} catch(Error e) {
+							Logger.error(this, "Caugth Error while running " + job, e);
+							done();
+							throw e;
+						}
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				//Only happens when shutting down
+				Logger.debug(this, "Caugth RejectedExecutionException while resuming " + job);
+				done();
+			}
+		}
+
+		@Override
+		public void done() {
+			synchronized(lock) {
+				if(state != TaskState.RUNNING) {
+					//Completed twice, or after shutdown
+					return;
+				}
+
+				state = TaskState.DONE;
+				release(this);
+				lock.notifyAll();
+
+				if(!shutdown) {
+					dispatch();
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized(lock) {
+				switch(state) {
+				case WAITING:
+					if(timerFuture != null) {
+						timerFuture.cancel(false);
+					}
+					break;
+				case READY:
+					ready.remove(this);
+					break;
+				default:
+					//Jobs that have started are left alone
+					return false;
+				}
+
+				state = TaskState.CANCELLED;
+				lock.notifyAll();
+				return true;
+			}
+		}
+
+		@Override
+		public boolean isCancelled() {
+			synchronized(lock) {
+				return state == TaskState.CANCELLED;
+			}
+		}
+
+		@Override
+		public boolean isDone() {
+			synchronized(lock) {
+				return state == TaskState.DONE || state == TaskState.CANCELLED;
+			}
+		}
+
+		@Override
+		public Object get() throws InterruptedException, ExecutionException {
+			synchronized(lock) {
+				while(!isDone()) {
+					lock.wait();
+				}
+				if(state == TaskState.CANCELLED) {
+					throw new CancellationException();
+				}
+				return null;
+			}
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+			synchronized(lock) {
+				while(!isDone()) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) {
+						throw new TimeoutException();
+					}
+					lock.wait(remaining);
+				}
+				if(state == TaskState.CANCELLED) {
+					throw new CancellationException();
+				}
+				return null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Task [" + job + "]";
+		}
+	}
+
+	private static class RunnableJob implements Job {
+		private final Runnable runnable;
+
+		private RunnableJob(Runnable runnable) {
+			this.runnable = runnable;
+		}
+
+		@Override
+		public void start(Completion completion) {
+			try {
+				runnable.run();
+			} finally {
+				completion.done();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return runnable.toString();
+		}
+	}
+}
@@ -20,8 +20,10 @@
 
 package org.freenetproject.freemail.ui.web;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -65,6 +67,7 @@ import freenet.support.api.HTTPRequest;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
 
 public class NewMessageToadlet extends WebPage {
 	private static final String PATH = WebInterface.PATH + "/NewMessage";
@@ -325,26 +328,36 @@ public class NewMessageToadlet extends WebPage {
 		}
 		header.append("\r\n");
 
-		Bucket messageHeader = new ArrayBucket(header.toString().getBytes("UTF-8"));
 		Bucket messageText = req.getPart("message-text");
 
-		//Now combine them in a single bucket
-		Bucket message = new ArrayBucket();
-		OutputStream messageOutputStream = message.getOutputStream();
-		BucketTools.copyTo(messageHeader, messageOutputStream, -1);
-		BucketTools.copyTo(messageText, new MailMessage.EncodingOutputStream(messageOutputStream), -1);
-		messageOutputStream.close();
+		//Now combine them in a temporary file so large messages aren't held in memory
+		File messageFile = File.createTempFile("freemail-", ".message", Freemail.getTempDir());
+		try {
+			Bucket message = new FileBucket(messageFile, false, false, false, false, false);
+			OutputStream messageOutputStream = new BufferedOutputStream(message.getOutputStream());
+			try {
+				messageOutputStream.write(header.toString().getBytes("UTF-8"));
+				OutputStream encodingOutputStream = new MailMessage.EncodingOutputStream(messageOutputStream);
+				BucketTools.copyTo(messageText, encodingOutputStream, -1);
+				encodingOutputStream.close();
+			} finally {
+				Closer.close(messageOutputStream);
+			}
 
-		List<Identity> identities = new LinkedList<Identity>();
-		for(List<Identity> identityList : matches.values()) {
-			assert (identityList.size() == 1);
-			identities.add(identityList.get(0));
-		}
+			List<Identity> identities = new LinkedList<Identity>();
+			for(List<Identity> identityList : matches.values()) {
+				assert (identityList.size() == 1);
+				identities.add(identityList.get(0));
+			}
 
-		copyMessageToSentFolder(message, account.getMessageBank());
+			copyMessageToSentFolder(message, account.getMessageBank());
 
-		account.getMessageHandler().sendMessage(identities, message);
-		message.free();
+			account.getMessageHandler().sendMessage(identities, message);
+		} finally {
+			if(!messageFile.delete()) {
+				Logger.error(this, "Couldn't delete temporary file " + messageFile);
+			}
+		}
 
 		HTMLNode pageNode = page.outer;
 		HTMLNode contentNode = page.content;
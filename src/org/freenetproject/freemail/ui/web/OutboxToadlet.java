@@ -73,6 +73,7 @@ public class OutboxToadlet extends WebPage {
 		header.addChild("th", FreemailL10n.getString("Freemail.OutboxToadlet.subject"));
 		header.addChild("th", FreemailL10n.getString("Freemail.OutboxToadlet.firstSendTime"));
 		header.addChild("th", FreemailL10n.getString("Freemail.OutboxToadlet.lastSendTime"));
+		header.addChild("th", FreemailL10n.getString("Freemail.OutboxToadlet.progress"));
 
 		WoTConnection wotConnection = freemailPlugin.getWotConnection();
 
@@ -129,6 +130,7 @@ public class OutboxToadlet extends WebPage {
 			row.addChild("td", message.subject);
 			row.addChild("td", firstSendTime);
 			row.addChild("td", lastSendTime);
+			row.addChild("td", getProgress(message));
 		}
 		messageListing.log(this, "Time spent adding messages to page");
 
@@ -137,6 +139,19 @@ public class OutboxToadlet extends WebPage {
 		return new GenericHTMLResponse(ctx, 200, "OK", page.outer.generate());
 	}
 
+	private static String getProgress(OutboxMessage message) {
+		if(!message.isInsertingBody()) {
+			return "";
+		}
+
+		int inserted = message.getInsertedBlocks();
+		int total = message.getTotalBlocks();
+		int percent = (total == 0) ? 0 : (int)(100L * inserted / total);
+		return FreemailL10n.getString("Freemail.OutboxToadlet.insertProgress",
+				new String[] {"percent", "inserted", "total"},
+				new String[] {"" + percent, "" + inserted, "" + total});
+	}
+
 	@Override
 	HTTPResponse makeWebPagePost(URI uri, HTTPRequest req, ToadletContext ctx, PageNode page) throws IOException {
 		return makeWebPageGet(uri, req, ctx, page);
@@ -68,6 +68,16 @@ public class PropsFile {
 		return createPropsFile(f, false);
 	}
 
+	/**
+	 * Removes the cached instance for the given file, so that the memory it uses can be
+	 * reclaimed. The next call to {@link #createPropsFile(File)} will read the file again. The
+	 * caller must make sure that nothing uses the old instance after this has been called, since
+	 * the two instances won't see each others changes.
+	 */
+	public static synchronized void evict(File f) {
+		propsList.remove(f.getPath());
+	}
+
 	public static void reapOld() {
 		Logger.debug(PropsFile.class, "Cleaning up stale PropsFiles");
 
@@ -0,0 +1,94 @@
+/*
+ * RetryPolicy.java
+ * This file is part of Freemail, copyright (C) 2026
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import java.util.Random;
+
+/**
+ * Computes the delay before retrying an operation that failed. The delay starts at the initial
+ * delay and doubles after every consecutive failure, up to the maximum. Each delay is picked at
+ * random from the upper half of the current interval so that tasks that failed at the same time
+ * (e.g. because the node went away) don't all retry at the same time. Call {@link #reset()} when
+ * the operation succeeds.
+ */
+public class RetryPolicy {
+	private static final Random sharedRandom = new Random();
+
+	private final long initialDelay;
+	private final long maxDelay;
+	private final Random random;
+
+	private long current;
+	private int failures;
+
+	/**
+	 * @param initialDelay the delay after the first failure in milliseconds
+	 * @param maxDelay the largest delay that will be returned in milliseconds
+	 * @throws IllegalArgumentException if {@code initialDelay} isn't positive or
+	 *         {@code maxDelay < initialDelay}
+	 */
+	public RetryPolicy(long initialDelay, long maxDelay) {
+		this(initialDelay, maxDelay, sharedRandom);
+	}
+
+	RetryPolicy(long initialDelay, long maxDelay, Random random) {
+		if(initialDelay <= 0) throw new IllegalArgumentException("Initial delay must be positive: " + initialDelay);
+		if(maxDelay < initialDelay) throw new IllegalArgumentException("Maximum delay (" + maxDelay + ") is less than initial delay (" + initialDelay + ")");
+
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.random = random;
+		this.current = initialDelay;
+	}
+
+	/**
+	 * Records a failure and returns how long to wait before the next attempt.
+	 * @return the delay in milliseconds, between half the current interval and the interval itself
+	 */
+	public synchronized long nextDelay() {
+		long interval = current;
+		failures++;
+
+		//Compare before doubling to avoid overflow with very large maximums
+		current = (current > maxDelay / 2) ? maxDelay : current * 2;
+
+		long half = interval / 2;
+		long jitter;
+		synchronized(random) {
+			jitter = (long)(random.nextDouble() * (interval - half + 1));
+		}
+		return Math.min(interval, half + jitter);
+	}
+
+	/**
+	 * Called after a successful attempt. The next failure will wait for the initial delay again.
+	 */
+	public synchronized void reset() {
+		current = initialDelay;
+		failures = 0;
+	}
+
+	/**
+	 * Returns the number of failures since the policy was created or last reset.
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+}
@@ -24,6 +24,7 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.transport.TransportScheduler;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.wot.WoTConnection;
 
@@ -86,4 +87,10 @@ public class MockFreemail extends Freemail {
 		Logger.debug(this, "getExecutor(type=" + type + ")");
 		return super.getExecutor(type);
 	}
+
+	@Override
+	public TransportScheduler getTransportScheduler() {
+		Logger.debug(this, "getTransportScheduler()");
+		return super.getTransportScheduler();
+	}
 }
@@ -28,6 +28,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -38,6 +39,8 @@ import org.freenetproject.freemail.fcp.FCPFetchException;
 import org.freenetproject.freemail.fcp.FCPMessage;
 import org.freenetproject.freemail.fcp.FCPPutFailedException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.InsertProgressListener;
+import org.freenetproject.freemail.fcp.NoNodeConnectionException;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
 import org.freenetproject.freemail.utils.Logger;
 
@@ -122,6 +125,34 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		return result;
 	}
 
+	@Override
+	public File fetch(String key, long maxSize) throws ConnectionTerminatedException, FCPFetchException, FCPException,
+	                                                   InterruptedException {
+		return fetch(key);
+	}
+
+	@Override
+	public void fetchAsync(final String key, long maxSize, final RequestCallback<File> callback, Executor executor)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				File result;
+				try {
+					result = fetch(key);
+				} catch(FCPException e) {
+					callback.requestFailed(e);
+					return;
+				} catch(InterruptedException e) {
+					throw new AssertionError();
+				} catch(ConnectionTerminatedException e) {
+					throw new AssertionError();
+				}
+				callback.requestSucceeded(result);
+			}
+		});
+	}
+
 	@Override
 	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
 		Logger.debug(this, "makeSSK()");
@@ -144,6 +175,91 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		return null;
 	}
 
+	@Override
+	public FCPPutFailedException put(InputStream data, long length, String key) throws FCPBadFileException,
+	                                                                                   ConnectionTerminatedException,
+	                                                                                   FCPException, InterruptedException {
+		return put(data, key);
+	}
+
+	@Override
+	public void putAsync(InputStream data, long length, String key, final RequestCallback<String> callback,
+	                     Executor executor) throws NoNodeConnectionException, ConnectionTerminatedException,
+	                                               FCPBadFileException {
+		try {
+			put(data, key);
+		} catch(FCPException e) {
+			throw new AssertionError();
+		} catch(InterruptedException e) {
+			throw new AssertionError();
+		}
+
+		final String uri = key;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.requestSucceeded(uri);
+			}
+		});
+	}
+
+	@Override
+	public void insertPersistentCHKAsync(String identifier, InputStream data, long length,
+	                                     InsertProgressListener listener, final RequestCallback<String> callback,
+	                                     Executor executor) throws NoNodeConnectionException,
+	                                                               ConnectionTerminatedException,
+	                                                               FCPBadFileException {
+		final String uri;
+		try {
+			uri = insertPersistentCHK(identifier, data, length, listener);
+		} catch(FCPException e) {
+			throw new AssertionError();
+		} catch(InterruptedException e) {
+			throw new AssertionError();
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.requestSucceeded(uri);
+			}
+		});
+	}
+
+	@Override
+	public void resumePersistentCHKAsync(String identifier, InsertProgressListener listener,
+	                                     RequestCallback<String> callback, Executor executor)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		Logger.debug(this, "resumePersistentCHKAsync(identifier=" + identifier + ")");
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public synchronized String insertPersistentCHK(String identifier, InputStream data, long length,
+	                                               InsertProgressListener listener) throws FCPBadFileException,
+	                                                                                       ConnectionTerminatedException,
+	                                                                                       FCPException, InterruptedException {
+		Logger.debug(this, "insertPersistentCHK(identifier=" + identifier + ", length=" + length + ")");
+
+		String key = "CHK@mock-" + inserts.size();
+		inserts.add(new Insert(key, data));
+		notifyAll();
+
+		return key;
+	}
+
+	@Override
+	public String resumePersistentCHK(String identifier, InsertProgressListener listener) throws ConnectionTerminatedException,
+	                                                                                            FCPException, InterruptedException {
+		Logger.debug(this, "resumePersistentCHK(identifier=" + identifier + ")");
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void removePersistentRequest(String identifier) throws ConnectionTerminatedException, InterruptedException {
+		Logger.debug(this, "removePersistentRequest(identifier=" + identifier + ")");
+	}
+
 	@Override
 	public int SlotInsert(File data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
 	                                                                                    InterruptedException {
@@ -172,6 +288,32 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		return minslot;
 	}
 
+	@Override
+	public void slotInsertAsync(byte[] data, String basekey, final int minslot, String suffix,
+	                            final RequestCallback<Integer> callback, Executor executor)
+			throws NoNodeConnectionException, ConnectionTerminatedException {
+		Logger.debug(this, "slotInsertAsync(data.length=" + data.length
+		                            + ", basekey=" + basekey
+		                            + ", minslot=" + minslot
+		                            + ", suffix=" + suffix + ")");
+		try {
+			put(new ByteArrayInputStream(data), basekey + "-" + minslot);
+		} catch (FCPBadFileException e) {
+			throw new AssertionError();
+		} catch (FCPException e) {
+			throw new AssertionError();
+		} catch (InterruptedException e) {
+			throw new AssertionError();
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				callback.requestSucceeded(Integer.valueOf(minslot));
+			}
+		});
+	}
+
 	@Override
 	public void requestStatus(FCPMessage msg) {
 		Logger.debug(this, "requestStatus(msg=" + msg + ")");
@@ -49,7 +49,7 @@ public abstract class NullMessageHandler extends MessageHandler {
 	}
 
 	@Override
-	public void createChannelFromRTS(PropsFile rtsProps) {
+	public boolean createChannelFromRTS(PropsFile rtsProps) {
 		throw new UnsupportedOperationException();
 	}
 
@@ -23,6 +23,14 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import org.bouncycastle.crypto.engines.RSAEngine;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
 
 import org.junit.After;
 import org.junit.Before;
@@ -30,6 +38,7 @@ import org.junit.Test;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.FreemailAccount;
+import org.freenetproject.freemail.utils.PropsFile;
 
 import data.TestId1Data;
 
@@ -100,4 +109,45 @@ public class AccountManagerTest {
 
 		assertNotNull(manager.authenticate(TestId1Data.BASE64_ID, ACCOUNT_PASSWORD));
 	}
+
+	@Test
+	public void privateKeyGetsCrtParameters() throws Exception {
+		RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+		kpg.init(new RSAKeyGenerationParameters(BigInteger.valueOf(17), new SecureRandom(), 1024, 80));
+		RSAPrivateCrtKeyParameters generated = (RSAPrivateCrtKeyParameters) kpg.generateKeyPair().getPrivate();
+
+		//Account files created by older versions only have the private exponent
+		File accProps = new File(dataDir, AccountManager.ACCOUNT_FILE);
+		accProps.createNewFile();
+		PropsFile props = PropsFile.createPropsFile(accProps);
+		props.put("asymkey.modulus", generated.getModulus().toString(32));
+		props.put("asymkey.pubexponent", generated.getPublicExponent().toString(32));
+		props.put("asymkey.privexponent", generated.getExponent().toString(32));
+
+		RSAKeyParameters key = AccountManager.getPrivateKey(props);
+		assertTrue(key instanceof RSAPrivateCrtKeyParameters);
+		RSAPrivateCrtKeyParameters crtKey = (RSAPrivateCrtKeyParameters) key;
+		assertEquals(generated.getP().max(generated.getQ()), crtKey.getP());
+		assertEquals(generated.getP().min(generated.getQ()), crtKey.getQ());
+		assertEquals(crtKey.getQ().modInverse(crtKey.getP()), crtKey.getQInv());
+		assertNotNull(props.get("asymkey.p"));
+
+		//The derived key must decrypt what the public key encrypts
+		byte[] plaintext = "Hello, world".getBytes("UTF-8");
+		RSAEngine engine = new RSAEngine();
+		engine.init(true, new RSAKeyParameters(false, generated.getModulus(), generated.getPublicExponent()));
+		byte[] ciphertext = engine.processBlock(plaintext, 0, plaintext.length);
+		engine.init(false, key);
+		assertArrayEquals(plaintext, engine.processBlock(ciphertext, 0, ciphertext.length));
+
+		//The stored parameters are used the next time
+		PropsFile.evict(accProps);
+		RSAKeyParameters reread = AccountManager.getPrivateKey(PropsFile.createPropsFile(accProps));
+		assertEquals(crtKey.getP(), ((RSAPrivateCrtKeyParameters) reread).getP());
+	}
+
+	@Test
+	public void invalidPrivateKeyIsNotFactored() {
+		assertNull(AccountManager.deriveCrtKey(BigInteger.valueOf(3233), BigInteger.valueOf(17), BigInteger.valueOf(2)));
+	}
 }
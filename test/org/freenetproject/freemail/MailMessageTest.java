@@ -21,8 +21,11 @@ package org.freenetproject.freemail;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
@@ -129,6 +132,27 @@ public class MailMessageTest {
 		assertEquals(expected, msg.getFirstHeader("References"));
 	}
 
+	@Test
+	public void readHeadersFromStreamLeavesBody() throws IOException {
+		byte[] body = new byte[] {'a', '\r', '\n', 0, (byte)0xff, '\n', 'b'};
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		message.write("To: local@domain\r\nReferences: <1234@abc.com>\r\n <5678@def.com>\r\n\r\n".getBytes("UTF-8"));
+		message.write(body);
+
+		MailMessage msg = new MailMessage(new File(msgDir, "0"), 0);
+		InputStream is = new ByteArrayInputStream(message.toByteArray());
+		msg.readHeaders(is);
+
+		assertEquals("local@domain", msg.getFirstHeader("To"));
+		assertEquals("<1234@abc.com> <5678@def.com>", msg.getFirstHeader("References"));
+
+		byte[] rest = new byte[body.length + 1];
+		assertEquals(body.length, is.read(rest));
+		for(int i = 0; i < body.length; i++) {
+			assertEquals(body[i], rest[i]);
+		}
+	}
+
 	@Test
 	public void encodeDecodeMultipleStrings() throws UnsupportedEncodingException {
 		List<String> input = new LinkedList<String>();
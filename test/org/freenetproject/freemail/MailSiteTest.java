@@ -0,0 +1,106 @@
+/*
+ * MailSiteTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MailSiteTest {
+	private static final String KEY = "SSK@private,crypto,AQECAAE/mailsite";
+
+	private final File testDir = new File("mailsite_test");
+	private PropsFile accprops;
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+
+		accprops = PropsFile.createPropsFile(new File(testDir, "accprops"));
+		accprops.put("rtskey", "rtskey");
+		accprops.put("asymkey.modulus", "modulus");
+		accprops.put("asymkey.pubexponent", "exponent");
+		accprops.put("mailsite.privkey", KEY);
+	}
+
+	@After
+	public void after() {
+		PropsFile.evict(new File(testDir, "accprops"));
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void unchangedMailsiteIsNotPublished() {
+		MailSite ms = new MailSite(accprops);
+		long now = System.currentTimeMillis();
+		assertTrue(ms.isPublishDue(now));
+
+		ms.setPublished(ms.getMailPageBytes(), KEY, 3, now);
+		assertFalse(ms.isPublishDue(now));
+		assertFalse(ms.isPublishDue(now + MailSite.KEEPALIVE_INTERVAL - 1));
+		assertTrue(ms.isPublishDue(now + MailSite.KEEPALIVE_INTERVAL));
+	}
+
+	@Test
+	public void changedMailsiteIsPublished() {
+		MailSite ms = new MailSite(accprops);
+		long now = System.currentTimeMillis();
+		ms.setPublished(ms.getMailPageBytes(), KEY, 3, now);
+
+		accprops.put("rtskey", "newrtskey");
+		assertTrue(ms.isPublishDue(now));
+
+		ms.setPublished(ms.getMailPageBytes(), KEY, 4, now);
+		assertFalse(ms.isPublishDue(now));
+
+		accprops.put("mailsite.privkey", KEY + "2");
+		assertTrue(ms.isPublishDue(now));
+	}
+
+	@Test
+	public void wotEditionPending() {
+		MailSite ms = new MailSite(accprops);
+		assertNull(ms.getWoTEditionPending());
+
+		ms.setWoTEditionPending(3);
+		assertEquals("3", new MailSite(accprops).getWoTEditionPending());
+
+		//A newer edition must not be cleared by an older update
+		ms.setWoTEditionPending(4);
+		ms.clearWoTEditionPending("3");
+		assertEquals("4", ms.getWoTEditionPending());
+
+		ms.clearWoTEditionPending("4");
+		assertNull(ms.getWoTEditionPending());
+	}
+
+	@Test
+	public void incompleteMailsiteIsNotPublished() {
+		accprops.remove("asymkey.modulus");
+		assertFalse(new MailSite(accprops).isPublishDue(System.currentTimeMillis()));
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * MailsiteCacheTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MailsiteCacheTest {
+	private static final String IDENTITY = "D3MrAR-AVMqKJRjXnpKW2guW9z1mw5GZ9BB15mYVkVc";
+	private static final String MAILSITE_KEY =
+			"USK@" + IDENTITY + ",xgddjFHx2S~5U6PeFkwqO5V~1gZngFLoM-xaoMKSBI8,AQACAAE/mailsite/-5/mailpage";
+
+	private final File testDir = new File("mailsite_cache_test");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void parseKey() {
+		assertEquals(IDENTITY, MailsiteCache.getIdentityId(MAILSITE_KEY));
+		assertEquals(5, MailsiteCache.getEdition(MAILSITE_KEY));
+		assertNull(MailsiteCache.getIdentityId("KSK@abc"));
+		assertEquals(-1, MailsiteCache.getEdition("USK@abc,def,AQACAAE/other/1"));
+	}
+
+	@Test
+	public void storedEntryIsReturned() throws IOException {
+		MailsiteCache cache = new MailsiteCache(new File(testDir, "cache"));
+		assertNull(cache.get(IDENTITY, 5));
+
+		assertNotNull(cache.store(IDENTITY, 5, createMailsite(true)));
+
+		//Read it back with a new instance to check that it was persisted
+		MailsiteCache.Entry entry = new MailsiteCache(new File(testDir, "cache")).get(IDENTITY, 5);
+		assertNotNull(entry);
+		assertEquals("rtskey", entry.getRtsKsk());
+		assertEquals("modulus", entry.getModulus());
+		assertEquals("exponent", entry.getExponent());
+		assertEquals(5, entry.getEdition());
+	}
+
+	@Test
+	public void newerEditionIsNotServedFromCache() throws IOException {
+		MailsiteCache cache = new MailsiteCache(new File(testDir, "cache"));
+		cache.store(IDENTITY, 5, createMailsite(true));
+
+		assertNotNull(cache.get(IDENTITY, 4));
+		assertNotNull(cache.get(IDENTITY, -1));
+		assertNull(cache.get(IDENTITY, 6));
+	}
+
+	@Test
+	public void invalidateRemovesEntry() throws IOException {
+		MailsiteCache cache = new MailsiteCache(new File(testDir, "cache"));
+		cache.store(IDENTITY, 5, createMailsite(true));
+
+		cache.invalidate(IDENTITY);
+		assertNull(cache.get(IDENTITY, 5));
+	}
+
+	@Test
+	public void incompleteMailsiteIsNotStored() throws IOException {
+		MailsiteCache cache = new MailsiteCache(new File(testDir, "cache"));
+		assertNull(cache.store(IDENTITY, 5, createMailsite(false)));
+		assertNull(cache.get(IDENTITY, 5));
+	}
+
+	private File createMailsite(boolean complete) throws IOException {
+		File f = File.createTempFile("mailsite", null, testDir);
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			String content = "rtsksk=rtskey\r\n"
+					+ "asymkey.modulus=modulus\r\n"
+					+ (complete ? "asymkey.pubexponent=exponent\r\n" : "");
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+}
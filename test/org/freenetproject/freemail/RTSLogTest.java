@@ -0,0 +1,158 @@
+/*
+ * RTSLogTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.freenetproject.freemail.utils.DateStringFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class RTSLogTest {
+	private static final String TODAY = DateStringFactory.getOffsetKeyString(0);
+	private static final String TOMORROW = DateStringFactory.getOffsetKeyString(1);
+
+	private final File testDir = new File("rtslog_test");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void valuesArePersisted() {
+		File f = new File(testDir, "rtslog");
+		RTSLog log = new RTSLog(f);
+		assertEquals(0, log.getPasses(TODAY));
+		assertEquals("1", log.getSlots(TODAY));
+		assertEquals(0, log.getLastPass(TODAY));
+		assertEquals(1, log.getAndIncUnprocNextId());
+
+		log.incPasses(TODAY);
+		log.incPasses(TODAY);
+		log.putSlots(TODAY, "3,5=1000,7");
+		log.setLastPass(TODAY, 1234);
+		log.putSlots(TOMORROW, "2");
+
+		log = new RTSLog(f);
+		assertEquals(2, log.getPasses(TODAY));
+		assertEquals("3,5=1000,7", log.getSlots(TODAY));
+		assertEquals(1234, log.getLastPass(TODAY));
+		assertEquals("2", log.getSlots(TOMORROW));
+		assertEquals(0, log.getPasses(TOMORROW));
+		assertEquals(2, log.getAndIncUnprocNextId());
+	}
+
+	@Test
+	public void daysBeforeBirth() {
+		RTSLog log = new RTSLog(new File(testDir, "rtslog"));
+		assertEquals(Integer.MAX_VALUE, log.getPasses(DateStringFactory.getOffsetKeyString(-1)));
+	}
+
+	@Test
+	public void recordIsReusedAfterRing() {
+		File f = new File(testDir, "rtslog");
+		RTSLog log = new RTSLog(f);
+		log.incPasses(TODAY);
+		log.putSlots(TODAY, "4");
+
+		String later = DateStringFactory.getOffsetKeyString(RTSLog.DAYS);
+		assertEquals(0, log.getPasses(later));
+		assertEquals("1", log.getSlots(later));
+
+		log.putSlots(later, "2");
+		assertEquals("1", log.getSlots(TODAY));
+		assertEquals(0, log.getPasses(TODAY));
+
+		//The file doesn't grow as days are added
+		long length = f.length();
+		log.putSlots(DateStringFactory.getOffsetKeyString(RTSLog.DAYS + 1), "5");
+		assertEquals(length, f.length());
+	}
+
+	@Test
+	public void pruneBefore() {
+		RTSLog log = new RTSLog(new File(testDir, "rtslog"));
+		log.putSlots(TODAY, "4");
+		log.putSlots(TOMORROW, "6");
+
+		log.pruneBefore(DateStringFactory.dateFromKeyString(TOMORROW));
+		assertEquals("1", log.getSlots(TODAY));
+		assertEquals("6", log.getSlots(TOMORROW));
+	}
+
+	@Test
+	public void longSlotListIsTrimmed() {
+		StringBuilder slots = new StringBuilder();
+		int i = 1;
+		while(slots.length() <= RTSLog.MAX_SLOTS_LENGTH) {
+			slots.append(i++).append("=1000,");
+		}
+		slots.append("last");
+
+		String trimmed = RTSLog.trimSlots(slots.toString());
+		assertTrue(trimmed.length() <= RTSLog.MAX_SLOTS_LENGTH);
+		assertTrue(trimmed.endsWith(",last"));
+		assertTrue(slots.toString().endsWith(trimmed));
+	}
+
+	@Test
+	public void oldFormatIsConverted() throws IOException {
+		File f = new File(testDir, "rtslog");
+		String yesterday = DateStringFactory.getOffsetKeyString(-1);
+		String old = DateStringFactory.getOffsetKeyString(-RTSLog.DAYS - 5);
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			String content = "birth=" + DateStringFactory.getOffsetKeyString(-60) + "\n"
+					+ "unproc-nextid=7\n"
+					+ "slots-" + yesterday + "=4,6\n"
+					+ "passes-" + yesterday + "=2\n"
+					+ "lastpass-" + yesterday + "=5678\n"
+					+ "slots-" + old + "=9\n";
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		RTSLog log = new RTSLog(f);
+		assertEquals("4,6", log.getSlots(yesterday));
+		assertEquals(2, log.getPasses(yesterday));
+		assertEquals(5678, log.getLastPass(yesterday));
+		assertEquals("1", log.getSlots(old));
+		assertEquals(7, log.getAndIncUnprocNextId());
+
+		//Check that the converted log was written
+		log = new RTSLog(f);
+		assertEquals("4,6", log.getSlots(yesterday));
+		assertEquals(8, log.getAndIncUnprocNextId());
+	}
+}
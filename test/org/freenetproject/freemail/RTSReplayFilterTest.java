@@ -0,0 +1,103 @@
+/*
+ * RTSReplayFilterTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class RTSReplayFilterTest {
+	private static final String CHANNEL_KEY = "SSK@abc,def,AQACAAE/";
+
+	private final File testDir = new File("rts_replay_filter_test");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void addedHashIsRemembered() {
+		RTSReplayFilter filter = new RTSReplayFilter(new File(testDir, "seen"));
+		assertFalse(filter.contains("abc"));
+
+		filter.add("abc");
+		assertTrue(filter.contains("abc"));
+		assertFalse(filter.contains("def"));
+
+		//Check that it was persisted
+		filter = new RTSReplayFilter(new File(testDir, "seen"));
+		assertTrue(filter.contains("abc"));
+		assertFalse(filter.contains("def"));
+	}
+
+	@Test
+	public void expiredEntriesAreDropped() throws IOException {
+		File f = new File(testDir, "seen");
+		long now = System.currentTimeMillis();
+		write(f, "old " + (now - RTSReplayFilter.MAX_AGE - 1000) + "\n"
+				+ "new " + now + "\n"
+				+ "garbage\n");
+
+		RTSReplayFilter filter = new RTSReplayFilter(f);
+		assertFalse(filter.contains("old"));
+		assertTrue(filter.contains("new"));
+
+		//Only the valid entry should be left after the file has been rewritten
+		assertEquals(("new " + now + "\n").length(), f.length(), 1);
+	}
+
+	@Test
+	public void hashes() throws IOException {
+		File f = new File(testDir, "message");
+		write(f, CHANNEL_KEY);
+
+		String fileHash = RTSReplayFilter.hashFile(f);
+		assertEquals(fileHash, RTSReplayFilter.hashFile(f));
+		assertEquals(32, fileHash.length());
+
+		String channelHash = RTSReplayFilter.hashChannel(CHANNEL_KEY);
+		assertEquals(channelHash, RTSReplayFilter.hashChannel(CHANNEL_KEY));
+		assertFalse(channelHash.equals(fileHash));
+		assertFalse(channelHash.equals(RTSReplayFilter.hashChannel(CHANNEL_KEY + "x")));
+	}
+
+	private static void write(File f, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * SweeperTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class SweeperTest {
+	private static final long OLD = System.currentTimeMillis() - 7 * 24 * 60 * 60 * 1000;
+
+	private final File testDir = new File("sweeper_test");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void deletesOldFcpTempFiles() throws IOException {
+		File old = createFile("freemail-fcp123.tmp", 10, OLD);
+		File recent = createFile("freemail-fcp456.tmp", 10, System.currentTimeMillis());
+		File other = createFile("freemail-789.message", 10, OLD);
+
+		SweepReport report = new SweepReport();
+		Sweeper.sweepTempDir(testDir, report);
+
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+		assertTrue(other.exists());
+		assertEquals(1, report.getDeletedTempFiles());
+		assertEquals(10, report.getReclaimedBytes());
+	}
+
+	@Test
+	public void deletesStaleRtsFiles() throws IOException {
+		File old = createFile("unprocessed_rts-1,3", 5, OLD);
+		File tooManyTries = createFile("unprocessed_rts-2,16", 5, System.currentTimeMillis());
+		File pending = createFile("unprocessed_rts-3,3", 5, System.currentTimeMillis());
+		File malformed = createFile("unprocessed_rts-4,x", 5, System.currentTimeMillis());
+		File log = createFile("rtslog", 5, OLD);
+
+		SweepReport report = new SweepReport();
+		RTSFetcher.sweepUnprocessed(testDir, report);
+
+		//Files with attempts left are kept however old they are
+		assertTrue(old.exists());
+		assertFalse(tooManyTries.exists());
+		assertTrue(pending.exists());
+		assertFalse(malformed.exists());
+		assertTrue(log.exists());
+		assertEquals(2, report.getDeletedRtsFiles());
+		assertEquals(10, report.getReclaimedBytes());
+	}
+
+	@Test
+	public void missingDirectory() {
+		SweepReport report = new SweepReport();
+		Sweeper.sweepTempDir(new File(testDir, "missing"), report);
+		RTSFetcher.sweepUnprocessed(new File(testDir, "missing"), report);
+		assertTrue(report.isEmpty());
+	}
+
+	private File createFile(String name, int size, long lastModified) throws IOException {
+		File f = new File(testDir, name);
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+		assertTrue(f.setLastModified(lastModified));
+		return f;
+	}
+}
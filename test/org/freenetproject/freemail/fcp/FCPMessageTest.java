@@ -0,0 +1,63 @@
+/*
+ * FCPMessageTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class FCPMessageTest {
+	@Test
+	public void writesDataWithGivenLength() throws IOException, FCPBadFileException {
+		FCPMessage msg = new FCPMessage(1, "ClientPut");
+		msg.setData(new ByteArrayInputStream("0123456789".getBytes("UTF-8")), 4);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.writeto(out);
+
+		String written = out.toString("UTF-8");
+		assertTrue(written.contains("DataLength=4\r\n"));
+		assertTrue(written.endsWith("Data\r\n0123"));
+	}
+
+	@Test
+	public void truncatedDataIsNotPadded() throws IOException {
+		FCPMessage msg = new FCPMessage(1, "ClientPut");
+		msg.setData(new ByteArrayInputStream("01".getBytes("UTF-8")), 4);
+		assertFalse(msg.isTruncated());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			msg.writeto(out);
+			fail("Expected FCPBadFileException");
+		} catch(FCPBadFileException e) {
+			//Expected
+		}
+
+		//The data is streamed, so the node got what there was, but nothing was made up to fill
+		//the gap. The connection is dropped instead
+		assertTrue(msg.isTruncated());
+		assertTrue(out.toString("UTF-8").endsWith("Data\r\n01"));
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * FCPRequestTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FCPRequestTest {
+	private FCPConnection conn;
+
+	@Before
+	public void before() {
+		//Nothing listens on port 0, so this never connects
+		conn = new FCPConnection(new FCPContext());
+	}
+
+	@After
+	public void after() {
+		conn.kill();
+	}
+
+	@Test
+	public void completionIsReturned() throws Exception {
+		FCPMessage msg = conn.getMessage("ClientGet");
+		RecordingCallback callback = new RecordingCallback();
+		FCPRequest request = new FCPRequest(conn, msg, null, callback);
+		assertFalse(request.isDone());
+
+		FCPMessage reply = new FCPMessage(msg.getId(), "GetFailed");
+		request.requestFinished(reply);
+		assertTrue(request.isDone());
+		assertFalse(request.isCancelled());
+		assertSame(reply, request.get());
+		assertSame(reply, request.get(0, TimeUnit.SECONDS));
+
+		assertEquals(1, callback.replies.size());
+		assertSame(reply, callback.replies.get(0));
+
+		//Only the first completion counts
+		request.requestFinished(new FCPMessage(msg.getId(), "ConnectionClosed"));
+		assertSame(reply, request.get());
+		assertEquals(1, callback.replies.size());
+		assertFalse(request.cancel(true));
+	}
+
+	@Test
+	public void getTimesOut() throws Exception {
+		FCPRequest request = new FCPRequest(conn, conn.getMessage("ClientGet"), null, null);
+		try {
+			request.get(10, TimeUnit.MILLISECONDS);
+			fail("Expected TimeoutException");
+		} catch(TimeoutException e) {
+			//Expected
+		}
+	}
+
+	@Test
+	public void cancelledRequestIgnoresReply() throws Exception {
+		FCPMessage msg = conn.getMessage("ClientGet");
+		RecordingCallback callback = new RecordingCallback();
+		FCPRequest request = new FCPRequest(conn, msg, null, callback);
+
+		assertTrue(request.cancel(false));
+		assertTrue(request.isDone());
+		assertTrue(request.isCancelled());
+
+		request.requestFinished(new FCPMessage(msg.getId(), "AllData"));
+		assertTrue(callback.replies.isEmpty());
+		try {
+			request.get();
+			fail("Expected CancellationException");
+		} catch(CancellationException e) {
+			//Expected
+		}
+	}
+
+	@Test
+	public void statusIsForwarded() {
+		RecordingClient statusClient = new RecordingClient();
+		FCPMessage msg = conn.getMessage("ClientPut");
+		FCPRequest request = new FCPRequest(conn, msg, statusClient, null);
+
+		FCPMessage status = new FCPMessage(msg.getId(), "SimpleProgress");
+		request.requestStatus(status);
+		assertEquals(1, statusClient.status.size());
+		assertSame(status, statusClient.status.get(0));
+		assertFalse(request.isDone());
+	}
+
+	private static class RecordingCallback implements FCPRequest.Callback {
+		private final List<FCPMessage> replies = new ArrayList<FCPMessage>();
+
+		@Override
+		public void requestFinished(FCPRequest request, FCPMessage reply) {
+			replies.add(reply);
+		}
+	}
+
+	private static class RecordingClient implements FCPClient {
+		private final List<FCPMessage> status = new ArrayList<FCPMessage>();
+
+		@Override
+		public void requestFinished(FCPMessage msg) {
+			fail("Status client shouldn't get completion messages");
+		}
+
+		@Override
+		public void requestStatus(FCPMessage msg) {
+			status.add(msg);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * AckRangesTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class AckRangesTest {
+	@Test
+	public void formatWithRanges() {
+		assertEquals("1-3,5,7-8", AckRanges.format(ids(1, 2, 3, 5, 7, 8), true));
+	}
+
+	@Test
+	public void formatWithoutRanges() {
+		assertEquals("1,2,3,5", AckRanges.format(ids(1, 2, 3, 5), false));
+	}
+
+	@Test
+	public void formatSingleId() {
+		assertEquals("42", AckRanges.format(ids(42), true));
+	}
+
+	@Test
+	public void parseRangesAndIds() {
+		List<long[]> ranges = AckRanges.parse("1-180,183,190");
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] {1, 180}, ranges.get(0));
+		assertArrayEquals(new long[] {183, 183}, ranges.get(1));
+		assertArrayEquals(new long[] {190, 190}, ranges.get(2));
+	}
+
+	@Test
+	public void parseSkipsMalformedEntries() {
+		List<long[]> ranges = AckRanges.parse("abc,5-3,,7,8-x");
+		assertEquals(1, ranges.size());
+		assertArrayEquals(new long[] {7, 7}, ranges.get(0));
+	}
+
+	@Test
+	public void roundTrip() {
+		SortedSet<Long> ids = ids(1, 2, 4, 5, 6, 10);
+		SortedSet<Long> parsed = new TreeSet<Long>();
+		for(long[] range : AckRanges.parse(AckRanges.format(ids, true))) {
+			for(long id = range[0]; id <= range[1]; id++) {
+				parsed.add(Long.valueOf(id));
+			}
+		}
+		assertEquals(ids, parsed);
+	}
+
+	private static SortedSet<Long> ids(long... ids) {
+		SortedSet<Long> result = new TreeSet<Long>();
+		for(long id : ids) {
+			result.add(Long.valueOf(id));
+		}
+		return result;
+	}
+}
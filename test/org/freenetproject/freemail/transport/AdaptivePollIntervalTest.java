@@ -0,0 +1,69 @@
+/*
+ * AdaptivePollIntervalTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AdaptivePollIntervalTest {
+	@Test
+	public void startsAtMinimum() {
+		AdaptivePollInterval interval = new AdaptivePollInterval(100, 1000);
+		assertEquals(100, interval.get());
+	}
+
+	@Test
+	public void backsOffUntilMaximum() {
+		AdaptivePollInterval interval = new AdaptivePollInterval(100, 1000);
+		assertEquals(200, interval.onIdle());
+		assertEquals(400, interval.onIdle());
+		assertEquals(800, interval.onIdle());
+		assertEquals(1000, interval.onIdle());
+		assertEquals(1000, interval.onIdle());
+	}
+
+	@Test
+	public void activityResetsToMinimum() {
+		AdaptivePollInterval interval = new AdaptivePollInterval(100, 1000);
+		interval.onIdle();
+		interval.onIdle();
+		assertEquals(100, interval.onActivity());
+		assertEquals(200, interval.onIdle());
+	}
+
+	@Test
+	public void initialValueIsClamped() {
+		assertEquals(100, new AdaptivePollInterval(100, 1000, 5).get());
+		assertEquals(1000, new AdaptivePollInterval(100, 1000, 5000).get());
+		assertEquals(300, new AdaptivePollInterval(100, 1000, 300).get());
+	}
+
+	@Test
+	public void noOverflowWithLargeMaximum() {
+		AdaptivePollInterval interval = new AdaptivePollInterval(1, Long.MAX_VALUE, Long.MAX_VALUE - 1);
+		assertEquals(Long.MAX_VALUE, interval.onIdle());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maximumLessThanMinimum() {
+		new AdaptivePollInterval(1000, 100);
+	}
+}
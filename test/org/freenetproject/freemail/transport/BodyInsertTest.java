@@ -0,0 +1,64 @@
+/*
+ * BodyInsertTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BodyInsertTest {
+	private static final String IDENTIFIER = "Freemail-body-0f8fad5b-d9cb-469f-a165-70867728950e";
+	private static final String URI = "CHK@Mp8ZxuCLnBkioGfhs1TuqLdng9UVZ8~n5Q0QtiUY9WI,PuO0yMON89D~5jUgwh4pmeIxTelC-p2ieTQbfHmXBUU,AAMC--8";
+
+	@Test
+	public void serializeAndParse() {
+		BodyInsert insert = new BodyInsert(IDENTIFIER, key(), "deflate");
+		BodyInsert parsed = BodyInsert.parse(insert.serialize());
+
+		assertEquals(IDENTIFIER, parsed.getIdentifier());
+		assertArrayEquals(key(), parsed.getKey());
+		assertEquals("deflate", parsed.getCompression());
+	}
+
+	@Test
+	public void pointerUsesKeyAndCompression() {
+		BodyPointer pointer = BodyInsert.parse(new BodyInsert(IDENTIFIER, key(), null).serialize()).toPointer(URI);
+
+		assertEquals(URI, pointer.getURI());
+		assertArrayEquals(key(), pointer.getKey());
+		assertNull(pointer.getCompression());
+	}
+
+	@Test
+	public void rejectsMalformedInserts() {
+		assertNull(BodyInsert.parse(null));
+		assertNull(BodyInsert.parse(IDENTIFIER));
+		assertNull(BodyInsert.parse(IDENTIFIER + " AAAA"));
+		assertNull(BodyInsert.parse(IDENTIFIER + " not-base64! deflate"));
+	}
+
+	private static byte[] key() {
+		byte[] key = new byte[BodyPointer.KEY_LENGTH];
+		for(int i = 0; i < key.length; i++) {
+			key[i] = (byte)(i * 3);
+		}
+		return key;
+	}
+}
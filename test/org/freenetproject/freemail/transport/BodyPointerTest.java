@@ -0,0 +1,63 @@
+/*
+ * BodyPointerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BodyPointerTest {
+	private static final String URI = "CHK@Mp8ZxuCLnBkioGfhs1TuqLdng9UVZ8~n5Q0QtiUY9WI,PuO0yMON89D~5jUgwh4pmeIxTelC-p2ieTQbfHmXBUU,AAMC--8";
+
+	@Test
+	public void serializeAndParse() {
+		BodyPointer pointer = new BodyPointer(URI, key(), "deflate");
+		BodyPointer parsed = BodyPointer.parse(pointer.serialize());
+
+		assertEquals(URI, parsed.getURI());
+		assertArrayEquals(key(), parsed.getKey());
+		assertEquals("deflate", parsed.getCompression());
+	}
+
+	@Test
+	public void serializeAndParseWithoutCompression() {
+		BodyPointer parsed = BodyPointer.parse(new BodyPointer(URI, key(), null).serialize());
+
+		assertEquals(URI, parsed.getURI());
+		assertNull(parsed.getCompression());
+	}
+
+	@Test
+	public void rejectsMalformedPointers() {
+		assertNull(BodyPointer.parse(null));
+		assertNull(BodyPointer.parse(URI));
+		assertNull(BodyPointer.create(URI, "AAAA", null));
+		assertNull(BodyPointer.create(URI, "not base64!", null));
+		assertNull(BodyPointer.create(null, new BodyPointer(URI, key(), null).getEncodedKey(), null));
+	}
+
+	private static byte[] key() {
+		byte[] key = new byte[BodyPointer.KEY_LENGTH];
+		for(int i = 0; i < key.length; i++) {
+			key[i] = (byte)i;
+		}
+		return key;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * DormantChannelTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class DormantChannelTest {
+	private static final long WEEK = 7 * 24 * 60 * 60 * 1000;
+	private static final String REMOTE_ID = "remote";
+	private static final String PRIVATE_KEY = "SSK@private,crypto,AQECAAE/";
+
+	private final File channelDir = new File("dormant_channel_test");
+	private long timeout;
+
+	@Before
+	public void before() {
+		Utils.createDir(channelDir);
+
+		//The channel can't be used for sending any more, but hasn't expired yet
+		timeout = System.currentTimeMillis() - 1000;
+		PropsFile props = PropsFile.createPropsFile(new File(channelDir, "props"));
+		props.put("remoteID", REMOTE_ID);
+		props.put("privateKey", PRIVATE_KEY);
+		props.put("timeout", Long.toString(timeout));
+		props.put("recipient-state", "cts-sent");
+		PropsFile.evict(new File(channelDir, "props"));
+	}
+
+	@After
+	public void after() {
+		PropsFile.evict(new File(channelDir, "props"));
+		Utils.delete(channelDir);
+	}
+
+	@Test
+	public void idleChannelIsDormant() {
+		DormantChannel dormant = Channel.loadDormant(channelDir);
+		assertNotNull(dormant);
+		assertEquals(channelDir, dormant.getChannelDir());
+		assertEquals(REMOTE_ID, dormant.getRemoteIdentity());
+		assertEquals(PRIVATE_KEY, dormant.getPrivateKey());
+		assertEquals(timeout + WEEK, dormant.getExpiryTime());
+	}
+
+	@Test
+	public void channelThatCanSendIsLoaded() {
+		setProp("timeout", Long.toString(System.currentTimeMillis() + 60 * 1000));
+		assertNull(Channel.loadDormant(channelDir));
+
+		PropsFile props = PropsFile.createPropsFile(new File(channelDir, "props"));
+		props.remove("timeout");
+		PropsFile.evict(new File(channelDir, "props"));
+		assertNull(Channel.loadDormant(channelDir));
+	}
+
+	@Test
+	public void expiredChannelIsLoaded() {
+		setProp("timeout", Long.toString(System.currentTimeMillis() - WEEK - 1000));
+		assertNull(Channel.loadDormant(channelDir));
+	}
+
+	@Test
+	public void channelWithCtsToSendIsLoaded() {
+		setProp("recipient-state", "rts-received");
+		assertNull(Channel.loadDormant(channelDir));
+	}
+
+	@Test
+	public void channelWithAcksIsLoaded() throws IOException {
+		new MessageLog(new File(channelDir, "acklog")).add(1, "ack");
+		assertNull(Channel.loadDormant(channelDir));
+	}
+
+	@Test
+	public void channelWithInboundMessagesIsLoaded() throws IOException {
+		File message = new File(channelDir, "message");
+		new FileOutputStream(message).close();
+		assertTrue(new InboundQueue(new File(channelDir, "inbound"), 1).add(message, 1));
+		assertNull(Channel.loadDormant(channelDir));
+	}
+
+	@Test
+	public void brokenChannelIsLoaded() {
+		PropsFile props = PropsFile.createPropsFile(new File(channelDir, "props"));
+		props.remove("remoteID");
+		PropsFile.evict(new File(channelDir, "props"));
+		assertNull(Channel.loadDormant(channelDir));
+
+		Utils.delete(new File(channelDir, "props"));
+		assertNull(Channel.loadDormant(channelDir));
+	}
+
+	private void setProp(String key, String value) {
+		PropsFile props = PropsFile.createPropsFile(new File(channelDir, "props"));
+		props.put(key, value);
+		PropsFile.evict(new File(channelDir, "props"));
+	}
+}
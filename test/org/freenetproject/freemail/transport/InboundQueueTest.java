@@ -0,0 +1,133 @@
+/*
+ * InboundQueueTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class InboundQueueTest {
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final File testDir = new File("inbound_queue_test");
+	private final File queueDir = new File(testDir, "inbound");
+	private InboundQueue queue;
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+		queue = new InboundQueue(queueDir, MAX_ATTEMPTS);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void messagesAreListedInOrder() throws IOException {
+		assertTrue(queue.isEmpty());
+
+		assertTrue(queue.add(createFile("a"), 10));
+		assertTrue(queue.add(createFile("b"), 2));
+		assertTrue(queue.add(createFile("c"), 1));
+
+		List<File> messages = queue.list();
+		assertEquals(3, messages.size());
+		assertEquals("unprocessed_msg-1,0", messages.get(0).getName());
+		assertEquals("unprocessed_msg-2,0", messages.get(1).getName());
+		assertEquals("unprocessed_msg-10,0", messages.get(2).getName());
+		assertFalse(queue.isEmpty());
+	}
+
+	@Test
+	public void retryCountsAttempts() throws IOException {
+		queue.add(createFile("a"), 5);
+
+		assertTrue(queue.retry(queue.list().get(0)));
+		assertEquals("unprocessed_msg-5,1", queue.list().get(0).getName());
+
+		assertTrue(queue.retry(queue.list().get(0)));
+		assertEquals("unprocessed_msg-5,2", queue.list().get(0).getName());
+	}
+
+	@Test
+	public void messageIsDiscardedAfterMaxAttempts() throws IOException {
+		queue.add(createFile("a"), 5);
+		queue.add(createFile("b"), 6);
+
+		for(int i = 1; i < MAX_ATTEMPTS; i++) {
+			assertTrue(queue.retry(queue.list().get(0)));
+		}
+		assertFalse(queue.retry(queue.list().get(0)));
+
+		//Only the failing message is discarded
+		List<File> messages = queue.list();
+		assertEquals(1, messages.size());
+		assertEquals("unprocessed_msg-6,0", messages.get(0).getName());
+	}
+
+	@Test
+	public void bodyIsStoredAndRemovedWithPointer() throws IOException {
+		queue.add(createFile("pointer"), 7);
+		File pointer = queue.list().get(0);
+		File body = queue.getBodyFile(pointer);
+		assertFalse(body.exists());
+
+		File fetched = createFile("body");
+		queue.storeBody(pointer, fetched);
+		assertTrue(body.exists());
+		assertFalse(fetched.exists());
+
+		//The body stays with the pointer when the attempt count changes
+		queue.retry(pointer);
+		pointer = queue.list().get(0);
+		assertEquals(body, queue.getBodyFile(pointer));
+
+		queue.remove(pointer);
+		assertFalse(body.exists());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void fileOutsideQueueHasNoBody() throws IOException {
+		assertNull(queue.getBodyFile(createFile("a")));
+	}
+
+	private File createFile(String name) throws IOException {
+		File f = new File(testDir, name);
+		FileOutputStream os = new FileOutputStream(f);
+		try {
+			os.write(name.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+		return f;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * KeyPairPoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.freenetproject.freemail.fcp.SSKKeyPair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class KeyPairPoolTest {
+	private final File testDir = new File("keypairpool_test");
+	private final RecordingExecutor executor = new RecordingExecutor();
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void emptyPool() {
+		KeyPairPool pool = new KeyPairPool(new File(testDir, "pool"), executor);
+		assertEquals(0, pool.size());
+		assertNull(pool.take());
+	}
+
+	@Test
+	public void keyPairsAreOnlyHandedOutOnce() {
+		KeyPairPool pool = new KeyPairPool(new File(testDir, "pool"), executor);
+		assertTrue(pool.add(keyPair("a")));
+		assertTrue(pool.add(keyPair("b")));
+		assertEquals(2, pool.size());
+
+		//Take them from a new instance to check that they were persisted
+		pool = new KeyPairPool(new File(testDir, "pool"), executor);
+		SSKKeyPair first = pool.take();
+		SSKKeyPair second = pool.take();
+		assertNotNull(first);
+		assertNotNull(second);
+		assertFalse(first.privkey.equals(second.privkey));
+		assertEquals(first.pubkey.replace("pub", "priv"), first.privkey);
+		assertNull(pool.take());
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void refillsOnlyAfterStart() {
+		KeyPairPool pool = new KeyPairPool(new File(testDir, "pool"), executor);
+		pool.add(keyPair("a"));
+		pool.take();
+		assertEquals(0, executor.tasks.size());
+
+		pool.start();
+		assertEquals(1, executor.tasks.size());
+
+		//A refill is already pending, so another one isn't started
+		pool.take();
+		assertEquals(1, executor.tasks.size());
+	}
+
+	private static SSKKeyPair keyPair(String name) {
+		SSKKeyPair keyPair = new SSKKeyPair();
+		keyPair.pubkey = "SSK@pub-" + name;
+		keyPair.privkey = "SSK@priv-" + name;
+		return keyPair;
+	}
+
+	private static class RecordingExecutor implements Executor {
+		private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+	}
+}
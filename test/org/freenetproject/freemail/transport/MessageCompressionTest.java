@@ -0,0 +1,111 @@
+/*
+ * MessageCompressionTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.zip.ZipException;
+
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+
+public class MessageCompressionTest {
+	@Test
+	public void roundTrip() throws IOException {
+		byte[] message = ("Subject: Test\r\n\r\n" + repeat("Lorem ipsum dolor sit amet. ", 1000)).getBytes("UTF-8");
+
+		File compressed = compress(message);
+		File inflated = null;
+		try {
+			assertTrue(compressed.length() < message.length);
+
+			inflated = inflate(compressed, message.length);
+			assertNotNull(inflated);
+			assertArrayEquals(message, readFile(inflated));
+		} finally {
+			Channel.deleteTempFile(compressed);
+			Channel.deleteTempFile(inflated);
+		}
+	}
+
+	@Test
+	public void oversizedMessageIsRejected() throws IOException {
+		//Compresses to a few kB, but would fill the inbox if it wasn't limited
+		byte[] message = new byte[4 * 1024 * 1024];
+
+		File compressed = compress(message);
+		try {
+			assertNull(inflate(compressed, message.length - 1));
+		} finally {
+			Channel.deleteTempFile(compressed);
+		}
+	}
+
+	@Test(expected = ZipException.class)
+	public void corruptMessageIsRejected() throws IOException {
+		byte[] garbage = "This isn't deflate data".getBytes("UTF-8");
+		Channel.inflateToTempFile(new ByteArrayInputStream(garbage), 1024);
+	}
+
+	private static File compress(byte[] message) throws IOException {
+		return Channel.compressToTempFile(Collections.<Bucket>singletonList(new ArrayBucket(message)));
+	}
+
+	private static File inflate(File compressed, long maxLength) throws IOException {
+		InputStream is = new FileInputStream(compressed);
+		try {
+			return Channel.inflateToTempFile(is, maxLength);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream is = new FileInputStream(f);
+		try {
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * OutboxQueueTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OutboxQueueTest {
+	private static final long RESEND_TIME = 1000;
+	private static final int MAX_INSERTS = 2;
+	private static final int MAX_BODY_INSERTS = 1;
+	private static final long NOW = 100000;
+
+	@Test
+	public void dueMessagesAreOrderedByNumber() {
+		OutboxQueue queue = new OutboxQueue(RESEND_TIME, MAX_INSERTS, MAX_BODY_INSERTS);
+		queue.add("10", 10, 0, false);
+		queue.add("2", 2, 0, false);
+		queue.add("1", 1, 0, false);
+
+		//Adding a message twice doesn't change anything
+		queue.add("2", 2, 0, false);
+
+		assertEquals(Arrays.asList("1", "2", "10"), due(queue, NOW));
+		assertEquals(Long.MAX_VALUE, queue.getNextResendTime());
+	}
+
+	@Test
+	public void sentMessagesWaitForResend() {
+		OutboxQueue queue = new OutboxQueue(RESEND_TIME, MAX_INSERTS, MAX_BODY_INSERTS);
+		queue.add("1", 1, 0, false);
+		queue.add("2", 2, 0, false);
+		queue.add("3", 3, NOW - RESEND_TIME + 10, false);
+
+		assertEquals(Arrays.asList("1", "2"), due(queue, NOW));
+		assertEquals(NOW + 10, queue.getNextResendTime());
+
+		queue.sent(Collections.singletonList("1"), NOW);
+		assertEquals(Arrays.asList("2"), due(queue, NOW));
+
+		//Resent messages are due in order of number again
+		assertEquals(Arrays.asList("1", "2", "3"), due(queue, NOW + RESEND_TIME));
+		assertEquals(Long.MAX_VALUE, queue.getNextResendTime());
+	}
+
+	@Test
+	public void removedMessagesAreGone() {
+		OutboxQueue queue = new OutboxQueue(RESEND_TIME, MAX_INSERTS, MAX_BODY_INSERTS);
+		queue.add("1", 1, 0, false);
+		queue.add("2", 2, NOW, false);
+		assertFalse(queue.isEmpty());
+
+		queue.remove("1");
+		queue.remove("2");
+		queue.remove("3");
+		assertTrue(due(queue, NOW + RESEND_TIME).isEmpty());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void insertsAreCapped() {
+		OutboxQueue queue = new OutboxQueue(RESEND_TIME, MAX_INSERTS, MAX_BODY_INSERTS);
+		queue.add("1", 1, 0, false);
+		queue.add("2", 2, 0, false);
+		queue.add("3", 3, 0, false);
+
+		assertTrue(queue.canStartInsert());
+		queue.insertStarted(Arrays.asList("1", "2"));
+		assertTrue(queue.isInFlight("1"));
+		assertTrue(queue.isInFlight("2"));
+		assertFalse(queue.isInFlight("3"));
+		assertTrue(queue.canStartInsert());
+
+		queue.insertStarted(Arrays.asList("3"));
+		assertFalse(queue.canStartInsert());
+
+		queue.insertFinished(Arrays.asList("1", "2"));
+		assertFalse(queue.isInFlight("1"));
+		assertTrue(queue.canStartInsert());
+	}
+
+	@Test
+	public void bodyInsertsHaveTheirOwnCap() {
+		OutboxQueue queue = new OutboxQueue(RESEND_TIME, MAX_INSERTS, MAX_BODY_INSERTS);
+		queue.add("1", 1, 0, false);
+		queue.add("2", 2, 0, false);
+
+		assertTrue(queue.canStartBodyInsert());
+		queue.bodyInsertStarted("1");
+		assertTrue(queue.isInFlight("1"));
+		assertFalse(queue.canStartBodyInsert());
+
+		//Body inserts don't take the slots of the channel inserts
+		assertTrue(queue.canStartInsert());
+
+		queue.bodyInsertFinished("1");
+		assertFalse(queue.isInFlight("1"));
+		assertTrue(queue.canStartBodyInsert());
+	}
+
+	@Test
+	public void bodyIsTracked() {
+		OutboxQueue queue = new OutboxQueue(RESEND_TIME, MAX_INSERTS, MAX_BODY_INSERTS);
+		queue.add("1", 1, 0, false);
+		queue.add("2", 2, 0, true);
+		assertFalse(queue.hasBody("1"));
+		assertTrue(queue.hasBody("2"));
+
+		queue.setHasBody("1");
+		assertTrue(queue.hasBody("1"));
+		assertFalse(queue.hasBody("3"));
+	}
+
+	private static List<String> due(OutboxQueue queue, long now) {
+		return new ArrayList<String>(queue.getDue(now).values());
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * TransportSchedulerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freenetproject.freemail.transport.TransportScheduler.Completion;
+import org.freenetproject.freemail.transport.TransportScheduler.Job;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransportSchedulerTest {
+	private TransportScheduler scheduler;
+
+	@Before
+	public void before() {
+		scheduler = new TransportScheduler(3, 2, Executors.defaultThreadFactory());
+	}
+
+	@After
+	public void after() throws InterruptedException {
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Test(timeout = 10000)
+	public void runsRunnable() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		Future<?> future = scheduler.execute("node", new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		});
+
+		latch.await();
+		future.get();
+		assertTrue(future.isDone());
+		assertFalse(future.isCancelled());
+	}
+
+	@Test(timeout = 10000)
+	public void respectsPerNodeLimit() throws Exception {
+		List<Completion> started = new CopyOnWriteArrayList<Completion>();
+		for(int i = 0; i < 4; i++) {
+			scheduler.schedule("node", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+		}
+
+		waitForStarted(started, 2);
+		assertEquals(2, scheduler.getInFlightCount());
+		assertEquals(2, scheduler.getQueuedCount());
+
+		//Completing a job lets the next one start
+		started.get(0).done();
+		waitForStarted(started, 3);
+		assertEquals(2, scheduler.getInFlightCount());
+		assertEquals(1, scheduler.getQueuedCount());
+	}
+
+	@Test(timeout = 10000)
+	public void respectsGlobalLimit() throws Exception {
+		List<Completion> started = new CopyOnWriteArrayList<Completion>();
+		scheduler.schedule("node1", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+		scheduler.schedule("node1", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+		scheduler.schedule("node1", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+		scheduler.schedule("node2", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+		scheduler.schedule("node2", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+
+		//The third job for node1 has to wait, but one of the jobs for node2 can run
+		waitForStarted(started, 3);
+		assertEquals(3, scheduler.getInFlightCount());
+		assertEquals(2, scheduler.getQueuedCount());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelQueuedJob() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		Future<?> future = scheduler.schedule("node", new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 1, TimeUnit.HOURS);
+
+		assertTrue(future.cancel(false));
+		assertTrue(future.isCancelled());
+		assertTrue(future.isDone());
+		assertEquals(0, runs.get());
+	}
+
+	@Test(timeout = 10000)
+	public void failingJobReleasesSlot() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			scheduler.execute("node", new Runnable() {
+				@Override
+				public void run() {
+					throw new RuntimeException("Expected exception from test");
+				}
+			});
+		}
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		scheduler.execute("node", new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		});
+		latch.await();
+	}
+
+	@Test(timeout = 10000)
+	public void resumedJobKeepsSlot() throws Exception {
+		List<Completion> started = new CopyOnWriteArrayList<Completion>();
+		scheduler.schedule("node", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+		waitForStarted(started, 1);
+
+		final Completion completion = started.get(0);
+		final CountDownLatch resumed = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(1);
+		completion.execute(new Runnable() {
+			@Override
+			public void run() {
+				resumed.countDown();
+				try {
+					finish.await();
+				} catch(InterruptedException e) {
+					return;
+				}
+				completion.done();
+			}
+		});
+
+		resumed.await();
+		assertEquals(1, scheduler.getInFlightCount());
+		finish.countDown();
+		while(scheduler.getInFlightCount() != 0) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failingStepReleasesSlot() throws Exception {
+		List<Completion> started = new CopyOnWriteArrayList<Completion>();
+		scheduler.schedule("node", new AsyncJob(started), 0, TimeUnit.MILLISECONDS);
+		waitForStarted(started, 1);
+
+		started.get(0).execute(new Runnable() {
+			@Override
+			public void run() {
+				throw new RuntimeException("Expected exception from test");
+			}
+		});
+		while(scheduler.getInFlightCount() != 0) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static void waitForStarted(List<Completion> started, int count) throws InterruptedException {
+		while(started.size() < count) {
+			Thread.sleep(10);
+		}
+
+		//Give the scheduler a chance to start jobs it shouldn't
+		Thread.sleep(100);
+		assertEquals(count, started.size());
+	}
+
+	private static class AsyncJob implements Job {
+		private final List<Completion> started;
+
+		private AsyncJob(List<Completion> started) {
+			this.started = started;
+		}
+
+		@Override
+		public void start(Completion completion) {
+			started.add(completion);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * RetryPolicyTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+	@Test
+	public void delaysDoubleUpToMaximum() {
+		RetryPolicy policy = new RetryPolicy(100, 500, new FixedRandom(1.0));
+		assertEquals(100, policy.nextDelay());
+		assertEquals(200, policy.nextDelay());
+		assertEquals(400, policy.nextDelay());
+		assertEquals(500, policy.nextDelay());
+		assertEquals(500, policy.nextDelay());
+		assertEquals(5, policy.getFailures());
+	}
+
+	@Test
+	public void jitterStaysInUpperHalf() {
+		RetryPolicy low = new RetryPolicy(100, 1000, new FixedRandom(0.0));
+		assertEquals(50, low.nextDelay());
+		assertEquals(100, low.nextDelay());
+
+		RetryPolicy random = new RetryPolicy(1000, 1000);
+		for(int i = 0; i < 100; i++) {
+			long delay = random.nextDelay();
+			assertTrue(delay >= 500);
+			assertTrue(delay <= 1000);
+		}
+	}
+
+	@Test
+	public void resetStartsOver() {
+		RetryPolicy policy = new RetryPolicy(100, 1000, new FixedRandom(1.0));
+		policy.nextDelay();
+		policy.nextDelay();
+		policy.reset();
+		assertEquals(0, policy.getFailures());
+		assertEquals(100, policy.nextDelay());
+	}
+
+	@Test
+	public void noOverflowWithLargeMaximum() {
+		RetryPolicy policy = new RetryPolicy(1, Long.MAX_VALUE, new FixedRandom(1.0));
+		for(int i = 0; i < 100; i++) {
+			assertTrue(policy.nextDelay() > 0);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void maximumLessThanInitial() {
+		new RetryPolicy(100, 50);
+	}
+
+	private static class FixedRandom extends Random {
+		private static final long serialVersionUID = 1L;
+
+		private final double value;
+
+		FixedRandom(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double nextDouble() {
+			return value;
+		}
+	}
+}